@@ -0,0 +1,113 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A JMH benchmark of the conversion from RGB to X and Y values, comparing the lookup table of {@link ColourRGB} with computing the gamma correction with {@link Math#pow(double, double)}<br>
+ * Run it with {@code mvn -P benchmark test-compile exec:java}
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColourRGBBenchmark {
+
+    /**
+     * The number of colours that are converted per invocation
+     */
+    private static final int COLOURS = 4096;
+
+    /**
+     * The colours to convert, packed like {@link java.awt.Color#getRGB()}
+     */
+    private int[] rgb;
+
+    /**
+     * The converted colours
+     */
+    private int[] xy;
+
+    /**
+     * Create the colours to convert
+     * @since 1.4.0
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        rgb = new int[COLOURS];
+        xy = new int[COLOURS];
+        for(int i = 0; i < COLOURS; i++){
+            rgb[i] = random.nextInt(1 << 24);
+        }
+    }
+
+    /**
+     * Convert the colours with the batch conversion, which uses the lookup table and allocates nothing
+     * @return The converted colours
+     * @since 1.4.0
+     */
+    @Benchmark
+    public int[] lookupTableBatch() {
+        ColourRGB.toXY(rgb, xy);
+        return xy;
+    }
+
+    /**
+     * Convert the colours one by one with {@link ColourRGB#toXY()}, which uses the lookup table
+     * @param blackhole The blackhole that consumes the converted colours
+     * @since 1.4.0
+     */
+    @Benchmark
+    public void lookupTableSingle(Blackhole blackhole) {
+        for(int colour: rgb){
+            blackhole.consume(new ColourRGB((colour >> 16) & 0xFF, (colour >> 8) & 0xFF, colour & 0xFF).toXY());
+        }
+    }
+
+    /**
+     * Convert the colours by computing the gamma correction with {@link Math#pow(double, double)} for every colour, like version 1.3.0 did
+     * @return The converted colours
+     * @since 1.4.0
+     */
+    @Benchmark
+    public int[] pow() {
+        for(int i = 0; i < COLOURS; i++){
+            xy[i] = ColourRGBTest.toXYWithPow((rgb[i] >> 16) & 0xFF, (rgb[i] >> 8) & 0xFF, rgb[i] & 0xFF);
+        }
+        return xy;
+    }
+
+}
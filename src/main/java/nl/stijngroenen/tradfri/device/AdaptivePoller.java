@@ -0,0 +1,465 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class that polls IKEA TRÅDFRI devices that observe does not keep up to date, like sleeping remotes and motion sensors, or the battery level<br>
+ * Every device has its own interval. A poll that finds a change shortens the interval towards half of the average time between changes,
+ * and a poll that finds no change lengthens the interval by the backoff factor, within the minimum and maximum interval.
+ * Every interval is jittered, so the polls of many devices do not line up. A poll is only sent if the rate budget of the gateway leaves
+ * enough room for interactive requests, and is postponed otherwise.
+ * The responses are handled like notifications: they are submitted to the dispatch queue of the CoAP client under the observer of the device,
+ * so they are processed in order with the notifications of the device, on the dispatcher thread, and update the device and call its event handlers.
+ * Changes that arrive in notifications count as changes found by a poll, so a device that is observed as well is polled at the pace at which it changes.
+ * Polls take their token of the rate budget when they are sent, so the requests themselves are not charged again.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class AdaptivePoller {
+
+    /**
+     * A CoAP client that can be used to communicate with the devices using the IKEA TRÅDFRI gateway
+     */
+    private final CoapClient coapClient;
+
+    /**
+     * The polled devices, by instance id
+     */
+    private final ConcurrentHashMap<Integer, Target> targets;
+
+    /**
+     * The polled devices, by the time of their next poll
+     */
+    private final PriorityQueue<Target> schedule;
+
+    /**
+     * The shortest interval between polls of a device (in milliseconds)
+     * @value 30000
+     */
+    private volatile long minInterval = 30000L;
+
+    /**
+     * The longest interval between polls of a device (in milliseconds)
+     * @value 3600000
+     */
+    private volatile long maxInterval = 3600000L;
+
+    /**
+     * The factor by which the interval grows after a poll that found no change
+     * @value 1.5
+     */
+    private volatile double backoffFactor = 1.5;
+
+    /**
+     * The fraction by which an interval is randomly lengthened or shortened
+     * @value 0.1
+     */
+    private volatile double jitter = 0.1;
+
+    /**
+     * The time between checks for polls that are due (in milliseconds)
+     * @value 1000
+     */
+    private volatile long checkInterval = 1000L;
+
+    /**
+     * The executor that runs the checks (null if it is not started yet)
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Whether the poller is closed
+     */
+    private boolean closed;
+
+    /**
+     * The number of polls that were sent
+     */
+    private long pollCount;
+
+    /**
+     * The number of polls that found a change
+     */
+    private long changeCount;
+
+    /**
+     * Construct the AdaptivePoller class
+     * @param coapClient A CoAP client that can be used to communicate with the devices using the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    AdaptivePoller(CoapClient coapClient) {
+        this.coapClient = coapClient;
+        this.targets = new ConcurrentHashMap<>();
+        this.schedule = new PriorityQueue<>((a, b) -> Long.compare(a.nextPoll, b.nextPoll));
+    }
+
+    /**
+     * Start polling a device<br>
+     * The first poll is spread randomly over the maximum interval, so devices that are added together are not polled together
+     * @param device The device to poll
+     * @throws IllegalStateException Thrown if the poller is closed
+     * @since 1.4.0
+     */
+    public synchronized void add(Device device) {
+        if(device == null || device.getInstanceId() == null) throw new IllegalArgumentException("The device must have an instance id");
+        if(closed) throw new IllegalStateException("The poller is closed");
+        if(targets.containsKey(device.getInstanceId())) return;
+        long interval = Math.min(maxInterval, Math.max(minInterval, minInterval * 4));
+        Target target = new Target(device, device.getObserver(), interval);
+        target.nextPoll = System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(interval);
+        targets.put(device.getInstanceId(), target);
+        schedule.add(target);
+        target.observer.setPoller(this);
+        startScheduler();
+    }
+
+    /**
+     * Stop polling a device
+     * @param device The device to stop polling
+     * @since 1.4.0
+     */
+    public synchronized void remove(Device device) {
+        Target target = targets.remove(device.getInstanceId());
+        if(target == null) return;
+        schedule.remove(target);
+        target.observer.setPoller(null);
+    }
+
+    /**
+     * Check if a device is polled
+     * @param device The device
+     * @return True if the device is polled, false if not
+     * @since 1.4.0
+     */
+    public boolean isPolled(Device device) {
+        return device.getInstanceId() != null && targets.containsKey(device.getInstanceId());
+    }
+
+    /**
+     * Get the current interval between polls of a device
+     * @param device The device
+     * @return The current interval between polls of the device (in milliseconds, 0 if the device is not polled)
+     * @since 1.4.0
+     */
+    public synchronized long getInterval(Device device) {
+        Target target = device.getInstanceId() != null ? targets.get(device.getInstanceId()) : null;
+        return target != null ? target.interval : 0L;
+    }
+
+    /**
+     * Start the scheduler that checks for polls that are due, if it is not started yet
+     * @since 1.4.0
+     */
+    private void startScheduler() {
+        if(scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tradfri-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.schedule(this::check, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the polls that are due, as far as the rate budget allows, and schedule the next check
+     * @since 1.4.0
+     */
+    private void check() {
+        try {
+            long now = System.currentTimeMillis();
+            while (true) {
+                Target target;
+                synchronized (this) {
+                    target = schedule.peek();
+                    if(target == null || target.nextPoll > now) break;
+                    if(!coapClient.getRateBudget().tryAcquireBackground()) break;
+                    schedule.poll();
+                    pollCount++;
+                }
+                try {
+                    coapClient.getExecutor().execute(() -> poll(target));
+                } catch (RejectedExecutionException e) {
+                    reschedule(target);
+                }
+            }
+        } finally {
+            scheduleCheck();
+        }
+    }
+
+    /**
+     * Schedule the next check, unless the poller is closed
+     * @since 1.4.0
+     */
+    private synchronized void scheduleCheck() {
+        if(scheduler != null) scheduler.schedule(this::check, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop polling every device and stop the scheduler that checks for polls that are due<br>
+     * Devices can not be added to the poller after it is closed
+     * @since 1.4.0
+     */
+    public synchronized void close() {
+        if(closed) return;
+        closed = true;
+        for(Target target: targets.values()){
+            target.observer.setPoller(null);
+        }
+        targets.clear();
+        schedule.clear();
+        if(scheduler != null) scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    /**
+     * Poll a device and schedule its next poll<br>
+     * The next poll is scheduled as if the poll found no change, because the response is only processed later on by the dispatcher thread
+     * (and may be coalesced with or dropped for a notification). If processing the response finds a change, the next poll is moved forward.
+     * @param target The polled device
+     * @since 1.4.0
+     */
+    private void poll(Target target) {
+        try {
+            String payload = coapClient.getPrepaid(target.device.getEndpoint(), String.class);
+            if(payload != null) coapClient.getDispatchQueue().submit(target.observer, () -> {
+                if(target.observer.process(payload) > 0) changed(target);
+            });
+        } finally {
+            reschedule(target);
+        }
+    }
+
+    /**
+     * Lengthen the interval of a polled device by the backoff factor, and schedule its next poll
+     * @param target The polled device
+     * @since 1.4.0
+     */
+    private synchronized void reschedule(Target target) {
+        if(targets.get(target.device.getInstanceId()) != target) return;
+        target.polledInterval = target.interval;
+        target.interval = (long) (target.interval * backoffFactor);
+        schedule(target, System.currentTimeMillis());
+    }
+
+    /**
+     * Record a change of a polled device that arrived in a notification, which shortens its interval like a poll that found a change
+     * @param device The device that changed
+     * @since 1.4.0
+     */
+    synchronized void notified(Device device) {
+        Target target = device.getInstanceId() != null ? targets.get(device.getInstanceId()) : null;
+        if(target != null) changed(target);
+    }
+
+    /**
+     * Shorten the interval of a polled device after a poll or a notification found a change, and move its next poll forward<br>
+     * The interval moves towards half of the average time between changes, starting from the interval of the poll that found the change
+     * @param target The polled device
+     * @since 1.4.0
+     */
+    private synchronized void changed(Target target) {
+        if(targets.get(target.device.getInstanceId()) != target) return;
+        boolean scheduled = schedule.remove(target);
+        long now = System.currentTimeMillis();
+        changeCount++;
+        if(target.lastChange > 0){
+            long sinceChange = now - target.lastChange;
+            target.averageChangeInterval = target.averageChangeInterval == 0 ? sinceChange : (long) (target.averageChangeInterval * 0.7 + sinceChange * 0.3);
+            target.interval = target.averageChangeInterval / 2;
+        }else{
+            target.interval = target.polledInterval / 2;
+        }
+        target.lastChange = now;
+        if(scheduled) schedule(target, now);
+        else target.interval = Math.min(maxInterval, Math.max(minInterval, target.interval));
+    }
+
+    /**
+     * Clamp the interval of a polled device to the minimum and maximum interval, and schedule its next poll with jitter
+     * @param target The polled device
+     * @param now The current time (in milliseconds)
+     * @since 1.4.0
+     */
+    private void schedule(Target target, long now) {
+        target.interval = Math.min(maxInterval, Math.max(minInterval, target.interval));
+        double factor = 1.0 + jitter * (ThreadLocalRandom.current().nextDouble() * 2.0 - 1.0);
+        target.nextPoll = now + (long) (target.interval * factor);
+        schedule.add(target);
+    }
+
+    /**
+     * Get the shortest interval between polls of a device
+     * @return The shortest interval between polls of a device (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * Change the shortest interval between polls of a device
+     * @param minInterval The new shortest interval between polls of a device (in milliseconds)
+     * @since 1.4.0
+     */
+    public void setMinInterval(long minInterval) {
+        if(minInterval < 1000) throw new IllegalArgumentException("The minimum interval must be at least 1000 milliseconds");
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * Get the longest interval between polls of a device
+     * @return The longest interval between polls of a device (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * Change the longest interval between polls of a device
+     * @param maxInterval The new longest interval between polls of a device (in milliseconds)
+     * @since 1.4.0
+     */
+    public void setMaxInterval(long maxInterval) {
+        if(maxInterval < minInterval) throw new IllegalArgumentException("The maximum interval must not be shorter than the minimum interval");
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Get the factor by which the interval grows after a poll that found no change
+     * @return The backoff factor
+     * @since 1.4.0
+     */
+    public double getBackoffFactor() {
+        return backoffFactor;
+    }
+
+    /**
+     * Change the factor by which the interval grows after a poll that found no change
+     * @param backoffFactor The new backoff factor (at least 1)
+     * @since 1.4.0
+     */
+    public void setBackoffFactor(double backoffFactor) {
+        if(!(backoffFactor >= 1)) throw new IllegalArgumentException("The backoff factor must be at least 1");
+        this.backoffFactor = backoffFactor;
+    }
+
+    /**
+     * Get the fraction by which an interval is randomly lengthened or shortened
+     * @return The jitter (between 0 and 1)
+     * @since 1.4.0
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Change the fraction by which an interval is randomly lengthened or shortened
+     * @param jitter The new jitter (between 0 and 1)
+     * @since 1.4.0
+     */
+    public void setJitter(double jitter) {
+        if(jitter < 0 || jitter > 1) throw new IllegalArgumentException("The jitter must be between 0 and 1");
+        this.jitter = jitter;
+    }
+
+    /**
+     * Get the number of polls that were sent
+     * @return The number of polls that were sent
+     * @since 1.4.0
+     */
+    public synchronized long getPollCount() {
+        return pollCount;
+    }
+
+    /**
+     * Get the number of polls that found a change
+     * @return The number of polls that found a change
+     * @since 1.4.0
+     */
+    public synchronized long getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * The class that contains the polling state of a device
+     * @since 1.4.0
+     */
+    private static class Target {
+
+        /**
+         * The polled device
+         */
+        private final Device device;
+
+        /**
+         * The observer that handles the responses like notifications
+         */
+        private final DeviceObserver observer;
+
+        /**
+         * The current interval between polls (in milliseconds)
+         */
+        private long interval;
+
+        /**
+         * The interval that was current when the device was last polled (in milliseconds)
+         */
+        private long polledInterval;
+
+        /**
+         * The time of the next poll (in milliseconds)
+         */
+        private long nextPoll;
+
+        /**
+         * The time of the last change that a poll or a notification found (in milliseconds, 0 if there was none)
+         */
+        private long lastChange;
+
+        /**
+         * The moving average of the time between changes that a poll or a notification found (in milliseconds, 0 if it is not known yet)
+         */
+        private long averageChangeInterval;
+
+        /**
+         * Construct the Target class
+         * @param device The polled device
+         * @param observer The observer that handles the responses like notifications
+         * @param interval The initial interval between polls (in milliseconds)
+         * @since 1.4.0
+         */
+        private Target(Device device, DeviceObserver observer, long interval) {
+            this.device = device;
+            this.observer = observer;
+            this.interval = interval;
+            this.polledInterval = interval;
+        }
+    }
+
+}
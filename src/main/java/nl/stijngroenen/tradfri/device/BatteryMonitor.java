@@ -0,0 +1,470 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.device.event.BatteryThresholdEvent;
+import nl.stijngroenen.tradfri.device.event.EventHandler;
+import nl.stijngroenen.tradfri.device.event.HandlerRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The class that keeps track of the battery levels and power sources of IKEA TRÅDFRI devices<br>
+ * The aggregates (the number of devices per battery level, the sum of the battery levels, the devices ordered by battery level and the number of devices per power source)
+ * are updated incrementally for every reading, so reading them does not depend on the number of devices, except for the lowest devices, which depends on the number of requested devices.
+ * The readings come from the observer of the device, or from the {@link AdaptivePoller} for devices that observe does not keep up to date, like sleeping remotes.<br>
+ * A {@link BatteryThresholdEvent} is only fired when the battery level of a device crosses a threshold: once when it drops to or below the threshold,
+ * and once when it rises more than the hysteresis above the threshold again (for example after the battery was replaced).
+ * The first reading of a device only records which thresholds it is below, unless initial events are enabled.<br>
+ * <i>Note: {@link BatteryThresholdEvent} is a {@link nl.stijngroenen.tradfri.device.event.DeviceEvent}, so event handlers of a tracked device that handle every
+ * {@link nl.stijngroenen.tradfri.device.event.DeviceEvent} also receive the battery events of the device</i>
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class BatteryMonitor {
+
+    /**
+     * The highest battery level
+     */
+    private static final int MAX_LEVEL = 100;
+
+    /**
+     * The thresholds of the battery monitor, in ascending order
+     */
+    private final int[] thresholds;
+
+    /**
+     * The tracked devices, by instance id
+     */
+    private final HashMap<Integer, Entry> entries;
+
+    /**
+     * The number of devices per battery level
+     */
+    private final int[] counts;
+
+    /**
+     * The devices with a known battery level, packed as the battery level in the high word and the instance id in the low word, so they are ordered by battery level
+     */
+    private final TreeSet<Long> order;
+
+    /**
+     * The number of devices per power source
+     */
+    private final EnumMap<DevicePowerSource, Integer> powerSources;
+
+    /**
+     * The event handlers of the battery monitor
+     */
+    private final HandlerRegistry<EventHandler<?>> eventHandlers;
+
+    /**
+     * The sum of the known battery levels
+     */
+    private long sum;
+
+    /**
+     * The number of devices with a known battery level
+     */
+    private int known;
+
+    /**
+     * The number of battery levels a device has to rise above a threshold before it counts as above the threshold again
+     * @value 2
+     */
+    private int hysteresis = 2;
+
+    /**
+     * Whether the first reading of a device fires an event for every threshold that its battery level is at or below
+     * @value false
+     */
+    private boolean initialEvents;
+
+    /**
+     * Construct the BatteryMonitor class with the default thresholds (10 and 20 percent)
+     * @since 1.4.0
+     */
+    public BatteryMonitor() {
+        this(10, 20);
+    }
+
+    /**
+     * Construct the BatteryMonitor class
+     * @param thresholds The battery levels at which a {@link BatteryThresholdEvent} is fired (at most 64, between 0 and 100)
+     * @since 1.4.0
+     */
+    public BatteryMonitor(int... thresholds) {
+        int[] sorted = Arrays.stream(thresholds).distinct().sorted().toArray();
+        if(sorted.length > Long.SIZE) throw new IllegalArgumentException("A battery monitor can have at most " + Long.SIZE + " thresholds");
+        if(sorted.length > 0 && (sorted[0] < 0 || sorted[sorted.length - 1] > MAX_LEVEL)) throw new IllegalArgumentException("The thresholds must be between 0 and " + MAX_LEVEL);
+        this.thresholds = sorted;
+        this.entries = new HashMap<>();
+        this.counts = new int[MAX_LEVEL + 1];
+        this.order = new TreeSet<>();
+        this.powerSources = new EnumMap<>(DevicePowerSource.class);
+        this.eventHandlers = new HandlerRegistry<>(new EventHandler<?>[0]);
+    }
+
+    /**
+     * Start keeping track of the battery level and power source of a device, starting with its current information
+     * @param device The device
+     * @since 1.4.0
+     */
+    public void track(Device device) {
+        if(device == null || device.getInstanceId() == null) throw new IllegalArgumentException("The device must have an instance id");
+        synchronized (this) {
+            if(!entries.containsKey(device.getInstanceId())) entries.put(device.getInstanceId(), new Entry(device));
+        }
+        device.setBatteryMonitor(this);
+        update(device);
+    }
+
+    /**
+     * Stop keeping track of the battery level and power source of a device
+     * @param device The device
+     * @since 1.4.0
+     */
+    public synchronized void untrack(Device device) {
+        if(device.getBatteryMonitor() == this) device.setBatteryMonitor(null);
+        Entry entry = device.getInstanceId() != null ? entries.remove(device.getInstanceId()) : null;
+        if(entry == null) return;
+        setLevel(entry, null);
+        setPowerSource(entry, null);
+    }
+
+    /**
+     * Check if the battery level and power source of a device are kept track of
+     * @param device The device
+     * @return True if the device is tracked, false if not
+     * @since 1.4.0
+     */
+    public synchronized boolean isTracked(Device device) {
+        return device.getInstanceId() != null && entries.containsKey(device.getInstanceId());
+    }
+
+    /**
+     * Update the aggregates with the current information of a device, and fire an event for every threshold that its battery level crossed<br>
+     * The events are fired after the aggregates are updated, outside of the lock of the battery monitor
+     * @param device The device
+     * @since 1.4.0
+     */
+    void update(Device device) {
+        DeviceInfo deviceInfo = device.getDeviceInfo();
+        if(deviceInfo == null) return;
+        Integer level = deviceInfo.getBatteryLevel();
+        if(level != null) level = Math.max(0, Math.min(MAX_LEVEL, level));
+        List<BatteryThresholdEvent> events = null;
+        synchronized (this) {
+            Entry entry = device.getInstanceId() != null ? entries.get(device.getInstanceId()) : null;
+            if(entry == null) return;
+            setPowerSource(entry, deviceInfo.getPowerSource());
+            if(level == null || level.equals(entry.level)) {
+                setLevel(entry, level);
+                return;
+            }
+            Integer oldLevel = entry.level;
+            boolean initial = oldLevel == null && !entry.read;
+            entry.read = true;
+            setLevel(entry, level);
+            for(int i = 0; i < thresholds.length; i++){
+                long bit = 1L << i;
+                boolean below = (entry.below & bit) != 0;
+                if(!below && level <= thresholds[i]){
+                    entry.below |= bit;
+                }else if(below && level > thresholds[i] + hysteresis){
+                    entry.below &= ~bit;
+                }else{
+                    continue;
+                }
+                if(initial && !initialEvents) continue;
+                if(events == null) events = new ArrayList<>();
+                events.add(new BatteryThresholdEvent(device, thresholds[i], oldLevel, level));
+            }
+        }
+        if(events == null) return;
+        EventHandler<?>[] eventHandlers = this.eventHandlers.snapshot();
+        EventHandler<?>[] deviceHandlers = device.getEventHandlerRegistry().snapshot();
+        for(BatteryThresholdEvent event: events){
+            for(EventHandler<?> eventHandler: eventHandlers){
+                eventHandler.offer(event);
+            }
+            for(EventHandler<?> eventHandler: deviceHandlers){
+                if(!HandlerRegistry.containsIdentical(eventHandlers, eventHandler)) eventHandler.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Change the battery level of a tracked device in the aggregates
+     * @param entry The tracked device
+     * @param level The new battery level (null if it is not known)
+     * @since 1.4.0
+     */
+    private void setLevel(Entry entry, Integer level) {
+        if(entry.level != null){
+            counts[entry.level]--;
+            sum -= entry.level;
+            known--;
+            order.remove(key(entry.level, entry.device));
+        }
+        entry.level = level;
+        if(level != null){
+            counts[level]++;
+            sum += level;
+            known++;
+            order.add(key(level, entry.device));
+        }
+    }
+
+    /**
+     * Change the power source of a tracked device in the aggregates
+     * @param entry The tracked device
+     * @param powerSource The new power source (null if it is not known)
+     * @since 1.4.0
+     */
+    private void setPowerSource(Entry entry, DevicePowerSource powerSource) {
+        if(entry.powerSource == powerSource) return;
+        if(entry.powerSource != null) powerSources.merge(entry.powerSource, -1, Integer::sum);
+        entry.powerSource = powerSource;
+        if(powerSource != null) powerSources.merge(powerSource, 1, Integer::sum);
+    }
+
+    /**
+     * Get the key of a device in the devices ordered by battery level
+     * @param level The battery level of the device
+     * @param device The device
+     * @return The battery level in the high word and the instance id in the low word
+     * @since 1.4.0
+     */
+    private static long key(int level, Device device) {
+        return ((long) level << 32) | (device.getInstanceId() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get the number of tracked devices
+     * @return The number of tracked devices
+     * @since 1.4.0
+     */
+    public synchronized int getDeviceCount() {
+        return entries.size();
+    }
+
+    /**
+     * Get the number of tracked devices with a known battery level
+     * @return The number of tracked devices with a known battery level
+     * @since 1.4.0
+     */
+    public synchronized int getKnownCount() {
+        return known;
+    }
+
+    /**
+     * Get the last known battery level of a tracked device
+     * @param device The device
+     * @return The battery level of the device (null if it is not known or the device is not tracked)
+     * @since 1.4.0
+     */
+    public synchronized Integer getLevel(Device device) {
+        Entry entry = device.getInstanceId() != null ? entries.get(device.getInstanceId()) : null;
+        return entry != null ? entry.level : null;
+    }
+
+    /**
+     * Get the average battery level of the tracked devices with a known battery level
+     * @return The average battery level (NaN if no battery level is known)
+     * @since 1.4.0
+     */
+    public synchronized double getAverageLevel() {
+        return known > 0 ? (double) sum / known : Double.NaN;
+    }
+
+    /**
+     * Get the number of tracked devices with a battery level at or below a level
+     * @param level The battery level
+     * @return The number of tracked devices with a battery level at or below the level
+     * @since 1.4.0
+     */
+    public synchronized int getCountAtOrBelow(int level) {
+        int count = 0;
+        for(int i = 0; i <= Math.min(level, MAX_LEVEL); i++){
+            count += counts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of tracked devices per range of battery levels
+     * @param bucketSize The number of battery levels per bucket (bucket k contains the battery levels from k * bucketSize up to (k + 1) * bucketSize, exclusive)
+     * @return The number of tracked devices in every bucket
+     * @since 1.4.0
+     */
+    public synchronized int[] getHistogram(int bucketSize) {
+        if(bucketSize < 1) throw new IllegalArgumentException("The bucket size must be at least 1");
+        int[] histogram = new int[MAX_LEVEL / bucketSize + 1];
+        for(int i = 0; i <= MAX_LEVEL; i++){
+            histogram[i / bucketSize] += counts[i];
+        }
+        return histogram;
+    }
+
+    /**
+     * Get the tracked devices with the lowest battery levels
+     * @param limit The maximum number of devices
+     * @return The devices with the lowest battery levels, from the lowest battery level up
+     * @since 1.4.0
+     */
+    public synchronized List<Device> getLowest(int limit) {
+        if(limit < 0) throw new IllegalArgumentException("The limit must not be negative");
+        List<Device> devices = new ArrayList<>(Math.min(limit, known));
+        Iterator<Long> iterator = order.iterator();
+        while (devices.size() < limit && iterator.hasNext()) {
+            devices.add(entries.get((int) iterator.next().longValue()).device);
+        }
+        return devices;
+    }
+
+    /**
+     * Get the number of tracked devices with a power source
+     * @param powerSource The power source
+     * @return The number of tracked devices with the power source
+     * @since 1.4.0
+     */
+    public synchronized int getPowerSourceCount(DevicePowerSource powerSource) {
+        return powerSources.getOrDefault(powerSource, 0);
+    }
+
+    /**
+     * Get the thresholds of the battery monitor
+     * @return The battery levels at which a {@link BatteryThresholdEvent} is fired, in ascending order
+     * @since 1.4.0
+     */
+    public List<Integer> getThresholds() {
+        List<Integer> thresholds = new ArrayList<>(this.thresholds.length);
+        for(int threshold: this.thresholds){
+            thresholds.add(threshold);
+        }
+        return Collections.unmodifiableList(thresholds);
+    }
+
+    /**
+     * Get the number of battery levels a device has to rise above a threshold before it counts as above the threshold again
+     * @return The hysteresis (in battery levels)
+     * @since 1.4.0
+     */
+    public synchronized int getHysteresis() {
+        return hysteresis;
+    }
+
+    /**
+     * Change the number of battery levels a device has to rise above a threshold before it counts as above the threshold again<br>
+     * This keeps a battery level that goes up and down around a threshold from firing an event for every reading
+     * @param hysteresis The new hysteresis (in battery levels)
+     * @since 1.4.0
+     */
+    public synchronized void setHysteresis(int hysteresis) {
+        if(hysteresis < 0) throw new IllegalArgumentException("The hysteresis must not be negative");
+        this.hysteresis = hysteresis;
+    }
+
+    /**
+     * Check if the first reading of a device fires an event for every threshold that its battery level is at or below
+     * @return True if the first reading fires events, false if it only records which thresholds the device is below
+     * @since 1.4.0
+     */
+    public synchronized boolean isInitialEvents() {
+        return initialEvents;
+    }
+
+    /**
+     * Change whether the first reading of a device fires an event for every threshold that its battery level is at or below<br>
+     * By default the first reading, which usually happens when the device is tracked, does not fire events, so devices that are low already are not reported
+     * as if their battery level just dropped. The events of the first reading have no old battery level.
+     * @param initialEvents True to fire events for the first reading, false to only record which thresholds the device is below
+     * @since 1.4.0
+     */
+    public synchronized void setInitialEvents(boolean initialEvents) {
+        this.initialEvents = initialEvents;
+    }
+
+    /**
+     * Add an event handler to the battery monitor<br>
+     * Event handlers that are also added to a device only receive each event once
+     * @param eventHandler The event handler to add
+     * @since 1.4.0
+     */
+    public void addEventHandler(EventHandler<BatteryThresholdEvent> eventHandler) {
+        eventHandlers.add(eventHandler);
+    }
+
+    /**
+     * Remove an event handler from the battery monitor
+     * @param eventHandler The event handler to remove
+     * @since 1.4.0
+     */
+    public void removeEventHandler(EventHandler<BatteryThresholdEvent> eventHandler) {
+        eventHandlers.remove(eventHandler);
+    }
+
+    /**
+     * The class that contains the battery state of a tracked device
+     * @since 1.4.0
+     */
+    private static class Entry {
+
+        /**
+         * The tracked device
+         */
+        private final Device device;
+
+        /**
+         * The last known battery level (null if it is not known)
+         */
+        private Integer level;
+
+        /**
+         * The last known power source (null if it is not known)
+         */
+        private DevicePowerSource powerSource;
+
+        /**
+         * The thresholds that the battery level is at or below, as a bit per threshold
+         */
+        private long below;
+
+        /**
+         * Whether a battery level was read for the device before
+         */
+        private boolean read;
+
+        /**
+         * Construct the Entry class
+         * @param device The tracked device
+         * @since 1.4.0
+         */
+        private Entry(Device device) {
+            this.device = device;
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The class that applies a change to multiple IKEA TRÅDFRI lights and plugs, with at most a fixed number of updates in flight at the same time<br>
+ * The devices are updated in the order in which they are passed. Devices that are not updated yet are skipped once the operation is cancelled or its deadline has passed.
+ * Waiting for an operation with a deadline is bounded by the deadline: updates that are still in flight at the deadline are reported as timed out,
+ * even though they may still be applied afterwards, and their later outcome does not change the result.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class BulkOperation {
+
+    /**
+     * The devices to update
+     */
+    private final Device[] devices;
+
+    /**
+     * The change to apply to the devices
+     */
+    private final GroupProperties change;
+
+    /**
+     * The outcome for each device
+     */
+    private final BulkStatus[] statuses;
+
+    /**
+     * The time it took to update each device (in nanoseconds)
+     */
+    private final long[] latencies;
+
+    /**
+     * The time at which devices that are not updated yet are skipped (in nanoseconds, see {@link System#nanoTime()}), or null if the operation has no deadline
+     */
+    private final Long deadline;
+
+    /**
+     * The index of the next device to update
+     */
+    private final AtomicInteger next;
+
+    /**
+     * The number of devices that are handled
+     */
+    private final AtomicInteger handled;
+
+    /**
+     * The number of workers that are updating devices
+     */
+    private final AtomicInteger activeWorkers;
+
+    /**
+     * The maximum number of updates in flight at the same time
+     */
+    private volatile int parallelism;
+
+    /**
+     * The future that completes with the result once every device is handled
+     */
+    private final CompletableFuture<BulkResult> future;
+
+    /**
+     * Whether the operation is cancelled
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Construct the BulkOperation class
+     * @param devices The devices to update
+     * @param change The change to apply to the devices
+     * @param timeout The time after which devices that are not updated yet are skipped (in milliseconds), or null if the operation has no deadline
+     * @since 1.4.0
+     */
+    BulkOperation(Device[] devices, GroupProperties change, Long timeout) {
+        this.devices = devices;
+        this.change = change;
+        this.statuses = new BulkStatus[devices.length];
+        Arrays.fill(this.statuses, BulkStatus.PENDING);
+        this.latencies = new long[devices.length];
+        this.deadline = timeout == null ? null : System.nanoTime() + timeout * 1000000L;
+        this.next = new AtomicInteger();
+        this.handled = new AtomicInteger();
+        this.activeWorkers = new AtomicInteger();
+        this.parallelism = 1;
+        this.future = new CompletableFuture<>();
+    }
+
+    /**
+     * Start the operation<br>
+     * At most one worker less than the parallelism is started on the executor (but at least one), so an executor with as many threads as the parallelism keeps
+     * a thread for its other tasks. A thread that waits for the operation updates devices as well, which makes up for the missing worker.
+     * If the executor rejects a worker, the workers that are started already handle every device; the operation only fails if no worker could be started.
+     * @param executor The executor on which the devices are updated
+     * @param parallelism The maximum number of updates in flight at the same time
+     * @since 1.4.0
+     */
+    void start(Executor executor, int parallelism) {
+        if(parallelism < 1) throw new IllegalArgumentException("The parallelism must be at least 1");
+        this.parallelism = parallelism;
+        if(devices.length == 0){
+            complete();
+            return;
+        }
+        int workers = Math.max(1, Math.min(parallelism - 1, devices.length));
+        for(int i = 0; i < workers; i++){
+            try {
+                executor.execute(this::work);
+            } catch (RejectedExecutionException e) {
+                if(i == 0) future.completeExceptionally(e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Update devices until every device is handled, and complete the operation once the last device is handled<br>
+     * The worker returns immediately if the maximum number of updates is in flight already
+     * @since 1.4.0
+     */
+    private void work() {
+        if(activeWorkers.incrementAndGet() > parallelism){
+            activeWorkers.decrementAndGet();
+            return;
+        }
+        try {
+            int index;
+            while ((index = next.getAndIncrement()) < devices.length) {
+                handle(index);
+                if(handled.incrementAndGet() == devices.length) complete();
+            }
+        } finally {
+            activeWorkers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Update a device, or skip it if the operation is cancelled or its deadline has passed<br>
+     * If the deadline has passed once the update completes, the operation is completed with the updates that are still in flight reported as timed out
+     * @param index The index of the device
+     * @since 1.4.0
+     */
+    private void handle(int index) {
+        if(cancelled){
+            setStatus(index, BulkStatus.CANCELLED, 0L);
+        }else if(isExpired()){
+            setStatus(index, BulkStatus.TIMED_OUT, 0L);
+        }else{
+            long start = System.nanoTime();
+            boolean success;
+            try {
+                success = devices[index] != null && FanOutPlan.applyTo(devices[index], change);
+            } catch (RuntimeException e) {
+                success = false;
+            }
+            setStatus(index, success ? BulkStatus.SUCCEEDED : BulkStatus.FAILED, System.nanoTime() - start);
+            if(isExpired()) expire();
+        }
+    }
+
+    /**
+     * Check if the deadline of the operation has passed
+     * @return True if the operation has a deadline and it has passed, false if not
+     * @since 1.4.0
+     */
+    private boolean isExpired() {
+        return deadline != null && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Record the outcome of a device, unless the operation is completed already
+     * @param index The index of the device
+     * @param status The outcome of the device
+     * @param latency The time it took to update the device (in nanoseconds)
+     * @since 1.4.0
+     */
+    private synchronized void setStatus(int index, BulkStatus status, long latency) {
+        if(future.isDone()) return;
+        statuses[index] = status;
+        latencies[index] = latency;
+    }
+
+    /**
+     * Complete the future of the operation with the result
+     * @since 1.4.0
+     */
+    private synchronized void complete() {
+        if(future.isDone()) return;
+        future.complete(new BulkResult(devices, statuses.clone(), latencies.clone()));
+    }
+
+    /**
+     * Complete the future of the operation at its deadline, with the devices that are in flight or not updated yet reported as timed out
+     * @since 1.4.0
+     */
+    private synchronized void expire() {
+        if(future.isDone()) return;
+        BulkStatus[] result = statuses.clone();
+        for(int i = 0; i < result.length; i++){
+            if(result[i] == BulkStatus.PENDING) result[i] = BulkStatus.TIMED_OUT;
+        }
+        future.complete(new BulkResult(devices, result, latencies.clone()));
+    }
+
+    /**
+     * Cancel the operation<br>
+     * Updates that are in flight complete, but the devices that are not updated yet are skipped
+     * @since 1.4.0
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Check if the operation is cancelled
+     * @return True if the operation is cancelled, false if not
+     * @since 1.4.0
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Check if every device is handled
+     * @return True if every device is handled, false if not
+     * @since 1.4.0
+     */
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /**
+     * Get the future of the operation<br>
+     * <i>Note: If an update is still in flight at the deadline, the future completes at the deadline only if a worker or {@link #await()} notices it; use {@link #await()} for a wait that is bounded by the deadline</i>
+     * @return A future that completes with the result once every device is handled or the deadline has passed
+     * @since 1.4.0
+     */
+    public CompletableFuture<BulkResult> getFuture() {
+        return future;
+    }
+
+    /**
+     * Wait until every device is handled, or until the deadline of the operation has passed<br>
+     * Without a deadline, the calling thread updates devices as well while the maximum number of updates in flight is not reached, so waiting on a thread of the executor cannot deadlock.
+     * With a deadline, the calling thread only waits until the deadline, and the updates that are still in flight then are reported as timed out
+     * @return The result of the operation
+     * @since 1.4.0
+     */
+    public BulkResult await() {
+        if(deadline == null){
+            if(!future.isDone()) work();
+            return future.join();
+        }
+        try {
+            return future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            expire();
+            return future.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            expire();
+            return future.join();
+        } catch (ExecutionException e) {
+            return future.join();
+        }
+    }
+
+}
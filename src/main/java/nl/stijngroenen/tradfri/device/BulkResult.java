@@ -0,0 +1,146 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The class that contains the outcome of a {@link BulkOperation} for each of its devices
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class BulkResult {
+
+    /**
+     * The devices of the operation
+     */
+    private final Device[] devices;
+
+    /**
+     * The outcome for each device
+     */
+    private final BulkStatus[] statuses;
+
+    /**
+     * The time it took to update each device (in nanoseconds, 0 if the device was not updated)
+     */
+    private final long[] latencies;
+
+    /**
+     * Construct the BulkResult class
+     * @param devices The devices of the operation
+     * @param statuses The outcome for each device
+     * @param latencies The time it took to update each device (in nanoseconds)
+     * @since 1.4.0
+     */
+    BulkResult(Device[] devices, BulkStatus[] statuses, long[] latencies) {
+        this.devices = devices;
+        this.statuses = statuses;
+        this.latencies = latencies;
+    }
+
+    /**
+     * Get the number of devices of the operation
+     * @return The number of devices of the operation
+     * @since 1.4.0
+     */
+    public int size() {
+        return devices.length;
+    }
+
+    /**
+     * Get a device of the operation
+     * @param index The index of the device, in the order in which the devices were passed to the operation
+     * @return The device
+     * @since 1.4.0
+     */
+    public Device getDevice(int index) {
+        return devices[index];
+    }
+
+    /**
+     * Get the outcome for a device
+     * @param index The index of the device, in the order in which the devices were passed to the operation
+     * @return The outcome for the device
+     * @since 1.4.0
+     */
+    public BulkStatus getStatus(int index) {
+        return statuses[index];
+    }
+
+    /**
+     * Get the time it took to update a device
+     * @param index The index of the device, in the order in which the devices were passed to the operation
+     * @return The time it took to update the device (in nanoseconds, 0 if the device was not updated)
+     * @since 1.4.0
+     */
+    public long getLatency(int index) {
+        return latencies[index];
+    }
+
+    /**
+     * Get the longest time it took to update a device
+     * @return The longest time it took to update a device (in nanoseconds)
+     * @since 1.4.0
+     */
+    public long getMaxLatency() {
+        long max = 0;
+        for(long latency: latencies){
+            max = Math.max(max, latency);
+        }
+        return max;
+    }
+
+    /**
+     * Count the devices with an outcome
+     * @param status The outcome
+     * @return The number of devices with the outcome
+     * @since 1.4.0
+     */
+    public int count(BulkStatus status) {
+        int count = 0;
+        for(BulkStatus s: statuses){
+            if(s == status) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the devices with an outcome
+     * @param status The outcome
+     * @return A list of the devices with the outcome
+     * @since 1.4.0
+     */
+    public List<Device> getDevices(BulkStatus status) {
+        List<Device> devices = new ArrayList<>();
+        for(int i = 0; i < statuses.length; i++){
+            if(statuses[i] == status) devices.add(this.devices[i]);
+        }
+        return devices;
+    }
+
+    /**
+     * Check if every device is updated
+     * @return True if every device is updated, false if not
+     * @since 1.4.0
+     */
+    public boolean isSuccessful() {
+        return count(BulkStatus.SUCCEEDED) == devices.length;
+    }
+
+}
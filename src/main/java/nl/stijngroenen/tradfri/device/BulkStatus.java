@@ -0,0 +1,37 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+/**
+ * The enumerator that contains the outcomes of a change to a single device in a {@link BulkOperation}
+ * <ul>
+ *     <li>PENDING: The device is not updated yet</li>
+ *     <li>SUCCEEDED: The device is updated</li>
+ *     <li>FAILED: The update of the device failed, or the device is not a light or a plug</li>
+ *     <li>CANCELLED: The device is not updated, because the operation was cancelled first</li>
+ *     <li>TIMED_OUT: The device is not updated because the deadline of the operation passed first, or its update was still in flight at the deadline (and may still be applied)</li>
+ * </ul>
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public enum BulkStatus {
+    PENDING,
+    SUCCEEDED,
+    FAILED,
+    CANCELLED,
+    TIMED_OUT,
+}
@@ -0,0 +1,55 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+/**
+ * The class that holds a copy of the confirmed state of an IKEA TRÅDFRI light or plug in its packed form<br>
+ * An observer reuses a single instance for every notification, so the old state of a device can be kept without allocating properties,
+ * and is only unpacked if an event handler, the history store, the journal or the replay buffer needs it
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+final class ConfirmedState {
+
+    /**
+     * The packed values word of a light (see {@link LightState}), or the packed on / off state of a plug
+     */
+    long values;
+
+    /**
+     * The packed colour word of a light (see {@link LightState})
+     */
+    long colour;
+
+    /**
+     * The colour of a light in hexadecimals
+     */
+    String colourHex;
+
+    /**
+     * The properties of the device if they can not be packed (null if they are packed)
+     */
+    DeviceProperties properties;
+
+    /**
+     * Construct the ConfirmedState class
+     * @since 1.4.0
+     */
+    ConfirmedState() {
+    }
+
+}
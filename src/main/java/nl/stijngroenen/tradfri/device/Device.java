@@ -16,20 +16,31 @@
 
 package nl.stijngroenen.tradfri.device;
 
+import nl.stijngroenen.tradfri.device.event.DeviceEvent;
 import nl.stijngroenen.tradfri.device.event.EventHandler;
+import nl.stijngroenen.tradfri.device.event.EventPublisher;
+import nl.stijngroenen.tradfri.device.event.HandlerRegistry;
 import nl.stijngroenen.tradfri.util.ApiEndpoint;
 import nl.stijngroenen.tradfri.util.CoapClient;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 
 /**
  * The class that represents an IKEA TRÅDFRI device
  * @author Stijn Groenen
- * @version 1.1.0
+ * @version 1.4.0
  */
 public class Device {
 
+    /**
+     * The registry of event handlers of devices to which no event handler was added yet, which is shared and never modified
+     */
+    private static final HandlerRegistry<EventHandler<?>> NO_EVENT_HANDLERS = new HandlerRegistry<>(new EventHandler<?>[0]);
+
     /**
      * The name of the device
      */
@@ -48,7 +59,7 @@ public class Device {
     /**
      * The information of the device
      */
-    private DeviceInfo deviceInfo;
+    private volatile DeviceInfo deviceInfo;
 
     /**
      * The properties of the device
@@ -63,12 +74,57 @@ public class Device {
     /**
      * The observer that observes the device to automagically detect changes
      */
-    private DeviceObserver observer;
+    private volatile DeviceObserver observer;
+
+    /**
+     * The event handlers registered for the device (null until the first event handler is added)
+     */
+    private volatile HandlerRegistry<EventHandler<?>> eventHandlers;
+
+    /**
+     * The event bus that the events of the device are delivered to (null if the device is not observed by an event bus)
+     */
+    private volatile EventBus eventBus;
+
+    /**
+     * The history store that records the changes of the device (null if the history of the device is not recorded)
+     */
+    private volatile HistoryStore historyStore;
+
+    /**
+     * The journal that records the state changes of the device (null if the state changes of the device are not recorded)
+     */
+    private volatile StateJournal journal;
+
+    /**
+     * The battery monitor that keeps track of the battery level of the device (null if the battery level of the device is not tracked)
+     */
+    private volatile BatteryMonitor batteryMonitor;
+
+    /**
+     * The most recent changes of the device, which can be replayed to event handlers that are added later on (null if the replay capacity is 0)
+     */
+    private EventReplayBuffer replayBuffer;
 
     /**
-     * The event handlers registered for the device
+     * The handoffs of the event handlers to which a replay is being delivered (null if there are none)
      */
-    private List<EventHandler> eventHandlers;
+    private ReplayHandoff[] replayHandoffs;
+
+    /**
+     * The sequence number of the last notification of the device, which is increased under the lock of the device for every notification
+     */
+    private long sequence;
+
+    /**
+     * The local version of the state of the device, which is increased whenever the state changes
+     */
+    private long version;
+
+    /**
+     * The lock that is held while a write to the device is sent, so conditional writes can not interleave with other writes (null until the first write)
+     */
+    private volatile Object writeLock;
 
     /**
      * Construct the Device class
@@ -85,7 +141,6 @@ public class Device {
         this.instanceId = instanceId;
         this.deviceInfo = deviceInfo;
         this.coapClient = coapClient;
-        this.eventHandlers = new ArrayList<>();
     }
 
     /**
@@ -124,6 +179,19 @@ public class Device {
         return this.deviceInfo;
     }
 
+    /**
+     * Replace the information of the device with newer information from the IKEA TRÅDFRI gateway
+     * @param deviceInfo The new information of the device
+     * @return The change mask that contains the fields of the information that changed
+     * @since 1.4.0
+     */
+    int updateDeviceInfo(DeviceInfo deviceInfo) {
+        if(deviceInfo == null) return 0;
+        DeviceInfo oldInfo = this.deviceInfo;
+        this.deviceInfo = deviceInfo;
+        return DeviceField.diff(oldInfo, deviceInfo);
+    }
+
     /**
      * Set the name of the device
      * @param name The name of the device
@@ -169,6 +237,80 @@ public class Device {
         this.properties = properties;
     }
 
+    /**
+     * Get the properties of the device as last reported by the IKEA TRÅDFRI gateway, without values that are written but not confirmed yet
+     * @return The confirmed properties of the device
+     * @since 1.4.0
+     */
+    public DeviceProperties getConfirmedProperties(){
+        return getProperties();
+    }
+
+    /**
+     * Set the properties of the device as reported by the IKEA TRÅDFRI gateway, and copy the confirmed state from before the change
+     * @param properties The properties reported by the IKEA TRÅDFRI gateway
+     * @param previous The copy of the confirmed state from before the change, which is filled in
+     * @return The change mask that contains the fields of the confirmed state that changed
+     * @since 1.4.0
+     */
+    int updateProperties(DeviceProperties properties, ConfirmedState previous){
+        previous.properties = getConfirmedProperties();
+        setProperties(properties);
+        return 0;
+    }
+
+    /**
+     * Unpack a copy of the confirmed state of the device
+     * @param state The copy of the confirmed state
+     * @return The confirmed properties in the copy
+     * @since 1.4.0
+     */
+    DeviceProperties unpack(ConfirmedState state){
+        return state.properties;
+    }
+
+    /**
+     * Get the fields of which a written value is not confirmed by the IKEA TRÅDFRI gateway yet
+     * @return The fields of which a written value is not confirmed yet
+     * @since 1.4.0
+     */
+    public EnumSet<DeviceField> getUnconfirmedFields(){
+        return EnumSet.noneOf(DeviceField.class);
+    }
+
+    /**
+     * Get the local version of the state of the device<br>
+     * The version is increased whenever an observe notification changes the state or a write to the device succeeds,
+     * and can be passed to the conditional updates of a device, which only write if the state is still at that version
+     * @return The local version of the state of the device
+     * @since 1.4.0
+     */
+    public synchronized long getVersion(){
+        return version;
+    }
+
+    /**
+     * Increase the local version of the state of the device
+     * @since 1.4.0
+     */
+    synchronized void incrementVersion(){
+        version++;
+    }
+
+    /**
+     * Get the lock that is held while a write to the device is sent, creating it on the first write
+     * @return The lock that is held while a write to the device is sent
+     * @since 1.4.0
+     */
+    Object getWriteLock(){
+        Object writeLock = this.writeLock;
+        if(writeLock != null) return writeLock;
+        synchronized (this) {
+            if(this.writeLock == null) this.writeLock = new Object();
+            return this.writeLock;
+        }
+    }
+
     /**
      * Get the CoAP endpoint of the device
      * @return The CoAP endpoint of the device
@@ -184,8 +326,18 @@ public class Device {
      * @since 1.0.0
      */
     public boolean enableObserve() {
+        return getObserver().start();
+    }
+
+    /**
+     * Get the observer that handles the notifications and poll responses of the device, creating it if it does not exist yet<br>
+     * Poll responses are handled by the same observer as notifications, so both go through the dispatch queue of the CoAP client in order
+     * @return The observer of the device
+     * @since 1.4.0
+     */
+    synchronized DeviceObserver getObserver() {
         if(observer == null) observer = new DeviceObserver(this, this.coapClient);
-        return observer.start();
+        return observer;
     }
 
     /**
@@ -198,13 +350,59 @@ public class Device {
         return observer.stop();
     }
 
+    /**
+     * Check if the device is observed
+     * @return True if observe is enabled for the device, false if not
+     * @since 1.4.0
+     */
+    public boolean isObserved() {
+        DeviceObserver observer = this.observer;
+        return observer != null && coapClient.getObserveWatchdog().isObserving(observer);
+    }
+
+    /**
+     * Check if the state of the device is fresh, which means the device is observed and its observe relation is not stale
+     * @return True if the state of the device is fresh, false if not
+     * @since 1.4.0
+     */
+    public boolean isFresh() {
+        DeviceObserver observer = this.observer;
+        return observer != null && !coapClient.getObserveWatchdog().isStale(observer);
+    }
+
     /**
      * Get a list of event handlers for the device
-     * @return A list of event handlers for the device
+     * @return An unmodifiable snapshot of the event handlers for the device
      * @since 1.0.0
      */
+    @SuppressWarnings("rawtypes") // The raw element type is kept for compatibility with the callers of version 1.3.0
     public List<EventHandler> getEventHandlers(){
-        return eventHandlers;
+        return Collections.unmodifiableList(getEventHandlerRegistry().asList());
+    }
+
+    /**
+     * Get the registry of event handlers for the device<br>
+     * <i>Note: The registry must not be modified, because it is shared by the devices to which no event handler was added yet</i>
+     * @return The registry of event handlers for the device
+     * @since 1.4.0
+     */
+    HandlerRegistry<EventHandler<?>> getEventHandlerRegistry(){
+        HandlerRegistry<EventHandler<?>> eventHandlers = this.eventHandlers;
+        return eventHandlers != null ? eventHandlers : NO_EVENT_HANDLERS;
+    }
+
+    /**
+     * Get the registry of event handlers for the device, creating it when the first event handler is added
+     * @return The registry of event handlers for the device
+     * @since 1.4.0
+     */
+    private HandlerRegistry<EventHandler<?>> createEventHandlerRegistry(){
+        HandlerRegistry<EventHandler<?>> eventHandlers = this.eventHandlers;
+        if(eventHandlers != null) return eventHandlers;
+        synchronized (this) {
+            if(this.eventHandlers == null) this.eventHandlers = new HandlerRegistry<>(new EventHandler<?>[0]);
+            return this.eventHandlers;
+        }
     }
 
     /**
@@ -212,8 +410,155 @@ public class Device {
      * @param eventHandler The event handler to add to the device
      * @since 1.0.0
      */
-    public void addEventHandler(EventHandler eventHandler){
-        this.eventHandlers.add(eventHandler);
+    public void addEventHandler(EventHandler<?> eventHandler){
+        createEventHandlerRegistry().add(eventHandler);
+    }
+
+    /**
+     * Add an event handler to the device, and optionally replay the recent changes and the current state of the device to it<br>
+     * The recent changes are only kept if the replay capacity of the device is set. The current state is always replayed,
+     * as a {@link nl.stijngroenen.tradfri.device.event.LightEvent} for a light for example, so the event handler does not have to request it.
+     * The replay is taken under the lock of the device, and the events that occur while it is delivered are deferred until it is delivered,
+     * so every change reaches the event handler once and in order
+     * @param eventHandler The event handler to add to the device
+     * @param replay True to replay the recent changes and the current state to the event handler, false to only call it for new events
+     * @since 1.4.0
+     */
+    public void addEventHandler(EventHandler<?> eventHandler, boolean replay){
+        if(!replay){
+            addEventHandler(eventHandler);
+            return;
+        }
+        ReplayHandoff handoff = new ReplayHandoff(eventHandler);
+        synchronized (this) {
+            addReplayHandoff(handoff);
+            createEventHandlerRegistry().add(eventHandler);
+        }
+        replay(null, handoff);
+    }
+
+    /**
+     * Replay the recent changes and the current state of the device to an event handler that is registered already<br>
+     * The notifications that occur before the replay is taken are skipped for the event handler, because the replay contains them,
+     * and the notifications that occur while the replay is delivered are deferred until it is delivered. The handoff is removed afterwards.
+     * @param subscription The registration of the event handler to the event bus (null if the event handler is registered to the device)
+     * @param handoff The handoff of the event handler, which is added to the device already
+     * @since 1.4.0
+     */
+    void replay(EventBus.Subscription subscription, ReplayHandoff handoff){
+        try {
+            List<DeviceEvent> events = new ArrayList<>();
+            synchronized (this) {
+                EventHandler<?> eventHandler = handoff.getEventHandler();
+                DeviceEventKind[] kinds = DeviceEventKind.forType(getType());
+                for(EventReplayBuffer.Change change: getRecentChanges()){
+                    if(subscription != null && !subscription.acceptsChanges(change.getChangedFields())) continue;
+                    int index = DeviceEventKind.indexOf(kinds, change.getChangedFields(), eventHandler.getEventType());
+                    if(index >= 0) events.add(kinds[index].create(this, change.getOldProperties(), change.getNewProperties()));
+                }
+                int index = DeviceEventKind.indexOf(kinds, 0, eventHandler.getEventType());
+                if(index >= 0 && (subscription == null || subscription.acceptsChanges(0))){
+                    DeviceProperties properties = getProperties();
+                    events.add(kinds[index].create(this, properties, properties));
+                }
+                handoff.snapshotted(sequence);
+            }
+            handoff.deliver(events);
+        } finally {
+            removeReplayHandoff(handoff);
+        }
+    }
+
+    /**
+     * Add the handoff of an event handler to which a replay is going to be delivered
+     * @param handoff The handoff of the event handler
+     * @since 1.4.0
+     */
+    synchronized void addReplayHandoff(ReplayHandoff handoff){
+        ReplayHandoff[] handoffs = replayHandoffs == null ? new ReplayHandoff[1] : Arrays.copyOf(replayHandoffs, replayHandoffs.length + 1);
+        handoffs[handoffs.length - 1] = handoff;
+        replayHandoffs = handoffs;
+    }
+
+    /**
+     * Remove the handoff of an event handler of which the replay is delivered, or could not be delivered
+     * @param handoff The handoff of the event handler
+     * @since 1.4.0
+     */
+    synchronized void removeReplayHandoff(ReplayHandoff handoff){
+        if(replayHandoffs == null) return;
+        int count = 0;
+        ReplayHandoff[] handoffs = new ReplayHandoff[replayHandoffs.length];
+        for(ReplayHandoff registered: replayHandoffs){
+            if(registered != handoff) handoffs[count++] = registered;
+        }
+        replayHandoffs = count == 0 ? null : Arrays.copyOf(handoffs, count);
+    }
+
+    /**
+     * Get the handoffs of the event handlers to which a replay is being delivered<br>
+     * <i>Note: The caller has to hold the lock of the device, and the returned array is shared and must not be modified</i>
+     * @return The handoffs of the event handlers to which a replay is being delivered (null if there are none)
+     * @since 1.4.0
+     */
+    ReplayHandoff[] getReplayHandoffs(){
+        return replayHandoffs;
+    }
+
+    /**
+     * Increase the sequence number of the notifications of the device<br>
+     * <i>Note: The caller has to hold the lock of the device</i>
+     * @return The sequence number of the new notification
+     * @since 1.4.0
+     */
+    long nextSequence(){
+        return ++sequence;
+    }
+
+    /**
+     * Get the maximum number of recent changes that are kept to replay to event handlers that are added later on
+     * @return The maximum number of recent changes that are kept
+     * @since 1.4.0
+     */
+    public synchronized int getReplayCapacity(){
+        return replayBuffer != null ? replayBuffer.getCapacity() : 0;
+    }
+
+    /**
+     * Change the maximum number of recent changes that are kept to replay to event handlers that are added later on
+     * @param replayCapacity The new maximum number of recent changes that are kept (0 to only replay the current state)
+     * @since 1.4.0
+     */
+    public synchronized void setReplayCapacity(int replayCapacity){
+        if(replayCapacity < 0) throw new IllegalArgumentException("The capacity of the replay buffer must not be negative");
+        if(replayCapacity == 0){
+            replayBuffer = null;
+            return;
+        }
+        if(replayBuffer == null) replayBuffer = new EventReplayBuffer();
+        replayBuffer.setCapacity(replayCapacity);
+    }
+
+    /**
+     * Add a change to the most recent changes of the device, if the replay capacity of the device is set<br>
+     * <i>Note: The caller has to hold the lock of the device</i>
+     * @param oldProperties The old properties of the device (from before the change)
+     * @param newProperties The new properties of the device (from after the change)
+     * @param changedFields The change mask that contains the changed fields
+     * @since 1.4.0
+     */
+    void addRecentChange(DeviceProperties oldProperties, DeviceProperties newProperties, int changedFields){
+        if(replayBuffer != null) replayBuffer.add(oldProperties, newProperties, changedFields);
+    }
+
+    /**
+     * Get the most recent changes of the device<br>
+     * <i>Note: The caller has to hold the lock of the device</i>
+     * @return The most recent changes of the device, from the oldest to the most recent change
+     * @since 1.4.0
+     */
+    EventReplayBuffer.Change[] getRecentChanges(){
+        return replayBuffer != null ? replayBuffer.snapshot() : EventReplayBuffer.NO_CHANGES;
     }
 
     /**
@@ -221,8 +566,102 @@ public class Device {
      * @param eventHandler The event handler to remove from the device
      * @since 1.0.0
      */
-    public void removeEventHandler(EventHandler eventHandler){
-        this.eventHandlers.remove(eventHandler);
+    public void removeEventHandler(EventHandler<?> eventHandler){
+        HandlerRegistry<EventHandler<?>> eventHandlers = this.eventHandlers;
+        if(eventHandlers != null) eventHandlers.remove(eventHandler);
+    }
+
+    /**
+     * Get a Reactive Streams publisher of the events of the device<br>
+     * Every subscriber registers its own event handler to the device. Observe has to be enabled for events to occur.
+     * @param eventType The class of the events to publish
+     * @param <T> The type of the events to publish
+     * @return A publisher of the events of the device
+     * @since 1.4.0
+     */
+    public <T extends DeviceEvent> EventPublisher<T> getEventPublisher(Class<T> eventType){
+        return new EventPublisher<>(eventType, this::addEventHandler, this::removeEventHandler);
+    }
+
+    /**
+     * Get the event bus that the events of the device are delivered to
+     * @return The event bus that the events of the device are delivered to (null if the device is not observed by an event bus)
+     * @since 1.4.0
+     */
+    EventBus getEventBus(){
+        return eventBus;
+    }
+
+    /**
+     * Set the event bus that the events of the device are delivered to
+     * @param eventBus The event bus that the events of the device are delivered to (null to stop delivering events)
+     * @since 1.4.0
+     */
+    void setEventBus(EventBus eventBus){
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * Get the history store that records the changes of the device
+     * @return The history store that records the changes of the device (null if the history of the device is not recorded)
+     * @since 1.4.0
+     */
+    HistoryStore getHistoryStore(){
+        return historyStore;
+    }
+
+    /**
+     * Set the history store that records the changes of the device
+     * @param historyStore The history store that records the changes of the device (null to stop recording)
+     * @since 1.4.0
+     */
+    void setHistoryStore(HistoryStore historyStore){
+        this.historyStore = historyStore;
+    }
+
+    /**
+     * Get the journal that records the state changes of the device
+     * @return The journal that records the state changes of the device (null if the state changes of the device are not recorded)
+     * @since 1.4.0
+     */
+    StateJournal getJournal(){
+        return journal;
+    }
+
+    /**
+     * Set the journal that records the state changes of the device
+     * @param journal The journal that records the state changes of the device (null to stop recording)
+     * @since 1.4.0
+     */
+    void setJournal(StateJournal journal){
+        this.journal = journal;
+    }
+
+    /**
+     * Get the battery monitor that keeps track of the battery level of the device
+     * @return The battery monitor that keeps track of the battery level of the device (null if the battery level of the device is not tracked)
+     * @since 1.4.0
+     */
+    BatteryMonitor getBatteryMonitor(){
+        return batteryMonitor;
+    }
+
+    /**
+     * Set the battery monitor that keeps track of the battery level of the device
+     * @param batteryMonitor The battery monitor that keeps track of the battery level of the device (null to stop tracking)
+     * @since 1.4.0
+     */
+    void setBatteryMonitor(BatteryMonitor batteryMonitor){
+        this.batteryMonitor = batteryMonitor;
+    }
+
+    /**
+     * Handle a successful write to a group that contains the device<br>
+     * Lights and plugs apply the part of the write that applies to them to their local state until it is confirmed, and record it in their journal
+     * @param change The properties that were written to the group
+     * @since 1.4.0
+     */
+    void groupWritten(GroupProperties change){
     }
 
     /**
@@ -0,0 +1,232 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.device.event.*;
+
+/**
+ * The enumerator that contains the kinds of events that can occur to an IKEA TRÅDFRI device<br>
+ * The kinds of a device type are ordered from the most general to the most specific event, which is the order in which they are offered to event handlers
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+enum DeviceEventKind {
+    LIGHT(DeviceType.LIGHT, LightEvent.class, 0) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightEvent(device.toLight());
+        }
+    },
+    LIGHT_CHANGE(DeviceType.LIGHT, LightChangeEvent.class, DeviceField.LIGHT_MASK) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_ON(DeviceType.LIGHT, LightChangeOnEvent.class, DeviceField.ON.getMask()) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeOnEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_BRIGHTNESS(DeviceType.LIGHT, LightChangeBrightnessEvent.class, DeviceField.BRIGHTNESS.getMask()) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeBrightnessEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_COLOUR_HEX(DeviceType.LIGHT, LightChangeColourHexEvent.class, DeviceField.COLOUR_HEX.getMask()) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeColourHexEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_HUE(DeviceType.LIGHT, LightChangeHueEvent.class, DeviceField.HUE.getMask()) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeHueEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_SATURATION(DeviceType.LIGHT, LightChangeSaturationEvent.class, DeviceField.SATURATION.getMask()) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeSaturationEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_COLOUR_X(DeviceType.LIGHT, LightChangeColourXEvent.class, DeviceField.COLOUR_X.getMask()) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeColourXEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_COLOUR_Y(DeviceType.LIGHT, LightChangeColourYEvent.class, DeviceField.COLOUR_Y.getMask()) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeColourYEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_COLOUR_XY(DeviceType.LIGHT, LightChangeColourXYEvent.class, DeviceField.mask(DeviceField.COLOUR_X, DeviceField.COLOUR_Y)) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeColourXYEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_COLOUR(DeviceType.LIGHT, LightChangeColourEvent.class, DeviceField.COLOUR_MASK) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeColourEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    LIGHT_CHANGE_COLOUR_TEMPERATURE(DeviceType.LIGHT, LightChangeColourTemperatureEvent.class, DeviceField.COLOUR_TEMPERATURE.getMask()) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new LightChangeColourTemperatureEvent(device.toLight(), (LightProperties) oldProperties, (LightProperties) newProperties);
+        }
+    },
+    PLUG(DeviceType.PLUG, PlugEvent.class, 0) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new PlugEvent(device.toPlug());
+        }
+    },
+    PLUG_CHANGE(DeviceType.PLUG, PlugChangeEvent.class, DeviceField.PLUG_MASK) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new PlugChangeEvent(device.toPlug(), (PlugProperties) oldProperties, (PlugProperties) newProperties);
+        }
+    },
+    PLUG_CHANGE_ON(DeviceType.PLUG, PlugChangeOnEvent.class, DeviceField.ON.getMask()) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new PlugChangeOnEvent(device.toPlug(), (PlugProperties) oldProperties, (PlugProperties) newProperties);
+        }
+    },
+    REMOTE(DeviceType.REMOTE, RemoteEvent.class, 0) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new RemoteEvent(device.toRemote());
+        }
+    },
+    MOTION_SENSOR(DeviceType.MOTION_SENSOR, MotionSensorEvent.class, 0) {
+        @Override
+        DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties) {
+            return new MotionSensorEvent(device.toMotionSensor());
+        }
+    };
+
+    /**
+     * The kinds of events for every device type, indexed by the ordinal of the device type
+     */
+    private static final DeviceEventKind[][] KINDS_BY_TYPE = new DeviceEventKind[DeviceType.values().length][];
+
+    static {
+        for(DeviceType type: DeviceType.values()){
+            int count = 0;
+            for(DeviceEventKind kind: values()){
+                if(kind.deviceType == type) count++;
+            }
+            DeviceEventKind[] kinds = new DeviceEventKind[count];
+            int index = 0;
+            for(DeviceEventKind kind: values()){
+                if(kind.deviceType == type) kinds[index++] = kind;
+            }
+            KINDS_BY_TYPE[type.ordinal()] = kinds;
+        }
+    }
+
+    /**
+     * The type of device for which this kind of event occurs
+     */
+    private final DeviceType deviceType;
+
+    /**
+     * The class of the event
+     */
+    private final Class<? extends DeviceEvent> eventClass;
+
+    /**
+     * The change mask of which at least one field has to be changed for the event to occur (0 if the event always occurs)
+     */
+    private final int requiredMask;
+
+    /**
+     * Construct the DeviceEventKind enumerator
+     * @param deviceType The type of device for which this kind of event occurs
+     * @param eventClass The class of the event
+     * @param requiredMask The change mask of which at least one field has to be changed for the event to occur (0 if the event always occurs)
+     * @since 1.4.0
+     */
+    DeviceEventKind(DeviceType deviceType, Class<? extends DeviceEvent> eventClass, int requiredMask) {
+        this.deviceType = deviceType;
+        this.eventClass = eventClass;
+        this.requiredMask = requiredMask;
+    }
+
+    /**
+     * Get the class of the event
+     * @return The class of the event
+     * @since 1.4.0
+     */
+    Class<? extends DeviceEvent> getEventClass() {
+        return eventClass;
+    }
+
+    /**
+     * Check if this kind of event occurs for a change mask
+     * @param changes The change mask that contains the changed fields
+     * @return True if this kind of event occurs, false if not
+     * @since 1.4.0
+     */
+    boolean occursFor(int changes) {
+        return requiredMask == 0 || (changes & requiredMask) != 0;
+    }
+
+    /**
+     * Create the event
+     * @param device The device for which the event occurred
+     * @param oldProperties The old properties of the device (from before the event occurred)
+     * @param newProperties The new properties of the device (from after the event occurred)
+     * @return The event
+     * @since 1.4.0
+     */
+    abstract DeviceEvent create(Device device, DeviceProperties oldProperties, DeviceProperties newProperties);
+
+    /**
+     * Get the kinds of events that can occur for a device type
+     * @param deviceType The type of device
+     * @return The kinds of events, ordered from the most general to the most specific event
+     * @since 1.4.0
+     */
+    static DeviceEventKind[] forType(DeviceType deviceType) {
+        return KINDS_BY_TYPE[deviceType.ordinal()];
+    }
+
+    /**
+     * Find the first kind of event that occurs for a change mask and that can be handled by an event handler
+     * @param kinds The kinds of events to search
+     * @param changes The change mask that contains the changed fields
+     * @param eventType The class of the event that the event handler handles
+     * @return The index of the kind of event, or -1 if the event handler does not handle any of them
+     * @since 1.4.0
+     */
+    static int indexOf(DeviceEventKind[] kinds, int changes, Class<?> eventType) {
+        for(int i = 0; i < kinds.length; i++){
+            if(kinds[i].occursFor(changes) && eventType.isAssignableFrom(kinds[i].eventClass)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import java.util.EnumSet;
+import java.util.Objects;
+
+/**
+ * The enumerator that contains the state fields of IKEA TRÅDFRI devices that can change (the battery level can only be read)<br>
+ * Every field has a bit in a change mask, so a set of changed fields can be passed around as a single int
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public enum DeviceField {
+    ON,
+    BRIGHTNESS,
+    COLOUR_HEX,
+    HUE,
+    SATURATION,
+    COLOUR_X,
+    COLOUR_Y,
+    COLOUR_TEMPERATURE,
+    BATTERY_LEVEL;
+
+    /**
+     * The change mask that contains every field of a light
+     */
+    public static final int LIGHT_MASK = mask(ON, BRIGHTNESS, COLOUR_HEX, HUE, SATURATION, COLOUR_X, COLOUR_Y, COLOUR_TEMPERATURE);
+
+    /**
+     * The change mask that contains every field of a plug
+     */
+    public static final int PLUG_MASK = mask(ON);
+
+    /**
+     * The change mask that contains the fields that make up the colour of a light
+     */
+    public static final int COLOUR_MASK = mask(HUE, SATURATION, COLOUR_X, COLOUR_Y);
+
+    /**
+     * The change mask that contains the fields of the information of a device
+     */
+    public static final int INFO_MASK = mask(BATTERY_LEVEL);
+
+    /**
+     * Get the bit of the field in a change mask
+     * @return The bit of the field in a change mask
+     * @since 1.4.0
+     */
+    public int getMask() {
+        return 1 << ordinal();
+    }
+
+    /**
+     * Check if the field is part of a change mask
+     * @param mask The change mask
+     * @return True if the field is part of the change mask, false if not
+     * @since 1.4.0
+     */
+    public boolean isIn(int mask) {
+        return (mask & getMask()) != 0;
+    }
+
+    /**
+     * Get the change mask for a set of fields
+     * @param fields The fields
+     * @return The change mask that contains the fields
+     * @since 1.4.0
+     */
+    public static int mask(DeviceField... fields) {
+        int mask = 0;
+        for(DeviceField field: fields){
+            mask |= field.getMask();
+        }
+        return mask;
+    }
+
+    /**
+     * Get the fields in a change mask
+     * @param mask The change mask
+     * @return The fields in the change mask
+     * @since 1.4.0
+     */
+    public static EnumSet<DeviceField> fromMask(int mask) {
+        EnumSet<DeviceField> fields = EnumSet.noneOf(DeviceField.class);
+        for(DeviceField field: values()){
+            if(field.isIn(mask)) fields.add(field);
+        }
+        return fields;
+    }
+
+    /**
+     * Get the fields that are present (not null) in the properties of a light
+     * @param properties The properties of the light
+     * @return The change mask that contains the fields that are present
+     * @since 1.4.0
+     */
+    public static int present(LightProperties properties) {
+        if(properties == null) return 0;
+        int mask = 0;
+        if(properties.getOn() != null) mask |= ON.getMask();
+        if(properties.getBrightness() != null) mask |= BRIGHTNESS.getMask();
+        if(properties.getColourHex() != null) mask |= COLOUR_HEX.getMask();
+        if(properties.getHue() != null) mask |= HUE.getMask();
+        if(properties.getSaturation() != null) mask |= SATURATION.getMask();
+        if(properties.getColourX() != null) mask |= COLOUR_X.getMask();
+        if(properties.getColourY() != null) mask |= COLOUR_Y.getMask();
+        if(properties.getColourTemperature() != null) mask |= COLOUR_TEMPERATURE.getMask();
+        return mask;
+    }
+
+    /**
+     * Get the fields that are present (not null) in the properties of a plug
+     * @param properties The properties of the plug
+     * @return The change mask that contains the fields that are present
+     * @since 1.4.0
+     */
+    public static int present(PlugProperties properties) {
+        return properties != null && properties.getOn() != null ? ON.getMask() : 0;
+    }
+
+    /**
+     * Get the fields that differ between the old properties and the new properties of a light
+     * @param oldProperties The old properties of the light
+     * @param newProperties The new properties of the light
+     * @return The change mask that contains the fields that differ
+     * @since 1.4.0
+     */
+    public static int diff(LightProperties oldProperties, LightProperties newProperties) {
+        if(oldProperties == newProperties) return 0;
+        if(oldProperties == null || newProperties == null) return LIGHT_MASK;
+        int mask = 0;
+        if(!Objects.equals(oldProperties.getOn(), newProperties.getOn())) mask |= ON.getMask();
+        if(!Objects.equals(oldProperties.getBrightness(), newProperties.getBrightness())) mask |= BRIGHTNESS.getMask();
+        if(!Objects.equals(oldProperties.getColourHex(), newProperties.getColourHex())) mask |= COLOUR_HEX.getMask();
+        if(!Objects.equals(oldProperties.getHue(), newProperties.getHue())) mask |= HUE.getMask();
+        if(!Objects.equals(oldProperties.getSaturation(), newProperties.getSaturation())) mask |= SATURATION.getMask();
+        if(!Objects.equals(oldProperties.getColourX(), newProperties.getColourX())) mask |= COLOUR_X.getMask();
+        if(!Objects.equals(oldProperties.getColourY(), newProperties.getColourY())) mask |= COLOUR_Y.getMask();
+        if(!Objects.equals(oldProperties.getColourTemperature(), newProperties.getColourTemperature())) mask |= COLOUR_TEMPERATURE.getMask();
+        return mask;
+    }
+
+    /**
+     * Get the fields that differ between the old information and the new information of a device
+     * @param oldInfo The old information of the device
+     * @param newInfo The new information of the device
+     * @return The change mask that contains the fields that differ
+     * @since 1.4.0
+     */
+    public static int diff(DeviceInfo oldInfo, DeviceInfo newInfo) {
+        if(oldInfo == newInfo) return 0;
+        if(oldInfo == null || newInfo == null) return INFO_MASK;
+        return Objects.equals(oldInfo.getBatteryLevel(), newInfo.getBatteryLevel()) ? 0 : BATTERY_LEVEL.getMask();
+    }
+
+    /**
+     * Get the fields that differ between the old properties and the new properties of a plug
+     * @param oldProperties The old properties of the plug
+     * @param newProperties The new properties of the plug
+     * @return The change mask that contains the fields that differ
+     * @since 1.4.0
+     */
+    public static int diff(PlugProperties oldProperties, PlugProperties newProperties) {
+        if(oldProperties == newProperties) return 0;
+        if(oldProperties == null || newProperties == null) return PLUG_MASK;
+        return Objects.equals(oldProperties.getOn(), newProperties.getOn()) ? 0 : ON.getMask();
+    }
+}
@@ -22,15 +22,18 @@ import nl.stijngroenen.tradfri.device.event.*;
 import nl.stijngroenen.tradfri.payload.DeviceResponse;
 import nl.stijngroenen.tradfri.util.CoapClient;
 
-import java.util.ArrayList;
-
 /**
  * The class that observes a device to automagically detect changes
  * @author Stijn Groenen
- * @version 1.1.0
+ * @version 1.4.0
  */
 public class DeviceObserver extends Observer {
 
+    /**
+     * An empty array of event bus registrations, used for devices that are not observed by an event bus
+     */
+    private static final EventBus.Subscription[] NO_SUBSCRIPTIONS = new EventBus.Subscription[0];
+
     /**
      * The device to observe
      */
@@ -41,6 +44,17 @@ public class DeviceObserver extends Observer {
      */
     private ObjectMapper objectMapper;
 
+    /**
+     * The copy of the confirmed state of the device from before the last response, which is reused for every response
+     * (responses are handled one at a time by the dispatch queue of the CoAP client)
+     */
+    private final ConfirmedState previous;
+
+    /**
+     * The poller that polls the device, which learns from the changes in the notifications of the device (null if the device is not polled)
+     */
+    private volatile AdaptivePoller poller;
+
     /**
      * Construct the DeviceObserver class
      * @param device The device to observe
@@ -51,62 +65,175 @@ public class DeviceObserver extends Observer {
         super(device.getEndpoint(), coapClient);
         this.device = device;
         this.objectMapper = new ObjectMapper();
+        this.previous = new ConfirmedState();
     }
 
     /**
-     * Handles a new response from the CoAP client and calls the appropriate event handlers for the device
+     * Handles a new response from the CoAP client and calls the appropriate event handlers for the device<br>
+     * The changed fields are computed once as a change mask on the packed state of the device, and an event is only constructed if an event handler handles it and its filter accepts the change mask.
+     * The old and new properties are only unpacked if an event handler, the history store, the journal or the replay buffer of the device needs them<br>
+     * Events are delivered to the event handlers of the device first, and then to the event handlers of the event bus that observes the device<br>
+     * Changes are also recorded in the history store and the journal of the device, if they are recorded, and battery readings are passed to the battery monitor of the device
      * @param payload The payload of the response to the CoAP request
      * @since 1.0.0
      */
     @Override
     public void callEventHandlers(String payload) {
+        if(!isConsumed()) return;
+        process(payload, false);
+    }
+
+    /**
+     * Handles a new response from the CoAP client, and calls the appropriate event handlers for the device unless it is the unchanged initial response
+     * of an observe relation that the watchdog registered again
+     * @param payload The payload of the response to the CoAP request
+     * @param reregistered True if the response is the first response since the watchdog registered the observe relation again, false if not
+     * @since 1.4.0
+     */
+    @Override
+    protected void callEventHandlers(String payload, boolean reregistered) {
+        if(!isConsumed()) return;
+        int changes = process(payload, reregistered);
+        AdaptivePoller poller = this.poller;
+        if(poller != null && changes > 0) poller.notified(device);
+    }
+
+    /**
+     * Change the poller that polls the device
+     * @param poller The poller that polls the device (null if the device is not polled anymore)
+     * @since 1.4.0
+     */
+    void setPoller(AdaptivePoller poller) {
+        this.poller = poller;
+    }
+
+    /**
+     * Check if anything consumes the notifications of the device, before the payload of a notification is parsed<br>
+     * The notifications are consumed by the event handlers of the device, the event handlers of the event bus that accept the device, the history store, the journal,
+     * the battery monitor, the poller and the replay buffer of the device, and by the unconfirmed writes to the device.
+     * If the application enabled observe itself, the notifications are always consumed, because they keep the state of the device up to date.
+     * So the notifications are only skipped for a device that the event bus observes while no event handler of the event bus accepts it anymore,
+     * which the event bus stops observing when it updates the devices it observes (and which are read again when it observes the device again)
+     * @return True if anything consumes the notifications of the device, false if not
+     * @since 1.4.0
+     */
+    private boolean isConsumed() {
+        if(!device.getEventHandlerRegistry().isEmpty()) return true;
+        EventBus eventBus = device.getEventBus();
+        if(eventBus == null || !eventBus.isOnlyObserver(device)) return true;
+        if(device.getHistoryStore() != null || device.getJournal() != null || device.getBatteryMonitor() != null) return true;
+        if(device.getReplayCapacity() > 0 || !device.getUnconfirmedFields().isEmpty() || poller != null) return true;
+        for(EventBus.Subscription subscription: eventBus.getSubscriptions()){
+            if(subscription.accepts(device)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Handles the payload of a response for the device, from a notification or from polling, and calls the appropriate event handlers for the device<br>
+     * The payload is always parsed, because polling needs the change mask even if nothing else consumes the response
+     * @param payload The payload of the response
+     * @return The change mask that contains the changed fields, including the fields of the information of the device (-1 if the payload could not be read)
+     * @since 1.4.0
+     */
+    int process(String payload) {
+        return process(payload, false);
+    }
+
+    /**
+     * Handles the payload of a response for the device, and calls the appropriate event handlers for the device
+     * @param payload The payload of the response
+     * @param skipUnchanged True to skip the event handlers if nothing changed, false to call them for every response
+     * @return The change mask that contains the changed fields, including the fields of the information of the device (-1 if the payload could not be read)
+     * @since 1.4.0
+     */
+    private int process(String payload, boolean skipUnchanged) {
         try {
             DeviceResponse response = objectMapper.readValue(payload, DeviceResponse.class);
-            ArrayList<DeviceEvent> events = new ArrayList<>();
-            ArrayList<EventHandler> called = new ArrayList<>();
+            int infoChanges = device.updateDeviceInfo(response.getDeviceInfo());
+            BatteryMonitor batteryMonitor = device.getBatteryMonitor();
+            if(batteryMonitor != null && response.getDeviceInfo() != null) batteryMonitor.update(device);
+            DeviceProperties properties = null;
             if(device.isLight()){
-                LightProperties oldProperties = (LightProperties) device.getProperties();
-                if(response.getLightProperties() != null && response.getLightProperties().length > 0) device.setProperties(response.getLightProperties()[0]);
-                LightProperties newProperties = (LightProperties) device.getProperties();
-                events.add(new LightEvent(device.toLight()));
-                ArrayList<DeviceEvent> changeEvents = new ArrayList<>();
-                if(checkChanges(oldProperties.getOn(), newProperties.getOn())) changeEvents.add(new LightChangeOnEvent(device.toLight(), oldProperties, newProperties));
-                if(checkChanges(oldProperties.getBrightness(), newProperties.getBrightness())) changeEvents.add(new LightChangeBrightnessEvent(device.toLight(), oldProperties, newProperties));
-                if(checkChanges(oldProperties.getColourHex(), newProperties.getColourHex())) changeEvents.add(new LightChangeColourHexEvent(device.toLight(), oldProperties, newProperties));
-                if(checkChanges(oldProperties.getHue(), newProperties.getHue())) changeEvents.add(new LightChangeHueEvent(device.toLight(), oldProperties, newProperties));
-                if(checkChanges(oldProperties.getSaturation(), newProperties.getSaturation())) changeEvents.add(new LightChangeSaturationEvent(device.toLight(), oldProperties, newProperties));
-                if(checkChanges(oldProperties.getColourX(), newProperties.getColourX())) changeEvents.add(new LightChangeColourXEvent(device.toLight(), oldProperties, newProperties));
-                if(checkChanges(oldProperties.getColourY(), newProperties.getColourY())) changeEvents.add(new LightChangeColourYEvent(device.toLight(), oldProperties, newProperties));
-                if(checkChanges(oldProperties.getColourX(), newProperties.getColourX()) || checkChanges(oldProperties.getColourY(), newProperties.getColourY())) changeEvents.add(new LightChangeColourXYEvent(device.toLight(), oldProperties, newProperties));
-                if(checkChanges(oldProperties.getColourX(), newProperties.getColourX()) || checkChanges(oldProperties.getColourY(), newProperties.getColourY()) || checkChanges(oldProperties.getHue(), newProperties.getHue()) || checkChanges(oldProperties.getSaturation(), newProperties.getSaturation())) changeEvents.add(new LightChangeColourEvent(device.toLight(), oldProperties, newProperties));
-                if(checkChanges(oldProperties.getColourTemperature(), newProperties.getColourTemperature())) changeEvents.add(new LightChangeColourTemperatureEvent(device.toLight(), oldProperties, newProperties));
-                if(changeEvents.size() > 0){
-                    events.add(new LightChangeEvent(device.toLight(), oldProperties, newProperties));
-                    events.addAll(changeEvents);
-                }
+                if(response.getLightProperties() != null && response.getLightProperties().length > 0) properties = response.getLightProperties()[0];
             }else if(device.isPlug()){
-                PlugProperties oldProperties = (PlugProperties) device.getProperties();
-                if(response.getPlugProperties() != null && response.getPlugProperties().length > 0) device.setProperties(response.getPlugProperties()[0]);
-                PlugProperties newProperties = (PlugProperties) device.getProperties();
-                events.add(new PlugEvent(device.toPlug()));
-                if(checkChanges(oldProperties.getOn(), newProperties.getOn())){
-                    events.add(new PlugChangeEvent(device.toPlug(), oldProperties, newProperties));
-                    events.add(new PlugChangeOnEvent(device.toPlug(), oldProperties, newProperties));
-                }
-            }else if(device.isRemote()){
-                events.add(new RemoteEvent(device.toRemote()));
-            }else if(device.isMotionSensor()){
-                events.add(new MotionSensorEvent(device.toMotionSensor()));
+                if(response.getPlugProperties() != null && response.getPlugProperties().length > 0) properties = response.getPlugProperties()[0];
+            }
+            ConfirmedState previous = this.previous;
+            DeviceEventKind[] kinds = DeviceEventKind.forType(device.getType());
+            int changes = 0;
+            long sequence;
+            DeviceProperties oldProperties = null;
+            DeviceProperties newProperties = null;
+            HistoryStore historyStore;
+            StateJournal journal;
+            EventHandler<?>[] eventHandlers;
+            EventBus.Subscription[] subscriptions;
+            ReplayHandoff[] handoffs;
+            // The state is updated under the lock of the device, so a replay that is taken under the same lock contains the notification entirely or not at all
+            synchronized (device) {
+                sequence = device.nextSequence();
+                if(properties != null) changes = device.updateProperties(properties, previous);
+                historyStore = device.getHistoryStore();
+                journal = device.getJournal();
+                eventHandlers = device.getEventHandlerRegistry().snapshot();
+                EventBus eventBus = device.getEventBus();
+                subscriptions = eventBus != null ? eventBus.getSubscriptions() : NO_SUBSCRIPTIONS;
+                handoffs = device.getReplayHandoffs();
+                // The properties are only unpacked for the consumers that need them
+                boolean recorded = changes != 0 && (historyStore != null || journal != null);
+                boolean replayed = changes != 0 && device.getReplayCapacity() > 0;
+                boolean handled = kinds.length > 0 && (eventHandlers.length > 0 || subscriptions.length > 0) && !(skipUnchanged && (changes | infoChanges) == 0);
+                if(recorded || replayed || handled) newProperties = device.getConfirmedProperties();
+                if(replayed || handled) oldProperties = properties != null ? device.unpack(previous) : newProperties;
+                if(replayed) device.addRecentChange(oldProperties, newProperties, changes);
+            }
+            if(changes != 0){
+                if(historyStore != null) historyStore.record(device, newProperties);
+                if(journal != null) journal.recordObserved(device, newProperties);
+            }
+            if(skipUnchanged && (changes | infoChanges) == 0) return 0;
+            if(kinds.length == 0 || (eventHandlers.length == 0 && subscriptions.length == 0)) return changes | infoChanges;
+            // The events are only allocated once an event handler handles one of them
+            DeviceEvent[] events = null;
+            for(EventHandler<?> eventHandler: eventHandlers){
+                events = callEventHandler(eventHandler, kinds, events, changes, oldProperties, newProperties, handoffs, sequence);
             }
-            for(EventHandler eventHandler: device.getEventHandlers()){
-                for(DeviceEvent event: events){
-                    if(eventHandler.getEventType().isAssignableFrom(event.getClass()) && !called.contains(eventHandler)){
-                        eventHandler.handle(event);
-                        called.add(eventHandler);
-                    }
-                }
+            for(EventBus.Subscription subscription: subscriptions){
+                EventHandler<?> eventHandler = subscription.getEventHandler();
+                if(!subscription.acceptsChanges(changes) || !subscription.accepts(device) || HandlerRegistry.containsIdentical(eventHandlers, eventHandler)) continue;
+                events = callEventHandler(eventHandler, kinds, events, changes, oldProperties, newProperties, handoffs, sequence);
             }
-        } catch (JsonProcessingException ignored) { }
+            return changes | infoChanges;
+        } catch (JsonProcessingException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Call an event handler with the first kind of event that it handles, constructing the event if it was not constructed for an earlier event handler<br>
+     * If a replay is being delivered to the event handler, the event is skipped if the replay contains it, or deferred until the replay is delivered if not
+     * @param eventHandler The event handler to call
+     * @param kinds The kinds of events that can occur for the device
+     * @param events The events that are already constructed, indexed like the kinds of events (null if no event is constructed yet)
+     * @param changes The change mask that contains the changed fields
+     * @param oldProperties The old properties of the device (from before the event occurred)
+     * @param newProperties The new properties of the device (from after the event occurred)
+     * @param handoffs The handoffs of the event handlers to which a replay is being delivered (null if there are none)
+     * @param sequence The sequence number of the notification
+     * @return The events that are constructed, indexed like the kinds of events (null if no event is constructed yet)
+     * @since 1.4.0
+     */
+    private DeviceEvent[] callEventHandler(EventHandler<?> eventHandler, DeviceEventKind[] kinds, DeviceEvent[] events, int changes, DeviceProperties oldProperties, DeviceProperties newProperties, ReplayHandoff[] handoffs, long sequence) {
+        int index = DeviceEventKind.indexOf(kinds, changes, eventHandler.getEventType());
+        if(index < 0) return events;
+        ReplayHandoff handoff = ReplayHandoff.find(handoffs, eventHandler);
+        if(handoff != null && handoff.covers(sequence)) return events;
+        if(events == null) events = new DeviceEvent[kinds.length];
+        if(events[index] == null) events[index] = kinds[index].create(device, oldProperties, newProperties);
+        if(handoff != null && handoff.defer(events[index])) return events;
+        eventHandler.offer(events[index]);
+        return events;
     }
 
 }
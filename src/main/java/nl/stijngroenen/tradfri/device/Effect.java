@@ -0,0 +1,50 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+/**
+ * The interface for a light effect that is played by the {@link EffectEngine}<br>
+ * An effect renders the target state of each of its lights for a point in time. The engine decides how often the targets are sent,
+ * and sets the transition time so the lights fade between the targets that are sent, so effects should render the state they want at that time
+ * instead of small steps towards it.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+@FunctionalInterface
+public interface Effect {
+
+    /**
+     * Render the target state of a light
+     * @param light The light
+     * @param index The index of the light in the lights of the effect
+     * @param elapsed The time since the effect started (in milliseconds)
+     * @return The target state of the light (null to leave the light as it is)
+     * @since 1.4.0
+     */
+    LightProperties render(Light light, int index, long elapsed);
+
+    /**
+     * Check if the effect is finished
+     * @param elapsed The time since the effect started (in milliseconds)
+     * @return True if the effect is finished, false if not
+     * @since 1.4.0
+     */
+    default boolean isFinished(long elapsed) {
+        return false;
+    }
+
+}
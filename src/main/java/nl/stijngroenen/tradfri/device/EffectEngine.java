@@ -0,0 +1,461 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+import nl.stijngroenen.tradfri.util.RateBudget;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class that plays light effects on IKEA TRÅDFRI lights, paced to what the gateway can handle<br>
+ * A single scheduler renders a frame of every effect at a fixed interval. The target of a light replaces the target that was not sent yet (so frames are merged
+ * under pressure), and per frame only as many targets are sent as the request budget allows. The budget is the lowest of the configured maximum request rate and
+ * the rate the gateway achieves with the measured latency, and every update is drawn from the shared rate budget of the CoAP client like a background request,
+ * so effects leave the reserve of the gateway to interactive requests and count against the same budget as polls. The transition time of every update is set to the expected time until the next update of the light,
+ * so the lights fade smoothly between sparse targets.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class EffectEngine {
+
+    /**
+     * A CoAP client that can be used to communicate with the lights using the IKEA TRÅDFRI gateway
+     */
+    private final CoapClient coapClient;
+
+    /**
+     * The effects that are played
+     */
+    private final List<EffectPlayback> playbacks;
+
+    /**
+     * The state of every light that is played, by the instance id of the light
+     */
+    private final LinkedHashMap<Integer, Channel> channels;
+
+    /**
+     * The time between frames (in milliseconds)
+     * @value 100
+     */
+    private volatile long frameInterval = 100L;
+
+    /**
+     * The maximum number of updates that are sent per second
+     * @value 10
+     */
+    private volatile double maxRequestRate = 10.0;
+
+    /**
+     * The moving average of the latency of an update (in milliseconds, 0 if no update has completed yet)
+     */
+    private double averageLatency;
+
+    /**
+     * The number of updates that can still be sent, which grows by the budget of every frame
+     */
+    private double credit;
+
+    /**
+     * The position of the light that is considered first in the next frame, so every light gets its turn when the budget is short
+     */
+    private int cursor;
+
+    /**
+     * The executor that renders the frames (null if no effect is played)
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * The number of updates that were sent
+     */
+    private long sentCount;
+
+    /**
+     * The number of targets that were replaced by a newer target before they were sent
+     */
+    private long mergedCount;
+
+    /**
+     * Construct the EffectEngine class
+     * @param coapClient A CoAP client that can be used to communicate with the lights using the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    EffectEngine(CoapClient coapClient) {
+        this.coapClient = coapClient;
+        this.playbacks = new ArrayList<>();
+        this.channels = new LinkedHashMap<>();
+    }
+
+    /**
+     * Start playing an effect on lights<br>
+     * A light that is already played by another effect is taken over. An effect that loses all of its lights is stopped.
+     * @param effect The effect to play
+     * @param lights The lights on which to play the effect
+     * @return The playback, which can be used to stop the effect
+     * @since 1.4.0
+     */
+    public synchronized EffectPlayback play(Effect effect, Collection<Light> lights) {
+        if(effect == null) throw new IllegalArgumentException("The effect must not be null");
+        Light[] array = lights.toArray(new Light[0]);
+        for(Light light: array){
+            if(light == null || light.getInstanceId() == null) throw new IllegalArgumentException("The lights must have an instance id");
+        }
+        EffectPlayback playback = new EffectPlayback(effect, array, System.currentTimeMillis(), this);
+        List<EffectPlayback> previous = new ArrayList<>();
+        for(Light light: array){
+            Channel channel = channels.computeIfAbsent(light.getInstanceId(), id -> new Channel(light));
+            if(channel.owner != null && channel.owner != playback) previous.add(channel.owner);
+            channel.owner = playback;
+        }
+        for(EffectPlayback other: previous){
+            if(!ownsAny(other)){
+                other.markStopped();
+                playbacks.remove(other);
+            }
+        }
+        playbacks.add(playback);
+        startScheduler();
+        return playback;
+    }
+
+    /**
+     * Stop playing every effect
+     * @since 1.4.0
+     */
+    public synchronized void stopAll() {
+        for(EffectPlayback playback: new ArrayList<>(playbacks)){
+            playback.markStopped();
+            release(playback);
+        }
+        playbacks.clear();
+    }
+
+    /**
+     * Get the effects that are played
+     * @return A list of the effects that are played
+     * @since 1.4.0
+     */
+    public synchronized List<EffectPlayback> getPlaybacks() {
+        return new ArrayList<>(playbacks);
+    }
+
+    /**
+     * Handle a playback that was stopped
+     * @param playback The playback that was stopped
+     * @since 1.4.0
+     */
+    synchronized void stopped(EffectPlayback playback) {
+        playbacks.remove(playback);
+        release(playback);
+    }
+
+    /**
+     * Release the lights of a playback, and discard their targets that were not sent yet
+     * @param playback The playback
+     * @since 1.4.0
+     */
+    private void release(EffectPlayback playback) {
+        for(Light light: playback.lights()){
+            Channel channel = channels.get(light.getInstanceId());
+            if(channel == null || channel.owner != playback) continue;
+            channel.owner = null;
+            channel.pending = null;
+            if(!channel.inFlight) channels.remove(light.getInstanceId());
+        }
+    }
+
+    /**
+     * Check if a playback still plays at least one of its lights
+     * @param playback The playback
+     * @return True if the playback still plays at least one of its lights, false if not
+     * @since 1.4.0
+     */
+    private boolean ownsAny(EffectPlayback playback) {
+        for(Light light: playback.lights()){
+            Channel channel = channels.get(light.getInstanceId());
+            if(channel != null && channel.owner == playback) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Start the scheduler that renders the frames, if it is not started yet
+     * @since 1.4.0
+     */
+    private void startScheduler() {
+        if(scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tradfri-effect-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.schedule(this::frame, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Render a frame of every effect, send as many targets as the budget allows, and schedule the next frame
+     * @since 1.4.0
+     */
+    private synchronized void frame() {
+        try {
+            render(System.currentTimeMillis());
+            send();
+        } finally {
+            if(playbacks.isEmpty() && channels.isEmpty()){
+                scheduler.shutdown();
+                scheduler = null;
+                credit = 0;
+            }else{
+                scheduler.schedule(this::frame, frameInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Render the targets of the lights of every effect<br>
+     * An effect that is finished, or that throws an exception, is stopped
+     * @param now The current time (in milliseconds)
+     * @since 1.4.0
+     */
+    private void render(long now) {
+        for(EffectPlayback playback: new ArrayList<>(playbacks)){
+            long elapsed = now - playback.getStartTime();
+            try {
+                if(!playback.getEffect().isFinished(elapsed)){
+                    Light[] lights = playback.lights();
+                    for(int i = 0; i < lights.length; i++){
+                        Channel channel = channels.get(lights[i].getInstanceId());
+                        if(channel == null || channel.owner != playback) continue;
+                        LightProperties target = playback.getEffect().render(lights[i], i, elapsed);
+                        if(target == null) continue;
+                        if(channel.pending != null) mergedCount++;
+                        channel.pending = target;
+                    }
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                // A broken effect is stopped below, so it does not stop the other effects
+            }
+            playback.markStopped();
+            playbacks.remove(playback);
+            release(playback);
+        }
+    }
+
+    /**
+     * Send the targets of the lights, as far as the budget allows<br>
+     * Besides the credit of the engine, the updates are limited to the tokens of the shared rate budget that are left for background requests.
+     * The token of an update is taken when it is sent, so updates that are in flight are counted against the shared tokens until then
+     * @since 1.4.0
+     */
+    private void send() {
+        double perFrame = getRequestBudget() * frameInterval / 1000.0;
+        credit = Math.min(credit + perFrame, Math.max(1.0, perFrame * 2));
+        List<Channel> waiting = new ArrayList<>();
+        int inFlight = 0;
+        for(Channel channel: channels.values()){
+            if(channel.inFlight) inFlight++;
+            else if(channel.pending != null) waiting.add(channel);
+        }
+        if(waiting.isEmpty()) return;
+        RateBudget rateBudget = coapClient.getRateBudget();
+        double shared = rateBudget.getBackgroundAvailable() - inFlight;
+        long interval = Math.max(frameInterval, (long) (waiting.size() / Math.max(perFrame, 0.01) * frameInterval));
+        int transitionTime = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(interval / 100.0)));
+        int start = cursor % waiting.size();
+        int checked = 0;
+        while (checked < waiting.size() && credit >= 1.0 && shared >= 1.0) {
+            Channel channel = waiting.get((start + checked) % waiting.size());
+            checked++;
+            LightProperties target = channel.pending;
+            channel.pending = null;
+            if(channel.lastSent != null && (DeviceField.diff(channel.lastSent, target) & DeviceField.present(target)) == 0) continue;
+            LightProperties properties = LightState.copy(target);
+            properties.setTransitionTime(target.getTransitionTime() != null ? target.getTransitionTime() : transitionTime);
+            channel.inFlight = true;
+            credit -= 1.0;
+            shared -= 1.0;
+            sentCount++;
+            try {
+                coapClient.getExecutor().execute(() -> write(channel, properties));
+            } catch (RejectedExecutionException e) {
+                channel.inFlight = false;
+            }
+        }
+        cursor = start + checked;
+    }
+
+    /**
+     * Send a target to a light and record the latency
+     * @param channel The state of the light
+     * @param properties The target to send
+     * @since 1.4.0
+     */
+    private void write(Channel channel, LightProperties properties) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            success = channel.light.applyUpdate(properties);
+        } finally {
+            written(channel, properties, success, (System.nanoTime() - start) / 1000000.0);
+        }
+    }
+
+    /**
+     * Handle a target that was sent to a light
+     * @param channel The state of the light
+     * @param properties The target that was sent
+     * @param success True if the light was updated, false if not
+     * @param latency The latency of the update (in milliseconds)
+     * @since 1.4.0
+     */
+    private synchronized void written(Channel channel, LightProperties properties, boolean success, double latency) {
+        channel.inFlight = false;
+        if(success) channel.lastSent = properties;
+        averageLatency = averageLatency == 0 ? latency : averageLatency * 0.8 + latency * 0.2;
+        Integer id = channel.light.getInstanceId();
+        if(channel.owner == null && channels.get(id) == channel) channels.remove(id);
+    }
+
+    /**
+     * Get the number of updates per second that are sent at most<br>
+     * This is the lowest of the maximum request rate and the rate that the parallelism of the CoAP client achieves with the measured latency.
+     * The updates are drawn from the shared rate budget of the CoAP client as well, so fewer are sent while interactive requests use the budget
+     * @return The number of updates per second that are sent at most
+     * @since 1.4.0
+     */
+    public synchronized double getRequestBudget() {
+        double budget = maxRequestRate;
+        if(averageLatency > 0) budget = Math.min(budget, coapClient.getParallelism() * 1000.0 / averageLatency);
+        return budget;
+    }
+
+    /**
+     * Get the time between frames
+     * @return The time between frames (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getFrameInterval() {
+        return frameInterval;
+    }
+
+    /**
+     * Change the time between frames
+     * @param frameInterval The new time between frames (in milliseconds)
+     * @since 1.4.0
+     */
+    public void setFrameInterval(long frameInterval) {
+        if(frameInterval < 1) throw new IllegalArgumentException("The frame interval must be at least 1 millisecond");
+        this.frameInterval = frameInterval;
+    }
+
+    /**
+     * Get the maximum number of updates that are sent per second
+     * @return The maximum number of updates that are sent per second
+     * @since 1.4.0
+     */
+    public double getMaxRequestRate() {
+        return maxRequestRate;
+    }
+
+    /**
+     * Change the maximum number of updates that are sent per second
+     * @param maxRequestRate The new maximum number of updates that are sent per second
+     * @since 1.4.0
+     */
+    public void setMaxRequestRate(double maxRequestRate) {
+        if(!(maxRequestRate > 0)) throw new IllegalArgumentException("The maximum request rate must be positive");
+        this.maxRequestRate = maxRequestRate;
+    }
+
+    /**
+     * Get the moving average of the latency of an update
+     * @return The moving average of the latency of an update (in milliseconds, 0 if no update has completed yet)
+     * @since 1.4.0
+     */
+    public synchronized double getAverageLatency() {
+        return averageLatency;
+    }
+
+    /**
+     * Get the number of updates that were sent
+     * @return The number of updates that were sent
+     * @since 1.4.0
+     */
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Get the number of targets that were replaced by a newer target before they were sent
+     * @return The number of merged targets
+     * @since 1.4.0
+     */
+    public synchronized long getMergedCount() {
+        return mergedCount;
+    }
+
+    /**
+     * The class that contains the state of a light that is played
+     * @since 1.4.0
+     */
+    private static class Channel {
+
+        /**
+         * The light
+         */
+        private final Light light;
+
+        /**
+         * The playback that plays the light (null if the light is released)
+         */
+        private EffectPlayback owner;
+
+        /**
+         * The newest target that was not sent yet (null if there is none)
+         */
+        private LightProperties pending;
+
+        /**
+         * The last target that was sent successfully (null if there is none)
+         */
+        private LightProperties lastSent;
+
+        /**
+         * Whether an update of the light is in flight
+         */
+        private boolean inFlight;
+
+        /**
+         * Construct the Channel class
+         * @param light The light
+         * @since 1.4.0
+         */
+        private Channel(Light light) {
+            this.light = light;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+/**
+ * The class that represents an effect that is played on a set of lights by the {@link EffectEngine}
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class EffectPlayback {
+
+    /**
+     * The effect that is played
+     */
+    private final Effect effect;
+
+    /**
+     * The lights on which the effect is played
+     */
+    private final Light[] lights;
+
+    /**
+     * The time at which the effect started (in milliseconds)
+     */
+    private final long startTime;
+
+    /**
+     * Whether the playback is stopped
+     */
+    private volatile boolean stopped;
+
+    /**
+     * The engine that plays the effect
+     */
+    private final EffectEngine engine;
+
+    /**
+     * Construct the EffectPlayback class
+     * @param effect The effect that is played
+     * @param lights The lights on which the effect is played
+     * @param startTime The time at which the effect started (in milliseconds)
+     * @param engine The engine that plays the effect
+     * @since 1.4.0
+     */
+    EffectPlayback(Effect effect, Light[] lights, long startTime, EffectEngine engine) {
+        this.effect = effect;
+        this.lights = lights;
+        this.startTime = startTime;
+        this.engine = engine;
+    }
+
+    /**
+     * Get the effect that is played
+     * @return The effect that is played
+     * @since 1.4.0
+     */
+    public Effect getEffect() {
+        return effect;
+    }
+
+    /**
+     * Get the lights on which the effect is played
+     * @return The lights on which the effect is played
+     * @since 1.4.0
+     */
+    public Light[] getLights() {
+        return lights.clone();
+    }
+
+    /**
+     * Get the time at which the effect started
+     * @return The time at which the effect started (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Stop playing the effect<br>
+     * The lights keep the last state that was sent to them
+     * @since 1.4.0
+     */
+    public void stop() {
+        if(stopped) return;
+        stopped = true;
+        engine.stopped(this);
+    }
+
+    /**
+     * Check if the playback is stopped, either because it was stopped, because the effect is finished, or because another effect took over all of its lights
+     * @return True if the playback is stopped, false if not
+     * @since 1.4.0
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Mark the playback as stopped, without notifying the engine
+     * @since 1.4.0
+     */
+    void markStopped() {
+        stopped = true;
+    }
+
+    /**
+     * Get the lights on which the effect is played, without copying them
+     * @return The lights on which the effect is played
+     * @since 1.4.0
+     */
+    Light[] lights() {
+        return lights;
+    }
+
+}
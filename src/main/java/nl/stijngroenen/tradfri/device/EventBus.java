@@ -0,0 +1,350 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.device.event.Event;
+import nl.stijngroenen.tradfri.device.event.EventFilter;
+import nl.stijngroenen.tradfri.device.event.EventHandler;
+import nl.stijngroenen.tradfri.device.event.EventPublisher;
+import nl.stijngroenen.tradfri.device.event.HandlerRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The class that delivers the events of all devices registered to an IKEA TRÅDFRI gateway to gateway-wide event handlers<br>
+ * When the event bus is started, it observes the IKEA TRÅDFRI gateway and every device registered to it that is accepted by the filter of an event handler,
+ * including devices that are added later on. Devices that no event handler is interested in are not observed, so their notifications are never parsed.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class EventBus {
+
+    /**
+     * The IKEA TRÅDFRI gateway of which the events are delivered
+     */
+    private final Gateway gateway;
+
+    /**
+     * The event handlers registered to the event bus
+     */
+    private final HandlerRegistry<Subscription> subscriptions;
+
+    /**
+     * Whether the event bus is started
+     */
+    private volatile boolean started;
+
+    /**
+     * The devices for which the event bus enabled observe, which are the only devices for which it disables observe again
+     */
+    private final Set<Device> observedByBus;
+
+    /**
+     * Whether the event bus enabled observe for the IKEA TRÅDFRI gateway, which is the only case in which it disables observe for the gateway again
+     */
+    private boolean gatewayObservedByBus;
+
+    /**
+     * Construct the EventBus class
+     * @param gateway The IKEA TRÅDFRI gateway of which the events are delivered
+     * @since 1.4.0
+     */
+    public EventBus(Gateway gateway) {
+        this.gateway = gateway;
+        this.subscriptions = new HandlerRegistry<>(new Subscription[0]);
+        this.observedByBus = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    /**
+     * Add an event handler to the event bus that is called for events of every device
+     * @param eventHandler The event handler to add to the event bus
+     * @since 1.4.0
+     */
+    public void subscribe(EventHandler<?> eventHandler) {
+        subscribe(eventHandler, null);
+    }
+
+    /**
+     * Add an event handler to the event bus that is only called for events of the devices accepted by a filter<br>
+     * If the event handler is already registered, its filter is replaced
+     * @param eventHandler The event handler to add to the event bus
+     * @param filter The filter that accepts the devices for which the event handler is called (null to accept every device)
+     * @since 1.4.0
+     */
+    public void subscribe(EventHandler<?> eventHandler, EventFilter filter) {
+        register(new Subscription(eventHandler, filter));
+        update();
+    }
+
+    /**
+     * Add an event handler to the event bus that is only called for events of the devices accepted by a filter,
+     * and optionally replay the recent changes and the current state of every observed device accepted by the filter to it<br>
+     * Before the event handler is registered, every replayed device gets a handoff for it, which skips the notifications that the replay of the device will contain.
+     * The replay of each device is then taken under the lock of that device only, and the notifications that occur while it is delivered are deferred until it is delivered,
+     * so a notification is either part of the replay or delivered to the event handler afterwards, but never both or neither
+     * @param eventHandler The event handler to add to the event bus
+     * @param filter The filter that accepts the devices for which the event handler is called (null to accept every device)
+     * @param replay True to replay the recent changes and the current state of the devices to the event handler, false to only call it for new events
+     * @since 1.4.0
+     */
+    public void subscribe(EventHandler<?> eventHandler, EventFilter filter, boolean replay) {
+        if(!replay){
+            subscribe(eventHandler, filter);
+            return;
+        }
+        Subscription subscription = new Subscription(eventHandler, filter);
+        List<Device> devices = new ArrayList<>();
+        for(Device device: gateway.getObservedDevices()){
+            if(subscription.accepts(device)) devices.add(device);
+        }
+        ReplayHandoff[] handoffs = new ReplayHandoff[devices.size()];
+        for(int i = 0; i < handoffs.length; i++){
+            handoffs[i] = new ReplayHandoff(eventHandler);
+            devices.get(i).addReplayHandoff(handoffs[i]);
+        }
+        int replayed = 0;
+        try {
+            register(subscription);
+            // Deliver the next notifications of the devices to the event bus right away, observe is enabled for them afterwards
+            if(started){
+                for(Device device: devices){
+                    if(device.getEventBus() == null) device.setEventBus(this);
+                }
+            }
+            update();
+            for(; replayed < handoffs.length; replayed++){
+                devices.get(replayed).replay(subscription, handoffs[replayed]);
+            }
+        } finally {
+            for(int i = replayed; i < handoffs.length; i++){
+                devices.get(i).removeReplayHandoff(handoffs[i]);
+            }
+        }
+    }
+
+    /**
+     * Register an event handler to the event bus, replacing its earlier registration
+     * @param subscription The registration of the event handler
+     * @since 1.4.0
+     */
+    private void register(Subscription subscription) {
+        synchronized (subscriptions) {
+            subscriptions.removeIf(registered -> registered.getEventHandler() == subscription.getEventHandler());
+            subscriptions.add(subscription);
+        }
+    }
+
+    /**
+     * Remove an event handler from the event bus
+     * @param eventHandler The event handler to remove from the event bus
+     * @since 1.4.0
+     */
+    public void unsubscribe(EventHandler<?> eventHandler) {
+        synchronized (subscriptions) {
+            subscriptions.removeIf(subscription -> subscription.getEventHandler() == eventHandler);
+        }
+        update();
+    }
+
+    /**
+     * Get a Reactive Streams publisher of the events of every device accepted by a filter<br>
+     * Every subscriber registers its own event handler to the event bus. The event bus has to be started for events to occur.
+     * @param eventType The class of the events to publish
+     * @param filter The filter that accepts the devices of which the events are published (null to accept every device)
+     * @param <T> The type of the events to publish
+     * @return A publisher of the events of the devices accepted by the filter
+     * @since 1.4.0
+     */
+    public <T extends Event> EventPublisher<T> getEventPublisher(Class<T> eventType, EventFilter filter) {
+        return new EventPublisher<>(eventType, eventHandler -> subscribe(eventHandler, filter), this::unsubscribe);
+    }
+
+    /**
+     * Get a snapshot of the event handlers registered to the event bus<br>
+     * <i>Note: The returned array is shared and must not be modified</i>
+     * @return The event handlers registered to the event bus, with their filters
+     * @since 1.4.0
+     */
+    Subscription[] getSubscriptions() {
+        return subscriptions.snapshot();
+    }
+
+    /**
+     * Check if the event bus is started
+     * @return True if the event bus is started, false if not
+     * @since 1.4.0
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Start the event bus, which enables observe for the IKEA TRÅDFRI gateway and for every device registered to it
+     * @return True if successfully started the event bus, false if it was already started
+     * @since 1.4.0
+     */
+    public synchronized boolean start() {
+        if(started) return false;
+        started = true;
+        gatewayObservedByBus = gateway.enableObserve();
+        for(Device device: gateway.getObservedDevices()){
+            attach(device);
+        }
+        return true;
+    }
+
+    /**
+     * Stop the event bus, which disables observe for the IKEA TRÅDFRI gateway and for the devices for which the event bus enabled it,
+     * unless event handlers were added to the gateway or the device itself
+     * @return True if successfully stopped the event bus, false if it was not started
+     * @since 1.4.0
+     */
+    public synchronized boolean stop() {
+        if(!started) return false;
+        started = false;
+        for(Device device: gateway.getObservedDevices()){
+            detach(device);
+        }
+        if(gatewayObservedByBus && gateway.getEventHandlerRegistry().isEmpty()) gateway.disableObserve();
+        gatewayObservedByBus = false;
+        return true;
+    }
+
+    /**
+     * Start delivering the events of a device to the event bus, if an event handler of the event bus accepts the device<br>
+     * Observe is only enabled if the device is not observed yet, and the event bus remembers that it enabled it
+     * @param device The device of which the events are delivered
+     * @since 1.4.0
+     */
+    void attach(Device device) {
+        if(device == null || !started || !isWanted(device)) return;
+        device.setEventBus(this);
+        if(!device.isObserved() && device.enableObserve()) observedByBus.add(device);
+    }
+
+    /**
+     * Check if an event handler of the event bus accepts a device
+     * @param device The device
+     * @return True if an event handler of the event bus accepts the device, false if not
+     * @since 1.4.0
+     */
+    private boolean isWanted(Device device) {
+        for(Subscription subscription: subscriptions.snapshot()){
+            if(subscription.accepts(device)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Observe the devices that are accepted by an event handler of the event bus and stop observing the devices that are not, after the event handlers changed
+     * @since 1.4.0
+     */
+    private synchronized void update() {
+        if(!started) return;
+        for(Device device: gateway.getObservedDevices()){
+            boolean attached = device.getEventBus() == this;
+            boolean wanted = isWanted(device);
+            if(wanted && (!attached || !device.isObserved())) attach(device);
+            else if(!wanted && attached) detach(device);
+        }
+    }
+
+    /**
+     * Check if the event bus is the only reason the device is observed, which is the case if the event bus enabled observe for it and no event handlers were added to the device itself
+     * @param device The device
+     * @return True if the event bus is the only reason the device is observed, false if not
+     * @since 1.4.0
+     */
+    boolean isOnlyObserver(Device device) {
+        return observedByBus.contains(device) && device.getEventHandlerRegistry().isEmpty();
+    }
+
+    /**
+     * Stop delivering the events of a device to the event bus<br>
+     * Observe is only disabled if the event bus enabled it and no event handlers were added to the device itself,
+     * so observe that the application enabled for its own event handlers keeps running
+     * @param device The device of which the events are no longer delivered
+     * @since 1.4.0
+     */
+    void detach(Device device) {
+        if(device == null || device.getEventBus() != this) return;
+        device.setEventBus(null);
+        if(observedByBus.remove(device) && device.getEventHandlerRegistry().isEmpty()) device.disableObserve();
+    }
+
+    /**
+     * The class that contains an event handler registered to the event bus together with its filter
+     * @since 1.4.0
+     */
+    static class Subscription {
+
+        /**
+         * The event handler
+         */
+        private final EventHandler<?> eventHandler;
+
+        /**
+         * The filter that accepts the devices for which the event handler is called (null to accept every device)
+         */
+        private final EventFilter filter;
+
+        /**
+         * Construct the Subscription class
+         * @param eventHandler The event handler
+         * @param filter The filter that accepts the devices for which the event handler is called (null to accept every device)
+         * @since 1.4.0
+         */
+        Subscription(EventHandler<?> eventHandler, EventFilter filter) {
+            this.eventHandler = eventHandler;
+            this.filter = filter;
+        }
+
+        /**
+         * Get the event handler
+         * @return The event handler
+         * @since 1.4.0
+         */
+        EventHandler<?> getEventHandler() {
+            return eventHandler;
+        }
+
+        /**
+         * Check if the event handler is called for events of a device
+         * @param device The device
+         * @return True if the event handler is called for events of the device, false if not
+         * @since 1.4.0
+         */
+        boolean accepts(Device device) {
+            return filter == null || filter.accepts(device);
+        }
+
+        /**
+         * Check if the event handler is called for a notification with certain changed fields
+         * @param changes The change mask that contains the changed fields
+         * @return True if the event handler is called for the notification, false if not
+         * @since 1.4.0
+         */
+        boolean acceptsChanges(int changes) {
+            return filter == null || filter.acceptsChanges(changes);
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+/**
+ * The class that keeps the most recent changes of an IKEA TRÅDFRI device, so they can be replayed to event handlers that are added later on<br>
+ * The changes are kept in a ring buffer of a fixed capacity, in which a new change replaces the oldest change when the buffer is full
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+class EventReplayBuffer {
+
+    /**
+     * An empty array of changes
+     */
+    static final Change[] NO_CHANGES = new Change[0];
+
+    /**
+     * The ring buffer of changes
+     */
+    private Change[] changes;
+
+    /**
+     * The index of the oldest change in the ring buffer
+     */
+    private int start;
+
+    /**
+     * The number of changes in the ring buffer
+     */
+    private int size;
+
+    /**
+     * Construct the EventReplayBuffer class
+     * @since 1.4.0
+     */
+    EventReplayBuffer() {
+        this.changes = NO_CHANGES;
+    }
+
+    /**
+     * Get the maximum number of changes that are kept
+     * @return The maximum number of changes that are kept
+     * @since 1.4.0
+     */
+    synchronized int getCapacity() {
+        return changes.length;
+    }
+
+    /**
+     * Change the maximum number of changes that are kept, keeping the most recent changes
+     * @param capacity The new maximum number of changes that are kept
+     * @since 1.4.0
+     */
+    synchronized void setCapacity(int capacity) {
+        if(capacity < 0) throw new IllegalArgumentException("The capacity of the replay buffer must not be negative");
+        if(capacity == changes.length) return;
+        Change[] recent = snapshot();
+        int count = Math.min(recent.length, capacity);
+        Change[] changes = capacity == 0 ? NO_CHANGES : new Change[capacity];
+        System.arraycopy(recent, recent.length - count, changes, 0, count);
+        this.changes = changes;
+        this.start = 0;
+        this.size = count;
+    }
+
+    /**
+     * Add a change to the ring buffer, replacing the oldest change if the buffer is full<br>
+     * <i>Note: The caller has to hold the lock of the buffer</i>
+     * @param oldProperties The old properties of the device (from before the change)
+     * @param newProperties The new properties of the device (from after the change)
+     * @param changedFields The change mask that contains the changed fields
+     * @since 1.4.0
+     */
+    void add(DeviceProperties oldProperties, DeviceProperties newProperties, int changedFields) {
+        if(changes.length == 0 || changedFields == 0) return;
+        Change change = new Change(oldProperties, newProperties, changedFields);
+        if(size < changes.length){
+            changes[(start + size) % changes.length] = change;
+            size++;
+        }else{
+            changes[start] = change;
+            start = (start + 1) % changes.length;
+        }
+    }
+
+    /**
+     * Get the changes in the ring buffer<br>
+     * <i>Note: The caller has to hold the lock of the buffer</i>
+     * @return The changes in the ring buffer, from the oldest to the most recent change
+     * @since 1.4.0
+     */
+    Change[] snapshot() {
+        if(size == 0) return NO_CHANGES;
+        Change[] snapshot = new Change[size];
+        for(int i = 0; i < size; i++){
+            snapshot[i] = changes[(start + i) % changes.length];
+        }
+        return snapshot;
+    }
+
+    /**
+     * The class that contains a change of a device
+     * @since 1.4.0
+     */
+    static class Change {
+
+        /**
+         * The old properties of the device (from before the change)
+         */
+        private final DeviceProperties oldProperties;
+
+        /**
+         * The new properties of the device (from after the change)
+         */
+        private final DeviceProperties newProperties;
+
+        /**
+         * The change mask that contains the changed fields
+         */
+        private final int changedFields;
+
+        /**
+         * Construct the Change class
+         * @param oldProperties The old properties of the device (from before the change)
+         * @param newProperties The new properties of the device (from after the change)
+         * @param changedFields The change mask that contains the changed fields
+         * @since 1.4.0
+         */
+        Change(DeviceProperties oldProperties, DeviceProperties newProperties, int changedFields) {
+            this.oldProperties = oldProperties;
+            this.newProperties = newProperties;
+            this.changedFields = changedFields;
+        }
+
+        /**
+         * Get the old properties of the device
+         * @return The old properties of the device (from before the change)
+         * @since 1.4.0
+         */
+        DeviceProperties getOldProperties() {
+            return oldProperties;
+        }
+
+        /**
+         * Get the new properties of the device
+         * @return The new properties of the device (from after the change)
+         * @since 1.4.0
+         */
+        DeviceProperties getNewProperties() {
+            return newProperties;
+        }
+
+        /**
+         * Get the change mask that contains the changed fields
+         * @return The change mask that contains the changed fields
+         * @since 1.4.0
+         */
+        int getChangedFields() {
+            return changedFields;
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The class that contains the group updates and the device updates that together apply a change to multiple IKEA TRÅDFRI lights and plugs
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class FanOutPlan {
+
+    /**
+     * The groups to update
+     */
+    private final List<Group> groups;
+
+    /**
+     * The lights and plugs to update one by one
+     */
+    private final List<Device> devices;
+
+    /**
+     * The change to apply
+     */
+    private final GroupProperties change;
+
+    /**
+     * Construct the FanOutPlan class
+     * @param groups The groups to update
+     * @param devices The lights and plugs to update one by one
+     * @param change The change to apply
+     * @since 1.4.0
+     */
+    FanOutPlan(List<Group> groups, List<Device> devices, GroupProperties change) {
+        this.groups = Collections.unmodifiableList(groups);
+        this.devices = Collections.unmodifiableList(devices);
+        this.change = change;
+    }
+
+    /**
+     * Get the groups to update
+     * @return The groups to update
+     * @since 1.4.0
+     */
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Get the lights and plugs to update one by one
+     * @return The lights and plugs that are not covered by a group
+     * @since 1.4.0
+     */
+    public List<Device> getDevices() {
+        return devices;
+    }
+
+    /**
+     * Get the change to apply
+     * @return The change to apply
+     * @since 1.4.0
+     */
+    public GroupProperties getChange() {
+        return change;
+    }
+
+    /**
+     * Get the number of requests that are needed to apply the plan
+     * @return The number of group updates and device updates
+     * @since 1.4.0
+     */
+    public int getRequestCount() {
+        return groups.size() + devices.size();
+    }
+
+    /**
+     * Apply the plan, by updating the groups and then the remaining devices
+     * @return True if every update succeeded, false if not
+     * @since 1.4.0
+     */
+    public boolean apply() {
+        boolean success = true;
+        for(Group group: groups){
+            if(!group.applyUpdate(change)) success = false;
+        }
+        for(Device device: devices){
+            if(!applyTo(device, change)) success = false;
+        }
+        return success;
+    }
+
+    /**
+     * Apply a change to a single light or plug
+     * @param device The light or plug
+     * @param change The change to apply
+     * @return True if successfully updated the device, false if not
+     * @since 1.4.0
+     */
+    static boolean applyTo(Device device, GroupProperties change) {
+        if(device.isLight()){
+            LightProperties properties = new LightProperties();
+            properties.setOn(change.getOn());
+            properties.setBrightness(change.getBrightness());
+            properties.setColourHex(change.getColourHex());
+            properties.setTransitionTime(change.getTransitionTime());
+            return device.toLight().applyUpdate(properties);
+        }else if(device.isPlug()){
+            PlugProperties properties = new PlugProperties();
+            properties.setOn(change.getOn());
+            return device.toPlug().applyUpdate(properties);
+        }
+        return false;
+    }
+
+}
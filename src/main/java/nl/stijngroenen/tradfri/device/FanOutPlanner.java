@@ -0,0 +1,214 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The class that plans a change to multiple IKEA TRÅDFRI lights and plugs with as few requests as possible<br>
+ * A group can be used when every light and plug in the group is one of the targeted devices (full coverage), or is known to be in the requested state already
+ * (near-full coverage), so a group update never changes a device that is not targeted. The groups are picked greedily by the number of targeted devices they cover,
+ * and the targeted devices that are not covered by any group are updated one by one.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class FanOutPlanner {
+
+    /**
+     * The groups that can be used
+     */
+    private final Group[] groups;
+
+    /**
+     * The sorted instance ids of the lights and plugs in every group (the other devices in a group are not affected by a group update)
+     */
+    private final int[][] members;
+
+    /**
+     * The lights and plugs in every group, in the same order as their instance ids
+     */
+    private final Device[][] memberDevices;
+
+    /**
+     * Construct the FanOutPlanner class
+     * @param groups The groups that can be used
+     * @since 1.4.0
+     */
+    public FanOutPlanner(Collection<Group> groups) {
+        this(groups, Collections.<Device>emptyList());
+    }
+
+    /**
+     * Construct the FanOutPlanner class<br>
+     * The lights and plugs in the groups are replaced by the provided devices with the same instance id, so a group whose members were fetched separately
+     * is checked against the state of the observed devices (a copy that is not observed is never known to be in the requested state)
+     * @param groups The groups that can be used
+     * @param devices The devices to use for the members of the groups, typically the devices that are observed
+     * @since 1.4.0
+     */
+    public FanOutPlanner(Collection<Group> groups, Collection<? extends Device> devices) {
+        Map<Integer, Device> known = new HashMap<>();
+        for(Device device: devices){
+            if(device != null && device.getInstanceId() != null) known.put(device.getInstanceId(), device);
+        }
+        ArrayList<Group> usable = new ArrayList<>();
+        for(Group group: groups){
+            if(group != null && group.getDevices() != null) usable.add(group);
+        }
+        this.groups = usable.toArray(new Group[0]);
+        this.members = new int[this.groups.length][];
+        this.memberDevices = new Device[this.groups.length][];
+        for(int i = 0; i < this.groups.length; i++){
+            Map<Integer, Device> lightsAndPlugs = new TreeMap<>();
+            for(Device device: this.groups[i].getDevices()){
+                if(device == null || device.getInstanceId() == null) continue;
+                Device member = known.getOrDefault(device.getInstanceId(), device);
+                if(member.isLight() || member.isPlug()) lightsAndPlugs.put(member.getInstanceId(), member);
+            }
+            members[i] = new int[lightsAndPlugs.size()];
+            memberDevices[i] = new Device[lightsAndPlugs.size()];
+            int j = 0;
+            for(Map.Entry<Integer, Device> entry: lightsAndPlugs.entrySet()){
+                members[i][j] = entry.getKey();
+                memberDevices[i][j] = entry.getValue();
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Plan a change to multiple devices
+     * @param devices The devices to change (devices that are not lights or plugs are ignored)
+     * @param change The change to apply to the devices
+     * @return The plan, which contains the group updates and the device updates that together apply the change to the devices
+     * @since 1.4.0
+     */
+    public FanOutPlan plan(Collection<? extends Device> devices, GroupProperties change) {
+        if(change == null) throw new IllegalArgumentException("The change must not be null");
+        LightProperties lightChange = new LightProperties();
+        lightChange.setOn(change.getOn());
+        lightChange.setBrightness(change.getBrightness());
+        lightChange.setColourHex(change.getColourHex());
+        PlugProperties plugChange = new PlugProperties();
+        plugChange.setOn(change.getOn());
+
+        Map<Integer, Device> targets = new LinkedHashMap<>();
+        for(Device device: devices){
+            if(device == null || device.getInstanceId() == null) continue;
+            if(device.isLight() || (device.isPlug() && change.getOn() != null)) targets.put(device.getInstanceId(), device);
+        }
+        int[] targetIds = new int[targets.size()];
+        int t = 0;
+        for(Integer id: targets.keySet()){
+            targetIds[t++] = id;
+        }
+        Arrays.sort(targetIds);
+        boolean[] covered = new boolean[targetIds.length];
+
+        boolean[] usable = new boolean[groups.length];
+        for(int i = 0; i < groups.length; i++){
+            usable[i] = isUsable(i, targetIds, lightChange, plugChange);
+        }
+
+        List<Group> plannedGroups = new ArrayList<>();
+        int uncovered = targetIds.length;
+        while (uncovered > 1) {
+            int best = -1;
+            int bestCount = 1;
+            for(int i = 0; i < groups.length; i++){
+                if(!usable[i]) continue;
+                int count = countUncovered(members[i], targetIds, covered);
+                if(count > bestCount || (count == bestCount && best >= 0 && members[i].length < members[best].length)){
+                    best = i;
+                    bestCount = count;
+                }
+            }
+            if(best < 0) break;
+            usable[best] = false;
+            for(int id: members[best]){
+                int index = Arrays.binarySearch(targetIds, id);
+                if(index >= 0 && !covered[index]){
+                    covered[index] = true;
+                    uncovered--;
+                }
+            }
+            plannedGroups.add(groups[best]);
+        }
+
+        List<Device> plannedDevices = new ArrayList<>();
+        for(Device device: targets.values()){
+            if(!covered[Arrays.binarySearch(targetIds, device.getInstanceId())]) plannedDevices.add(device);
+        }
+        return new FanOutPlan(plannedGroups, plannedDevices, change);
+    }
+
+    /**
+     * Check if a group can be used for a change, which is the case if every light and plug in the group is targeted or is known to be in the requested state already
+     * @param group The index of the group
+     * @param targetIds The sorted instance ids of the targeted devices
+     * @param lightChange The change to apply to the lights
+     * @param plugChange The change to apply to the plugs
+     * @return True if the group can be used, false if not
+     * @since 1.4.0
+     */
+    private boolean isUsable(int group, int[] targetIds, LightProperties lightChange, PlugProperties plugChange) {
+        if(members[group].length == 0) return false;
+        for(int j = 0; j < members[group].length; j++){
+            if(Arrays.binarySearch(targetIds, members[group][j]) >= 0) continue;
+            Device device = memberDevices[group][j];
+            if(device.isLight() && device.toLight().isSatisfied(lightChange)) continue;
+            if(device.isPlug() && (plugChange.getOn() == null || device.toPlug().isSatisfied(plugChange))) continue;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Count the targeted devices in a group that are not covered yet
+     * @param members The sorted instance ids of the lights and plugs in the group
+     * @param targetIds The sorted instance ids of the targeted devices
+     * @param covered Whether each targeted device is covered already
+     * @return The number of targeted devices in the group that are not covered yet
+     * @since 1.4.0
+     */
+    private static int countUncovered(int[] members, int[] targetIds, boolean[] covered) {
+        int count = 0;
+        for(int id: members){
+            int index = Arrays.binarySearch(targetIds, id);
+            if(index >= 0 && !covered[index]) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the groups that can be used
+     * @return The groups that can be used
+     * @since 1.4.0
+     */
+    public Group[] getGroups() {
+        return groups.clone();
+    }
+
+}
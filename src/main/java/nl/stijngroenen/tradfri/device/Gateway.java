@@ -17,6 +17,9 @@
 package nl.stijngroenen.tradfri.device;
 
 import nl.stijngroenen.tradfri.device.event.EventHandler;
+import nl.stijngroenen.tradfri.device.event.EventPublisher;
+import nl.stijngroenen.tradfri.device.event.GatewayEvent;
+import nl.stijngroenen.tradfri.device.event.HandlerRegistry;
 import nl.stijngroenen.tradfri.payload.AuthenticateRequest;
 import nl.stijngroenen.tradfri.payload.AuthenticateResponse;
 import nl.stijngroenen.tradfri.payload.DeviceResponse;
@@ -24,17 +27,26 @@ import nl.stijngroenen.tradfri.payload.GroupResponse;
 import nl.stijngroenen.tradfri.util.ApiEndpoint;
 import nl.stijngroenen.tradfri.util.CoapClient;
 import nl.stijngroenen.tradfri.util.Credentials;
+import nl.stijngroenen.tradfri.util.DispatchQueue;
+import nl.stijngroenen.tradfri.util.ObserveWatchdog;
+import nl.stijngroenen.tradfri.util.RateBudget;
 import org.apache.commons.lang3.RandomStringUtils;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The class that is used to communicate with the IKEA TRÅDFRI gateway
  * @author Stijn Groenen
- * @version 1.2.0
+ * @version 1.4.0
  */
-public class Gateway {
+public class Gateway implements Closeable {
 
     /**
      * A CoAP client that can be used to communicate with the IKEA TRÅDFRI gateway
@@ -46,10 +58,35 @@ public class Gateway {
      */
     private GatewayObserver observer;
 
+    /**
+     * The engine that plays light effects (null if it is not created yet)
+     */
+    private EffectEngine effectEngine;
+
+    /**
+     * The planner that turns curves into transitions of lights (null if it is not created yet)
+     */
+    private TransitionPlanner transitionPlanner;
+
+    /**
+     * The journal that records the state changes of the lights and plugs that are fetched from the gateway (null if they are not recorded)
+     */
+    private volatile StateJournal journal;
+
+    /**
+     * The poller that polls devices that observe does not keep up to date (null if it is not created yet)
+     */
+    private AdaptivePoller poller;
+
     /**
      * The event handlers registered for the device
      */
-    private List<EventHandler> eventHandlers;
+    private HandlerRegistry<EventHandler<?>> eventHandlers;
+
+    /**
+     * The event bus that delivers the events of all devices registered to the IKEA TRÅDFRI gateway
+     */
+    private EventBus eventBus;
 
     /**
      * Construct the Gateway class
@@ -59,7 +96,8 @@ public class Gateway {
     public Gateway(String ip) {
         ApiEndpoint.setGatewayIp(ip);
         coapClient = new CoapClient();
-        eventHandlers = new ArrayList<>();
+        eventHandlers = new HandlerRegistry<>(new EventHandler<?>[0]);
+        eventBus = new EventBus(this);
     }
 
     /**
@@ -138,6 +176,64 @@ public class Gateway {
         coapClient.setTimeout(timeout);
     }
 
+    /**
+     * Check if writes that request the state a device is already known to be in are completed without sending them
+     * @return True if write suppression is enabled, false if not
+     * @since 1.4.0
+     */
+    public boolean isWriteSuppression() {
+        return coapClient.isWriteSuppression();
+    }
+
+    /**
+     * Enable or disable the suppression of writes that request the state a device is already known to be in<br>
+     * A write is only suppressed if the device is observed, its observe relation is not stale, and every requested field already has the requested value.
+     * For a group, every light and plug in the group has to meet these conditions.
+     * @param writeSuppression True to enable write suppression, false to disable it
+     * @since 1.4.0
+     */
+    public void setWriteSuppression(boolean writeSuppression) {
+        coapClient.setWriteSuppression(writeSuppression);
+    }
+
+    /**
+     * Get the number of writes that were completed without sending them
+     * @return The number of suppressed writes
+     * @since 1.4.0
+     */
+    public long getSuppressedWriteCount() {
+        return coapClient.getSuppressedWriteCount();
+    }
+
+    /**
+     * Get the number of writes that were replaced by a newer write before they were sent, for devices with write coalescing enabled
+     * @return The number of coalesced writes
+     * @since 1.4.0
+     */
+    public long getCoalescedWriteCount() {
+        return coapClient.getCoalescedWriteCount();
+    }
+
+    /**
+     * Get the queue that holds the notifications of the IKEA TRÅDFRI gateway until they are dispatched to the event handlers<br>
+     * The capacity, overflow policy and delay of the queue can be changed, and the queue exposes metrics like its depth and the number of discarded notifications
+     * @return The queue that holds the notifications of the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    public DispatchQueue getDispatchQueue() {
+        return coapClient.getDispatchQueue();
+    }
+
+    /**
+     * Get the watchdog that keeps the observe relations with the IKEA TRÅDFRI gateway alive<br>
+     * Relations that reported an error, or all relations when the gateway does not respond to a probe, are registered again with an exponential backoff
+     * @return The watchdog that keeps the observe relations alive
+     * @since 1.4.0
+     */
+    public ObserveWatchdog getObserveWatchdog() {
+        return coapClient.getObserveWatchdog();
+    }
+
     /**
      * Get the ids of the devices registered to the IKEA TRÅDFRI gateway
      * @return An array of the ids of the devices registered to the IKEA TRÅDFRI gateway
@@ -158,9 +254,13 @@ public class Gateway {
         if(response == null){
             return null;
         }else if(response.getLightProperties() != null && response.getLightProperties().length > 0){
-            return new Light(response.getName(), response.getCreationDate(), response.getInstanceId(), response.getDeviceInfo(), response.getLightProperties()[0], coapClient);
+            Light light = new Light(response.getName(), response.getCreationDate(), response.getInstanceId(), response.getDeviceInfo(), response.getLightProperties()[0], coapClient);
+            light.setJournal(journal);
+            return light;
         }else if(response.getPlugProperties() != null && response.getPlugProperties().length > 0){
-            return new Plug(response.getName(), response.getCreationDate(), response.getInstanceId(), response.getDeviceInfo(), response.getPlugProperties()[0], coapClient);
+            Plug plug = new Plug(response.getName(), response.getCreationDate(), response.getInstanceId(), response.getDeviceInfo(), response.getPlugProperties()[0], coapClient);
+            plug.setJournal(journal);
+            return plug;
         }else if(response.getDeviceInfo().getModelName().equals("TRADFRI remote control")){
             return new Remote(response.getName(), response.getCreationDate(), response.getInstanceId(), response.getDeviceInfo(), coapClient);
         }else if(response.getDeviceInfo().getModelName().equals("TRADFRI motion sensor")){
@@ -206,28 +306,197 @@ public class Gateway {
         ArrayList<Group> groupList = new ArrayList<>();
         int[] groupIds = getGroupIds();
         if(groupIds == null) return null;
+        Map<Integer, Device> observedDevices = getObservedDeviceMap();
         for(int groupId: groupIds){
-            Group group = getGroup(groupId);
+            Group group = getGroup(groupId, observedDevices);
             groupList.add(group);
         }
         return groupList.toArray(new Group[groupList.size()]);
     }
 
     /**
-     * Get a group registered to the IKEA TRÅDFRI gateway
+     * Get a group registered to the IKEA TRÅDFRI gateway<br>
+     * Members that are known by the observer of the IKEA TRÅDFRI gateway are the same instances as the devices of the observer, so the group shares their observed state
      * @param groupId The id of a group registered to the IKEA TRÅDFRI gateway
      * @return The group with the provided id
      * @since 1.3.0
      */
     public Group getGroup(int groupId) {
+        return getGroup(groupId, getObservedDeviceMap());
+    }
+
+    /**
+     * Get a group registered to the IKEA TRÅDFRI gateway, using the observed devices for its members where possible
+     * @param groupId The id of a group registered to the IKEA TRÅDFRI gateway
+     * @param observedDevices The devices known by the observer of the IKEA TRÅDFRI gateway, by instance id
+     * @return The group with the provided id (null if it could not be fetched)
+     * @since 1.4.0
+     */
+    private Group getGroup(int groupId, Map<Integer, Device> observedDevices) {
         List<Device> devices = new ArrayList<>();
         GroupResponse response = coapClient.get(ApiEndpoint.getUri(ApiEndpoint.GROUPS, String.valueOf(groupId)), GroupResponse.class);
+        if(response == null) return null;
         for (Integer id : response.getDeviceIds()) {
-            devices.add(getDevice(id));
+            Device device = observedDevices.get(id);
+            devices.add(device != null ? device : getDevice(id));
         }
         return new Group(response.getName(), response.getInstanceId(), response.getCreationDate(), devices, response.getGroupProperties(), coapClient);
     }
 
+    /**
+     * Get the maximum number of requests that bulk operations have in flight at the same time
+     * @return The maximum number of requests that bulk operations have in flight at the same time
+     * @since 1.4.0
+     */
+    public int getParallelism() {
+        return coapClient.getParallelism();
+    }
+
+    /**
+     * Change the maximum number of requests that bulk operations have in flight at the same time<br>
+     * <i>Note: This also changes the number of threads of the default executor, if it is not created yet</i>
+     * @param parallelism The new maximum number of requests that bulk operations have in flight at the same time
+     * @since 1.4.0
+     */
+    public void setParallelism(int parallelism) {
+        coapClient.setParallelism(parallelism);
+    }
+
+    /**
+     * Apply a change to multiple lights and plugs, and wait until every device is handled
+     * @param devices The devices to update
+     * @param change The change to apply to the devices
+     * @return The outcome for each device
+     * @since 1.4.0
+     */
+    public BulkResult applyAll(Collection<? extends Device> devices, GroupProperties change) {
+        return applyAllAsync(devices, change).await();
+    }
+
+    /**
+     * Apply a change to multiple lights and plugs, and wait until every device is handled or the timeout has passed
+     * @param devices The devices to update
+     * @param change The change to apply to the devices
+     * @param timeout The time after which devices that are not updated yet are skipped and updates in flight are reported as timed out (in milliseconds)
+     * @return The outcome for each device
+     * @since 1.4.0
+     */
+    public BulkResult applyAll(Collection<? extends Device> devices, GroupProperties change, long timeout) {
+        return applyAllAsync(devices, change, timeout).await();
+    }
+
+    /**
+     * Apply a change to multiple lights and plugs on the executor of the gateway, with at most {@link #getParallelism()} updates in flight at the same time<br>
+     * At most one thread less than the parallelism is taken from the executor, so the other tasks of the gateway are not starved; a thread that waits for the operation makes up for it
+     * @param devices The devices to update
+     * @param change The change to apply to the devices
+     * @return The operation, which can be used to wait for the result or to cancel the remaining updates
+     * @since 1.4.0
+     */
+    public BulkOperation applyAllAsync(Collection<? extends Device> devices, GroupProperties change) {
+        return startBulkOperation(devices, change, null);
+    }
+
+    /**
+     * Apply a change to multiple lights and plugs on the executor of the gateway, with at most {@link #getParallelism()} updates in flight at the same time<br>
+     * At most one thread less than the parallelism is taken from the executor, so the other tasks of the gateway are not starved; a thread that waits for the operation makes up for it
+     * @param devices The devices to update
+     * @param change The change to apply to the devices
+     * @param timeout The time after which devices that are not updated yet are skipped (in milliseconds)
+     * @return The operation, which can be used to wait for the result or to cancel the remaining updates
+     * @since 1.4.0
+     */
+    public BulkOperation applyAllAsync(Collection<? extends Device> devices, GroupProperties change, long timeout) {
+        if(timeout <= 0) throw new IllegalArgumentException("The timeout must be positive");
+        return startBulkOperation(devices, change, timeout);
+    }
+
+    /**
+     * Start a bulk operation
+     * @param devices The devices to update
+     * @param change The change to apply to the devices
+     * @param timeout The time after which devices that are not updated yet are skipped (in milliseconds), or null if the operation has no deadline
+     * @return The operation
+     * @since 1.4.0
+     */
+    private BulkOperation startBulkOperation(Collection<? extends Device> devices, GroupProperties change, Long timeout) {
+        if(change == null) throw new IllegalArgumentException("The change must not be null");
+        BulkOperation operation = new BulkOperation(devices.toArray(new Device[0]), change, timeout);
+        operation.start(coapClient.getExecutor(), coapClient.getParallelism());
+        return operation;
+    }
+
+    /**
+     * Get the engine that plays light effects on the lights of the IKEA TRÅDFRI gateway
+     * @return The effect engine of the gateway
+     * @since 1.4.0
+     */
+    public synchronized EffectEngine getEffectEngine() {
+        if(effectEngine == null) effectEngine = new EffectEngine(coapClient);
+        return effectEngine;
+    }
+
+    /**
+     * Get the planner that approximates curves of the state of lights with transitions of the lights of the IKEA TRÅDFRI gateway
+     * @return The transition planner of the gateway
+     * @since 1.4.0
+     */
+    public synchronized TransitionPlanner getTransitionPlanner() {
+        if(transitionPlanner == null) transitionPlanner = new TransitionPlanner(coapClient);
+        return transitionPlanner;
+    }
+
+    /**
+     * Get the journal that records the state changes of the lights and plugs that are fetched from the IKEA TRÅDFRI gateway
+     * @return The journal of the gateway (null if the state changes are not recorded)
+     * @since 1.4.0
+     */
+    public StateJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Set the journal that records the state changes of the lights and plugs that are fetched from the IKEA TRÅDFRI gateway<br>
+     * <i>Note: Only lights and plugs that are fetched after the journal is set are recorded, use {@link StateJournal#attach(Device)} for devices that were fetched before</i>
+     * @param journal The journal that records the state changes (null to stop recording the state changes of devices that are fetched later on)
+     * @since 1.4.0
+     */
+    public void setJournal(StateJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Get the poller that polls the devices that observe does not keep up to date, like sleeping remotes and motion sensors
+     * @return The adaptive poller of the gateway
+     * @since 1.4.0
+     */
+    public synchronized AdaptivePoller getPoller() {
+        if(poller == null) poller = new AdaptivePoller(coapClient);
+        return poller;
+    }
+
+    /**
+     * Get the request rate of the IKEA TRÅDFRI gateway that is shared between interactive requests and background requests like polling
+     * @return The rate budget of the gateway
+     * @since 1.4.0
+     */
+    public RateBudget getRateBudget() {
+        return coapClient.getRateBudget();
+    }
+
+    /**
+     * Get a planner that applies a change to multiple lights and plugs using the groups registered to the IKEA TRÅDFRI gateway where possible<br>
+     * The groups are fetched once, so the planner can be reused for multiple changes until the groups change.
+     * Their members are mapped to the devices known by the observer of the IKEA TRÅDFRI gateway, so members that are not targeted can only be skipped if their state is observed
+     * @return A planner for the groups registered to the IKEA TRÅDFRI gateway (null if the groups could not be fetched)
+     * @since 1.4.0
+     */
+    public FanOutPlanner getFanOutPlanner() {
+        Group[] groups = getGroups();
+        if(groups == null) return null;
+        return new FanOutPlanner(Arrays.asList(groups), getObservedDevices());
+    }
+
     /**
      * Enable observe to automagically detect changes to the device
      * @return True if successfully enabled observe, false if not
@@ -250,10 +519,20 @@ public class Gateway {
 
     /**
      * Get a list of event handlers for the IKEA TRÅDFRI gateway
-     * @return A list of event handlers for the IKEA TRÅDFRI gateway
+     * @return An unmodifiable snapshot of the event handlers for the IKEA TRÅDFRI gateway
      * @since 1.0.0
      */
+    @SuppressWarnings("rawtypes") // The raw element type is kept for compatibility with the callers of version 1.3.0
     public List<EventHandler> getEventHandlers(){
+        return Collections.unmodifiableList(eventHandlers.asList());
+    }
+
+    /**
+     * Get the registry of event handlers for the IKEA TRÅDFRI gateway
+     * @return The registry of event handlers for the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    HandlerRegistry<EventHandler<?>> getEventHandlerRegistry(){
         return eventHandlers;
     }
 
@@ -262,7 +541,7 @@ public class Gateway {
      * @param eventHandler The event handler to add to the IKEA TRÅDFRI gateway
      *                     @since 1.0.0
      */
-    public void addEventHandler(EventHandler eventHandler){
+    public void addEventHandler(EventHandler<?> eventHandler){
         this.eventHandlers.add(eventHandler);
     }
 
@@ -271,8 +550,76 @@ public class Gateway {
      * @param eventHandler The event handler to remove from the IKEA TRÅDFRI gateway
      * @since 1.0.0
      */
-    public void removeEventHandler(EventHandler eventHandler){
+    public void removeEventHandler(EventHandler<?> eventHandler){
         this.eventHandlers.remove(eventHandler);
     }
 
+    /**
+     * Get a Reactive Streams publisher of the events of the IKEA TRÅDFRI gateway<br>
+     * Every subscriber registers its own event handler to the IKEA TRÅDFRI gateway. Observe has to be enabled for events to occur.
+     * @param eventType The class of the events to publish
+     * @param <T> The type of the events to publish
+     * @return A publisher of the events of the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    public <T extends GatewayEvent> EventPublisher<T> getEventPublisher(Class<T> eventType){
+        return new EventPublisher<>(eventType, this::addEventHandler, this::removeEventHandler);
+    }
+
+    /**
+     * Get the event bus that delivers the events of all devices registered to the IKEA TRÅDFRI gateway
+     * @return The event bus of the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    public EventBus getEventBus(){
+        return eventBus;
+    }
+
+    /**
+     * Close the connection with the IKEA TRÅDFRI gateway and stop the threads that run in the background<br>
+     * The event bus and observe are stopped, the effects are stopped, and the transition planner, the poller, the observe watchdog and the default executor of the CoAP client are shut down.
+     * The gateway can not be used after it is closed
+     * @since 1.4.0
+     */
+    @Override
+    public void close() {
+        eventBus.stop();
+        disableObserve();
+        EffectEngine effectEngine;
+        TransitionPlanner transitionPlanner;
+        AdaptivePoller poller;
+        synchronized (this) {
+            effectEngine = this.effectEngine;
+            transitionPlanner = this.transitionPlanner;
+            poller = this.poller;
+        }
+        if(effectEngine != null) effectEngine.stopAll();
+        if(transitionPlanner != null) transitionPlanner.close();
+        if(poller != null) poller.close();
+        coapClient.close();
+    }
+
+    /**
+     * Get the devices registered to the IKEA TRÅDFRI gateway, as known by the observer of the IKEA TRÅDFRI gateway
+     * @return The devices known by the observer (empty if observe is not enabled)
+     * @since 1.4.0
+     */
+    Collection<Device> getObservedDevices(){
+        if(observer == null) return Collections.emptyList();
+        return observer.getDevices();
+    }
+
+    /**
+     * Get the devices registered to the IKEA TRÅDFRI gateway, as known by the observer of the IKEA TRÅDFRI gateway, by instance id
+     * @return The devices known by the observer, by instance id (empty if observe is not enabled)
+     * @since 1.4.0
+     */
+    Map<Integer, Device> getObservedDeviceMap(){
+        Map<Integer, Device> devices = new HashMap<>();
+        for(Device device: getObservedDevices()){
+            if(device.getInstanceId() != null) devices.put(device.getInstanceId(), device);
+        }
+        return devices;
+    }
+
 }
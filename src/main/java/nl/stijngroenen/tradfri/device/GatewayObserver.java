@@ -22,16 +22,22 @@ import nl.stijngroenen.tradfri.device.event.DeviceAddedEvent;
 import nl.stijngroenen.tradfri.device.event.DeviceRemovedEvent;
 import nl.stijngroenen.tradfri.device.event.EventHandler;
 import nl.stijngroenen.tradfri.device.event.GatewayEvent;
+import nl.stijngroenen.tradfri.device.event.HandlerRegistry;
 import nl.stijngroenen.tradfri.util.ApiEndpoint;
 import nl.stijngroenen.tradfri.util.CoapClient;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * The class that observes an IKEA TRÅDFRI gateway to automagically detect changes
+ * The class that observes an IKEA TRÅDFRI gateway to automagically detect changes<br>
+ * Added devices are fetched concurrently by the executor of the CoAP client, and a {@link DeviceAddedEvent} is delivered as soon as a device is fetched
  * @author Stijn Groenen
- * @version 1.0.0
+ * @version 1.4.0
  */
 public class GatewayObserver extends Observer {
 
@@ -41,9 +47,19 @@ public class GatewayObserver extends Observer {
     private Gateway gateway;
 
     /**
-     * A cache of the devices registered to the IKEA TRÅDFRI gateway
+     * A CoAP client that can be used to communicate with the IKEA TRÅDFRI gateway
      */
-    private HashMap<Integer, Device> devices;
+    private CoapClient coapClient;
+
+    /**
+     * The sorted ids of the devices registered to the IKEA TRÅDFRI gateway
+     */
+    private int[] deviceIds;
+
+    /**
+     * A cache of the devices registered to the IKEA TRÅDFRI gateway, in the order of their ids (null while a device is being fetched)
+     */
+    private Device[] devices;
 
     /**
      * An object mapper used for mapping JSON responses from the IKEA TRÅDFRI gateway to Java classes
@@ -59,6 +75,7 @@ public class GatewayObserver extends Observer {
     public GatewayObserver(Gateway gateway, CoapClient coapClient) {
         super(ApiEndpoint.getUri(ApiEndpoint.DEVICES), coapClient);
         this.gateway = gateway;
+        this.coapClient = coapClient;
         this.objectMapper = new ObjectMapper();
     }
 
@@ -70,56 +87,180 @@ public class GatewayObserver extends Observer {
     @Override
     public boolean start(){
         Device[] devices = gateway.getDevices();
-        this.devices = new HashMap<>();
-        for(Device device: devices){
-            this.devices.put(device.getInstanceId(), device);
+        int count = 0;
+        if(devices != null){
+            devices = devices.clone();
+            for(Device device: devices){
+                if(device != null) devices[count++] = device;
+            }
+            devices = Arrays.copyOf(devices, count);
+            Arrays.sort(devices, (first, second) -> Integer.compare(first.getInstanceId(), second.getInstanceId()));
+        }else{
+            devices = new Device[0];
+        }
+        int[] deviceIds = new int[devices.length];
+        for(int i = 0; i < devices.length; i++){
+            deviceIds[i] = devices[i].getInstanceId();
+        }
+        synchronized (this) {
+            this.deviceIds = deviceIds;
+            this.devices = devices;
         }
         return super.start();
     }
 
     /**
-     * Handles a new response from the CoAP client and calls the appropriate event handlers for the IKEA TRÅDFRI gateway
+     * Handles a new response from the CoAP client and calls the appropriate event handlers for the IKEA TRÅDFRI gateway<br>
+     * The old and new device ids are compared as sorted arrays. Removed devices are reported immediately, added devices are reported when they are fetched.
      * @param payload The payload of the response to the CoAP request
      * @since 1.0.0
      */
     @Override
     public void callEventHandlers(String payload) {
+        callEventHandlers(payload, false);
+    }
+
+    /**
+     * Handles a new response from the CoAP client and calls the appropriate event handlers for the IKEA TRÅDFRI gateway<br>
+     * The general {@link GatewayEvent} is not delivered for the initial response of an observe relation that the watchdog registered again if no devices were added or removed.
+     * The observe relations of removed devices are cancelled, including the relations of other instances of those devices.
+     * @param payload The payload of the response to the CoAP request
+     * @param reregistered True if the response is the first response since the watchdog registered the observe relation again, false if not
+     * @since 1.4.0
+     */
+    @Override
+    protected void callEventHandlers(String payload, boolean reregistered) {
+        int[] newDeviceIds;
         try {
-            int[] deviceIds = objectMapper.readValue(payload, int[].class);
-            ArrayList<GatewayEvent> events = new ArrayList<>();
-            ArrayList<EventHandler> called = new ArrayList<>();
-            events.add(new GatewayEvent(gateway));
-            ArrayList<Integer> added = new ArrayList<>();
-            HashMap<Integer, Device> removed = (HashMap<Integer, Device>) devices.clone();
-            for (int deviceId : deviceIds) {
-                if (devices.containsKey(deviceId)) {
-                    removed.remove(deviceId);
-                } else {
-                    added.add(deviceId);
+            newDeviceIds = objectMapper.readValue(payload, int[].class);
+        } catch (JsonProcessingException e) {
+            return;
+        }
+        Arrays.sort(newDeviceIds);
+        int[] addedDeviceIds = new int[newDeviceIds.length];
+        int addedCount = 0;
+        int[] removedDeviceIds;
+        int removedCount = 0;
+        ArrayList<Device> removed = new ArrayList<>();
+        synchronized (this) {
+            if(deviceIds == null) return;
+            removedDeviceIds = new int[deviceIds.length];
+            Device[] newDevices = new Device[newDeviceIds.length];
+            int oldIndex = 0;
+            int newIndex = 0;
+            while (oldIndex < deviceIds.length || newIndex < newDeviceIds.length) {
+                if(newIndex >= newDeviceIds.length || (oldIndex < deviceIds.length && deviceIds[oldIndex] < newDeviceIds[newIndex])){
+                    if(devices[oldIndex] != null) removed.add(devices[oldIndex]);
+                    removedDeviceIds[removedCount++] = deviceIds[oldIndex];
+                    oldIndex++;
+                }else if(oldIndex >= deviceIds.length || newDeviceIds[newIndex] < deviceIds[oldIndex]){
+                    if(newIndex == 0 || newDeviceIds[newIndex] != newDeviceIds[newIndex - 1]) addedDeviceIds[addedCount++] = newDeviceIds[newIndex];
+                    newIndex++;
+                }else{
+                    newDevices[newIndex] = devices[oldIndex];
+                    oldIndex++;
+                    newIndex++;
                 }
             }
-            for (Integer addedDeviceId : added) {
-                Device device = gateway.getDevice(addedDeviceId);
-                devices.put(addedDeviceId, device);
-                events.add(new DeviceAddedEvent(gateway, device));
-            }
-            for (Integer removedDeviceId : removed.keySet()) {
-                Device device = devices.get(removedDeviceId);
-                devices.remove(removedDeviceId);
-                events.add(new DeviceRemovedEvent(gateway, device));
+            deviceIds = newDeviceIds;
+            devices = newDevices;
+        }
+        if(reregistered && addedCount == 0 && removedCount == 0) return;
+        EventBus eventBus = gateway.getEventBus();
+        callEventHandlers(new GatewayEvent(gateway), null);
+        for (Device device : removed) {
+            eventBus.detach(device);
+            callEventHandlers(new DeviceRemovedEvent(gateway, device), device);
+        }
+        for (int i = 0; i < removedCount; i++) {
+            coapClient.getObserveWatchdog().cancelAll(ApiEndpoint.getUri(ApiEndpoint.DEVICES, String.valueOf(removedDeviceIds[i])));
+        }
+        for (int i = 0; i < addedCount; i++) {
+            int deviceId = addedDeviceIds[i];
+            try {
+                // A fetch that fails is handled like a device that could not be fetched, so it is fetched again on the next notification
+                CompletableFuture.supplyAsync(() -> gateway.getDevice(deviceId), coapClient.getExecutor())
+                        .whenComplete((device, error) -> deviceFetched(deviceId, error == null ? device : null));
+            } catch (RejectedExecutionException e) {
+                deviceFetched(deviceId, null);
             }
-            for (EventHandler eventHandler : gateway.getEventHandlers()) {
-                for (GatewayEvent event : events) {
-                    if (eventHandler.getEventType().isAssignableFrom(event.getClass()) && !called.contains(eventHandler)) {
-                        eventHandler.handle(event);
-                        called.add(eventHandler);
-                    }
-                }
+        }
+    }
+
+    /**
+     * Store a fetched device and report that it is added
+     * @param deviceId The id of the fetched device
+     * @param device The fetched device (null if it could not be fetched, or if fetching it failed)
+     * @since 1.4.0
+     */
+    private void deviceFetched(int deviceId, Device device) {
+        synchronized (this) {
+            int index = Arrays.binarySearch(deviceIds, deviceId);
+            if(index < 0 || devices[index] != null) return;
+            if(device == null){
+                // Forget the device, so it is fetched again on the next notification
+                int[] newDeviceIds = new int[deviceIds.length - 1];
+                Device[] newDevices = new Device[devices.length - 1];
+                System.arraycopy(deviceIds, 0, newDeviceIds, 0, index);
+                System.arraycopy(deviceIds, index + 1, newDeviceIds, index, newDeviceIds.length - index);
+                System.arraycopy(devices, 0, newDevices, 0, index);
+                System.arraycopy(devices, index + 1, newDevices, index, newDevices.length - index);
+                deviceIds = newDeviceIds;
+                devices = newDevices;
+                return;
             }
-        } catch (JsonProcessingException ignored) {
+            devices[index] = device;
         }
+        gateway.getEventBus().attach(device);
+        callEventHandlers(new DeviceAddedEvent(gateway, device), device);
     }
 
+    /**
+     * Call the event handlers of the IKEA TRÅDFRI gateway and the event bus for an event<br>
+     * The general {@link GatewayEvent} is delivered to the event handlers of its type once per notification,
+     * and every {@link DeviceAddedEvent} and {@link DeviceRemovedEvent} only to the event handlers of that specific type
+     * @param event The event that occurred
+     * @param device The device for which the event occurred (null if it is the general event)
+     * @since 1.4.0
+     */
+    private void callEventHandlers(GatewayEvent event, Device device) {
+        EventHandler<?>[] eventHandlers = gateway.getEventHandlerRegistry().snapshot();
+        for (EventHandler<?> eventHandler : eventHandlers) {
+            if (handles(eventHandler, event, device)) eventHandler.offer(event);
+        }
+        for (EventBus.Subscription subscription : gateway.getEventBus().getSubscriptions()) {
+            EventHandler<?> eventHandler = subscription.getEventHandler();
+            if (HandlerRegistry.containsIdentical(eventHandlers, eventHandler)) continue;
+            if (handles(eventHandler, event, device) && (device == null || subscription.accepts(device))) eventHandler.offer(event);
+        }
+    }
+
+    /**
+     * Check if an event handler handles an event
+     * @param eventHandler The event handler
+     * @param event The event
+     * @param device The device for which the event occurred (null if it is the general event)
+     * @return True if the event handler handles the event, false if not
+     * @since 1.4.0
+     */
+    private boolean handles(EventHandler<?> eventHandler, GatewayEvent event, Device device) {
+        Class<?> eventType = eventHandler.getEventType();
+        if (!eventType.isAssignableFrom(event.getClass())) return false;
+        return device == null || !eventType.isAssignableFrom(GatewayEvent.class);
+    }
 
+    /**
+     * Get the devices registered to the IKEA TRÅDFRI gateway, as known by the observer
+     * @return The devices registered to the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    synchronized Collection<Device> getDevices() {
+        if (devices == null) return Collections.emptyList();
+        ArrayList<Device> list = new ArrayList<>(devices.length);
+        for (Device device : devices) {
+            if (device != null) list.add(device);
+        }
+        return list;
+    }
 
 }
@@ -49,6 +49,16 @@ public class Group {
      */
     private final CoapClient coapClient;
 
+    /**
+     * The number of successful writes to the group, which is part of the version of the group
+     */
+    private long version;
+
+    /**
+     * The lock that is held while a write to the group is sent, so conditional writes can not interleave with other writes
+     */
+    private final Object writeLock = new Object();
+
     /**
      * Construct the Group class
      *
@@ -139,7 +149,7 @@ public class Group {
      * @param on The new on / off state for the group (true for on, false for off)
      * @since 1.3.0
      */
-    public void updateOn(Boolean on) {
+    public synchronized void updateOn(Boolean on) {
         newProperties.setOn(on);
     }
 
@@ -175,7 +185,7 @@ public class Group {
      * @param brightness The new brightness for the group
      * @since 1.3.0
      */
-    public void updateBrightness(Integer brightness) {
+    public synchronized void updateBrightness(Integer brightness) {
         newProperties.setBrightness(brightness);
     }
 
@@ -198,7 +208,7 @@ public class Group {
      * @param colourHex The new colour for the group
      * @since 1.3.0
      */
-    public void updateColourHex(String colourHex) {
+    public synchronized void updateColourHex(String colourHex) {
         newProperties.setColourHex(colourHex);
     }
 
@@ -242,7 +252,7 @@ public class Group {
      * @param transitionTime The new transition time for updating the group
      * @since 1.0.0
      */
-    public void updateTransitionTime(Integer transitionTime) {
+    public synchronized void updateTransitionTime(Integer transitionTime) {
         newProperties.setTransitionTime(transitionTime);
     }
 
@@ -256,6 +266,17 @@ public class Group {
         return devices;
     }
 
+    /**
+     * Start a transaction that collects changes to the group and applies them in a single update<br>
+     * Unlike the update queue of the group, every transaction has its own changes, so transactions can be built by multiple threads at the same time
+     *
+     * @return A new transaction for the group
+     * @since 1.4.0
+     */
+    public GroupTransaction edit() {
+        return new GroupTransaction(this, coapClient);
+    }
+
     /**
      * Apply updates to the group
      *
@@ -263,10 +284,118 @@ public class Group {
      * @return True if successfully updated the group, false if not
      * @since 1.3.0
      */
-    private boolean applyUpdate(GroupProperties newProperties) {
-        GroupRequest request = new GroupRequest(newProperties);
-        String response = coapClient.put(ApiEndpoint.getUri(ApiEndpoint.GROUPS, String.valueOf(getInstanceId())), request, String.class);
-        return response != null;
+    boolean applyUpdate(GroupProperties newProperties) {
+        synchronized (writeLock) {
+            if (coapClient.isWriteSuppression() && isSatisfied(newProperties)) {
+                coapClient.countSuppressedWrite();
+                return true;
+            }
+            GroupRequest request = new GroupRequest(newProperties);
+            String response = coapClient.put(ApiEndpoint.getUri(ApiEndpoint.GROUPS, String.valueOf(getInstanceId())), request, String.class);
+            if (response == null) return false;
+            synchronized (this) {
+                version++;
+            }
+            for (Device device : devices) {
+                if (device != null) device.groupWritten(newProperties);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Check if every light and plug in the group is known to be in the requested state already<br>
+     * The group itself is not observed, so the state of its members is used
+     *
+     * @param newProperties The requested properties
+     * @return True if the group contains lights or plugs, and the state of each of them is fresh and has the requested values, false if not
+     * @since 1.4.0
+     */
+    boolean isSatisfied(GroupProperties newProperties) {
+        if (newProperties.getOn() == null && newProperties.getBrightness() == null && newProperties.getColourHex() == null) return false;
+        boolean satisfied = false;
+        for (Device device : devices) {
+            if (device == null) continue;
+            if (device.isLight()) {
+                LightProperties lightProperties = new LightProperties();
+                lightProperties.setOn(newProperties.getOn());
+                lightProperties.setBrightness(newProperties.getBrightness());
+                lightProperties.setColourHex(newProperties.getColourHex());
+                if (!device.toLight().isSatisfied(lightProperties)) return false;
+                satisfied = true;
+            } else if (device.isPlug()) {
+                if (newProperties.getOn() == null) continue;
+                PlugProperties plugProperties = new PlugProperties();
+                plugProperties.setOn(newProperties.getOn());
+                if (!device.toPlug().isSatisfied(plugProperties)) return false;
+                satisfied = true;
+            }
+        }
+        return satisfied;
+    }
+
+    /**
+     * Get the local version of the state of the group<br>
+     * The group itself is not observed, so the version is derived from the versions of its members: it is increased whenever a write to the group succeeds,
+     * and whenever the state of a member changes (for example because of an observe notification of an observed member).
+     * It can be passed to the conditional updates of the group
+     *
+     * @return The local version of the state of the group
+     * @since 1.4.0
+     */
+    public long getVersion() {
+        long version;
+        synchronized (this) {
+            version = this.version;
+        }
+        for (Device device : devices) {
+            if (device != null) version += device.getVersion();
+        }
+        return version;
+    }
+
+    /**
+     * Apply updates to the group, but only if the state of the group is still at the expected version<br>
+     * Writes to the group are serialised, so no other write can change the state between the version check and the write
+     *
+     * @param expectedVersion The version of the state at which the update was decided (see {@link #getVersion()})
+     * @param newProperties   The new properties to apply to the group
+     * @return True if successfully updated the group, false if the state is no longer at the expected version or the update failed
+     * @since 1.4.0
+     */
+    public boolean compareAndSet(long expectedVersion, GroupProperties newProperties) {
+        synchronized (writeLock) {
+            if (getVersion() != expectedVersion) return false;
+            return applyUpdate(newProperties);
+        }
+    }
+
+    /**
+     * Set the on / off state of the group, but only if the state of the group is still at the expected version
+     *
+     * @param expectedVersion The version of the state at which the update was decided (see {@link #getVersion()})
+     * @param on              The new on / off state for the group (true for on, false for off)
+     * @return True if successfully updated the on / off state of the group, false if the state is no longer at the expected version or the update failed
+     * @since 1.4.0
+     */
+    public boolean setOnIfVersion(long expectedVersion, Boolean on) {
+        GroupProperties newProperties = new GroupProperties();
+        newProperties.setOn(on);
+        return compareAndSet(expectedVersion, newProperties);
+    }
+
+    /**
+     * Set the brightness of the group, but only if the state of the group is still at the expected version
+     *
+     * @param expectedVersion The version of the state at which the update was decided (see {@link #getVersion()})
+     * @param brightness      The new brightness for the group
+     * @return True if successfully updated the brightness of the group, false if the state is no longer at the expected version or the update failed
+     * @since 1.4.0
+     */
+    public boolean setBrightnessIfVersion(long expectedVersion, Integer brightness) {
+        GroupProperties newProperties = new GroupProperties();
+        newProperties.setBrightness(brightness);
+        return compareAndSet(expectedVersion, newProperties);
     }
 
     /**
@@ -276,9 +405,12 @@ public class Group {
      * @since 1.3.0
      */
     public boolean applyUpdates() {
-        boolean success = applyUpdate(newProperties);
-        newProperties = new GroupProperties();
-        return success;
+        GroupProperties stagedProperties;
+        synchronized (this) {
+            stagedProperties = newProperties;
+            newProperties = new GroupProperties();
+        }
+        return applyUpdate(stagedProperties);
     }
 
     /**
@@ -289,7 +421,12 @@ public class Group {
      * @since 1.3.0
      */
     public boolean applyUpdates(Integer transitionTime) {
-        newProperties.setTransitionTime(transitionTime);
-        return applyUpdates();
+        GroupProperties stagedProperties;
+        synchronized (this) {
+            stagedProperties = newProperties;
+            stagedProperties.setTransitionTime(transitionTime);
+            newProperties = new GroupProperties();
+        }
+        return applyUpdate(stagedProperties);
     }
 }
@@ -0,0 +1,174 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The class that collects changes to an IKEA TRÅDFRI group and applies them in a single update<br>
+ * A transaction is meant to be built by a single thread, and can be applied once. After it is applied, it can no longer be changed.
+ * Every transaction has its own changes, so concurrent transactions for the same group do not mix.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class GroupTransaction {
+
+    /**
+     * The group to update
+     */
+    private final Group group;
+
+    /**
+     * A CoAP client that can be used to communicate with the group using the IKEA TRÅDFRI gateway
+     */
+    private final CoapClient coapClient;
+
+    /**
+     * The changes to apply to the group
+     */
+    private final GroupProperties properties;
+
+    /**
+     * The version of the state at which the changes have to be applied (null to apply them regardless of the version)
+     */
+    private Long expectedVersion;
+
+    /**
+     * Whether the transaction is applied
+     */
+    private boolean applied;
+
+    /**
+     * Construct the GroupTransaction class
+     * @param group The group to update
+     * @param coapClient A CoAP client that can be used to communicate with the group using the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    GroupTransaction(Group group, CoapClient coapClient) {
+        this.group = group;
+        this.coapClient = coapClient;
+        this.properties = new GroupProperties();
+    }
+
+    /**
+     * Change the on / off state of the group
+     * @param on The new on / off state for the group (true for on, false for off)
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public GroupTransaction on(Boolean on) {
+        checkNotApplied();
+        properties.setOn(on);
+        return this;
+    }
+
+    /**
+     * Change the brightness of the group
+     * @param brightness The new brightness for the group
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public GroupTransaction brightness(Integer brightness) {
+        checkNotApplied();
+        properties.setBrightness(brightness);
+        return this;
+    }
+
+    /**
+     * Change the colour of the group to a predefined hexadecimal colour
+     * @param colourHex The new colour for the group
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public GroupTransaction colourHex(String colourHex) {
+        checkNotApplied();
+        properties.setColourHex(colourHex);
+        return this;
+    }
+
+    /**
+     * Change the transition time for updating the group
+     * @param transitionTime The transition time for updating the group
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public GroupTransaction transition(Integer transitionTime) {
+        checkNotApplied();
+        properties.setTransitionTime(transitionTime);
+        return this;
+    }
+
+    /**
+     * Only apply the transaction if the state of the group is still at a version
+     * @param expectedVersion The version of the state at which the transaction was decided (see {@link Group#getVersion()})
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public GroupTransaction ifVersion(long expectedVersion) {
+        checkNotApplied();
+        this.expectedVersion = expectedVersion;
+        return this;
+    }
+
+    /**
+     * Apply the changes of the transaction to the group
+     * @return True if successfully updated the group, false if not (or if the state is no longer at the expected version)
+     * @throws IllegalStateException Thrown if the transaction is already applied
+     * @since 1.4.0
+     */
+    public boolean apply() {
+        checkNotApplied();
+        applied = true;
+        if(expectedVersion != null) return group.compareAndSet(expectedVersion, properties);
+        return group.applyUpdate(properties);
+    }
+
+    /**
+     * Apply the changes of the transaction to the group on the executor of the CoAP client
+     * @return A future that completes with true if successfully updated the group, or false if not
+     * @throws IllegalStateException Thrown if the transaction is already applied
+     * @since 1.4.0
+     */
+    public CompletableFuture<Boolean> applyAsync() {
+        checkNotApplied();
+        applied = true;
+        Long expectedVersion = this.expectedVersion;
+        return CompletableFuture.supplyAsync(() -> expectedVersion != null ? group.compareAndSet(expectedVersion, properties) : group.applyUpdate(properties),
+                coapClient.getExecutor());
+    }
+
+    /**
+     * Check if the transaction is applied
+     * @return True if the transaction is applied, false if not
+     * @since 1.4.0
+     */
+    public boolean isApplied() {
+        return applied;
+    }
+
+    /**
+     * Make sure the transaction is not applied yet
+     * @throws IllegalStateException Thrown if the transaction is already applied
+     * @since 1.4.0
+     */
+    private void checkNotApplied() {
+        if(applied) throw new IllegalStateException("The transaction is already applied");
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+/**
+ * The class that contains a series of states of an IKEA TRÅDFRI light or plug from a {@link HistoryStore}<br>
+ * The states are kept packed, and are only unpacked by the getters. The hexadecimal colour is not kept, but the X and Y values of the colour are.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class HistorySeries {
+
+    /**
+     * The time of every state (in milliseconds)
+     */
+    private final long[] times;
+
+    /**
+     * The values word of every state (see {@link LightState})
+     */
+    private final long[] values;
+
+    /**
+     * The colour word of every state (see {@link LightState})
+     */
+    private final long[] colours;
+
+    /**
+     * Construct the HistorySeries class
+     * @param times The time of every state (in milliseconds)
+     * @param values The values word of every state
+     * @param colours The colour word of every state
+     * @since 1.4.0
+     */
+    HistorySeries(long[] times, long[] values, long[] colours) {
+        this.times = times;
+        this.values = values;
+        this.colours = colours;
+    }
+
+    /**
+     * Get the number of states in the series
+     * @return The number of states in the series
+     * @since 1.4.0
+     */
+    public int size() {
+        return times.length;
+    }
+
+    /**
+     * Get the time of a state
+     * @param index The index of the state
+     * @return The time of the state (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Check if a state is known<br>
+     * A downsampled series contains unknown states for the buckets before the first recorded state
+     * @param index The index of the state
+     * @return True if the state is known, false if not
+     * @since 1.4.0
+     */
+    public boolean isKnown(int index) {
+        return (colours[index] & LightState.PRESENT) != 0;
+    }
+
+    /**
+     * Get the on / off state of a state
+     * @param index The index of the state
+     * @return The on / off state (null if it is not known)
+     * @since 1.4.0
+     */
+    public Boolean getOn(int index) {
+        return LightState.getOn(colours[index]);
+    }
+
+    /**
+     * Get the brightness of a state
+     * @param index The index of the state
+     * @return The brightness (null if it is not known)
+     * @since 1.4.0
+     */
+    public Integer getBrightness(int index) {
+        return LightState.getBrightness(values[index], colours[index]);
+    }
+
+    /**
+     * Get the hue of a state
+     * @param index The index of the state
+     * @return The hue (null if it is not known)
+     * @since 1.4.0
+     */
+    public Integer getHue(int index) {
+        return LightState.getHue(values[index], colours[index]);
+    }
+
+    /**
+     * Get the saturation of a state
+     * @param index The index of the state
+     * @return The saturation (null if it is not known)
+     * @since 1.4.0
+     */
+    public Integer getSaturation(int index) {
+        return LightState.getSaturation(values[index], colours[index]);
+    }
+
+    /**
+     * Get the X value of the colour of a state
+     * @param index The index of the state
+     * @return The X value of the colour (null if it is not known)
+     * @since 1.4.0
+     */
+    public Integer getColourX(int index) {
+        return LightState.getColourX(colours[index]);
+    }
+
+    /**
+     * Get the Y value of the colour of a state
+     * @param index The index of the state
+     * @return The Y value of the colour (null if it is not known)
+     * @since 1.4.0
+     */
+    public Integer getColourY(int index) {
+        return LightState.getColourY(colours[index]);
+    }
+
+    /**
+     * Get the colour temperature of a state
+     * @param index The index of the state
+     * @return The colour temperature (null if it is not known)
+     * @since 1.4.0
+     */
+    public Integer getColourTemperature(int index) {
+        return LightState.getColourTemperature(values[index], colours[index]);
+    }
+
+    /**
+     * Get a state as light properties
+     * @param index The index of the state
+     * @return The light properties of the state (null if the state is not known)
+     * @since 1.4.0
+     */
+    public LightProperties getProperties(int index) {
+        return LightState.unpack(values[index], colours[index], null);
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The class that records the history of the state of IKEA TRÅDFRI lights and plugs in memory<br>
+ * Every tracked device has a ring buffer of primitive arrays, which contains the time of every change and the state packed into two words (see {@link LightState}).
+ * The ring buffers share a memory budget, so every device keeps at most the same number of recent states, and the oldest states are replaced when a ring buffer is full.
+ * A ring buffer starts small and grows when it fills up, so tracking many devices does not allocate their full share up front, and the ring buffers never use more than the memory budget.
+ * The changes are recorded by the observer of the device, so the device has to be observed.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class HistoryStore {
+
+    /**
+     * The number of bytes of a single state (the time, the values word and the colour word)
+     */
+    private static final int ENTRY_SIZE = 24;
+
+    /**
+     * The number of states that is allocated for a device before its ring buffer grows
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * An empty array of times or words
+     */
+    private static final long[] NONE = new long[0];
+
+    /**
+     * The ring buffers of the tracked devices, by the instance id of the device
+     */
+    private final ConcurrentHashMap<Integer, Ring> rings;
+
+    /**
+     * The number of bytes that the ring buffers may use together
+     */
+    private long memoryBudget;
+
+    /**
+     * The maximum number of states per device, which is the share of the memory budget per device
+     */
+    private volatile int capacity;
+
+    /**
+     * The largest number of states that a ring buffer allocated since the last time the ring buffers were shrunk
+     */
+    private final AtomicInteger maxAllocated;
+
+    /**
+     * Construct the HistoryStore class
+     * @param memoryBudget The number of bytes that the recorded states may use together
+     * @since 1.4.0
+     */
+    public HistoryStore(long memoryBudget) {
+        if(memoryBudget < 0) throw new IllegalArgumentException("The memory budget must not be negative");
+        this.rings = new ConcurrentHashMap<>();
+        this.memoryBudget = memoryBudget;
+        this.maxAllocated = new AtomicInteger();
+        this.capacity = getCapacity();
+    }
+
+    /**
+     * Start recording the history of a light or plug, starting with its current state
+     * @param device The light or plug
+     * @since 1.4.0
+     */
+    public synchronized void track(Device device) {
+        if(device == null || device.getInstanceId() == null || !(device.isLight() || device.isPlug())) throw new IllegalArgumentException("Only lights and plugs can be tracked");
+        if(!rings.containsKey(device.getInstanceId())){
+            rings.put(device.getInstanceId(), new Ring());
+            resize();
+        }
+        device.setHistoryStore(this);
+        record(device, device.getConfirmedProperties());
+    }
+
+    /**
+     * Stop recording the history of a device, and discard its recorded states
+     * @param device The device
+     * @since 1.4.0
+     */
+    public synchronized void untrack(Device device) {
+        if(device.getHistoryStore() == this) device.setHistoryStore(null);
+        if(rings.remove(device.getInstanceId()) != null) resize();
+    }
+
+    /**
+     * Check if the history of a device is recorded
+     * @param device The device
+     * @return True if the history of the device is recorded, false if not
+     * @since 1.4.0
+     */
+    public boolean isTracked(Device device) {
+        return device.getInstanceId() != null && rings.containsKey(device.getInstanceId());
+    }
+
+    /**
+     * Get the number of bytes that the recorded states may use together
+     * @return The memory budget (in bytes)
+     * @since 1.4.0
+     */
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Change the number of bytes that the recorded states may use together, keeping the most recent states of every device
+     * @param memoryBudget The new memory budget (in bytes)
+     * @since 1.4.0
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        if(memoryBudget < 0) throw new IllegalArgumentException("The memory budget must not be negative");
+        this.memoryBudget = memoryBudget;
+        resize();
+    }
+
+    /**
+     * Get the maximum number of states that are kept per device
+     * @return The maximum number of states that are kept per device
+     * @since 1.4.0
+     */
+    public synchronized int getCapacity() {
+        long capacity = memoryBudget / ENTRY_SIZE / Math.max(1, rings.size());
+        return (int) Math.min(Integer.MAX_VALUE - 8, capacity);
+    }
+
+    /**
+     * Get the number of bytes that the ring buffers use, which is at most the memory budget
+     * @return The number of bytes that the ring buffers use
+     * @since 1.4.0
+     */
+    public synchronized long getMemoryUsage() {
+        long usage = 0;
+        for(Ring ring: rings.values()){
+            usage += (long) ring.getCapacity() * ENTRY_SIZE;
+        }
+        return usage;
+    }
+
+    /**
+     * Change the maximum number of states per device to the share of the memory budget per device<br>
+     * The ring buffers grow up to the new maximum when they fill up. They are only reallocated now if they are larger than the new maximum,
+     * so tracking devices one by one does not reallocate every ring buffer each time.
+     * @since 1.4.0
+     */
+    private void resize() {
+        int capacity = getCapacity();
+        this.capacity = capacity;
+        if(maxAllocated.get() <= capacity) return;
+        maxAllocated.set(0);
+        for(Ring ring: rings.values()){
+            maxAllocated.accumulateAndGet(ring.shrink(capacity), Math::max);
+        }
+    }
+
+    /**
+     * Record a state of a device
+     * @param device The device
+     * @param properties The state of the device
+     * @since 1.4.0
+     */
+    void record(Device device, DeviceProperties properties) {
+        Ring ring = rings.get(device.getInstanceId());
+        if(ring == null || properties == null) return;
+        LightProperties lightProperties;
+        if(properties instanceof LightProperties){
+            lightProperties = (LightProperties) properties;
+        }else if(properties instanceof PlugProperties){
+            lightProperties = new LightProperties();
+            lightProperties.setOn(((PlugProperties) properties).getOn());
+        }else{
+            return;
+        }
+        if(!LightState.fits(lightProperties)) return;
+        int allocated = ring.add(System.currentTimeMillis(), LightState.packValues(lightProperties), LightState.packColour(lightProperties), capacity);
+        if(allocated > maxAllocated.get()){
+            maxAllocated.accumulateAndGet(allocated, Math::max);
+            // The maximum may have been lowered while the ring buffer grew
+            int capacity = this.capacity;
+            if(allocated > capacity) ring.shrink(capacity);
+        }
+    }
+
+    /**
+     * Get the recorded states of a device within a time range
+     * @param device The device
+     * @param from The start of the time range (in milliseconds, inclusive)
+     * @param to The end of the time range (in milliseconds, inclusive)
+     * @return The recorded states within the time range, from the oldest to the most recent state
+     * @since 1.4.0
+     */
+    public HistorySeries query(Device device, long from, long to) {
+        Ring ring = device.getInstanceId() != null ? rings.get(device.getInstanceId()) : null;
+        if(ring == null || to < from) return new HistorySeries(NONE, NONE, NONE);
+        return ring.range(from, to);
+    }
+
+    /**
+     * Get the state of a device at the end of each of a number of equal buckets within a time range<br>
+     * The state at a point in time is the most recent state recorded at or before it, so a bucket without changes repeats the state of the bucket before it
+     * @param device The device
+     * @param from The start of the time range (in milliseconds)
+     * @param to The end of the time range (in milliseconds)
+     * @param buckets The number of buckets
+     * @return A series with a state for every bucket, at the time of the end of the bucket
+     * @since 1.4.0
+     */
+    public HistorySeries downsample(Device device, long from, long to, int buckets) {
+        if(buckets < 1) throw new IllegalArgumentException("The number of buckets must be at least 1");
+        if(to < from) throw new IllegalArgumentException("The end of the time range must not be before its start");
+        long[] times = new long[buckets];
+        for(int k = 0; k < buckets; k++){
+            times[k] = from + (long) (((double) to - from) * (k + 1) / buckets);
+        }
+        Ring ring = device.getInstanceId() != null ? rings.get(device.getInstanceId()) : null;
+        if(ring == null) return new HistorySeries(times, new long[buckets], new long[buckets]);
+        return ring.sample(times);
+    }
+
+    /**
+     * The class that contains the recorded states of a device
+     * @since 1.4.0
+     */
+    private static class Ring {
+
+        /**
+         * The time of every state (in milliseconds)
+         */
+        private long[] times = NONE;
+
+        /**
+         * The values word of every state
+         */
+        private long[] values = NONE;
+
+        /**
+         * The colour word of every state
+         */
+        private long[] colours = NONE;
+
+        /**
+         * The physical index of the oldest state
+         */
+        private int start;
+
+        /**
+         * The number of states
+         */
+        private int size;
+
+        /**
+         * Get the maximum number of states
+         * @return The maximum number of states
+         * @since 1.4.0
+         */
+        synchronized int getCapacity() {
+            return times.length;
+        }
+
+        /**
+         * Reduce the number of allocated states to a maximum, keeping the most recent states
+         * @param capacity The maximum number of states
+         * @return The number of allocated states
+         * @since 1.4.0
+         */
+        synchronized int shrink(int capacity) {
+            if(times.length > capacity) reallocate(capacity);
+            return times.length;
+        }
+
+        /**
+         * Change the number of allocated states, keeping the most recent states
+         * @param capacity The new number of allocated states
+         * @since 1.4.0
+         */
+        private void reallocate(int capacity) {
+            int count = Math.min(size, capacity);
+            long[] times = new long[capacity];
+            long[] values = new long[capacity];
+            long[] colours = new long[capacity];
+            for(int i = 0; i < count; i++){
+                int index = physical(size - count + i);
+                times[i] = this.times[index];
+                values[i] = this.values[index];
+                colours[i] = this.colours[index];
+            }
+            this.times = times;
+            this.values = values;
+            this.colours = colours;
+            this.start = 0;
+            this.size = count;
+        }
+
+        /**
+         * Add a state, growing the ring buffer if it is full and smaller than the maximum, or replacing the oldest state if not<br>
+         * The time never goes back, so the states stay ordered by time
+         * @param time The time of the state (in milliseconds)
+         * @param value The values word of the state
+         * @param colour The colour word of the state
+         * @param capacity The maximum number of states
+         * @return The number of allocated states
+         * @since 1.4.0
+         */
+        synchronized int add(long time, long value, long colour, int capacity) {
+            if(times.length > capacity){
+                reallocate(capacity);
+            }else if(size == times.length && times.length < capacity){
+                reallocate((int) Math.min(capacity, Math.max(INITIAL_CAPACITY, 2L * times.length)));
+            }
+            if(times.length == 0) return 0;
+            if(size > 0) time = Math.max(time, times[physical(size - 1)]);
+            int index;
+            if(size < times.length){
+                index = physical(size);
+                size++;
+            }else{
+                index = start;
+                start = (start + 1) % times.length;
+            }
+            times[index] = time;
+            values[index] = value;
+            colours[index] = colour;
+            return times.length;
+        }
+
+        /**
+         * Get the states within a time range
+         * @param from The start of the time range (in milliseconds, inclusive)
+         * @param to The end of the time range (in milliseconds, inclusive)
+         * @return The states within the time range
+         * @since 1.4.0
+         */
+        synchronized HistorySeries range(long from, long to) {
+            int first = from == Long.MIN_VALUE ? 0 : firstAfter(from - 1);
+            int end = firstAfter(to);
+            int count = Math.max(0, end - first);
+            long[] times = new long[count];
+            long[] values = new long[count];
+            long[] colours = new long[count];
+            for(int i = 0; i < count; i++){
+                int index = physical(first + i);
+                times[i] = this.times[index];
+                values[i] = this.values[index];
+                colours[i] = this.colours[index];
+            }
+            return new HistorySeries(times, values, colours);
+        }
+
+        /**
+         * Get the state at points in time
+         * @param times The points in time (in milliseconds)
+         * @return The most recent state at or before every point in time (unknown if there is none)
+         * @since 1.4.0
+         */
+        synchronized HistorySeries sample(long[] times) {
+            long[] values = new long[times.length];
+            long[] colours = new long[times.length];
+            for(int k = 0; k < times.length; k++){
+                int last = firstAfter(times[k]) - 1;
+                if(last < 0) continue;
+                values[k] = this.values[physical(last)];
+                colours[k] = this.colours[physical(last)];
+            }
+            return new HistorySeries(times, values, colours);
+        }
+
+        /**
+         * Find the first state after a point in time
+         * @param time The point in time (in milliseconds)
+         * @return The logical index of the first state with a time after the point in time (the number of states if there is none)
+         * @since 1.4.0
+         */
+        private int firstAfter(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if(times[physical(middle)] <= time){
+                    low = middle + 1;
+                }else{
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Get the physical index of a state
+         * @param logical The logical index of the state (0 for the oldest state)
+         * @return The physical index of the state
+         * @since 1.4.0
+         */
+        private int physical(int logical) {
+            return (start + logical) % times.length;
+        }
+    }
+
+}
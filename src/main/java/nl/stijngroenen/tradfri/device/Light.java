@@ -22,20 +22,58 @@ import nl.stijngroenen.tradfri.util.CoapClient;
 import nl.stijngroenen.tradfri.util.ColourRGB;
 import nl.stijngroenen.tradfri.util.ColourXY;
 
+import java.util.EnumSet;
+import java.util.Objects;
+
 /**
  * The class that represents an IKEA TRÅDFRI light
  * @author Stijn Groenen
- * @version 1.1.0
+ * @version 1.4.0
  */
 public class Light extends Device {
 
     /**
-     * The current properties of the light
+     * The brightness, hue, saturation and colour temperature of the light, packed by {@link LightState}
+     */
+    private long values;
+
+    /**
+     * The colour, the on / off state and the present fields of the light, packed by {@link LightState}
+     */
+    private long colour;
+
+    /**
+     * The colour of the light in hexadecimals
+     */
+    private String colourHex;
+
+    /**
+     * The properties of the light if they could not be packed (null if they are packed)
+     */
+    private LightProperties unpackedProperties;
+
+    /**
+     * The values that are written to the light but not confirmed by the IKEA TRÅDFRI gateway yet (null if there are none)
+     */
+    private LightProperties pendingProperties;
+
+    /**
+     * The change mask that contains the fields of which a written value is not confirmed yet
+     */
+    private int pendingFields;
+
+    /**
+     * The time of the last write that is not confirmed yet (in milliseconds since the epoch)
+     */
+    private long pendingSince;
+
+    /**
+     * The coalescer that replaces pending writes by newer writes of the same fields (null if write coalescing is disabled)
      */
-    private LightProperties properties;
+    private volatile WriteCoalescer<LightProperties> writeCoalescer;
 
     /**
-     * The new properties of the light in the update queue
+     * The new properties of the light in the update queue (null if the update queue is empty)
      */
     private LightProperties newProperties;
 
@@ -51,28 +89,165 @@ public class Light extends Device {
      */
     public Light(String name, Long creationDate, Integer instanceId, DeviceInfo deviceInfo, LightProperties properties, CoapClient coapClient){
         super(name, creationDate, instanceId, deviceInfo, coapClient);
-        this.properties = properties;
-        this.newProperties = new LightProperties();
+        setProperties(properties);
     }
 
     /**
-     * Get the properties of the light
+     * Get the properties of the light<br>
+     * The state of the light is stored in a packed form, so every call returns a new copy of the properties
      * @return The properties of the light
      * @since 1.0.0
      */
     @Override
-    public LightProperties getProperties(){
-        return this.properties;
+    public synchronized LightProperties getProperties(){
+        LightProperties properties = getConfirmedProperties();
+        if(pendingFields == 0 || properties == null) return properties;
+        if(properties == unpackedProperties) properties = LightState.copy(properties);
+        if(DeviceField.ON.isIn(pendingFields)) properties.setOn(pendingProperties.getOn());
+        if(DeviceField.BRIGHTNESS.isIn(pendingFields)) properties.setBrightness(pendingProperties.getBrightness());
+        if(DeviceField.COLOUR_HEX.isIn(pendingFields)) properties.setColourHex(pendingProperties.getColourHex());
+        if(DeviceField.HUE.isIn(pendingFields)) properties.setHue(pendingProperties.getHue());
+        if(DeviceField.SATURATION.isIn(pendingFields)) properties.setSaturation(pendingProperties.getSaturation());
+        if(DeviceField.COLOUR_X.isIn(pendingFields)) properties.setColourX(pendingProperties.getColourX());
+        if(DeviceField.COLOUR_Y.isIn(pendingFields)) properties.setColourY(pendingProperties.getColourY());
+        if(DeviceField.COLOUR_TEMPERATURE.isIn(pendingFields)) properties.setColourTemperature(pendingProperties.getColourTemperature());
+        return properties;
+    }
+
+    /**
+     * Get the properties of the light as last reported by the IKEA TRÅDFRI gateway, without values that are written but not confirmed yet
+     * @return The confirmed properties of the light
+     * @since 1.4.0
+     */
+    @Override
+    public synchronized LightProperties getConfirmedProperties(){
+        if(unpackedProperties != null) return unpackedProperties;
+        return LightState.unpack(values, colour, colourHex);
     }
 
     /**
-     * Set the properties of the light
+     * Get the fields of which a written value is not confirmed by the IKEA TRÅDFRI gateway yet
+     * @return The fields of which a written value is not confirmed yet
+     * @since 1.4.0
+     */
+    @Override
+    public synchronized EnumSet<DeviceField> getUnconfirmedFields(){
+        return DeviceField.fromMask(pendingFields);
+    }
+
+    /**
+     * Set the properties of the light<br>
+     * The properties are packed into primitive fields, so the properties object itself is not kept.
+     * Written values that are not confirmed yet are confirmed if the properties agree with them, and discarded if the properties disagree with them after the confirmation timeout.
+     * The version is only increased if the state that the light reports changes: a confirmation of a written value does not increase it again.
      * @param properties The properties of the light
      * @since 1.0.0
      */
     @Override
-    public void setProperties(DeviceProperties properties){
-        if(properties instanceof LightProperties) this.properties = (LightProperties) properties;
+    public synchronized void setProperties(DeviceProperties properties){
+        if(properties instanceof LightProperties) apply((LightProperties) properties);
+    }
+
+    /**
+     * Set the properties of the light as reported by the IKEA TRÅDFRI gateway, and copy the packed state from before the change
+     * @param properties The properties reported by the IKEA TRÅDFRI gateway
+     * @param previous The copy of the confirmed state from before the change, which is filled in
+     * @return The change mask that contains the fields of the confirmed state that changed, compared on the packed words
+     * @since 1.4.0
+     */
+    @Override
+    synchronized int updateProperties(DeviceProperties properties, ConfirmedState previous){
+        previous.values = values;
+        previous.colour = colour;
+        previous.colourHex = colourHex;
+        previous.properties = unpackedProperties;
+        return properties instanceof LightProperties ? apply((LightProperties) properties) : 0;
+    }
+
+    /**
+     * Unpack a copy of the confirmed state of the light
+     * @param state The copy of the confirmed state
+     * @return The confirmed properties in the copy
+     * @since 1.4.0
+     */
+    @Override
+    LightProperties unpack(ConfirmedState state){
+        if(state.properties != null) return (LightProperties) state.properties;
+        return LightState.unpack(state.values, state.colour, state.colourHex);
+    }
+
+    /**
+     * Set the properties of the light, and reconcile the written values that are not confirmed yet
+     * @param lightProperties The properties of the light
+     * @return The change mask that contains the fields of the confirmed state that changed
+     * @since 1.4.0
+     */
+    private int apply(LightProperties lightProperties){
+        long oldValues = values;
+        long oldColour = colour;
+        String oldColourHex = colourHex;
+        LightProperties oldUnpackedProperties = unpackedProperties;
+        if(LightState.fits(lightProperties)){
+            this.values = LightState.packValues(lightProperties);
+            this.colour = LightState.packColour(lightProperties);
+            this.colourHex = lightProperties.getColourHex();
+            this.unpackedProperties = null;
+        }else{
+            this.values = 0L;
+            this.colour = 0L;
+            this.colourHex = null;
+            this.unpackedProperties = lightProperties;
+        }
+        int changes;
+        if(oldUnpackedProperties == null && unpackedProperties == null){
+            changes = LightState.diff(oldValues, oldColour, values, colour);
+            if(!Objects.equals(oldColourHex, colourHex)) changes |= DeviceField.COLOUR_HEX.getMask();
+        }else{
+            LightProperties oldProperties = oldUnpackedProperties != null ? oldUnpackedProperties : LightState.unpack(oldValues, oldColour, oldColourHex);
+            changes = DeviceField.diff(oldProperties, getConfirmedProperties());
+        }
+        int pending = pendingFields;
+        int visibleChanges = changes & ~pending;
+        if(pending != 0){
+            LightProperties pendingProperties = this.pendingProperties;
+            reconcile(lightProperties);
+            visibleChanges |= pending & ~pendingFields & DeviceField.diff(pendingProperties, lightProperties);
+        }
+        if(visibleChanges != 0) incrementVersion();
+        return changes;
+    }
+
+    /**
+     * Reconcile the written values that are not confirmed yet with the properties reported by the IKEA TRÅDFRI gateway
+     * @param properties The properties reported by the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    private void reconcile(LightProperties properties){
+        boolean expired = System.currentTimeMillis() - pendingSince >= coapClient.getConfirmationTimeout();
+        pendingFields = expired ? 0 : pendingFields & DeviceField.diff(pendingProperties, properties);
+        if(pendingFields == 0) pendingProperties = null;
+    }
+
+    /**
+     * Apply successfully written values to the local state of the light, until the IKEA TRÅDFRI gateway confirms them
+     * @param written The written values
+     * @since 1.4.0
+     */
+    private synchronized void applyOptimistically(LightProperties written){
+        int fields = DeviceField.present(written);
+        if(fields == 0) return;
+        if(pendingProperties == null) pendingProperties = new LightProperties();
+        if(written.getOn() != null) pendingProperties.setOn(written.getOn());
+        if(written.getBrightness() != null) pendingProperties.setBrightness(written.getBrightness());
+        if(written.getColourHex() != null) pendingProperties.setColourHex(written.getColourHex());
+        if(written.getHue() != null) pendingProperties.setHue(written.getHue());
+        if(written.getSaturation() != null) pendingProperties.setSaturation(written.getSaturation());
+        if(written.getColourX() != null) pendingProperties.setColourX(written.getColourX());
+        if(written.getColourY() != null) pendingProperties.setColourY(written.getColourY());
+        if(written.getColourTemperature() != null) pendingProperties.setColourTemperature(written.getColourTemperature());
+        pendingFields |= fields;
+        pendingSince = System.currentTimeMillis();
+        incrementVersion();
     }
 
     /**
@@ -80,8 +255,10 @@ public class Light extends Device {
      * @return The on / off state of the light (true for on, false for off)
      * @since 1.0.0
      */
-    public Boolean getOn() {
-        return properties.getOn();
+    public synchronized Boolean getOn() {
+        if(DeviceField.ON.isIn(pendingFields)) return pendingProperties.getOn();
+        if(unpackedProperties != null) return unpackedProperties.getOn();
+        return LightState.getOn(colour);
     }
 
     /**
@@ -89,8 +266,10 @@ public class Light extends Device {
      * @return The brightness of the light
      * @since 1.0.0
      */
-    public Integer getBrightness() {
-        return properties.getBrightness();
+    public synchronized Integer getBrightness() {
+        if(DeviceField.BRIGHTNESS.isIn(pendingFields)) return pendingProperties.getBrightness();
+        if(unpackedProperties != null) return unpackedProperties.getBrightness();
+        return LightState.getBrightness(values, colour);
     }
 
     /**
@@ -98,8 +277,10 @@ public class Light extends Device {
      * @return The colour of the light in hexadecimals
      * @since 1.0.0
      */
-    public String getColourHex() {
-        return properties.getColourHex();
+    public synchronized String getColourHex() {
+        if(DeviceField.COLOUR_HEX.isIn(pendingFields)) return pendingProperties.getColourHex();
+        if(unpackedProperties != null) return unpackedProperties.getColourHex();
+        return colourHex;
     }
 
     /**
@@ -107,8 +288,10 @@ public class Light extends Device {
      * @return The hue of the light
      * @since 1.0.0
      */
-    public Integer getHue() {
-        return properties.getHue();
+    public synchronized Integer getHue() {
+        if(DeviceField.HUE.isIn(pendingFields)) return pendingProperties.getHue();
+        if(unpackedProperties != null) return unpackedProperties.getHue();
+        return LightState.getHue(values, colour);
     }
 
     /**
@@ -116,8 +299,10 @@ public class Light extends Device {
      * @return The saturation of the light
      * @since 1.0.0
      */
-    public Integer getSaturation() {
-        return properties.getSaturation();
+    public synchronized Integer getSaturation() {
+        if(DeviceField.SATURATION.isIn(pendingFields)) return pendingProperties.getSaturation();
+        if(unpackedProperties != null) return unpackedProperties.getSaturation();
+        return LightState.getSaturation(values, colour);
     }
 
     /**
@@ -125,8 +310,10 @@ public class Light extends Device {
      * @return The X value of the colour of the light
      * @since 1.0.0
      */
-    public Integer getColourX() {
-        return properties.getColourX();
+    public synchronized Integer getColourX() {
+        if(DeviceField.COLOUR_X.isIn(pendingFields)) return pendingProperties.getColourX();
+        if(unpackedProperties != null) return unpackedProperties.getColourX();
+        return LightState.getColourX(colour);
     }
 
     /**
@@ -134,8 +321,10 @@ public class Light extends Device {
      * @return The Y value of the colour of the light
      * @since 1.0.0
      */
-    public Integer getColourY() {
-        return properties.getColourY();
+    public synchronized Integer getColourY() {
+        if(DeviceField.COLOUR_Y.isIn(pendingFields)) return pendingProperties.getColourY();
+        if(unpackedProperties != null) return unpackedProperties.getColourY();
+        return LightState.getColourY(colour);
     }
 
     /**
@@ -144,7 +333,7 @@ public class Light extends Device {
      * @since 1.1.0
      */
     public ColourXY getColourXY() {
-        return new ColourXY(properties.getColourX(), properties.getColourY());
+        return new ColourXY(getColourX(), getColourY());
     }
 
     /**
@@ -153,7 +342,9 @@ public class Light extends Device {
      * @since 1.1.0
      */
     public ColourRGB getColourRGB() {
-        return ColourRGB.fromHS(properties.getHue() != null ? properties.getHue() : 0, properties.getSaturation() != null ? properties.getSaturation() : 0);
+        Integer hue = getHue();
+        Integer saturation = getSaturation();
+        return ColourRGB.fromHS(hue != null ? hue : 0, saturation != null ? saturation : 0);
     }
 
     /**
@@ -161,8 +352,21 @@ public class Light extends Device {
      * @return The colour temperature of the light
      * @since 1.0.0
      */
-    public Integer getColourTemperature() {
-        return properties.getColourTemperature();
+    public synchronized Integer getColourTemperature() {
+        if(DeviceField.COLOUR_TEMPERATURE.isIn(pendingFields)) return pendingProperties.getColourTemperature();
+        if(unpackedProperties != null) return unpackedProperties.getColourTemperature();
+        return LightState.getColourTemperature(values, colour);
+    }
+
+    /**
+     * Get the new properties of the light in the update queue, creating them if the update queue is empty<br>
+     * <i>Note: The caller has to hold the lock of the light</i>
+     * @return The new properties of the light in the update queue
+     * @since 1.4.0
+     */
+    private LightProperties stagedProperties() {
+        if(newProperties == null) newProperties = new LightProperties();
+        return newProperties;
     }
 
     /**
@@ -170,7 +374,8 @@ public class Light extends Device {
      * @param on The new on / off state for the light (true for on, false for off)
      * @since 1.0.0
      */
-    public void updateOn(Boolean on) {
+    public synchronized void updateOn(Boolean on) {
+        LightProperties newProperties = stagedProperties();
         newProperties.setOn(on);
     }
 
@@ -179,7 +384,8 @@ public class Light extends Device {
      * @param brightness The new brightness for the light
      * @since 1.0.0
      */
-    public void updateBrightness(Integer brightness) {
+    public synchronized void updateBrightness(Integer brightness) {
+        LightProperties newProperties = stagedProperties();
         newProperties.setBrightness(brightness);
     }
 
@@ -193,7 +399,8 @@ public class Light extends Device {
      * @param colourHex The new colour for the light
      * @since 1.0.0
      */
-    public void updateColourHex(String colourHex) {
+    public synchronized void updateColourHex(String colourHex) {
+        LightProperties newProperties = stagedProperties();
         newProperties.setColourHex(colourHex);
         newProperties.setHue(null);
         newProperties.setSaturation(null);
@@ -207,7 +414,8 @@ public class Light extends Device {
      * @param hue The new hue for the light
      * @since 1.0.0
      */
-    public void updateHue(Integer hue) {
+    public synchronized void updateHue(Integer hue) {
+        LightProperties newProperties = stagedProperties();
         newProperties.setHue(hue);
         newProperties.setColourX(null);
         newProperties.setColourY(null);
@@ -220,7 +428,8 @@ public class Light extends Device {
      * @param saturation The new saturation for the light
      * @since 1.0.0
      */
-    public void updateSaturation(Integer saturation) {
+    public synchronized void updateSaturation(Integer saturation) {
+        LightProperties newProperties = stagedProperties();
         newProperties.setSaturation(saturation);
         newProperties.setColourX(null);
         newProperties.setColourY(null);
@@ -234,7 +443,8 @@ public class Light extends Device {
      * @param colourY The Y value of the new colour for the light
      * @since 1.0.0
      */
-    public void updateColourXY(Integer colourX, Integer colourY) {
+    public synchronized void updateColourXY(Integer colourX, Integer colourY) {
+        LightProperties newProperties = stagedProperties();
         newProperties.setColourX(colourX);
         newProperties.setColourY(colourY);
         newProperties.setColourHex(null);
@@ -248,7 +458,8 @@ public class Light extends Device {
      * @param colourXY The new colour for the light
      * @since 1.1.0
      */
-    public void updateColour(ColourXY colourXY) {
+    public synchronized void updateColour(ColourXY colourXY) {
+        LightProperties newProperties = stagedProperties();
         newProperties.setColourX(colourXY.getX());
         newProperties.setColourY(colourXY.getY());
         newProperties.setColourHex(null);
@@ -262,7 +473,7 @@ public class Light extends Device {
      * @param colourRGB The new colour for the light
      * @since 1.1.0
      */
-    public void updateColour(ColourRGB colourRGB) {
+    public synchronized void updateColour(ColourRGB colourRGB) {
         updateColour(ColourXY.fromRGB(colourRGB));
     }
 
@@ -273,7 +484,7 @@ public class Light extends Device {
      * @param colourBlue The blue value of the new colour for the light
      * @since 1.0.0
      */
-    public void updateColourRGB(int colourRed, int colourGreen, int colourBlue) {
+    public synchronized void updateColourRGB(int colourRed, int colourGreen, int colourBlue) {
         updateColour(new ColourRGB(colourRed, colourGreen, colourBlue));
     }
 
@@ -282,7 +493,8 @@ public class Light extends Device {
      * @param colourTemperature The new colour temperature for the light
      * @since 1.0.0
      */
-    public void updateColourTemperature(Integer colourTemperature) {
+    public synchronized void updateColourTemperature(Integer colourTemperature) {
+        LightProperties newProperties = stagedProperties();
         newProperties.setColourTemperature(colourTemperature);
         newProperties.setColourHex(null);
         newProperties.setHue(null);
@@ -296,7 +508,8 @@ public class Light extends Device {
      * @param transitionTime The new transition time for updating the light
      * @since 1.0.0
      */
-    public void updateTransitionTime(Integer transitionTime){
+    public synchronized void updateTransitionTime(Integer transitionTime){
+        LightProperties newProperties = stagedProperties();
         newProperties.setTransitionTime(transitionTime);
     }
 
@@ -548,17 +761,155 @@ public class Light extends Device {
         return setColourTemperature(colourTemperature, null);
     }
 
+    /**
+     * Check if write coalescing is enabled for the light
+     * @return True if write coalescing is enabled, false if not
+     * @since 1.4.0
+     */
+    public boolean isWriteCoalescing() {
+        return writeCoalescer != null;
+    }
+
+    /**
+     * Enable or disable write coalescing for the light<br>
+     * With write coalescing, at most one write to the light is in flight. A write that is submitted while a write is in flight replaces the pending write of the same fields and returns true immediately,
+     * so rapid updates (for example from a slider) do not queue up. Pending writes are sent in order, so the newest write always lands last.
+     * Conditional updates are never coalesced.<br>
+     * <i>Note: A write that returns true because it was queued may still fail when it is sent later on</i>
+     * @param writeCoalescing True to enable write coalescing, false to disable it
+     * @since 1.4.0
+     */
+    public synchronized void setWriteCoalescing(boolean writeCoalescing) {
+        if(writeCoalescing == (writeCoalescer != null)) return;
+        writeCoalescer = writeCoalescing ? new WriteCoalescer<>(this::sendUpdate, coapClient) : null;
+    }
+
+    /**
+     * Start a transaction that collects changes to the light and applies them in a single update<br>
+     * Unlike the update queue of the light, every transaction has its own changes, so transactions can be built by multiple threads at the same time
+     * @return A new transaction for the light
+     * @since 1.4.0
+     */
+    public LightTransaction edit() {
+        return new LightTransaction(this, coapClient);
+    }
+
     /**
      * Apply updates to the light
      * @param newProperties The new properties to apply to the light
      * @return True if successfully updated the light, false if not
      * @since 1.0.0
      */
-    private boolean applyUpdate(LightProperties newProperties) {
-        DeviceRequest request = new DeviceRequest();
-        request.setLightProperties(new LightProperties[]{newProperties});
-        String response = coapClient.put(ApiEndpoint.getUri(ApiEndpoint.DEVICES, String.valueOf(getInstanceId())), request, String.class);
-        return response != null;
+    boolean applyUpdate(LightProperties newProperties) {
+        WriteCoalescer<LightProperties> writeCoalescer = this.writeCoalescer;
+        if(writeCoalescer != null) return writeCoalescer.submit(DeviceField.present(newProperties), newProperties);
+        return sendUpdate(newProperties);
+    }
+
+    /**
+     * Send updates to the light
+     * @param newProperties The new properties to apply to the light
+     * @return True if successfully updated the light, false if not
+     * @since 1.4.0
+     */
+    private boolean sendUpdate(LightProperties newProperties) {
+        synchronized (getWriteLock()) {
+            if(coapClient.isWriteSuppression() && isSatisfied(newProperties)){
+                coapClient.countSuppressedWrite();
+                return true;
+            }
+            DeviceRequest request = new DeviceRequest();
+            request.setLightProperties(new LightProperties[]{newProperties});
+            String response = coapClient.put(ApiEndpoint.getUri(ApiEndpoint.DEVICES, String.valueOf(getInstanceId())), request, String.class);
+            if(response == null) return false;
+            applyOptimistically(newProperties);
+            StateJournal journal = getJournal();
+            if(journal != null) journal.recordWritten(this, newProperties);
+            return true;
+        }
+    }
+
+    /**
+     * Apply the part of a successful write to a group that applies to the light to the local state of the light, until the IKEA TRÅDFRI gateway confirms it,
+     * and record it in the journal of the light
+     * @param change The properties that were written to the group
+     * @since 1.4.0
+     */
+    @Override
+    void groupWritten(GroupProperties change){
+        LightProperties written = new LightProperties();
+        written.setOn(change.getOn());
+        written.setBrightness(change.getBrightness());
+        written.setColourHex(change.getColourHex());
+        if(DeviceField.present(written) == 0) return;
+        applyOptimistically(written);
+        StateJournal journal = getJournal();
+        if(journal != null) journal.recordWritten(this, written);
+    }
+
+    /**
+     * Check if the light is known to be in the requested state already
+     * @param newProperties The requested properties
+     * @return True if the state of the light is fresh and every requested field already has the requested value, false if not
+     * @since 1.4.0
+     */
+    boolean isSatisfied(LightProperties newProperties) {
+        int requested = DeviceField.present(newProperties);
+        return requested != 0 && isFresh() && (DeviceField.diff(newProperties, getProperties()) & requested) == 0;
+    }
+
+    /**
+     * Apply updates to the light, but only if the state of the light is still at the expected version<br>
+     * Writes to the light are serialised, so no other write can change the state between the version check and the write
+     * @param expectedVersion The version of the state at which the update was decided (see {@link #getVersion()})
+     * @param newProperties The new properties to apply to the light
+     * @return True if successfully updated the light, false if the state is no longer at the expected version or the update failed
+     * @since 1.4.0
+     */
+    public boolean compareAndSet(long expectedVersion, LightProperties newProperties) {
+        synchronized (getWriteLock()) {
+            if(getVersion() != expectedVersion) return false;
+            return sendUpdate(newProperties);
+        }
+    }
+
+    /**
+     * Set the on / off state of the light, but only if the state of the light is still at the expected version
+     * @param expectedVersion The version of the state at which the update was decided (see {@link #getVersion()})
+     * @param on The new on / off state for the light (true for on, false for off)
+     * @return True if successfully updated the on / off state of the light, false if the state is no longer at the expected version or the update failed
+     * @since 1.4.0
+     */
+    public boolean setOnIfVersion(long expectedVersion, Boolean on) {
+        LightProperties newProperties = new LightProperties();
+        newProperties.setOn(on);
+        return compareAndSet(expectedVersion, newProperties);
+    }
+
+    /**
+     * Set the brightness of the light, but only if the state of the light is still at the expected version
+     * @param expectedVersion The version of the state at which the update was decided (see {@link #getVersion()})
+     * @param brightness The new brightness for the light
+     * @return True if successfully updated the brightness of the light, false if the state is no longer at the expected version or the update failed
+     * @since 1.4.0
+     */
+    public boolean setBrightnessIfVersion(long expectedVersion, Integer brightness) {
+        LightProperties newProperties = new LightProperties();
+        newProperties.setBrightness(brightness);
+        return compareAndSet(expectedVersion, newProperties);
+    }
+
+    /**
+     * Set the colour temperature of the light, but only if the state of the light is still at the expected version
+     * @param expectedVersion The version of the state at which the update was decided (see {@link #getVersion()})
+     * @param colourTemperature The new colour temperature for the light
+     * @return True if successfully updated the colour temperature of the light, false if the state is no longer at the expected version or the update failed
+     * @since 1.4.0
+     */
+    public boolean setColourTemperatureIfVersion(long expectedVersion, Integer colourTemperature) {
+        LightProperties newProperties = new LightProperties();
+        newProperties.setColourTemperature(colourTemperature);
+        return compareAndSet(expectedVersion, newProperties);
     }
 
     /**
@@ -567,9 +918,12 @@ public class Light extends Device {
      * @since 1.0.0
      */
     public boolean applyUpdates() {
-        boolean success = applyUpdate(newProperties);
-        newProperties = new LightProperties();
-        return success;
+        LightProperties stagedProperties;
+        synchronized (this) {
+            stagedProperties = stagedProperties();
+            newProperties = null;
+        }
+        return applyUpdate(stagedProperties);
     }
 
     /**
@@ -579,8 +933,13 @@ public class Light extends Device {
      * @since 1.0.0
      */
     public boolean applyUpdates(Integer transitionTime) {
-        newProperties.setTransitionTime(transitionTime);
-        return applyUpdates();
+        LightProperties stagedProperties;
+        synchronized (this) {
+            stagedProperties = stagedProperties();
+            stagedProperties.setTransitionTime(transitionTime);
+            newProperties = null;
+        }
+        return applyUpdate(stagedProperties);
     }
 
 }
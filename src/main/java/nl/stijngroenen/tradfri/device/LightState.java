@@ -0,0 +1,377 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+/**
+ * The class that packs the state of an IKEA TRÅDFRI light into two primitive words<br>
+ * The values word contains the brightness, hue, saturation and colour temperature, and the colour word contains the X and Y values of the colour
+ * together with flags for the on / off state and for the fields that are present. Every value is stored as an unsigned 16-bit number,
+ * which covers every value the IKEA TRÅDFRI gateway reports. Properties with a value outside that range can not be packed.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+final class LightState {
+
+    /**
+     * The shift of the brightness in the values word
+     */
+    private static final int BRIGHTNESS_SHIFT = 0;
+
+    /**
+     * The shift of the hue in the values word
+     */
+    private static final int HUE_SHIFT = 16;
+
+    /**
+     * The shift of the saturation in the values word
+     */
+    private static final int SATURATION_SHIFT = 32;
+
+    /**
+     * The shift of the colour temperature in the values word
+     */
+    private static final int COLOUR_TEMPERATURE_SHIFT = 48;
+
+    /**
+     * The shift of the X value of the colour in the colour word
+     */
+    private static final int COLOUR_X_SHIFT = 0;
+
+    /**
+     * The shift of the Y value of the colour in the colour word
+     */
+    private static final int COLOUR_Y_SHIFT = 16;
+
+    /**
+     * The flag in the colour word that is set if the state contains properties
+     */
+    static final long PRESENT = 1L << 32;
+
+    /**
+     * The flag in the colour word that is set if the on / off state is present
+     */
+    private static final long ON_PRESENT = 1L << 33;
+
+    /**
+     * The flag in the colour word that contains the on / off state
+     */
+    private static final long ON = 1L << 34;
+
+    /**
+     * The flag in the colour word that is set if the brightness is present
+     */
+    private static final long BRIGHTNESS_PRESENT = 1L << 35;
+
+    /**
+     * The flag in the colour word that is set if the hue is present
+     */
+    private static final long HUE_PRESENT = 1L << 36;
+
+    /**
+     * The flag in the colour word that is set if the saturation is present
+     */
+    private static final long SATURATION_PRESENT = 1L << 37;
+
+    /**
+     * The flag in the colour word that is set if the colour temperature is present
+     */
+    private static final long COLOUR_TEMPERATURE_PRESENT = 1L << 38;
+
+    /**
+     * The flag in the colour word that is set if the X value of the colour is present
+     */
+    private static final long COLOUR_X_PRESENT = 1L << 39;
+
+    /**
+     * The flag in the colour word that is set if the Y value of the colour is present
+     */
+    private static final long COLOUR_Y_PRESENT = 1L << 40;
+
+    /**
+     * The largest value that can be packed
+     */
+    private static final int MAX_VALUE = 0xFFFF;
+
+    /**
+     * The LightState class only contains static methods
+     */
+    private LightState() {
+    }
+
+    /**
+     * Check if properties can be packed
+     * @param properties The properties
+     * @return True if every value of the properties fits in 16 bits, false if not
+     * @since 1.4.0
+     */
+    static boolean fits(LightProperties properties) {
+        return properties == null || (fits(properties.getBrightness()) && fits(properties.getHue()) && fits(properties.getSaturation())
+                && fits(properties.getColourTemperature()) && fits(properties.getColourX()) && fits(properties.getColourY()));
+    }
+
+    /**
+     * Check if a value can be packed
+     * @param value The value
+     * @return True if the value is absent or fits in 16 bits, false if not
+     * @since 1.4.0
+     */
+    private static boolean fits(Integer value) {
+        return value == null || (value >= 0 && value <= MAX_VALUE);
+    }
+
+    /**
+     * Pack the brightness, hue, saturation and colour temperature of properties into the values word
+     * @param properties The properties (which have to fit)
+     * @return The values word
+     * @since 1.4.0
+     */
+    static long packValues(LightProperties properties) {
+        if(properties == null) return 0L;
+        return pack(properties.getBrightness(), BRIGHTNESS_SHIFT) | pack(properties.getHue(), HUE_SHIFT)
+                | pack(properties.getSaturation(), SATURATION_SHIFT) | pack(properties.getColourTemperature(), COLOUR_TEMPERATURE_SHIFT);
+    }
+
+    /**
+     * Pack the colour, the on / off state and the present fields of properties into the colour word
+     * @param properties The properties (which have to fit)
+     * @return The colour word
+     * @since 1.4.0
+     */
+    static long packColour(LightProperties properties) {
+        if(properties == null) return 0L;
+        long colour = PRESENT | pack(properties.getColourX(), COLOUR_X_SHIFT) | pack(properties.getColourY(), COLOUR_Y_SHIFT);
+        if(properties.getOn() != null) colour |= properties.getOn() ? ON_PRESENT | ON : ON_PRESENT;
+        if(properties.getBrightness() != null) colour |= BRIGHTNESS_PRESENT;
+        if(properties.getHue() != null) colour |= HUE_PRESENT;
+        if(properties.getSaturation() != null) colour |= SATURATION_PRESENT;
+        if(properties.getColourTemperature() != null) colour |= COLOUR_TEMPERATURE_PRESENT;
+        if(properties.getColourX() != null) colour |= COLOUR_X_PRESENT;
+        if(properties.getColourY() != null) colour |= COLOUR_Y_PRESENT;
+        return colour;
+    }
+
+    /**
+     * Pack a value at a shift
+     * @param value The value (null for 0)
+     * @param shift The shift
+     * @return The packed value
+     * @since 1.4.0
+     */
+    private static long pack(Integer value, int shift) {
+        return value == null ? 0L : ((long) value & MAX_VALUE) << shift;
+    }
+
+    /**
+     * Unpack a value
+     * @param word The word that contains the value
+     * @param shift The shift of the value
+     * @param present True if the value is present
+     * @return The value (null if it is not present)
+     * @since 1.4.0
+     */
+    private static Integer unpack(long word, int shift, boolean present) {
+        return present ? (int) ((word >>> shift) & MAX_VALUE) : null;
+    }
+
+    /**
+     * Unpack the state into properties
+     * @param values The values word
+     * @param colour The colour word
+     * @param colourHex The colour of the light in hexadecimals
+     * @return The properties (null if the state does not contain properties)
+     * @since 1.4.0
+     */
+    static LightProperties unpack(long values, long colour, String colourHex) {
+        if((colour & PRESENT) == 0) return null;
+        LightProperties properties = new LightProperties();
+        properties.setOn(getOn(colour));
+        properties.setBrightness(getBrightness(values, colour));
+        properties.setColourHex(colourHex);
+        properties.setHue(getHue(values, colour));
+        properties.setSaturation(getSaturation(values, colour));
+        properties.setColourX(getColourX(colour));
+        properties.setColourY(getColourY(colour));
+        properties.setColourTemperature(getColourTemperature(values, colour));
+        return properties;
+    }
+
+    /**
+     * Copy properties
+     * @param properties The properties to copy
+     * @return A copy of the properties, without the transition time
+     * @since 1.4.0
+     */
+    static LightProperties copy(LightProperties properties) {
+        LightProperties copy = new LightProperties();
+        copy.setOn(properties.getOn());
+        copy.setBrightness(properties.getBrightness());
+        copy.setColourHex(properties.getColourHex());
+        copy.setHue(properties.getHue());
+        copy.setSaturation(properties.getSaturation());
+        copy.setColourX(properties.getColourX());
+        copy.setColourY(properties.getColourY());
+        copy.setColourTemperature(properties.getColourTemperature());
+        return copy;
+    }
+
+    /**
+     * Merge the values word of a partial state into the values word of a state, keeping the values that are not present in the partial state
+     * @param values The values word of the state
+     * @param newValues The values word of the partial state
+     * @param newColour The colour word of the partial state
+     * @return The merged values word
+     * @since 1.4.0
+     */
+    static long mergeValues(long values, long newValues, long newColour) {
+        long mask = 0L;
+        if((newColour & BRIGHTNESS_PRESENT) != 0) mask |= (long) MAX_VALUE << BRIGHTNESS_SHIFT;
+        if((newColour & HUE_PRESENT) != 0) mask |= (long) MAX_VALUE << HUE_SHIFT;
+        if((newColour & SATURATION_PRESENT) != 0) mask |= (long) MAX_VALUE << SATURATION_SHIFT;
+        if((newColour & COLOUR_TEMPERATURE_PRESENT) != 0) mask |= (long) MAX_VALUE << COLOUR_TEMPERATURE_SHIFT;
+        return (values & ~mask) | (newValues & mask);
+    }
+
+    /**
+     * Merge the colour word of a partial state into the colour word of a state, keeping the values and flags that are not present in the partial state
+     * @param colour The colour word of the state
+     * @param newColour The colour word of the partial state
+     * @return The merged colour word
+     * @since 1.4.0
+     */
+    static long mergeColour(long colour, long newColour) {
+        long mask = newColour & (BRIGHTNESS_PRESENT | HUE_PRESENT | SATURATION_PRESENT | COLOUR_TEMPERATURE_PRESENT);
+        if((newColour & ON_PRESENT) != 0) mask |= ON_PRESENT | ON;
+        if((newColour & COLOUR_X_PRESENT) != 0) mask |= COLOUR_X_PRESENT | (long) MAX_VALUE << COLOUR_X_SHIFT;
+        if((newColour & COLOUR_Y_PRESENT) != 0) mask |= COLOUR_Y_PRESENT | (long) MAX_VALUE << COLOUR_Y_SHIFT;
+        return (colour & ~mask) | (newColour & mask) | PRESENT;
+    }
+
+    /**
+     * Get the fields that differ between two packed states, without unpacking them<br>
+     * The hexadecimal colour is not packed, so it has to be compared separately
+     * @param oldValues The values word of the old state
+     * @param oldColour The colour word of the old state
+     * @param newValues The values word of the new state
+     * @param newColour The colour word of the new state
+     * @return The change mask that contains the fields that differ (every field of a light if only one of the states contains properties)
+     * @since 1.4.0
+     */
+    static int diff(long oldValues, long oldColour, long newValues, long newColour) {
+        if(((oldColour ^ newColour) & PRESENT) != 0) return DeviceField.LIGHT_MASK;
+        long values = oldValues ^ newValues;
+        long colour = oldColour ^ newColour;
+        int mask = 0;
+        if((colour & (ON_PRESENT | ON)) != 0) mask |= DeviceField.ON.getMask();
+        if(differs(values, colour, BRIGHTNESS_SHIFT, BRIGHTNESS_PRESENT, newColour)) mask |= DeviceField.BRIGHTNESS.getMask();
+        if(differs(values, colour, HUE_SHIFT, HUE_PRESENT, newColour)) mask |= DeviceField.HUE.getMask();
+        if(differs(values, colour, SATURATION_SHIFT, SATURATION_PRESENT, newColour)) mask |= DeviceField.SATURATION.getMask();
+        if(differs(values, colour, COLOUR_TEMPERATURE_SHIFT, COLOUR_TEMPERATURE_PRESENT, newColour)) mask |= DeviceField.COLOUR_TEMPERATURE.getMask();
+        if(differs(colour, colour, COLOUR_X_SHIFT, COLOUR_X_PRESENT, newColour)) mask |= DeviceField.COLOUR_X.getMask();
+        if(differs(colour, colour, COLOUR_Y_SHIFT, COLOUR_Y_PRESENT, newColour)) mask |= DeviceField.COLOUR_Y.getMask();
+        return mask;
+    }
+
+    /**
+     * Check if a packed value differs between two states
+     * @param word The exclusive or of the words that contain the value
+     * @param colour The exclusive or of the colour words
+     * @param shift The shift of the value
+     * @param present The flag that is set if the value is present
+     * @param newColour The colour word of the new state
+     * @return True if the value is present in only one of the states, or present in both with a different value
+     * @since 1.4.0
+     */
+    private static boolean differs(long word, long colour, int shift, long present, long newColour) {
+        if((colour & present) != 0) return true;
+        return (newColour & present) != 0 && ((word >>> shift) & MAX_VALUE) != 0;
+    }
+
+    /**
+     * Get the on / off state
+     * @param colour The colour word
+     * @return The on / off state (null if it is not present)
+     * @since 1.4.0
+     */
+    static Boolean getOn(long colour) {
+        return (colour & ON_PRESENT) != 0 ? (colour & ON) != 0 : null;
+    }
+
+    /**
+     * Get the brightness
+     * @param values The values word
+     * @param colour The colour word
+     * @return The brightness (null if it is not present)
+     * @since 1.4.0
+     */
+    static Integer getBrightness(long values, long colour) {
+        return unpack(values, BRIGHTNESS_SHIFT, (colour & BRIGHTNESS_PRESENT) != 0);
+    }
+
+    /**
+     * Get the hue
+     * @param values The values word
+     * @param colour The colour word
+     * @return The hue (null if it is not present)
+     * @since 1.4.0
+     */
+    static Integer getHue(long values, long colour) {
+        return unpack(values, HUE_SHIFT, (colour & HUE_PRESENT) != 0);
+    }
+
+    /**
+     * Get the saturation
+     * @param values The values word
+     * @param colour The colour word
+     * @return The saturation (null if it is not present)
+     * @since 1.4.0
+     */
+    static Integer getSaturation(long values, long colour) {
+        return unpack(values, SATURATION_SHIFT, (colour & SATURATION_PRESENT) != 0);
+    }
+
+    /**
+     * Get the colour temperature
+     * @param values The values word
+     * @param colour The colour word
+     * @return The colour temperature (null if it is not present)
+     * @since 1.4.0
+     */
+    static Integer getColourTemperature(long values, long colour) {
+        return unpack(values, COLOUR_TEMPERATURE_SHIFT, (colour & COLOUR_TEMPERATURE_PRESENT) != 0);
+    }
+
+    /**
+     * Get the X value of the colour
+     * @param colour The colour word
+     * @return The X value of the colour (null if it is not present)
+     * @since 1.4.0
+     */
+    static Integer getColourX(long colour) {
+        return unpack(colour, COLOUR_X_SHIFT, (colour & COLOUR_X_PRESENT) != 0);
+    }
+
+    /**
+     * Get the Y value of the colour
+     * @param colour The colour word
+     * @return The Y value of the colour (null if it is not present)
+     * @since 1.4.0
+     */
+    static Integer getColourY(long colour) {
+        return unpack(colour, COLOUR_Y_SHIFT, (colour & COLOUR_Y_PRESENT) != 0);
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+import nl.stijngroenen.tradfri.util.ColourRGB;
+import nl.stijngroenen.tradfri.util.ColourXY;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The class that collects changes to an IKEA TRÅDFRI light and applies them in a single update<br>
+ * A transaction is meant to be built by a single thread, and can be applied once. After it is applied, it can no longer be changed.
+ * Every transaction has its own changes, so concurrent transactions for the same light do not mix.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class LightTransaction {
+
+    /**
+     * The light to update
+     */
+    private final Light light;
+
+    /**
+     * A CoAP client that can be used to communicate with the light using the IKEA TRÅDFRI gateway
+     */
+    private final CoapClient coapClient;
+
+    /**
+     * The changes to apply to the light
+     */
+    private final LightProperties properties;
+
+    /**
+     * The version of the state at which the changes have to be applied (null to apply them regardless of the version)
+     */
+    private Long expectedVersion;
+
+    /**
+     * Whether the transaction is applied
+     */
+    private boolean applied;
+
+    /**
+     * Construct the LightTransaction class
+     * @param light The light to update
+     * @param coapClient A CoAP client that can be used to communicate with the light using the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    LightTransaction(Light light, CoapClient coapClient) {
+        this.light = light;
+        this.coapClient = coapClient;
+        this.properties = new LightProperties();
+    }
+
+    /**
+     * Change the on / off state of the light
+     * @param on The new on / off state for the light (true for on, false for off)
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public LightTransaction on(Boolean on) {
+        checkNotApplied();
+        properties.setOn(on);
+        return this;
+    }
+
+    /**
+     * Change the brightness of the light
+     * @param brightness The new brightness for the light
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public LightTransaction brightness(Integer brightness) {
+        checkNotApplied();
+        properties.setBrightness(brightness);
+        return this;
+    }
+
+    /**
+     * Change the colour of the light to a predefined hexadecimal colour, replacing any other colour change in the transaction
+     * @param colourHex The new colour for the light
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public LightTransaction colourHex(String colourHex) {
+        checkNotApplied();
+        clearColour();
+        properties.setColourHex(colourHex);
+        return this;
+    }
+
+    /**
+     * Change the hue and saturation of the light, replacing any other colour change in the transaction
+     * @param hue The new hue for the light
+     * @param saturation The new saturation for the light
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public LightTransaction hueSaturation(Integer hue, Integer saturation) {
+        checkNotApplied();
+        clearColour();
+        properties.setHue(hue);
+        properties.setSaturation(saturation);
+        return this;
+    }
+
+    /**
+     * Change the colour of the light, replacing any other colour change in the transaction
+     * @param colourXY The new colour for the light
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public LightTransaction colour(ColourXY colourXY) {
+        checkNotApplied();
+        clearColour();
+        properties.setColourX(colourXY.getX());
+        properties.setColourY(colourXY.getY());
+        return this;
+    }
+
+    /**
+     * Change the colour of the light, replacing any other colour change in the transaction
+     * @param colourRGB The new colour for the light
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public LightTransaction colour(ColourRGB colourRGB) {
+        return colour(ColourXY.fromRGB(colourRGB));
+    }
+
+    /**
+     * Change the colour temperature of the light, replacing any other colour change in the transaction
+     * @param colourTemperature The new colour temperature for the light
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public LightTransaction colourTemperature(Integer colourTemperature) {
+        checkNotApplied();
+        clearColour();
+        properties.setColourTemperature(colourTemperature);
+        return this;
+    }
+
+    /**
+     * Change the transition time for updating the light
+     * @param transitionTime The transition time for updating the light
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public LightTransaction transition(Integer transitionTime) {
+        checkNotApplied();
+        properties.setTransitionTime(transitionTime);
+        return this;
+    }
+
+    /**
+     * Only apply the transaction if the state of the light is still at a version
+     * @param expectedVersion The version of the state at which the transaction was decided (see {@link Device#getVersion()})
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public LightTransaction ifVersion(long expectedVersion) {
+        checkNotApplied();
+        this.expectedVersion = expectedVersion;
+        return this;
+    }
+
+    /**
+     * Apply the changes of the transaction to the light
+     * @return True if successfully updated the light, false if not (or if the state is no longer at the expected version)
+     * @throws IllegalStateException Thrown if the transaction is already applied
+     * @since 1.4.0
+     */
+    public boolean apply() {
+        checkNotApplied();
+        applied = true;
+        if(expectedVersion != null) return light.compareAndSet(expectedVersion, properties);
+        return light.applyUpdate(properties);
+    }
+
+    /**
+     * Apply the changes of the transaction to the light on the executor of the CoAP client
+     * @return A future that completes with true if successfully updated the light, or false if not
+     * @throws IllegalStateException Thrown if the transaction is already applied
+     * @since 1.4.0
+     */
+    public CompletableFuture<Boolean> applyAsync() {
+        checkNotApplied();
+        applied = true;
+        Long expectedVersion = this.expectedVersion;
+        return CompletableFuture.supplyAsync(() -> expectedVersion != null ? light.compareAndSet(expectedVersion, properties) : light.applyUpdate(properties),
+                coapClient.getExecutor());
+    }
+
+    /**
+     * Check if the transaction is applied
+     * @return True if the transaction is applied, false if not
+     * @since 1.4.0
+     */
+    public boolean isApplied() {
+        return applied;
+    }
+
+    /**
+     * Remove the colour changes from the transaction, because the light only accepts one way of specifying its colour
+     * @since 1.4.0
+     */
+    private void clearColour() {
+        properties.setColourHex(null);
+        properties.setHue(null);
+        properties.setSaturation(null);
+        properties.setColourX(null);
+        properties.setColourY(null);
+        properties.setColourTemperature(null);
+    }
+
+    /**
+     * Make sure the transaction is not applied yet
+     * @throws IllegalStateException Thrown if the transaction is already applied
+     * @since 1.4.0
+     */
+    private void checkNotApplied() {
+        if(applied) throw new IllegalStateException("The transaction is already applied");
+    }
+
+}
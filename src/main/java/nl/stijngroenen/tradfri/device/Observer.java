@@ -23,7 +23,6 @@ import nl.stijngroenen.tradfri.device.event.EventHandler;
 import nl.stijngroenen.tradfri.device.event.GatewayEvent;
 import nl.stijngroenen.tradfri.util.CoapClient;
 import org.eclipse.californium.core.CoapHandler;
-import org.eclipse.californium.core.CoapObserveRelation;
 import org.eclipse.californium.core.CoapResponse;
 
 import java.util.ArrayList;
@@ -32,7 +31,7 @@ import java.util.HashMap;
 /**
  * The class that observes a device to automagically detect changes
  * @author Stijn Groenen
- * @version 1.0.0
+ * @version 1.4.0
  */
 public abstract class Observer implements CoapHandler {
 
@@ -46,11 +45,6 @@ public abstract class Observer implements CoapHandler {
      */
     private CoapClient coapClient;
 
-    /**
-     * The observe relation used by CoAP to keep track of the connection to the IKEA TRÅDFRI gateway
-     */
-    private CoapObserveRelation coapObserveRelation;
-
     /**
      * Construct the Observer class
      * @param endpoint The endpoint to observe
@@ -63,16 +57,13 @@ public abstract class Observer implements CoapHandler {
     }
 
     /**
-     * Start observing the endpoint to automagically detect changes
+     * Start observing the endpoint to automagically detect changes<br>
+     * The observe relation is watched by the {@link nl.stijngroenen.tradfri.util.ObserveWatchdog} of the CoAP client, which registers it again when it goes stale
      * @return True if successfully started observing, false if not
      * @since 1.0.0
      */
     public boolean start(){
-        if(coapObserveRelation == null || coapObserveRelation.isCanceled()){
-            coapObserveRelation = coapClient.requestObserve(endpoint, this);
-            return true;
-        }
-        return false;
+        return coapClient.getObserveWatchdog().observe(endpoint, this);
     }
 
     /**
@@ -81,11 +72,16 @@ public abstract class Observer implements CoapHandler {
      * @since 1.0.0
      */
     public boolean stop(){
-        if(coapObserveRelation != null && !coapObserveRelation.isCanceled()){
-            coapObserveRelation.proactiveCancel();
-            return true;
-        }
-        return false;
+        return coapClient.getObserveWatchdog().cancel(this);
+    }
+
+    /**
+     * Get the time of the last notification received by the observer
+     * @return The time of the last notification (in milliseconds since the epoch), or 0 if the observer is not started
+     * @since 1.4.0
+     */
+    public long getLastNotification(){
+        return coapClient.getObserveWatchdog().getLastNotification(this);
     }
 
     /**
@@ -100,28 +96,31 @@ public abstract class Observer implements CoapHandler {
     }
 
     /**
-     * Handles a new response from the CoAP client
+     * Handles a new response from the CoAP client<br>
+     * The response is submitted to the dispatch queue of the CoAP client, which calls the event handlers after the delay of the queue<br>
+     * The first response after the watchdog registered the observe relation again is marked, so it does not report an unchanged state as an event
      * @param coapResponse The response to the CoAP request
      * @since 1.0.0
      */
     @Override
     public void onLoad(CoapResponse coapResponse) {
-        if(!coapResponse.isSuccess()) return;
-        new Thread(() -> {
-            try {
-                Thread.sleep(1000);
-                callEventHandlers(coapResponse.getResponseText());
-            } catch (InterruptedException ignored) {
-            }
-        }).start();
+        if(!coapResponse.isSuccess()){
+            coapClient.getObserveWatchdog().failed(this);
+            return;
+        }
+        boolean reregistered = coapClient.getObserveWatchdog().notified(this);
+        String payload = coapResponse.getResponseText();
+        coapClient.getDispatchQueue().submit(this, () -> callEventHandlers(payload, reregistered));
     }
 
     /**
-     * Handles an error from the CoAP client
+     * Handles an error from the CoAP client<br>
+     * The observe relation is registered again by the watchdog of the CoAP client
      * @since 1.0.0
      */
     @Override
     public void onError() {
+        coapClient.getObserveWatchdog().failed(this);
     }
 
     /**
@@ -131,4 +130,15 @@ public abstract class Observer implements CoapHandler {
      */
     public abstract void callEventHandlers(String payload);
 
+    /**
+     * Call the appropriate event handlers for a response that may be the initial response of an observe relation that the watchdog registered again<br>
+     * Such a response only reports the current state, so observers can skip the event handlers if nothing changed
+     * @param payload The payload text of the CoAP response
+     * @param reregistered True if the response is the first response since the watchdog registered the observe relation again, false if not
+     * @since 1.4.0
+     */
+    protected void callEventHandlers(String payload, boolean reregistered){
+        callEventHandlers(payload);
+    }
+
 }
@@ -20,20 +20,37 @@ import nl.stijngroenen.tradfri.payload.DeviceRequest;
 import nl.stijngroenen.tradfri.util.ApiEndpoint;
 import nl.stijngroenen.tradfri.util.CoapClient;
 
+import java.util.EnumSet;
+
 /**
  * The class that represents an IKEA TRÅDFRI plug
  * @author Stijn Groenen
- * @version 1.0.0
+ * @version 1.4.0
  */
 public class Plug extends Device {
 
     /**
-     * The current properties of the plug
+     * The on / off state of the plug, packed into a byte (0 if the plug has no properties, 1 if the state is unknown, 2 for off and 3 for on)
+     */
+    private byte on;
+
+    /**
+     * The on / off state that is written to the plug but not confirmed by the IKEA TRÅDFRI gateway yet, packed like the on / off state (0 if there is none)
+     */
+    private byte pendingOn;
+
+    /**
+     * The time of the last write that is not confirmed yet (in milliseconds since the epoch)
+     */
+    private long pendingSince;
+
+    /**
+     * The coalescer that replaces pending writes by newer writes of the same fields (null if write coalescing is disabled)
      */
-    private PlugProperties properties;
+    private volatile WriteCoalescer<PlugProperties> writeCoalescer;
 
     /**
-     * The new properties of the plug in the update queue
+     * The new properties of the plug in the update queue (null if the update queue is empty)
      */
     private PlugProperties newProperties;
 
@@ -49,28 +66,147 @@ public class Plug extends Device {
      */
     public Plug(String name, Long creationDate, Integer instanceId, DeviceInfo deviceInfo, PlugProperties properties, CoapClient coapClient){
         super(name, creationDate, instanceId, deviceInfo, coapClient);
-        this.properties = properties;
-        this.newProperties = new PlugProperties();
+        setProperties(properties);
     }
 
     /**
-     * Get the properties of the plug
+     * Get the properties of the plug<br>
+     * The state of the plug is stored in a packed form, so every call returns a new copy of the properties
      * @return The properties of the plug
      * @since 1.0.0
      */
     @Override
-    public PlugProperties getProperties(){
-        return this.properties;
+    public synchronized PlugProperties getProperties(){
+        if(on == 0) return null;
+        PlugProperties properties = new PlugProperties();
+        properties.setOn(unpackOn(pendingOn != 0 ? pendingOn : on));
+        return properties;
     }
 
     /**
-     * Set the properties of the plug
+     * Get the properties of the plug as last reported by the IKEA TRÅDFRI gateway, without values that are written but not confirmed yet
+     * @return The confirmed properties of the plug
+     * @since 1.4.0
+     */
+    @Override
+    public synchronized PlugProperties getConfirmedProperties(){
+        if(on == 0) return null;
+        PlugProperties properties = new PlugProperties();
+        properties.setOn(unpackOn(on));
+        return properties;
+    }
+
+    /**
+     * Get the fields of which a written value is not confirmed by the IKEA TRÅDFRI gateway yet
+     * @return The fields of which a written value is not confirmed yet
+     * @since 1.4.0
+     */
+    @Override
+    public synchronized EnumSet<DeviceField> getUnconfirmedFields(){
+        return pendingOn != 0 ? EnumSet.of(DeviceField.ON) : EnumSet.noneOf(DeviceField.class);
+    }
+
+    /**
+     * Set the properties of the plug<br>
+     * The properties are packed into a primitive field, so the properties object itself is not kept.
+     * A written on / off state that is not confirmed yet is confirmed if the properties agree with it, and discarded if the properties disagree with it after the confirmation timeout.
+     * The version is only increased if the state that the plug reports changes: a confirmation of a written on / off state does not increase it again.
      * @param properties The properties of the plug
      * @since 1.0.0
      */
     @Override
-    public void setProperties(DeviceProperties properties){
-        if(properties instanceof PlugProperties) this.properties = (PlugProperties) properties;
+    public synchronized void setProperties(DeviceProperties properties){
+        if(properties instanceof PlugProperties) apply((PlugProperties) properties);
+    }
+
+    /**
+     * Set the properties of the plug as reported by the IKEA TRÅDFRI gateway, and copy the packed state from before the change
+     * @param properties The properties reported by the IKEA TRÅDFRI gateway
+     * @param previous The copy of the confirmed state from before the change, which is filled in
+     * @return The change mask that contains the fields of the confirmed state that changed, compared on the packed on / off state
+     * @since 1.4.0
+     */
+    @Override
+    synchronized int updateProperties(DeviceProperties properties, ConfirmedState previous){
+        previous.values = on;
+        return properties instanceof PlugProperties ? apply((PlugProperties) properties) : 0;
+    }
+
+    /**
+     * Unpack a copy of the confirmed state of the plug
+     * @param state The copy of the confirmed state
+     * @return The confirmed properties in the copy (null if the on / off state is unknown)
+     * @since 1.4.0
+     */
+    @Override
+    PlugProperties unpack(ConfirmedState state){
+        if(state.values == 0) return null;
+        PlugProperties properties = new PlugProperties();
+        properties.setOn(unpackOn((byte) state.values));
+        return properties;
+    }
+
+    /**
+     * Set the properties of the plug, and reconcile the written on / off state that is not confirmed yet
+     * @param plugProperties The properties of the plug
+     * @return The change mask that contains the fields of the confirmed state that changed
+     * @since 1.4.0
+     */
+    private int apply(PlugProperties plugProperties){
+        byte oldOn = this.on;
+        byte visibleOn = pendingOn != 0 ? pendingOn : oldOn;
+        this.on = packOn(plugProperties.getOn());
+        if(pendingOn != 0 && (pendingOn == this.on || System.currentTimeMillis() - pendingSince >= coapClient.getConfirmationTimeout())) pendingOn = 0;
+        if((pendingOn != 0 ? pendingOn : this.on) != visibleOn) incrementVersion();
+        return this.on != oldOn ? DeviceField.ON.getMask() : 0;
+    }
+
+    /**
+     * Apply a successfully written on / off state to the local state of the plug, until the IKEA TRÅDFRI gateway confirms it
+     * @param written The written values
+     * @since 1.4.0
+     */
+    private synchronized void applyOptimistically(PlugProperties written){
+        if(written.getOn() == null) return;
+        pendingOn = packOn(written.getOn());
+        pendingSince = System.currentTimeMillis();
+        incrementVersion();
+    }
+
+    /**
+     * Apply the part of a successful write to a group that applies to the plug to the local state of the plug, until the IKEA TRÅDFRI gateway confirms it,
+     * and record it in the journal of the plug
+     * @param change The properties that were written to the group
+     * @since 1.4.0
+     */
+    @Override
+    void groupWritten(GroupProperties change){
+        if(change.getOn() == null) return;
+        PlugProperties written = new PlugProperties();
+        written.setOn(change.getOn());
+        applyOptimistically(written);
+        StateJournal journal = getJournal();
+        if(journal != null) journal.recordWritten(this, written);
+    }
+
+    /**
+     * Pack the on / off state of the plug
+     * @param on The on / off state (null if it is unknown)
+     * @return The packed on / off state
+     * @since 1.4.0
+     */
+    private static byte packOn(Boolean on) {
+        return on == null ? (byte) 1 : on ? (byte) 3 : (byte) 2;
+    }
+
+    /**
+     * Unpack the on / off state of the plug
+     * @param on The packed on / off state
+     * @return The on / off state (null if it is unknown)
+     * @since 1.4.0
+     */
+    private static Boolean unpackOn(byte on) {
+        return on < 2 ? null : on == 3;
     }
 
     /**
@@ -78,8 +214,19 @@ public class Plug extends Device {
      * @return The on state of the plug (true for on, false for off)
      * @since 1.0.0
      */
-    public Boolean getOn() {
-        return properties.getOn();
+    public synchronized Boolean getOn() {
+        return unpackOn(pendingOn != 0 ? pendingOn : on);
+    }
+
+    /**
+     * Get the new properties of the plug in the update queue, creating them if the update queue is empty<br>
+     * <i>Note: The caller has to hold the lock of the plug</i>
+     * @return The new properties of the plug in the update queue
+     * @since 1.4.0
+     */
+    private PlugProperties stagedProperties() {
+        if(newProperties == null) newProperties = new PlugProperties();
+        return newProperties;
     }
 
     /**
@@ -87,7 +234,8 @@ public class Plug extends Device {
      * @param on The new on / off state for the plug (true for on, false for off)
      * @since 1.0.0
      */
-    public void updateOn(Boolean on) {
+    public synchronized void updateOn(Boolean on) {
+        PlugProperties newProperties = stagedProperties();
         newProperties.setOn(on);
     }
 
@@ -103,17 +251,111 @@ public class Plug extends Device {
         return applyUpdate(newProperties);
     }
 
+    /**
+     * Check if write coalescing is enabled for the plug
+     * @return True if write coalescing is enabled, false if not
+     * @since 1.4.0
+     */
+    public boolean isWriteCoalescing() {
+        return writeCoalescer != null;
+    }
+
+    /**
+     * Enable or disable write coalescing for the plug<br>
+     * With write coalescing, at most one write to the plug is in flight. A write that is submitted while a write is in flight replaces the pending write of the same fields and returns true immediately,
+     * so rapid updates (for example from a slider) do not queue up. Pending writes are sent in order, so the newest write always lands last.
+     * Conditional updates are never coalesced.<br>
+     * <i>Note: A write that returns true because it was queued may still fail when it is sent later on</i>
+     * @param writeCoalescing True to enable write coalescing, false to disable it
+     * @since 1.4.0
+     */
+    public synchronized void setWriteCoalescing(boolean writeCoalescing) {
+        if(writeCoalescing == (writeCoalescer != null)) return;
+        writeCoalescer = writeCoalescing ? new WriteCoalescer<>(this::sendUpdate, coapClient) : null;
+    }
+
+    /**
+     * Start a transaction that collects changes to the plug and applies them in a single update<br>
+     * Unlike the update queue of the plug, every transaction has its own changes, so transactions can be built by multiple threads at the same time
+     * @return A new transaction for the plug
+     * @since 1.4.0
+     */
+    public PlugTransaction edit() {
+        return new PlugTransaction(this, coapClient);
+    }
+
     /**
      * Apply updates to the plug
      * @param newProperties The new properties to apply to the plug
      * @return True if successfully updated the plug, false if not
      * @since 1.0.0
      */
-    private boolean applyUpdate(PlugProperties newProperties) {
-        DeviceRequest request = new DeviceRequest();
-        request.setPlugProperties(new PlugProperties[]{newProperties});
-        String response = coapClient.put(ApiEndpoint.getUri(ApiEndpoint.DEVICES, String.valueOf(getInstanceId())), request, String.class);
-        return response != null;
+    boolean applyUpdate(PlugProperties newProperties) {
+        WriteCoalescer<PlugProperties> writeCoalescer = this.writeCoalescer;
+        if(writeCoalescer != null) return writeCoalescer.submit(DeviceField.present(newProperties), newProperties);
+        return sendUpdate(newProperties);
+    }
+
+    /**
+     * Send updates to the plug
+     * @param newProperties The new properties to apply to the plug
+     * @return True if successfully updated the plug, false if not
+     * @since 1.4.0
+     */
+    private boolean sendUpdate(PlugProperties newProperties) {
+        synchronized (getWriteLock()) {
+            if(coapClient.isWriteSuppression() && isSatisfied(newProperties)){
+                coapClient.countSuppressedWrite();
+                return true;
+            }
+            DeviceRequest request = new DeviceRequest();
+            request.setPlugProperties(new PlugProperties[]{newProperties});
+            String response = coapClient.put(ApiEndpoint.getUri(ApiEndpoint.DEVICES, String.valueOf(getInstanceId())), request, String.class);
+            if(response == null) return false;
+            applyOptimistically(newProperties);
+            StateJournal journal = getJournal();
+            if(journal != null) journal.recordWritten(this, newProperties);
+            return true;
+        }
+    }
+
+    /**
+     * Check if the plug is known to be in the requested state already
+     * @param newProperties The requested properties
+     * @return True if the state of the plug is fresh and every requested field already has the requested value, false if not
+     * @since 1.4.0
+     */
+    boolean isSatisfied(PlugProperties newProperties) {
+        int requested = DeviceField.present(newProperties);
+        return requested != 0 && isFresh() && (DeviceField.diff(newProperties, getProperties()) & requested) == 0;
+    }
+
+    /**
+     * Apply updates to the plug, but only if the state of the plug is still at the expected version<br>
+     * Writes to the plug are serialised, so no other write can change the state between the version check and the write
+     * @param expectedVersion The version of the state at which the update was decided (see {@link #getVersion()})
+     * @param newProperties The new properties to apply to the plug
+     * @return True if successfully updated the plug, false if the state is no longer at the expected version or the update failed
+     * @since 1.4.0
+     */
+    public boolean compareAndSet(long expectedVersion, PlugProperties newProperties) {
+        synchronized (getWriteLock()) {
+            if(getVersion() != expectedVersion) return false;
+            return sendUpdate(newProperties);
+        }
+    }
+
+    /**
+     * Set the on / off state of the plug, but only if the state of the plug is still at the expected version
+     * @param expectedVersion The version of the state at which the update was decided (see {@link #getVersion()})
+     * @param on The new on / off state for the plug (true for on, false for off)
+     * @return True if successfully updated the on / off state of the plug, false if the state is no longer at the expected version or the update failed
+     * @since 1.4.0
+     */
+    public boolean setOnIfVersion(long expectedVersion, Boolean on) {
+        PlugProperties newProperties = new PlugProperties();
+        newProperties.setOn(on);
+        return compareAndSet(expectedVersion, newProperties);
     }
 
     /**
@@ -122,9 +364,12 @@ public class Plug extends Device {
      * @since 1.0.0
      */
     public boolean applyUpdates() {
-        boolean success = applyUpdate(newProperties);
-        newProperties = new PlugProperties();
-        return success;
+        PlugProperties stagedProperties;
+        synchronized (this) {
+            stagedProperties = stagedProperties();
+            newProperties = null;
+        }
+        return applyUpdate(stagedProperties);
     }
 
 }
@@ -0,0 +1,138 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The class that collects changes to an IKEA TRÅDFRI plug and applies them in a single update<br>
+ * A transaction is meant to be built by a single thread, and can be applied once. After it is applied, it can no longer be changed.
+ * Every transaction has its own changes, so concurrent transactions for the same plug do not mix.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class PlugTransaction {
+
+    /**
+     * The plug to update
+     */
+    private final Plug plug;
+
+    /**
+     * A CoAP client that can be used to communicate with the plug using the IKEA TRÅDFRI gateway
+     */
+    private final CoapClient coapClient;
+
+    /**
+     * The changes to apply to the plug
+     */
+    private final PlugProperties properties;
+
+    /**
+     * The version of the state at which the changes have to be applied (null to apply them regardless of the version)
+     */
+    private Long expectedVersion;
+
+    /**
+     * Whether the transaction is applied
+     */
+    private boolean applied;
+
+    /**
+     * Construct the PlugTransaction class
+     * @param plug The plug to update
+     * @param coapClient A CoAP client that can be used to communicate with the plug using the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    PlugTransaction(Plug plug, CoapClient coapClient) {
+        this.plug = plug;
+        this.coapClient = coapClient;
+        this.properties = new PlugProperties();
+    }
+
+    /**
+     * Change the on / off state of the plug
+     * @param on The new on / off state for the plug (true for on, false for off)
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public PlugTransaction on(Boolean on) {
+        checkNotApplied();
+        properties.setOn(on);
+        return this;
+    }
+
+    /**
+     * Only apply the transaction if the state of the plug is still at a version
+     * @param expectedVersion The version of the state at which the transaction was decided (see {@link Device#getVersion()})
+     * @return The transaction
+     * @since 1.4.0
+     */
+    public PlugTransaction ifVersion(long expectedVersion) {
+        checkNotApplied();
+        this.expectedVersion = expectedVersion;
+        return this;
+    }
+
+    /**
+     * Apply the changes of the transaction to the plug
+     * @return True if successfully updated the plug, false if not (or if the state is no longer at the expected version)
+     * @throws IllegalStateException Thrown if the transaction is already applied
+     * @since 1.4.0
+     */
+    public boolean apply() {
+        checkNotApplied();
+        applied = true;
+        if(expectedVersion != null) return plug.compareAndSet(expectedVersion, properties);
+        return plug.applyUpdate(properties);
+    }
+
+    /**
+     * Apply the changes of the transaction to the plug on the executor of the CoAP client
+     * @return A future that completes with true if successfully updated the plug, or false if not
+     * @throws IllegalStateException Thrown if the transaction is already applied
+     * @since 1.4.0
+     */
+    public CompletableFuture<Boolean> applyAsync() {
+        checkNotApplied();
+        applied = true;
+        Long expectedVersion = this.expectedVersion;
+        return CompletableFuture.supplyAsync(() -> expectedVersion != null ? plug.compareAndSet(expectedVersion, properties) : plug.applyUpdate(properties),
+                coapClient.getExecutor());
+    }
+
+    /**
+     * Check if the transaction is applied
+     * @return True if the transaction is applied, false if not
+     * @since 1.4.0
+     */
+    public boolean isApplied() {
+        return applied;
+    }
+
+    /**
+     * Make sure the transaction is not applied yet
+     * @throws IllegalStateException Thrown if the transaction is already applied
+     * @since 1.4.0
+     */
+    private void checkNotApplied() {
+        if(applied) throw new IllegalStateException("The transaction is already applied");
+    }
+
+}
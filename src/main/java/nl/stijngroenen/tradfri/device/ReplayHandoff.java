@@ -0,0 +1,148 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.device.event.Event;
+import nl.stijngroenen.tradfri.device.event.EventHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The class that hands an event handler over from its replay to the live events of a device<br>
+ * The replay is snapshotted under the lock of the device, at the sequence number of the last notification that the snapshot contains.
+ * The notifications up to that sequence number are skipped for the event handler, and the later notifications are deferred until the replay is delivered,
+ * so the event handler receives every change once and in order: the replay first, and the live events afterwards
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+class ReplayHandoff {
+
+    /**
+     * The event handler to which the replay is delivered
+     */
+    private final EventHandler<?> eventHandler;
+
+    /**
+     * The sequence number of the last notification of the device that the snapshot contains (-1 if the snapshot is not taken yet)
+     */
+    private volatile long snapshotSequence;
+
+    /**
+     * The live events that occurred while the replay was delivered (null if there are none)
+     */
+    private List<Event> deferred;
+
+    /**
+     * True if the replay and the deferred events are delivered, false if not
+     */
+    private boolean delivered;
+
+    /**
+     * Construct the ReplayHandoff class
+     * @param eventHandler The event handler to which the replay is delivered
+     * @since 1.4.0
+     */
+    ReplayHandoff(EventHandler<?> eventHandler) {
+        this.eventHandler = eventHandler;
+        this.snapshotSequence = -1L;
+    }
+
+    /**
+     * Get the event handler to which the replay is delivered
+     * @return The event handler to which the replay is delivered
+     * @since 1.4.0
+     */
+    EventHandler<?> getEventHandler() {
+        return eventHandler;
+    }
+
+    /**
+     * Mark the snapshot of the replay as taken<br>
+     * <i>Note: The caller has to hold the lock of the device</i>
+     * @param sequence The sequence number of the last notification of the device that the snapshot contains
+     * @since 1.4.0
+     */
+    void snapshotted(long sequence) {
+        this.snapshotSequence = sequence;
+    }
+
+    /**
+     * Check if the replay contains a notification, because the snapshot is taken after it or will only be taken later on
+     * @param sequence The sequence number of the notification
+     * @return True if the replay contains the notification, false if the notification is a live event for the event handler
+     * @since 1.4.0
+     */
+    boolean covers(long sequence) {
+        long snapshotSequence = this.snapshotSequence;
+        return snapshotSequence < 0 || sequence <= snapshotSequence;
+    }
+
+    /**
+     * Defer a live event until the replay is delivered
+     * @param event The live event
+     * @return True if the event is deferred, false if the replay is delivered already and the event has to be delivered right away
+     * @since 1.4.0
+     */
+    synchronized boolean defer(Event event) {
+        if(delivered) return false;
+        if(deferred == null) deferred = new ArrayList<>();
+        deferred.add(event);
+        return true;
+    }
+
+    /**
+     * Deliver the replay to the event handler, followed by the live events that were deferred meanwhile
+     * @param replay The events of the replay, from the oldest to the most recent event
+     * @since 1.4.0
+     */
+    void deliver(List<? extends Event> replay) {
+        for(Event event: replay){
+            eventHandler.offer(event);
+        }
+        while(true){
+            List<Event> events;
+            synchronized (this) {
+                if(deferred == null){
+                    delivered = true;
+                    return;
+                }
+                events = deferred;
+                deferred = null;
+            }
+            for(Event event: events){
+                eventHandler.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Find the handoff of an event handler
+     * @param handoffs The handoffs to search (null if there are none)
+     * @param eventHandler The event handler
+     * @return The handoff of the event handler, or null if it has none
+     * @since 1.4.0
+     */
+    static ReplayHandoff find(ReplayHandoff[] handoffs, EventHandler<?> eventHandler) {
+        if(handoffs == null) return null;
+        for(ReplayHandoff handoff: handoffs){
+            if(handoff.eventHandler == eventHandler) return handoff;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * The class that represents a {@link TransitionPlan} that is scheduled for a set of lights by the {@link TransitionPlanner}
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class ScheduledTransition {
+
+    /**
+     * The plan that is scheduled
+     */
+    private final TransitionPlan plan;
+
+    /**
+     * The lights to which the plan is applied
+     */
+    private final Light[] lights;
+
+    /**
+     * The time at which the plan started (in milliseconds)
+     */
+    private final long startTime;
+
+    /**
+     * The index of the next step of the plan
+     */
+    private int nextStep;
+
+    /**
+     * The task that sends the next steps (null if there is none)
+     */
+    private ScheduledFuture<?> task;
+
+    /**
+     * Whether the transition is cancelled
+     */
+    private boolean cancelled;
+
+    /**
+     * The last steps that are handed to the executor for every light, by the index of the light, so the next steps of a light are only sent after them
+     */
+    private final CompletableFuture<?>[] senders;
+
+    /**
+     * Construct the ScheduledTransition class
+     * @param plan The plan that is scheduled
+     * @param lights The lights to which the plan is applied
+     * @param startTime The time at which the plan started (in milliseconds)
+     * @since 1.4.0
+     */
+    ScheduledTransition(TransitionPlan plan, Light[] lights, long startTime) {
+        this.plan = plan;
+        this.lights = lights;
+        this.startTime = startTime;
+        this.senders = new CompletableFuture<?>[lights.length];
+        for(int i = 0; i < senders.length; i++){
+            senders[i] = CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Get the plan that is scheduled
+     * @return The plan that is scheduled
+     * @since 1.4.0
+     */
+    public TransitionPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Get the lights to which the plan is applied
+     * @return The lights to which the plan is applied
+     * @since 1.4.0
+     */
+    public Light[] getLights() {
+        return lights.clone();
+    }
+
+    /**
+     * Get the time at which the plan started
+     * @return The time at which the plan started (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Cancel the steps that are not sent yet<br>
+     * <i>Note: A transition that the lights already started is not stopped</i>
+     * @since 1.4.0
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if(task != null) task.cancel(false);
+        task = null;
+    }
+
+    /**
+     * Check if the transition is cancelled
+     * @return True if the transition is cancelled, false if not
+     * @since 1.4.0
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Check if every step is sent
+     * @return True if every step is sent, false if not
+     * @since 1.4.0
+     */
+    public synchronized boolean isDone() {
+        return nextStep >= plan.getSteps().size();
+    }
+
+    /**
+     * Get the index of the next step and advance past the steps that are due
+     * @param now The current time (in milliseconds)
+     * @return The index of the first step that is not due, so the steps from the returned index of the previous call up to this index are due
+     * @since 1.4.0
+     */
+    synchronized int advance(long now) {
+        while (nextStep < plan.getSteps().size() && plan.getSteps().get(nextStep).getOffset() <= now - startTime) nextStep++;
+        return nextStep;
+    }
+
+    /**
+     * Change the task that sends the next steps
+     * @param task The task that sends the next steps
+     * @return False if the transition is cancelled (and the task is cancelled as well), true if not
+     * @since 1.4.0
+     */
+    synchronized boolean setTask(ScheduledFuture<?> task) {
+        if(cancelled){
+            task.cancel(false);
+            return false;
+        }
+        this.task = task;
+        return true;
+    }
+
+    /**
+     * Send steps to a light on an executor, after the steps that were handed to the executor for the light before<br>
+     * The steps of a light are chained, so a later batch of steps never overtakes an earlier batch, even if it is due while the earlier batch is still being sent.
+     * A batch is skipped if the transition is cancelled before it starts, and a batch that failed does not stop the batches after it.
+     * @param index The index of the light
+     * @param steps The steps that are due
+     * @param executor The executor that sends the steps
+     * @since 1.4.0
+     */
+    synchronized void send(int index, List<TransitionPlan.Step> steps, Executor executor) {
+        Light light = lights[index];
+        senders[index] = senders[index].handle((result, error) -> null).thenRunAsync(() -> {
+            for(TransitionPlan.Step step: steps){
+                if(isCancelled()) return;
+                light.applyUpdate(step.getProperties());
+            }
+        }, executor);
+    }
+
+    /**
+     * Get a future that completes when every step that is handed to the executor so far is sent
+     * @return A future that completes when every step that is handed to the executor so far is sent
+     * @since 1.4.0
+     */
+    synchronized CompletableFuture<Void> whenSent() {
+        CompletableFuture<?>[] pending = new CompletableFuture<?>[senders.length];
+        for(int i = 0; i < senders.length; i++){
+            pending[i] = senders[i].handle((result, error) -> null);
+        }
+        return CompletableFuture.allOf(pending);
+    }
+
+    /**
+     * Get the lights to which the plan is applied, without copying them
+     * @return The lights to which the plan is applied
+     * @since 1.4.0
+     */
+    Light[] lights() {
+        return lights;
+    }
+
+}
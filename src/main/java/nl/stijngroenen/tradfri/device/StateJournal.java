@@ -0,0 +1,807 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The class that records every state change of IKEA TRÅDFRI lights and plugs durably, in a binary append-only log<br>
+ * Both the changes that are observed and the writes that are sent are recorded, including writes to groups (as a write to every light and plug in the group).
+ * Recording only copies a fixed-size record into a batch in memory: a single writer thread appends the batch to the log and forces it to disk (group commit),
+ * so recording never waits for the disk.<br>
+ * When the log grows beyond the compaction threshold, the latest state of every device is written to a snapshot, and the log is archived as a segment.
+ * The most recent segments are kept together with the snapshots they start from, so states can still be replayed at every point in time since the oldest
+ * retained segment (see {@link #getOldestReplayTime()}). Every record has a checksum, so a record that was torn by a crash is discarded when the journal is opened again.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class StateJournal implements Closeable, Flushable {
+
+    /**
+     * The size of a record in the log (flags, sequence number, time, instance id, values word, colour word, hexadecimal colour and checksum)
+     */
+    private static final int RECORD_SIZE = 45;
+
+    /**
+     * The size of the header of a snapshot (magic number, sequence number, time and number of entries)
+     */
+    private static final int HEADER_SIZE = 24;
+
+    /**
+     * The size of an entry in a snapshot (flags, time, instance id, values word, colour word and hexadecimal colour)
+     */
+    private static final int ENTRY_SIZE = 33;
+
+    /**
+     * The flag of a record that contains a write that was sent (instead of a change that was observed)
+     */
+    private static final byte WRITTEN = 1;
+
+    /**
+     * The flag of a record that contains the state of a plug (instead of a light)
+     */
+    private static final byte PLUG = 2;
+
+    /**
+     * The flag of a packed hexadecimal colour that is set if the hexadecimal colour is present
+     */
+    private static final int HEX_PRESENT = 1 << 24;
+
+    /**
+     * The number that a snapshot starts with
+     */
+    private static final int SNAPSHOT_MAGIC = 0x54464A54;
+
+    /**
+     * The directory that contains the journal
+     */
+    private final Path directory;
+
+    /**
+     * The file that contains the current log
+     */
+    private final Path logFile;
+
+    /**
+     * The channel that appends to the current log (guarded by the I/O lock)
+     */
+    private FileChannel channel;
+
+    /**
+     * The lock that is held while the log, the segments or the snapshots are written or read
+     */
+    private final Object ioLock = new Object();
+
+    /**
+     * The latest state of every device, by instance id (flags, time, values word, colour word and hexadecimal colour)
+     */
+    private final HashMap<Integer, long[]> states;
+
+    /**
+     * The records that are not appended to the log yet
+     */
+    private ByteBuffer batch;
+
+    /**
+     * The sequence number of the last record
+     */
+    private long sequence;
+
+    /**
+     * The sequence number of the last record that is forced to disk
+     */
+    private long durableSequence;
+
+    /**
+     * The time of the last record (in milliseconds)
+     */
+    private long lastTime;
+
+    /**
+     * The number of times a batch was appended to the log and forced to disk
+     */
+    private long commitCount;
+
+    /**
+     * The error of the last commit that failed (null if the last commit succeeded)
+     */
+    private IOException failure;
+
+    /**
+     * Whether the journal is closed
+     */
+    private boolean closed;
+
+    /**
+     * The maximum time a record waits before its batch is appended to the log (in milliseconds)
+     * @value 10
+     */
+    private volatile long commitInterval = 10L;
+
+    /**
+     * The size of the log after which it is compacted into a snapshot (in bytes)
+     * @value 16777216
+     */
+    private volatile long compactionThreshold = 16L * 1024 * 1024;
+
+    /**
+     * The number of archived segments that are kept after a compaction
+     * @value 4
+     */
+    private volatile int retainedSegments = 4;
+
+    /**
+     * The thread that appends the batches to the log
+     */
+    private final Thread writer;
+
+    /**
+     * Open the journal in a directory, recovering the state from the latest snapshot and the log in it
+     * @param directory The directory that contains the journal (it is created if it does not exist)
+     * @throws IOException Thrown if the journal could not be opened
+     * @since 1.4.0
+     */
+    public StateJournal(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.logFile = directory.resolve("journal.log");
+        this.states = new HashMap<>();
+        this.batch = ByteBuffer.allocate(RECORD_SIZE * 256);
+        Scan scan = new Scan();
+        TreeMap<Long, Path> snapshots = list(".snapshot");
+        if(!snapshots.isEmpty()) readSnapshot(snapshots.lastEntry().getValue(), states, scan);
+        scanLog(logFile, scan.lastSequence, Long.MAX_VALUE, states, scan);
+        this.sequence = scan.lastSequence;
+        this.durableSequence = scan.lastSequence;
+        this.lastTime = scan.lastTime;
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(scan.validLength);
+        channel.position(scan.validLength);
+        this.writer = new Thread(this::write, "tradfri-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Start recording the state changes of a device<br>
+     * The devices that are fetched from a gateway after {@link Gateway#setJournal(StateJournal)} are recorded automatically
+     * @param device The device
+     * @since 1.4.0
+     */
+    public void attach(Device device) {
+        device.setJournal(this);
+    }
+
+    /**
+     * Stop recording the state changes of a device
+     * @param device The device
+     * @since 1.4.0
+     */
+    public void detach(Device device) {
+        if(device.getJournal() == this) device.setJournal(null);
+    }
+
+    /**
+     * Record a change of the state of a device that was observed
+     * @param device The device
+     * @param properties The new state of the device
+     * @since 1.4.0
+     */
+    void recordObserved(Device device, DeviceProperties properties) {
+        record(device, properties, (byte) 0);
+    }
+
+    /**
+     * Record a write to a device that was sent
+     * @param device The device
+     * @param properties The properties that were written
+     * @since 1.4.0
+     */
+    void recordWritten(Device device, DeviceProperties properties) {
+        record(device, properties, WRITTEN);
+    }
+
+    /**
+     * Record a state of a device
+     * @param device The device
+     * @param properties The state of the device
+     * @param flags The flags of the record
+     * @since 1.4.0
+     */
+    private void record(Device device, DeviceProperties properties, byte flags) {
+        if(device.getInstanceId() == null) return;
+        LightProperties lightProperties;
+        if(properties instanceof LightProperties){
+            lightProperties = (LightProperties) properties;
+        }else if(properties instanceof PlugProperties){
+            lightProperties = new LightProperties();
+            lightProperties.setOn(((PlugProperties) properties).getOn());
+            flags |= PLUG;
+        }else{
+            return;
+        }
+        if(!LightState.fits(lightProperties)) return;
+        append(flags, device.getInstanceId(), LightState.packValues(lightProperties), LightState.packColour(lightProperties), packHex(lightProperties.getColourHex()));
+    }
+
+    /**
+     * Pack a hexadecimal colour into an int
+     * @param colourHex The hexadecimal colour
+     * @return The packed hexadecimal colour (0 if it is absent or not made up of six hexadecimal digits)
+     * @since 1.4.0
+     */
+    private static int packHex(String colourHex) {
+        if(colourHex == null || colourHex.length() != 6) return 0;
+        int value = 0;
+        for(int i = 0; i < 6; i++){
+            int digit = Character.digit(colourHex.charAt(i), 16);
+            if(digit < 0) return 0;
+            value = value << 4 | digit;
+        }
+        return HEX_PRESENT | value;
+    }
+
+    /**
+     * Unpack a hexadecimal colour
+     * @param colourHex The packed hexadecimal colour
+     * @return The hexadecimal colour, in lower case (null if it is absent)
+     * @since 1.4.0
+     */
+    private static String unpackHex(long colourHex) {
+        return (colourHex & HEX_PRESENT) != 0 ? String.format("%06x", colourHex & 0xFFFFFF) : null;
+    }
+
+    /**
+     * Append a record to the batch
+     * @param flags The flags of the record
+     * @param instanceId The instance id of the device
+     * @param values The values word of the state
+     * @param colour The colour word of the state
+     * @param colourHex The packed hexadecimal colour of the state
+     * @since 1.4.0
+     */
+    private synchronized void append(byte flags, int instanceId, long values, long colour, int colourHex) {
+        if(closed) return;
+        lastTime = Math.max(lastTime, System.currentTimeMillis());
+        sequence++;
+        if(batch.remaining() < RECORD_SIZE){
+            ByteBuffer larger = ByteBuffer.allocate(batch.capacity() * 2);
+            batch.flip();
+            larger.put(batch);
+            batch = larger;
+        }
+        int start = batch.position();
+        batch.put(flags).putLong(sequence).putLong(lastTime).putInt(instanceId).putLong(values).putLong(colour).putInt(colourHex);
+        CRC32 crc = new CRC32();
+        crc.update(batch.array(), start, RECORD_SIZE - 4);
+        batch.putInt((int) crc.getValue());
+        apply(states, flags, instanceId, lastTime, values, colour, colourHex);
+    }
+
+    /**
+     * Apply a record to the states of the devices<br>
+     * An observed state replaces the state of the device, and a write is merged into it
+     * @param states The states of the devices
+     * @param flags The flags of the record
+     * @param instanceId The instance id of the device
+     * @param time The time of the record (in milliseconds)
+     * @param values The values word of the record
+     * @param colour The colour word of the record
+     * @param colourHex The packed hexadecimal colour of the record
+     * @since 1.4.0
+     */
+    private static void apply(Map<Integer, long[]> states, byte flags, int instanceId, long time, long values, long colour, long colourHex) {
+        long[] state = states.get(instanceId);
+        if(state == null){
+            state = new long[5];
+            states.put(instanceId, state);
+        }else if((flags & WRITTEN) != 0){
+            values = LightState.mergeValues(state[2], values, colour);
+            colour = LightState.mergeColour(state[3], colour);
+            if((colourHex & HEX_PRESENT) == 0) colourHex = state[4];
+        }
+        state[0] = flags & PLUG;
+        state[1] = time;
+        state[2] = values;
+        state[3] = colour;
+        state[4] = colourHex;
+    }
+
+    /**
+     * Append the batches to the log until the journal is closed<br>
+     * A batch is taken while holding the I/O lock, so a compaction can not write a later batch and rotate the log in between,
+     * which would append the records of the earlier batch to the new log, after the snapshot that already contains them
+     * @since 1.4.0
+     */
+    private void write() {
+        while (true) {
+            synchronized (this) {
+                if(!closed && batch.position() == 0){
+                    try {
+                        wait(commitInterval);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+            }
+            long upTo = 0L;
+            boolean stop = false;
+            boolean written = false;
+            IOException error = null;
+            try {
+                boolean full;
+                synchronized (ioLock) {
+                    ByteBuffer pending;
+                    synchronized (this) {
+                        pending = batch;
+                        upTo = sequence;
+                        stop = closed;
+                        batch = ByteBuffer.allocate(pending.capacity());
+                    }
+                    pending.flip();
+                    written = pending.hasRemaining();
+                    if(written){
+                        while (pending.hasRemaining()) channel.write(pending);
+                        channel.force(false);
+                    }
+                    full = channel.size() > compactionThreshold;
+                }
+                if(full) compact();
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                if(error == null){
+                    durableSequence = Math.max(durableSequence, upTo);
+                    if(written) commitCount++;
+                }
+                failure = error;
+                notifyAll();
+            }
+            if(stop) return;
+        }
+    }
+
+    /**
+     * Wait until every record that was recorded before the call is forced to disk
+     * @throws IOException Thrown if the records could not be written, or the journal is closed before they are written
+     * @since 1.4.0
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        long target = sequence;
+        notifyAll();
+        while (durableSequence < target) {
+            if(failure != null) throw failure;
+            if(!writer.isAlive()) throw new IOException("The journal is closed");
+            try {
+                wait(commitInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while flushing the journal", e);
+            }
+        }
+    }
+
+    /**
+     * Compact the log: write a snapshot that contains the latest state of every device, archive the log as a segment and start a new log<br>
+     * Only the most recent segments are kept (see {@link #setRetainedSegments(int)}), together with the snapshot that the oldest of them starts from
+     * @throws IOException Thrown if the snapshot could not be written or the log could not be archived
+     * @since 1.4.0
+     */
+    public void compact() throws IOException {
+        synchronized (ioLock) {
+            ByteBuffer pending;
+            ByteBuffer snapshot;
+            long snapshotSequence;
+            synchronized (this) {
+                pending = batch;
+                batch = ByteBuffer.allocate(pending.capacity());
+                snapshotSequence = sequence;
+                snapshot = ByteBuffer.allocate(HEADER_SIZE + states.size() * ENTRY_SIZE + 4);
+                snapshot.putInt(SNAPSHOT_MAGIC).putLong(sequence).putLong(lastTime).putInt(states.size());
+                for(Map.Entry<Integer, long[]> entry: states.entrySet()){
+                    long[] state = entry.getValue();
+                    snapshot.put((byte) state[0]).putLong(state[1]).putInt(entry.getKey()).putLong(state[2]).putLong(state[3]).putInt((int) state[4]);
+                }
+            }
+            pending.flip();
+            while (pending.hasRemaining()) channel.write(pending);
+            if(channel.size() == 0) return;
+            channel.force(false);
+            CRC32 crc = new CRC32();
+            crc.update(snapshot.array(), 0, snapshot.position());
+            snapshot.putInt((int) crc.getValue());
+            snapshot.flip();
+            Path temporary = directory.resolve("journal.snapshot.tmp");
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (snapshot.hasRemaining()) out.write(snapshot);
+                out.force(true);
+            }
+            Files.move(temporary, file(snapshotSequence, ".snapshot"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            Files.move(logFile, file(snapshotSequence, ".log"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            channel.force(true);
+            prune();
+        }
+    }
+
+    /**
+     * Delete the segments beyond the retained segments, and the snapshots that no retained segment starts from
+     * @throws IOException Thrown if a file could not be deleted
+     * @since 1.4.0
+     */
+    private void prune() throws IOException {
+        TreeMap<Long, Path> segments = list(".log");
+        while (segments.size() > retainedSegments) {
+            Map.Entry<Long, Path> oldest = segments.pollFirstEntry();
+            Files.deleteIfExists(oldest.getValue());
+            for(Map.Entry<Long, Path> snapshot: list(".snapshot").headMap(oldest.getKey(), false).entrySet()){
+                Files.deleteIfExists(snapshot.getValue());
+            }
+        }
+    }
+
+    /**
+     * Get the earliest point in time at which the states can be replayed
+     * @return The earliest point in time that {@link #replay(long)} accepts (in milliseconds, {@link Long#MIN_VALUE} if the journal still contains every record since it was created)
+     * @throws IOException Thrown if the journal could not be read
+     * @since 1.4.0
+     */
+    public long getOldestReplayTime() throws IOException {
+        synchronized (ioLock) {
+            TreeMap<Long, Path> snapshots = list(".snapshot");
+            if(hasGenesis(snapshots)) return Long.MIN_VALUE;
+            Scan scan = new Scan();
+            readHeader(snapshots.firstEntry().getValue(), scan);
+            return scan.lastTime;
+        }
+    }
+
+    /**
+     * Rebuild the state of every recorded device at a point in time<br>
+     * The state is rebuilt from the newest retained snapshot at or before the point in time, and the records after it.
+     * A device that was not recorded yet at the point in time is left out. Hexadecimal colours are only recorded if they are made up of six hexadecimal digits,
+     * and are replayed in lower case. A write to a group is recorded as a write to every light and plug in the group at the time of the write.
+     * @param time The point in time (in milliseconds)
+     * @return The state of every recorded device at the point in time, by instance id ({@link LightProperties} for lights and {@link PlugProperties} for plugs)
+     * @throws IOException Thrown if the journal could not be read
+     * @throws IllegalArgumentException Thrown if the point in time is before the oldest retained point in time (see {@link #getOldestReplayTime()})
+     * @since 1.4.0
+     */
+    public Map<Integer, DeviceProperties> replay(long time) throws IOException {
+        flush();
+        HashMap<Integer, long[]> states = new HashMap<>();
+        synchronized (ioLock) {
+            TreeMap<Long, Path> snapshots = list(".snapshot");
+            Scan scan = new Scan();
+            Path base = null;
+            for(Path snapshot: snapshots.descendingMap().values()){
+                Scan header = new Scan();
+                readHeader(snapshot, header);
+                if(header.lastTime <= time){
+                    base = snapshot;
+                    break;
+                }
+            }
+            if(base != null){
+                readSnapshot(base, states, scan);
+            }else if(!hasGenesis(snapshots)){
+                throw new IllegalArgumentException("The journal does not reach back to the point in time, the oldest point in time is " + getOldestReplayTime());
+            }
+            long baseSequence = scan.lastSequence;
+            for(Map.Entry<Long, Path> segment: list(".log").entrySet()){
+                if(segment.getKey() > baseSequence) scanLog(segment.getValue(), baseSequence, time, states, new Scan());
+            }
+            scanLog(logFile, baseSequence, time, states, new Scan());
+        }
+        Map<Integer, DeviceProperties> result = new HashMap<>();
+        for(Map.Entry<Integer, long[]> entry: states.entrySet()){
+            long[] state = entry.getValue();
+            if((state[0] & PLUG) != 0){
+                PlugProperties properties = new PlugProperties();
+                properties.setOn(LightState.getOn(state[3]));
+                result.put(entry.getKey(), properties);
+            }else{
+                result.put(entry.getKey(), LightState.unpack(state[2], state[3], unpackHex(state[4])));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check if the journal still contains every record since it was created<br>
+     * Every archived segment starts from the snapshot of the segment before it, so if no snapshot is older than the oldest segment, that segment starts from an empty state
+     * @param snapshots The snapshots, by sequence number
+     * @return True if the states can be replayed from an empty state, false if they have to be replayed from a snapshot
+     * @throws IOException Thrown if the segments could not be listed
+     * @since 1.4.0
+     */
+    private boolean hasGenesis(TreeMap<Long, Path> snapshots) throws IOException {
+        if(snapshots.isEmpty()) return true;
+        TreeMap<Long, Path> segments = list(".log");
+        return !segments.isEmpty() && snapshots.firstKey() >= segments.firstKey();
+    }
+
+    /**
+     * Get the file of a snapshot or an archived segment
+     * @param sequence The sequence number of the last record in the snapshot or segment
+     * @param extension The extension of the file
+     * @return The file of the snapshot or segment
+     * @since 1.4.0
+     */
+    private Path file(long sequence, String extension) {
+        return directory.resolve(String.format("journal-%020d%s", sequence, extension));
+    }
+
+    /**
+     * List the snapshots or archived segments of the journal
+     * @param extension The extension of the files
+     * @return The files, by the sequence number of their last record
+     * @throws IOException Thrown if the directory could not be read
+     * @since 1.4.0
+     */
+    private TreeMap<Long, Path> list(String extension) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "journal-*" + extension)) {
+            for(Path file: stream){
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(8, name.length() - extension.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not a file of the journal
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Read the header of a snapshot
+     * @param file The snapshot
+     * @param scan The scan that receives the sequence number and the time of the snapshot
+     * @throws IOException Thrown if the snapshot could not be read or is invalid
+     * @since 1.4.0
+     */
+    private static void readHeader(Path file, Scan scan) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if(in.read(header) < 0) throw new IOException("The snapshot " + file + " of the journal is invalid");
+            }
+        }
+        header.flip();
+        if(header.getInt() != SNAPSHOT_MAGIC) throw new IOException("The snapshot " + file + " of the journal is invalid");
+        scan.lastSequence = header.getLong();
+        scan.lastTime = header.getLong();
+    }
+
+    /**
+     * Read a snapshot into the states of the devices
+     * @param file The snapshot
+     * @param states The states of the devices
+     * @param scan The scan that receives the sequence number and the time of the snapshot
+     * @throws IOException Thrown if the snapshot could not be read or is invalid
+     * @since 1.4.0
+     */
+    private static void readSnapshot(Path file, Map<Integer, long[]> states, Scan scan) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer snapshot = ByteBuffer.wrap(bytes);
+        if(bytes.length < HEADER_SIZE + 4 || snapshot.getInt() != SNAPSHOT_MAGIC) throw new IOException("The snapshot " + file + " of the journal is invalid");
+        scan.lastSequence = snapshot.getLong();
+        scan.lastTime = snapshot.getLong();
+        int count = snapshot.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if(bytes.length != HEADER_SIZE + count * ENTRY_SIZE + 4 || ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt() != (int) crc.getValue()) throw new IOException("The snapshot " + file + " of the journal is invalid");
+        for(int i = 0; i < count; i++){
+            byte flags = snapshot.get();
+            long recordTime = snapshot.getLong();
+            int instanceId = snapshot.getInt();
+            long values = snapshot.getLong();
+            long colour = snapshot.getLong();
+            int colourHex = snapshot.getInt();
+            apply(states, flags, instanceId, recordTime, values, colour, colourHex);
+        }
+    }
+
+    /**
+     * Read a log or an archived segment, and apply every record after a sequence number up to a point in time
+     * @param file The log or segment
+     * @param afterSequence The sequence number after which records are applied
+     * @param time The point in time (in milliseconds)
+     * @param states The states of the devices to apply the records to
+     * @param scan The scan that receives the length of the valid records, and the last sequence number and time
+     * @throws IOException Thrown if the file could not be read
+     * @since 1.4.0
+     */
+    private static void scanLog(Path file, long afterSequence, long time, Map<Integer, long[]> states, Scan scan) throws IOException {
+        if(!Files.exists(file)) return;
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(file); DataInputStream data = new DataInputStream(new BufferedInputStream(in, RECORD_SIZE * 1024))) {
+            while (true) {
+                try {
+                    data.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(record, 0, RECORD_SIZE - 4);
+                buffer.clear();
+                byte flags = buffer.get();
+                long recordSequence = buffer.getLong();
+                long recordTime = buffer.getLong();
+                int instanceId = buffer.getInt();
+                long values = buffer.getLong();
+                long colour = buffer.getLong();
+                int colourHex = buffer.getInt();
+                if(buffer.getInt() != (int) crc.getValue()) break;
+                scan.validLength += RECORD_SIZE;
+                scan.lastSequence = Math.max(scan.lastSequence, recordSequence);
+                scan.lastTime = Math.max(scan.lastTime, recordTime);
+                if(recordSequence > afterSequence && recordTime <= time) apply(states, flags, instanceId, recordTime, values, colour, colourHex);
+            }
+        }
+    }
+
+    /**
+     * Get the maximum time a record waits before its batch is appended to the log
+     * @return The commit interval (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * Change the maximum time a record waits before its batch is appended to the log<br>
+     * A longer interval makes larger batches, so the disk is forced less often
+     * @param commitInterval The new commit interval (in milliseconds)
+     * @since 1.4.0
+     */
+    public void setCommitInterval(long commitInterval) {
+        if(commitInterval < 1) throw new IllegalArgumentException("The commit interval must be at least 1 millisecond");
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Get the size of the log after which it is compacted into a snapshot
+     * @return The compaction threshold (in bytes)
+     * @since 1.4.0
+     */
+    public long getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    /**
+     * Change the size of the log after which it is compacted into a snapshot
+     * @param compactionThreshold The new compaction threshold (in bytes)
+     * @since 1.4.0
+     */
+    public void setCompactionThreshold(long compactionThreshold) {
+        if(compactionThreshold < RECORD_SIZE) throw new IllegalArgumentException("The compaction threshold must be at least the size of a record");
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Get the number of archived segments that are kept after a compaction
+     * @return The number of retained segments
+     * @since 1.4.0
+     */
+    public int getRetainedSegments() {
+        return retainedSegments;
+    }
+
+    /**
+     * Change the number of archived segments that are kept after a compaction<br>
+     * More segments reach further back in time for {@link #replay(long)}, at the cost of disk space (up to the compaction threshold per segment).
+     * The change takes effect at the next compaction.
+     * @param retainedSegments The new number of retained segments (0 to only keep the latest snapshot, {@link Integer#MAX_VALUE} to keep every segment)
+     * @since 1.4.0
+     */
+    public void setRetainedSegments(int retainedSegments) {
+        if(retainedSegments < 0) throw new IllegalArgumentException("The number of retained segments must not be negative");
+        this.retainedSegments = retainedSegments;
+    }
+
+    /**
+     * Get the number of times a batch was appended to the log and forced to disk
+     * @return The number of commits
+     * @since 1.4.0
+     */
+    public synchronized long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * Get the sequence number of the last record
+     * @return The number of records since the journal was created
+     * @since 1.4.0
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Append the remaining records to the log, and close the journal<br>
+     * Records that are recorded after the journal is closed are discarded
+     * @throws IOException Thrown if the remaining records could not be written
+     * @since 1.4.0
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if(closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ioLock) {
+            channel.close();
+        }
+        synchronized (this) {
+            if(failure != null) throw failure;
+        }
+    }
+
+    /**
+     * The class that contains the result of reading a snapshot or a log
+     * @since 1.4.0
+     */
+    private static class Scan {
+
+        /**
+         * The length of the log up to the first record that is torn or corrupt (in bytes)
+         */
+        private long validLength;
+
+        /**
+         * The sequence number of the last record
+         */
+        private long lastSequence;
+
+        /**
+         * The time of the last record (in milliseconds)
+         */
+        private long lastTime;
+    }
+
+}
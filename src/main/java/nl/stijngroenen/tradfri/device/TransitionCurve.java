@@ -0,0 +1,36 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+/**
+ * The interface for a curve of the state of a light over time, which the {@link TransitionPlanner} approximates with transitions of the light
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+@FunctionalInterface
+public interface TransitionCurve {
+
+    /**
+     * Get the state of the light at a point in time<br>
+     * The same fields have to be present at every point in time
+     * @param time The time since the start of the curve (in milliseconds)
+     * @return The state of the light at the point in time
+     * @since 1.4.0
+     */
+    LightProperties at(long time);
+
+}
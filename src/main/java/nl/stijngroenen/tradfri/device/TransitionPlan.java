@@ -0,0 +1,126 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The class that contains the updates that approximate a {@link TransitionCurve} with transitions of a light<br>
+ * The first step sets the state at the start of the curve, and every following step starts a transition to the state at the end of a segment of the curve
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class TransitionPlan {
+
+    /**
+     * The steps of the plan, ordered by their offset
+     */
+    private final List<Step> steps;
+
+    /**
+     * The duration of the curve (in milliseconds)
+     */
+    private final long duration;
+
+    /**
+     * Construct the TransitionPlan class
+     * @param steps The steps of the plan, ordered by their offset
+     * @param duration The duration of the curve (in milliseconds)
+     * @since 1.4.0
+     */
+    TransitionPlan(List<Step> steps, long duration) {
+        this.steps = Collections.unmodifiableList(steps);
+        this.duration = duration;
+    }
+
+    /**
+     * Get the steps of the plan
+     * @return The steps of the plan, ordered by their offset
+     * @since 1.4.0
+     */
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Get the duration of the curve
+     * @return The duration of the curve (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Get the number of updates per light that are needed to apply the plan
+     * @return The number of steps of the plan
+     * @since 1.4.0
+     */
+    public int getRequestCount() {
+        return steps.size();
+    }
+
+    /**
+     * The class that contains an update of a transition plan
+     * @since 1.4.0
+     */
+    public static class Step {
+
+        /**
+         * The time since the start of the plan at which the update is sent (in milliseconds)
+         */
+        private final long offset;
+
+        /**
+         * The properties to send, including the transition time
+         */
+        private final LightProperties properties;
+
+        /**
+         * Construct the Step class
+         * @param offset The time since the start of the plan at which the update is sent (in milliseconds)
+         * @param properties The properties to send, including the transition time
+         * @since 1.4.0
+         */
+        Step(long offset, LightProperties properties) {
+            this.offset = offset;
+            this.properties = properties;
+        }
+
+        /**
+         * Get the time at which the update is sent
+         * @return The time since the start of the plan at which the update is sent (in milliseconds)
+         * @since 1.4.0
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the properties to send
+         * @return A copy of the properties to send, including the transition time
+         * @since 1.4.0
+         */
+        public LightProperties getProperties() {
+            LightProperties copy = LightState.copy(properties);
+            copy.setTransitionTime(properties.getTransitionTime());
+            return copy;
+        }
+    }
+
+}
@@ -0,0 +1,383 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class that approximates a curve of the state of a light with as few transitions of the light as possible, and schedules them<br>
+ * The curve is sampled at a fixed interval and split greedily into the longest segments that a linear transition follows within the tolerance.
+ * Every segment costs a single update, in which the transition time makes the light fade to the end of the segment by itself.
+ * The on / off state and the hexadecimal colour can only change at the end of a segment, and segments in which nothing changes are not sent at all.<br>
+ * The steps of every light are sent one after the other, so they are applied in order. The planner has to be closed to stop the thread that schedules the steps.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class TransitionPlanner implements Closeable {
+
+    /**
+     * The number of numeric fields that are approximated
+     */
+    private static final int FIELD_COUNT = 6;
+
+    /**
+     * A CoAP client that can be used to communicate with the lights using the IKEA TRÅDFRI gateway
+     */
+    private final CoapClient coapClient;
+
+    /**
+     * The time between samples of a curve (in milliseconds)
+     * @value 1000
+     */
+    private volatile long sampleInterval = 1000L;
+
+    /**
+     * The maximum difference between the curve and a transition for the brightness and the colour temperature
+     * @value 2
+     */
+    private volatile int tolerance = 2;
+
+    /**
+     * The maximum difference between the curve and a transition for the hue, the saturation and the X and Y values of the colour
+     * @value 300
+     */
+    private volatile int colourTolerance = 300;
+
+    /**
+     * The maximum duration of a single transition (in milliseconds)
+     * @value 600000
+     */
+    private volatile long maxTransitionTime = 600000L;
+
+    /**
+     * The executor that sends the steps at their time (null if it is not started yet)
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Whether the planner is closed
+     */
+    private boolean closed;
+
+    /**
+     * Construct the TransitionPlanner class
+     * @param coapClient A CoAP client that can be used to communicate with the lights using the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    TransitionPlanner(CoapClient coapClient) {
+        this.coapClient = coapClient;
+    }
+
+    /**
+     * Approximate a curve with transitions
+     * @param curve The curve of the state of the light
+     * @param duration The duration of the curve (in milliseconds)
+     * @return The plan that contains the updates that approximate the curve
+     * @since 1.4.0
+     */
+    public TransitionPlan plan(TransitionCurve curve, long duration) {
+        if(curve == null) throw new IllegalArgumentException("The curve must not be null");
+        if(duration < 0) throw new IllegalArgumentException("The duration must not be negative");
+        long sampleInterval = this.sampleInterval;
+        long maxTransitionTime = this.maxTransitionTime;
+        int count = (int) ((duration + sampleInterval - 1) / sampleInterval) + 1;
+        long[] times = new long[count];
+        LightProperties[] samples = new LightProperties[count];
+        int[][] values = new int[FIELD_COUNT][count];
+        int present = -1;
+        for(int k = 0; k < count; k++){
+            times[k] = Math.min(k * sampleInterval, duration);
+            samples[k] = curve.at(times[k]);
+            if(samples[k] == null) throw new IllegalArgumentException("The curve must not return null");
+            int mask = extract(samples[k], values, k);
+            if(present >= 0 && mask != present) throw new IllegalArgumentException("The curve must have the same fields present at every point in time");
+            present = mask;
+        }
+        int[] tolerances = { tolerance, colourTolerance, colourTolerance, colourTolerance, colourTolerance, tolerance };
+
+        List<TransitionPlan.Step> steps = new ArrayList<>();
+        steps.add(new TransitionPlan.Step(0, LightState.copy(samples[0])));
+        int i = 0;
+        while (i < count - 1) {
+            int end = i + 1;
+            for(int j = i + 2; j < count; j++){
+                if(times[j] - times[i] > maxTransitionTime) break;
+                if(!sameDiscrete(samples[j], samples[j - 1])) break;
+                if(!fits(values, tolerances, times, i, j)) break;
+                end = j;
+            }
+            if(!sameDiscrete(samples[i], samples[end]) || !sameValues(values, i, end)){
+                LightProperties properties = LightState.copy(samples[end]);
+                properties.setTransitionTime((int) Math.max(1, Math.round((times[end] - times[i]) / 100.0)));
+                steps.add(new TransitionPlan.Step(times[i], properties));
+            }
+            i = end;
+        }
+        return new TransitionPlan(steps, duration);
+    }
+
+    /**
+     * Extract the numeric fields of a sample
+     * @param sample The sample
+     * @param values The values of every field, by field and sample
+     * @param index The index of the sample
+     * @return The mask of the fields that are present
+     * @since 1.4.0
+     */
+    private static int extract(LightProperties sample, int[][] values, int index) {
+        Integer[] fields = { sample.getBrightness(), sample.getHue(), sample.getSaturation(), sample.getColourX(), sample.getColourY(), sample.getColourTemperature() };
+        int mask = 0;
+        for(int f = 0; f < FIELD_COUNT; f++){
+            if(fields[f] == null) continue;
+            values[f][index] = fields[f];
+            mask |= 1 << f;
+        }
+        return mask;
+    }
+
+    /**
+     * Check if a linear transition from a sample to another sample follows the samples in between within the tolerance
+     * @param values The values of every field, by field and sample
+     * @param tolerances The tolerance of every field
+     * @param times The time of every sample
+     * @param from The index of the first sample of the segment
+     * @param to The index of the last sample of the segment
+     * @return True if the transition follows the samples within the tolerance, false if not
+     * @since 1.4.0
+     */
+    private static boolean fits(int[][] values, int[] tolerances, long[] times, int from, int to) {
+        double span = times[to] - times[from];
+        for(int f = 0; f < FIELD_COUNT; f++){
+            int start = values[f][from];
+            int delta = values[f][to] - start;
+            for(int k = from + 1; k < to; k++){
+                double expected = start + delta * ((times[k] - times[from]) / span);
+                if(Math.abs(expected - values[f][k]) > tolerances[f]) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if two samples have the same numeric values
+     * @param values The values of every field, by field and sample
+     * @param a The index of the first sample
+     * @param b The index of the second sample
+     * @return True if the samples have the same numeric values, false if not
+     * @since 1.4.0
+     */
+    private static boolean sameValues(int[][] values, int a, int b) {
+        for(int f = 0; f < FIELD_COUNT; f++){
+            if(values[f][a] != values[f][b]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check if two samples have the same on / off state and hexadecimal colour, which can not be approximated by a transition
+     * @param a The first sample
+     * @param b The second sample
+     * @return True if the samples have the same on / off state and hexadecimal colour, false if not
+     * @since 1.4.0
+     */
+    private static boolean sameDiscrete(LightProperties a, LightProperties b) {
+        return Objects.equals(a.getOn(), b.getOn()) && Objects.equals(a.getColourHex(), b.getColourHex());
+    }
+
+    /**
+     * Schedule a plan for lights, starting now
+     * @param plan The plan to schedule
+     * @param lights The lights to which the plan is applied
+     * @return The scheduled transition, which can be used to cancel the steps that are not sent yet
+     * @throws IllegalStateException Thrown if the planner is closed
+     * @since 1.4.0
+     */
+    public ScheduledTransition schedule(TransitionPlan plan, Collection<Light> lights) {
+        if(plan == null) throw new IllegalArgumentException("The plan must not be null");
+        if(isClosed()) throw new IllegalStateException("The transition planner is closed");
+        ScheduledTransition transition = new ScheduledTransition(plan, lights.toArray(new Light[0]), System.currentTimeMillis());
+        sendDue(transition, 0);
+        return transition;
+    }
+
+    /**
+     * Approximate a curve with transitions, and schedule the plan for lights, starting now
+     * @param curve The curve of the state of the lights
+     * @param duration The duration of the curve (in milliseconds)
+     * @param lights The lights to which the plan is applied
+     * @return The scheduled transition, which can be used to cancel the steps that are not sent yet
+     * @throws IllegalStateException Thrown if the planner is closed
+     * @since 1.4.0
+     */
+    public ScheduledTransition schedule(TransitionCurve curve, long duration, Collection<Light> lights) {
+        return schedule(plan(curve, duration), lights);
+    }
+
+    /**
+     * Send the steps of a scheduled transition that are due, and schedule the next step<br>
+     * The due steps of every light are chained after the steps that were sent to it before, so they never overtake them
+     * @param transition The scheduled transition
+     * @param from The index of the first step that is not sent yet
+     * @since 1.4.0
+     */
+    private void sendDue(ScheduledTransition transition, int from) {
+        if(transition.isCancelled()) return;
+        long now = System.currentTimeMillis();
+        int to = transition.advance(now);
+        List<TransitionPlan.Step> steps = transition.getPlan().getSteps();
+        if(to > from){
+            List<TransitionPlan.Step> due = steps.subList(from, to);
+            for(int i = 0; i < transition.lights().length; i++){
+                transition.send(i, due, coapClient.getExecutor());
+            }
+        }
+        if(to >= steps.size()) return;
+        long delay = Math.max(0, transition.getStartTime() + steps.get(to).getOffset() - now);
+        ScheduledExecutorService scheduler = getScheduler();
+        if(scheduler == null){
+            transition.cancel();
+            return;
+        }
+        transition.setTask(scheduler.schedule(() -> sendDue(transition, to), delay, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Get the executor that sends the steps at their time, and start it if it is not started yet
+     * @return The executor that sends the steps at their time (null if the planner is closed)
+     * @since 1.4.0
+     */
+    private synchronized ScheduledExecutorService getScheduler() {
+        if(closed) return null;
+        if(scheduler == null){
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tradfri-transition-planner");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Check if the planner is closed
+     * @return True if the planner is closed, false if not
+     * @since 1.4.0
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the planner, which stops the thread that schedules the steps<br>
+     * The steps that are not due yet are not sent anymore, and transitions can not be scheduled afterwards
+     * @since 1.4.0
+     */
+    @Override
+    public synchronized void close() {
+        if(closed) return;
+        closed = true;
+        if(scheduler != null) scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    /**
+     * Get the time between samples of a curve
+     * @return The time between samples of a curve (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Change the time between samples of a curve<br>
+     * A shorter interval follows the curve more closely, but takes longer to plan
+     * @param sampleInterval The new time between samples of a curve (in milliseconds)
+     * @since 1.4.0
+     */
+    public void setSampleInterval(long sampleInterval) {
+        if(sampleInterval < 100) throw new IllegalArgumentException("The sample interval must be at least 100 milliseconds");
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * Get the maximum difference between the curve and a transition for the brightness and the colour temperature
+     * @return The maximum difference for the brightness and the colour temperature
+     * @since 1.4.0
+     */
+    public int getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Change the maximum difference between the curve and a transition for the brightness and the colour temperature
+     * @param tolerance The new maximum difference for the brightness and the colour temperature
+     * @since 1.4.0
+     */
+    public void setTolerance(int tolerance) {
+        if(tolerance < 0) throw new IllegalArgumentException("The tolerance must not be negative");
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Get the maximum difference between the curve and a transition for the hue, the saturation and the X and Y values of the colour
+     * @return The maximum difference for the hue, the saturation and the X and Y values of the colour
+     * @since 1.4.0
+     */
+    public int getColourTolerance() {
+        return colourTolerance;
+    }
+
+    /**
+     * Change the maximum difference between the curve and a transition for the hue, the saturation and the X and Y values of the colour
+     * @param colourTolerance The new maximum difference for the hue, the saturation and the X and Y values of the colour
+     * @since 1.4.0
+     */
+    public void setColourTolerance(int colourTolerance) {
+        if(colourTolerance < 0) throw new IllegalArgumentException("The colour tolerance must not be negative");
+        this.colourTolerance = colourTolerance;
+    }
+
+    /**
+     * Get the maximum duration of a single transition
+     * @return The maximum duration of a single transition (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getMaxTransitionTime() {
+        return maxTransitionTime;
+    }
+
+    /**
+     * Change the maximum duration of a single transition
+     * @param maxTransitionTime The new maximum duration of a single transition (in milliseconds)
+     * @since 1.4.0
+     */
+    public void setMaxTransitionTime(long maxTransitionTime) {
+        if(maxTransitionTime < 100) throw new IllegalArgumentException("The maximum transition time must be at least 100 milliseconds");
+        this.maxTransitionTime = maxTransitionTime;
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The class that coalesces rapid writes to an IKEA TRÅDFRI device, so only the newest value of a property is sent<br>
+ * At most one write to the device is in flight at a time. Writes that are submitted while a write is in flight wait in slots by the fields they change:
+ * a later write of the same slot replaces the pending write of that slot and moves to the end of the queue, and the pending writes are sent in the order
+ * in which they were last replaced, on the executor of the CoAP client. So writes of overlapping fields (for example the XY values and the hexadecimal colour)
+ * can not overtake each other, and the newest write always lands last.<br>
+ * <i>Note: A write that is queued returns true immediately, so a failure of that write is not reported to the caller</i>
+ * @param <P> The type of the properties that are written
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+class WriteCoalescer<P> {
+
+    /**
+     * The pending writes, by the change mask of the fields they change, in the order in which they are sent
+     */
+    private final LinkedHashMap<Integer, P> pending;
+
+    /**
+     * The function that sends a write to the device
+     */
+    private final Predicate<P> writer;
+
+    /**
+     * A CoAP client that can be used to communicate with the device using the IKEA TRÅDFRI gateway
+     */
+    private final CoapClient coapClient;
+
+    /**
+     * Whether a write is in flight
+     */
+    private boolean inFlight;
+
+    /**
+     * Construct the WriteCoalescer class
+     * @param writer The function that sends a write to the device
+     * @param coapClient A CoAP client that can be used to communicate with the device using the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    WriteCoalescer(Predicate<P> writer, CoapClient coapClient) {
+        this.pending = new LinkedHashMap<>();
+        this.writer = writer;
+        this.coapClient = coapClient;
+    }
+
+    /**
+     * Submit a write<br>
+     * If no write is in flight, the write is sent on the calling thread. If not, it replaces the pending write of the same fields, moves to the end of the queue and returns immediately.
+     * @param fields The change mask of the fields that the write changes
+     * @param properties The properties to write
+     * @return The result of the write if it is sent on the calling thread, or true if it is queued (even if it fails later on)
+     * @since 1.4.0
+     */
+    boolean submit(int fields, P properties) {
+        synchronized (this) {
+            if(inFlight){
+                if(pending.remove(fields) != null) coapClient.countCoalescedWrite();
+                pending.put(fields, properties);
+                return true;
+            }
+            inFlight = true;
+        }
+        try {
+            return writer.test(properties);
+        } finally {
+            complete();
+        }
+    }
+
+    /**
+     * Complete the write in flight, and send the pending writes on the executor of the CoAP client if there are any
+     * @since 1.4.0
+     */
+    private void complete() {
+        synchronized (this) {
+            if(pending.isEmpty()){
+                inFlight = false;
+                return;
+            }
+        }
+        coapClient.getExecutor().execute(this::drain);
+    }
+
+    /**
+     * Send the pending writes, oldest first, until there are none left
+     * @since 1.4.0
+     */
+    private void drain() {
+        while (true) {
+            P properties;
+            synchronized (this) {
+                if(pending.isEmpty()){
+                    inFlight = false;
+                    return;
+                }
+                Map.Entry<Integer, P> oldest = pending.entrySet().iterator().next();
+                properties = oldest.getValue();
+                pending.remove(oldest.getKey());
+            }
+            try {
+                writer.test(properties);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    pending.clear();
+                    inFlight = false;
+                }
+                throw e;
+            }
+        }
+    }
+
+}
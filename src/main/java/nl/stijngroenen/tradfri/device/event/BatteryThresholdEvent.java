@@ -0,0 +1,95 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device.event;
+
+import nl.stijngroenen.tradfri.device.Device;
+
+/**
+ * The class that represents an event that occurs when the battery level of an IKEA TRÅDFRI device crosses a threshold of a battery monitor<br>
+ * <i>Note: This is a {@link DeviceEvent}, so event handlers of a tracked device that handle every {@link DeviceEvent} receive it as well</i>
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class BatteryThresholdEvent extends DeviceEvent {
+
+    /**
+     * The threshold that was crossed
+     */
+    private final int threshold;
+
+    /**
+     * The old battery level of the device (null if it was not known)
+     */
+    private final Integer oldLevel;
+
+    /**
+     * The new battery level of the device
+     */
+    private final int newLevel;
+
+    /**
+     * Construct the BatteryThresholdEvent class
+     * @param device The device for which the event occurred
+     * @param threshold The threshold that was crossed
+     * @param oldLevel The old battery level of the device (null if it was not known)
+     * @param newLevel The new battery level of the device
+     * @since 1.4.0
+     */
+    public BatteryThresholdEvent(Device device, int threshold, Integer oldLevel, int newLevel) {
+        super(device);
+        this.threshold = threshold;
+        this.oldLevel = oldLevel;
+        this.newLevel = newLevel;
+    }
+
+    /**
+     * Get the threshold that was crossed
+     * @return The threshold that was crossed
+     * @since 1.4.0
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Get the old battery level of the device
+     * @return The old battery level of the device (null if it was not known)
+     * @since 1.4.0
+     */
+    public Integer getOldLevel() {
+        return oldLevel;
+    }
+
+    /**
+     * Get the new battery level of the device
+     * @return The new battery level of the device
+     * @since 1.4.0
+     */
+    public int getNewLevel() {
+        return newLevel;
+    }
+
+    /**
+     * Check if the battery level dropped to or below the threshold
+     * @return True if the battery level dropped to or below the threshold, false if it rose above the threshold (for example after the battery was replaced)
+     * @since 1.4.0
+     */
+    public boolean isBelow() {
+        return newLevel <= threshold;
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device.event;
+
+import nl.stijngroenen.tradfri.device.Device;
+import nl.stijngroenen.tradfri.device.DeviceField;
+import nl.stijngroenen.tradfri.device.DeviceType;
+import nl.stijngroenen.tradfri.device.Group;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * The class that filters the devices for which an event handler registered to an {@link nl.stijngroenen.tradfri.device.EventBus} is called<br>
+ * A filter without any conditions accepts every device, and a filter with multiple conditions only accepts devices that meet all of them.
+ * The conditions on devices decide which devices are observed by the event bus, and the condition on changed fields is checked before any event is constructed.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class EventFilter {
+
+    /**
+     * The device types to accept (null to accept every device type)
+     */
+    private EnumSet<DeviceType> deviceTypes;
+
+    /**
+     * The sorted ids of the devices to accept (null to accept every device)
+     */
+    private int[] deviceIds;
+
+    /**
+     * The group of which the devices to accept are a member (null to accept every device)
+     */
+    private Group group;
+
+    /**
+     * The sorted ids of the devices in the group
+     */
+    private int[] groupDeviceIds;
+
+    /**
+     * The change mask of the fields of which a change is accepted (0 to accept every notification)
+     */
+    private int changedFields;
+
+    /**
+     * Construct the EventFilter class
+     * @since 1.4.0
+     */
+    public EventFilter() {
+    }
+
+    /**
+     * Get the device types to accept
+     * @return The device types to accept (null if every device type is accepted)
+     * @since 1.4.0
+     */
+    public EnumSet<DeviceType> getDeviceTypes() {
+        return deviceTypes == null ? null : EnumSet.copyOf(deviceTypes);
+    }
+
+    /**
+     * Set the device types to accept
+     * @param deviceTypes The device types to accept (none to accept every device type)
+     * @since 1.4.0
+     */
+    public void setDeviceTypes(DeviceType... deviceTypes) {
+        if(deviceTypes == null || deviceTypes.length == 0){
+            this.deviceTypes = null;
+        }else{
+            this.deviceTypes = EnumSet.copyOf(Arrays.asList(deviceTypes));
+        }
+    }
+
+    /**
+     * Get the ids of the devices to accept
+     * @return The sorted ids of the devices to accept (null if every device is accepted)
+     * @since 1.4.0
+     */
+    public int[] getDeviceIds() {
+        return deviceIds == null ? null : deviceIds.clone();
+    }
+
+    /**
+     * Set the ids of the devices to accept
+     * @param deviceIds The ids of the devices to accept (none to accept every device)
+     * @since 1.4.0
+     */
+    public void setDeviceIds(int... deviceIds) {
+        if(deviceIds == null || deviceIds.length == 0){
+            this.deviceIds = null;
+        }else{
+            this.deviceIds = deviceIds.clone();
+            Arrays.sort(this.deviceIds);
+        }
+    }
+
+    /**
+     * Get the group of which the devices to accept are a member
+     * @return The group of which the devices to accept are a member (null if every device is accepted)
+     * @since 1.4.0
+     */
+    public Group getGroup() {
+        return group;
+    }
+
+    /**
+     * Set the group of which the devices to accept are a member<br>
+     * <i>Note: The members of the group are read when the group is set</i>
+     * @param group The group of which the devices to accept are a member (null to accept every device)
+     * @since 1.4.0
+     */
+    public void setGroup(Group group) {
+        this.group = group;
+        if(group == null){
+            this.groupDeviceIds = null;
+            return;
+        }
+        List<Device> devices = group.getDevices();
+        int[] groupDeviceIds = new int[devices.size()];
+        int count = 0;
+        for(Device device: devices){
+            if(device != null && device.getInstanceId() != null) groupDeviceIds[count++] = device.getInstanceId();
+        }
+        groupDeviceIds = Arrays.copyOf(groupDeviceIds, count);
+        Arrays.sort(groupDeviceIds);
+        this.groupDeviceIds = groupDeviceIds;
+    }
+
+    /**
+     * Get the fields of which a change is accepted
+     * @return The fields of which a change is accepted (null if every notification is accepted)
+     * @since 1.4.0
+     */
+    public EnumSet<DeviceField> getChangedFields() {
+        if(changedFields == 0) return null;
+        return DeviceField.fromMask(changedFields);
+    }
+
+    /**
+     * Set the fields of which a change is accepted<br>
+     * Notifications in which none of these fields changed are skipped, including notifications of devices without these fields
+     * @param changedFields The fields of which a change is accepted (none to accept every notification)
+     * @since 1.4.0
+     */
+    public void setChangedFields(DeviceField... changedFields) {
+        this.changedFields = changedFields == null ? 0 : DeviceField.mask(changedFields);
+    }
+
+    /**
+     * Check if the filter accepts a device
+     * @param device The device to check
+     * @return True if the filter accepts the device, false if not
+     * @since 1.4.0
+     */
+    public boolean accepts(Device device) {
+        if(device == null) return false;
+        if(deviceTypes != null && !deviceTypes.contains(device.getType())) return false;
+        if(deviceIds == null && groupDeviceIds == null) return true;
+        Integer instanceId = device.getInstanceId();
+        if(instanceId == null) return false;
+        if(deviceIds != null && Arrays.binarySearch(deviceIds, instanceId) < 0) return false;
+        return groupDeviceIds == null || Arrays.binarySearch(groupDeviceIds, instanceId) >= 0;
+    }
+
+    /**
+     * Check if the filter accepts a notification with certain changed fields
+     * @param changes The change mask that contains the changed fields
+     * @return True if the filter accepts the notification, false if not
+     * @since 1.4.0
+     */
+    public boolean acceptsChanges(int changes) {
+        return changedFields == 0 || (changes & changedFields) != 0;
+    }
+
+}
@@ -17,14 +17,57 @@
 package nl.stijngroenen.tradfri.device.event;
 
 import java.lang.reflect.ParameterizedType;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * The class that handles events for IKEA TRÅDFRI devices
+ * The class that handles events for IKEA TRÅDFRI devices<br>
+ * By default an event handler runs inline on the thread that dispatches the events. A slow event handler can be given its own executor,
+ * so it does not delay the other event handlers. The time spent handling events is measured in the metrics of the event handler,
+ * which also count the events that took longer than a slow threshold. The slow threshold is only a metric and is not enforced:
+ * the duration is compared to it after the event handler returns, and an event handler that takes longer is neither interrupted nor stopped.
  * @author Stijn Groenen
- * @version 1.0.0
+ * @version 1.4.0
  */
 public abstract class EventHandler<T extends Event> {
 
+    /**
+     * The class of the event that this event handler handles (resolved on first use)
+     */
+    private volatile Class<T> eventType;
+
+    /**
+     * The executor that runs the event handler (null to run it inline on the thread that dispatches the events)
+     */
+    private volatile Executor executor;
+
+    /**
+     * The time after which handling an event is counted as slow (in milliseconds, 0 to count no event as slow)
+     * @value 0
+     */
+    private volatile long slowThreshold;
+
+    /**
+     * The number of times the event handler handled an event
+     */
+    private final AtomicLong invocationCount = new AtomicLong();
+
+    /**
+     * The number of times the event handler took longer than its slow threshold
+     */
+    private final AtomicLong slowCount = new AtomicLong();
+
+    /**
+     * The total time spent handling events (in nanoseconds)
+     */
+    private final AtomicLong totalDuration = new AtomicLong();
+
+    /**
+     * The longest time spent handling an event (in nanoseconds)
+     */
+    private final AtomicLong maxDuration = new AtomicLong();
+
     /**
      * Construct the EventHandler class
      * @since 1.0.0
@@ -40,11 +83,140 @@ public abstract class EventHandler<T extends Event> {
     public abstract void handle(T event);
 
     /**
-     * Get the class of the event that this event handler handles
+     * Dispatch an event to the event handler, on its executor if it has one or inline if not<br>
+     * The time spent handling the event is measured and compared to the slow threshold of the event handler
+     * @param event The event that occurred
+     * @since 1.4.0
+     */
+    public final void dispatch(T event){
+        Executor executor = this.executor;
+        if(executor == null){
+            invoke(event);
+        }else{
+            executor.execute(() -> invoke(event));
+        }
+    }
+
+    /**
+     * Dispatch an event to the event handler if it is of the type that the event handler handles<br>
+     * This lets registries of event handlers of different types dispatch events without unchecked calls
+     * @param event The event that occurred
+     * @return True if the event is dispatched, false if the event handler does not handle events of its type
+     * @since 1.4.0
+     */
+    public final boolean offer(Event event){
+        Class<T> eventType = getEventType();
+        if(!eventType.isInstance(event)) return false;
+        dispatch(eventType.cast(event));
+        return true;
+    }
+
+    /**
+     * Handle an event and record the time spent handling it
+     * @param event The event that occurred
+     * @since 1.4.0
+     */
+    private void invoke(T event){
+        long start = System.nanoTime();
+        try {
+            handle(event);
+        } finally {
+            long duration = System.nanoTime() - start;
+            invocationCount.incrementAndGet();
+            totalDuration.addAndGet(duration);
+            maxDuration.accumulateAndGet(duration, Math::max);
+            long slowThreshold = this.slowThreshold;
+            if(slowThreshold > 0 && duration > TimeUnit.MILLISECONDS.toNanos(slowThreshold)) slowCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the executor that runs the event handler
+     * @return The executor that runs the event handler (null if it runs inline on the thread that dispatches the events)
+     * @since 1.4.0
+     */
+    public Executor getExecutor(){
+        return executor;
+    }
+
+    /**
+     * Change the executor that runs the event handler
+     * @param executor The new executor that runs the event handler (null to run it inline on the thread that dispatches the events)
+     * @since 1.4.0
+     */
+    public void setExecutor(Executor executor){
+        this.executor = executor;
+    }
+
+    /**
+     * Get the time after which handling an event is counted as slow (in milliseconds)
+     * @return The time after which handling an event is counted as slow (in milliseconds, 0 if no event is counted as slow)
+     * @since 1.4.0
+     */
+    public long getSlowThreshold(){
+        return slowThreshold;
+    }
+
+    /**
+     * Change the time after which handling an event is counted as slow (in milliseconds)<br>
+     * This only changes which events are counted by {@link #getSlowCount()}, an event handler that takes longer is not stopped
+     * @param slowThreshold The new time after which handling an event is counted as slow (in milliseconds, 0 to count no event as slow)
+     * @since 1.4.0
+     */
+    public void setSlowThreshold(long slowThreshold){
+        this.slowThreshold = Math.max(0L, slowThreshold);
+    }
+
+    /**
+     * Get the number of times the event handler handled an event
+     * @return The number of times the event handler handled an event
+     * @since 1.4.0
+     */
+    public long getInvocationCount(){
+        return invocationCount.get();
+    }
+
+    /**
+     * Get the number of times the event handler took longer than its slow threshold
+     * @return The number of times the event handler took longer than its slow threshold
+     * @since 1.4.0
+     */
+    public long getSlowCount(){
+        return slowCount.get();
+    }
+
+    /**
+     * Get the total time spent handling events (in nanoseconds)
+     * @return The total time spent handling events (in nanoseconds)
+     * @since 1.4.0
+     */
+    public long getTotalDuration(){
+        return totalDuration.get();
+    }
+
+    /**
+     * Get the longest time spent handling an event (in nanoseconds)
+     * @return The longest time spent handling an event (in nanoseconds)
+     * @since 1.4.0
+     */
+    public long getMaxDuration(){
+        return maxDuration.get();
+    }
+
+    /**
+     * Get the class of the event that this event handler handles<br>
+     * The class is resolved from the type argument of the event handler once, and cached afterwards
      * @return The class of the event that this event handler handles
      */
     public Class<T> getEventType(){
-        return (Class<T>) ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments()[0];
+        Class<T> eventType = this.eventType;
+        if(eventType == null){
+            // The type argument of a subclass of EventHandler<T> is T itself
+            @SuppressWarnings("unchecked") Class<T> resolved = (Class<T>) ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments()[0];
+            eventType = resolved;
+            this.eventType = eventType;
+        }
+        return eventType;
     }
 
 }
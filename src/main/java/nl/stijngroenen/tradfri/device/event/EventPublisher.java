@@ -0,0 +1,279 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device.event;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The class that publishes events of IKEA TRÅDFRI devices as a Reactive Streams {@link Publisher}<br>
+ * Every subscriber gets its own event handler, which is registered at the source of the events when the subscriber subscribes.
+ * Events are delivered on the thread that dispatches the events, or on the thread that requests more events, without any additional threads.
+ * Events that occur while a subscriber has not requested any are buffered, up to the buffer size of the publisher. When the buffer of a subscriber is full,
+ * the oldest buffered event is discarded to make room for the new event, so a slow subscriber misses events instead of holding up the thread that dispatches them.
+ * The subscriber is not notified of the discarded events, but they are counted in {@link #getDroppedCount()}.
+ * @param <T> The type of the published events
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class EventPublisher<T extends Event> implements Publisher<T> {
+
+    /**
+     * The default maximum number of events buffered for a subscriber
+     * @value 128
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 128;
+
+    /**
+     * The class of the published events
+     */
+    private final Class<T> eventType;
+
+    /**
+     * The function that registers an event handler at the source of the events
+     */
+    private final Consumer<EventHandler<T>> register;
+
+    /**
+     * The function that removes an event handler from the source of the events
+     */
+    private final Consumer<EventHandler<T>> unregister;
+
+    /**
+     * The maximum number of events buffered for a subscriber
+     */
+    private final int bufferSize;
+
+    /**
+     * The number of events that were discarded because the buffer of a subscriber was full
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Construct the EventPublisher class
+     * @param eventType The class of the published events
+     * @param register The function that registers an event handler at the source of the events
+     * @param unregister The function that removes an event handler from the source of the events
+     * @since 1.4.0
+     */
+    public EventPublisher(Class<T> eventType, Consumer<EventHandler<T>> register, Consumer<EventHandler<T>> unregister) {
+        this(eventType, register, unregister, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Construct the EventPublisher class
+     * @param eventType The class of the published events
+     * @param register The function that registers an event handler at the source of the events
+     * @param unregister The function that removes an event handler from the source of the events
+     * @param bufferSize The maximum number of events buffered for a subscriber
+     * @since 1.4.0
+     */
+    public EventPublisher(Class<T> eventType, Consumer<EventHandler<T>> register, Consumer<EventHandler<T>> unregister, int bufferSize) {
+        if(bufferSize < 1) throw new IllegalArgumentException("The buffer size must be at least 1");
+        this.eventType = eventType;
+        this.register = register;
+        this.unregister = unregister;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Get the class of the published events
+     * @return The class of the published events
+     * @since 1.4.0
+     */
+    public Class<T> getEventType() {
+        return eventType;
+    }
+
+    /**
+     * Get the number of events that were discarded because the buffer of a subscriber was full<br>
+     * An event that is discarded for multiple subscribers is counted once for every subscriber
+     * @return The number of events that were discarded
+     * @since 1.4.0
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Subscribe to the events
+     * @param subscriber The subscriber that receives the events
+     * @since 1.4.0
+     */
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if(subscriber == null) throw new NullPointerException("The subscriber must not be null");
+        EventSubscription subscription = new EventSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if(!subscription.cancelled) register.accept(subscription.eventHandler);
+    }
+
+    /**
+     * The class that connects a subscriber to the source of the events
+     * @since 1.4.0
+     */
+    private class EventSubscription implements Subscription {
+
+        /**
+         * The subscriber that receives the events
+         */
+        private final Subscriber<? super T> subscriber;
+
+        /**
+         * The events that are not delivered yet
+         */
+        private final ArrayDeque<T> buffer;
+
+        /**
+         * The number of events that are requested but not delivered yet
+         */
+        private final AtomicLong requested;
+
+        /**
+         * The number of pending drain requests, used to make sure only one thread delivers events at a time
+         */
+        private final AtomicInteger pendingDrains;
+
+        /**
+         * The event handler that is registered at the source of the events
+         */
+        private final EventHandler<T> eventHandler;
+
+        /**
+         * The error to deliver to the subscriber (null if there is none)
+         */
+        private volatile Throwable error;
+
+        /**
+         * Whether the subscription is cancelled
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * Construct the EventSubscription class
+         * @param subscriber The subscriber that receives the events
+         * @since 1.4.0
+         */
+        EventSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+            this.buffer = new ArrayDeque<>();
+            this.requested = new AtomicLong();
+            this.pendingDrains = new AtomicInteger();
+            this.eventHandler = new EventHandler<T>() {
+                @Override
+                public void handle(T event) {
+                    // EventHandler has an offer method of its own, which would dispatch the event back to this event handler
+                    EventSubscription.this.offer(event);
+                }
+
+                @Override
+                public Class<T> getEventType() {
+                    return eventType;
+                }
+            };
+        }
+
+        /**
+         * Request more events
+         * @param n The number of additional events to deliver
+         * @since 1.4.0
+         */
+        @Override
+        public void request(long n) {
+            if(cancelled) return;
+            if(n <= 0){
+                error = new IllegalArgumentException("The number of requested events must be positive (rule 3.9)");
+            }else{
+                requested.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            drain();
+        }
+
+        /**
+         * Cancel the subscription and remove its event handler from the source of the events
+         * @since 1.4.0
+         */
+        @Override
+        public void cancel() {
+            if(cancelled) return;
+            cancelled = true;
+            unregister.accept(eventHandler);
+            synchronized (buffer) {
+                buffer.clear();
+            }
+        }
+
+        /**
+         * Add an event to the buffer and deliver it if it is requested<br>
+         * If the buffer is full, the oldest buffered event is discarded and counted as dropped
+         * @param event The event to add
+         * @since 1.4.0
+         */
+        private void offer(T event) {
+            if(cancelled) return;
+            synchronized (buffer) {
+                if(buffer.size() >= bufferSize){
+                    buffer.poll();
+                    droppedCount.incrementAndGet();
+                }
+                buffer.add(event);
+            }
+            drain();
+        }
+
+        /**
+         * Deliver the buffered events as long as they are requested
+         * @since 1.4.0
+         */
+        private void drain() {
+            if(pendingDrains.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                if(error != null && !cancelled){
+                    cancel();
+                    subscriber.onError(error);
+                    return;
+                }
+                long delivered = 0;
+                long demand = requested.get();
+                while (delivered < demand && !cancelled) {
+                    T event;
+                    synchronized (buffer) {
+                        event = buffer.poll();
+                    }
+                    if(event == null) break;
+                    try {
+                        subscriber.onNext(event);
+                    } catch (RuntimeException e) {
+                        cancel();
+                        throw e;
+                    }
+                    delivered++;
+                }
+                if(delivered > 0 && demand != Long.MAX_VALUE) requested.addAndGet(-delivered);
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+}
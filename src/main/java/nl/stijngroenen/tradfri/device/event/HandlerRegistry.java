@@ -0,0 +1,141 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device.event;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The class that keeps a thread-safe registry of event handlers<br>
+ * Handlers are kept in an array that is copied on every change, so events can be dispatched from a snapshot of the array without locking or allocating, while handlers are added or removed from other threads
+ * @param <T> The type of the registered handlers
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class HandlerRegistry<T> {
+
+    /**
+     * The current snapshot of the registered handlers (never modified after it is published)
+     */
+    private volatile T[] handlers;
+
+    /**
+     * Construct the HandlerRegistry class
+     * @param empty An empty array of the type of the registered handlers
+     * @since 1.4.0
+     */
+    public HandlerRegistry(T[] empty) {
+        this.handlers = Arrays.copyOf(empty, 0);
+    }
+
+    /**
+     * Add a handler to the registry, unless the same handler instance is already registered
+     * @param handler The handler to add
+     * @return True if the handler is added, false if it was already registered
+     * @since 1.4.0
+     */
+    public synchronized boolean add(T handler) {
+        T[] handlers = this.handlers;
+        if(containsIdentical(handlers, handler)) return false;
+        T[] newHandlers = Arrays.copyOf(handlers, handlers.length + 1);
+        newHandlers[handlers.length] = handler;
+        this.handlers = newHandlers;
+        return true;
+    }
+
+    /**
+     * Remove a handler instance from the registry
+     * @param handler The handler to remove
+     * @return True if the handler is removed, false if it was not registered
+     * @since 1.4.0
+     */
+    public synchronized boolean remove(Object handler) {
+        return removeIf(registered -> registered == handler);
+    }
+
+    /**
+     * Remove the handlers that match a condition from the registry
+     * @param condition The condition that the handlers to remove match
+     * @return True if at least one handler is removed, false if not
+     * @since 1.4.0
+     */
+    public synchronized boolean removeIf(Predicate<? super T> condition) {
+        T[] handlers = this.handlers;
+        T[] newHandlers = Arrays.copyOf(handlers, handlers.length);
+        int count = 0;
+        for(T handler: handlers){
+            if(!condition.test(handler)) newHandlers[count++] = handler;
+        }
+        if(count == handlers.length) return false;
+        this.handlers = Arrays.copyOf(newHandlers, count);
+        return true;
+    }
+
+    /**
+     * Get a snapshot of the registered handlers<br>
+     * <i>Note: The returned array is shared and must not be modified</i>
+     * @return A snapshot of the registered handlers
+     * @since 1.4.0
+     */
+    public T[] snapshot() {
+        return handlers;
+    }
+
+    /**
+     * Get an unmodifiable list of the registered handlers
+     * @return An unmodifiable list of a snapshot of the registered handlers
+     * @since 1.4.0
+     */
+    public List<T> asList() {
+        return Collections.unmodifiableList(Arrays.asList(handlers));
+    }
+
+    /**
+     * Get the number of registered handlers
+     * @return The number of registered handlers
+     * @since 1.4.0
+     */
+    public int size() {
+        return handlers.length;
+    }
+
+    /**
+     * Check if no handlers are registered
+     * @return True if no handlers are registered, false if not
+     * @since 1.4.0
+     */
+    public boolean isEmpty() {
+        return handlers.length == 0;
+    }
+
+    /**
+     * Check if an array contains a handler instance, comparing by identity
+     * @param handlers The array to search
+     * @param handler The handler to find
+     * @return True if the array contains the handler instance, false if not
+     * @since 1.4.0
+     */
+    public static boolean containsIdentical(Object[] handlers, Object handler) {
+        for(Object registered: handlers){
+            if(registered == handler) return true;
+        }
+        return false;
+    }
+
+}
@@ -32,11 +32,15 @@ import org.eclipse.californium.scandium.dtls.pskstore.InMemoryPskStore;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class that is used to communicate with the IKEA TRÅDFRI gateway using the CoAP protocol
  * @author Stijn Groenen
- * @version 1.2.0
+ * @version 1.4.0
  */
 public class CoapClient {
 
@@ -61,6 +65,58 @@ public class CoapClient {
      */
     private long timeout = 20000L;
 
+    /**
+     * The queue that holds the notifications of the IKEA TRÅDFRI gateway until they are dispatched to the event handlers
+     */
+    private final DispatchQueue dispatchQueue = new DispatchQueue();
+
+    /**
+     * The watchdog that keeps the observe relations with the IKEA TRÅDFRI gateway alive
+     */
+    private final ObserveWatchdog observeWatchdog = new ObserveWatchdog(this);
+
+    /**
+     * The executor that runs requests to the IKEA TRÅDFRI gateway in the background (null if it is not created yet)
+     */
+    private ExecutorService executor;
+
+    /**
+     * Whether the executor is the default executor, which is shut down when the CoAP client is closed
+     */
+    private boolean defaultExecutor;
+
+    /**
+     * The number of threads of the default executor
+     * @value 8
+     */
+    private int parallelism = 8;
+
+    /**
+     * The time after a write during which notifications that disagree with the written values are considered to be sent before the write (in milliseconds)
+     * @value 5000
+     */
+    private volatile long confirmationTimeout = 5000L;
+
+    /**
+     * Whether writes that request the state a device is already known to be in are completed without sending them
+     */
+    private volatile boolean writeSuppression;
+
+    /**
+     * The number of writes that were completed without sending them
+     */
+    private final AtomicLong suppressedWriteCount = new AtomicLong();
+
+    /**
+     * The number of writes that were replaced by a newer write before they were sent
+     */
+    private final AtomicLong coalescedWriteCount = new AtomicLong();
+
+    /**
+     * The request rate of the gateway that is shared between interactive requests and background requests
+     */
+    private final RateBudget rateBudget = new RateBudget();
+
     /**
      * Construct the CoapClient class
      * @since 1.0.0
@@ -132,6 +188,168 @@ public class CoapClient {
         this.timeout = timeout;
     }
 
+    /**
+     * Get the queue that holds the notifications of the IKEA TRÅDFRI gateway until they are dispatched to the event handlers
+     * @return The queue that holds the notifications of the IKEA TRÅDFRI gateway
+     * @since 1.4.0
+     */
+    public DispatchQueue getDispatchQueue() {
+        return this.dispatchQueue;
+    }
+
+    /**
+     * Get the watchdog that keeps the observe relations with the IKEA TRÅDFRI gateway alive
+     * @return The watchdog that keeps the observe relations alive
+     * @since 1.4.0
+     */
+    public ObserveWatchdog getObserveWatchdog() {
+        return this.observeWatchdog;
+    }
+
+    /**
+     * Get the executor that runs requests to the IKEA TRÅDFRI gateway in the background<br>
+     * If no executor is set, a fixed pool of daemon threads is created the first time the executor is needed
+     * @return The executor that runs requests in the background
+     * @since 1.4.0
+     */
+    public synchronized ExecutorService getExecutor() {
+        if(executor == null){
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "tradfri-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            defaultExecutor = true;
+        }
+        return this.executor;
+    }
+
+    /**
+     * Change the executor that runs requests to the IKEA TRÅDFRI gateway in the background
+     * @param executor The new executor that runs requests in the background (null to use the default executor)
+     * @since 1.4.0
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        this.defaultExecutor = false;
+    }
+
+    /**
+     * Close the CoAP client, which cancels the observe relations, shuts down the default executor and destroys the secure connection with the IKEA TRÅDFRI gateway<br>
+     * An executor that was set with {@link #setExecutor(ExecutorService)} is not shut down. Requests that are submitted to the default executor after the CoAP client is closed are rejected
+     * @since 1.4.0
+     */
+    public void close() {
+        observeWatchdog.close();
+        synchronized (this) {
+            if(executor != null && defaultExecutor) executor.shutdownNow();
+        }
+        if(dtlsEndpoint != null) dtlsEndpoint.destroy();
+    }
+
+    /**
+     * Get the number of threads of the default executor
+     * @return The number of threads of the default executor
+     * @since 1.4.0
+     */
+    public synchronized int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * Change the number of threads of the default executor<br>
+     * <i>Note: Only applies if the default executor is not created yet</i>
+     * @param parallelism The new number of threads of the default executor
+     * @since 1.4.0
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if(parallelism < 1) throw new IllegalArgumentException("The parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Get the time after a write during which notifications that disagree with the written values are considered to be sent before the write (in milliseconds)<br>
+     * Written values are shown optimistically until a notification confirms them, or until a notification disagrees with them after this time
+     * @return The confirmation timeout (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getConfirmationTimeout() {
+        return this.confirmationTimeout;
+    }
+
+    /**
+     * Change the time after a write during which notifications that disagree with the written values are considered to be sent before the write (in milliseconds)
+     * @param confirmationTimeout The new confirmation timeout (in milliseconds, 0 to let every notification overrule the written values)
+     * @since 1.4.0
+     */
+    public void setConfirmationTimeout(long confirmationTimeout) {
+        this.confirmationTimeout = Math.max(0L, confirmationTimeout);
+    }
+
+    /**
+     * Check if writes that request the state a device is already known to be in are completed without sending them
+     * @return True if write suppression is enabled, false if not
+     * @since 1.4.0
+     */
+    public boolean isWriteSuppression() {
+        return this.writeSuppression;
+    }
+
+    /**
+     * Enable or disable the suppression of writes that request the state a device is already known to be in<br>
+     * A write is only suppressed if the device is observed, its observe relation is not stale, and every requested field already has the requested value
+     * @param writeSuppression True to enable write suppression, false to disable it
+     * @since 1.4.0
+     */
+    public void setWriteSuppression(boolean writeSuppression) {
+        this.writeSuppression = writeSuppression;
+    }
+
+    /**
+     * Get the number of writes that were completed without sending them
+     * @return The number of suppressed writes
+     * @since 1.4.0
+     */
+    public long getSuppressedWriteCount() {
+        return this.suppressedWriteCount.get();
+    }
+
+    /**
+     * Count a write that was completed without sending it
+     * @since 1.4.0
+     */
+    public void countSuppressedWrite() {
+        this.suppressedWriteCount.incrementAndGet();
+    }
+
+    /**
+     * Get the number of writes that were replaced by a newer write before they were sent
+     * @return The number of coalesced writes
+     * @since 1.4.0
+     */
+    public long getCoalescedWriteCount() {
+        return this.coalescedWriteCount.get();
+    }
+
+    /**
+     * Count a write that was replaced by a newer write before it was sent
+     * @since 1.4.0
+     */
+    public void countCoalescedWrite() {
+        this.coalescedWriteCount.incrementAndGet();
+    }
+
+    /**
+     * Get the request rate of the gateway that is shared between interactive requests and background requests<br>
+     * Every PUT and POST request takes a token from the budget, and background requests have to leave a reserve for them
+     * @return The rate budget of the gateway
+     * @since 1.4.0
+     */
+    public RateBudget getRateBudget() {
+        return rateBudget;
+    }
+
     /**
      * Make a CoAP request to the specified endpoint
      * @param request The Request object
@@ -148,7 +366,7 @@ public class CoapClient {
             Response response = request.waitForResponse(timeout);
             if (response == null) return null;
             String responsePayload = response.getPayloadString();
-            if (responseType == String.class) return (T) responsePayload;
+            if (responseType == String.class) return responseType.cast(responsePayload);
             return objectMapper.readValue(responsePayload, responseType);
         } catch (InterruptedException | JsonProcessingException e) {
             return null;
@@ -184,6 +402,7 @@ public class CoapClient {
      * @since 1.0.0
      */
     public CoapObserveRelation requestObserve(String endpoint, CoapHandler handler) {
+        rateBudget.acquire();
         org.eclipse.californium.core.CoapClient client = new org.eclipse.californium.core.CoapClient();
         client.setTimeout(timeout);
         Request request = Request.newGet();
@@ -202,6 +421,19 @@ public class CoapClient {
      * @since 1.0.0
      */
     public <T> T get(String endpoint, Class<T> responseType) {
+        rateBudget.acquire();
+        return getPrepaid(endpoint, responseType);
+    }
+
+    /**
+     * Make a CoAP GET request to the specified endpoint, for which a token of the rate budget was taken already (for example with {@link RateBudget#tryAcquireBackground()})
+     * @param endpoint The endpoint to make a request to
+     * @param responseType The expected type of response
+     * @param <T> The expected type of response
+     * @return The response from the IKEA TRÅDFRI gateway (converted to the expected response type)
+     * @since 1.4.0
+     */
+    public <T> T getPrepaid(String endpoint, Class<T> responseType) {
         Request request = Request.newGet();
         return request(request, endpoint, responseType);
     }
@@ -216,6 +448,7 @@ public class CoapClient {
      * @since 1.0.0
      */
     public <T> T post(String endpoint, Object payload, Class<T> responseType) {
+        rateBudget.acquire();
         Request request = Request.newPost();
         return requestWithPayload(request, endpoint, payload, responseType);
     }
@@ -230,6 +463,7 @@ public class CoapClient {
      * @since 1.0.0
      */
     public <T> T put(String endpoint, Object payload, Class<T> responseType) {
+        rateBudget.acquire();
         Request request = Request.newPut();
         return requestWithPayload(request, endpoint, payload, responseType);
     }
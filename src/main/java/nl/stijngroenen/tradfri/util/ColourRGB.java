@@ -21,10 +21,22 @@ import java.awt.*;
 /**
  * The class that contains RGB values that make up a colour
  * @author Stijn Groenen
- * @version 1.1.0
+ * @version 1.4.0
  */
 public class ColourRGB {
 
+    /**
+     * The linear value of every 8-bit sRGB value, which removes the gamma correction before the conversion to the XYZ colour space
+     */
+    private static final double[] LINEAR = new double[256];
+
+    static {
+        for(int i = 0; i < LINEAR.length; i++){
+            double value = (double) i / 255;
+            LINEAR[i] = (value > 0.04045) ? Math.pow((value + 0.055) / (1.0 + 0.055), 2.4) : (value / 12.92);
+        }
+    }
+
     /**
      * The red value of the colour
      */
@@ -115,26 +127,45 @@ public class ColourRGB {
     }
 
     /**
-     * Convert to the {@link ColourXY} class
+     * Convert to the {@link ColourXY} class<br>
+     * The gamma correction is removed with a lookup table, which gives the same result as computing it for every conversion
      * @return The {@link ColourXY} class
      * @since 1.1.0
      */
     public ColourXY toXY(){
-        double red = Math.max(Math.min(this.red, 255), 0);
-        double green = Math.max(Math.min(this.green, 255), 0);
-        double blue = Math.max(Math.min(this.blue, 255), 0);
-
-        red = red / 255;
-        green = green / 255;
-        blue = blue / 255;
+        int xy = toXY(Math.max(Math.min(this.red, 255), 0), Math.max(Math.min(this.green, 255), 0), Math.max(Math.min(this.blue, 255), 0));
+        return new ColourXY(xy >>> 16, xy & 0xFFFF);
+    }
 
-        red = (red > 0.04045) ? Math.pow((red + 0.055) / (1.0 + 0.055), 2.4) : (red / 12.92);
-        green = (green > 0.04045) ? Math.pow((green + 0.055) / (1.0 + 0.055), 2.4) : (green / 12.92);
-        blue = (blue > 0.04045) ? Math.pow((blue + 0.055) / (1.0 + 0.055), 2.4) : (blue / 12.92);
+    /**
+     * Convert a batch of colours to X and Y values, without constructing a {@link ColourRGB} or {@link ColourXY} class for every colour
+     * @param rgb The colours, with the red value in bits 16 to 23, the green value in bits 8 to 15 and the blue value in bits 0 to 7 (like {@link Color#getRGB()}, other bits are ignored)
+     * @param xy The array that receives the converted colours, with the X value in the high 16 bits and the Y value in the low 16 bits (at least as long as the colours)
+     * @since 1.4.0
+     */
+    public static void toXY(int[] rgb, int[] xy){
+        if(xy.length < rgb.length) throw new IllegalArgumentException("The array that receives the converted colours must be at least as long as the colours");
+        for(int i = 0; i < rgb.length; i++){
+            xy[i] = toXY((rgb[i] >> 16) & 0xFF, (rgb[i] >> 8) & 0xFF, rgb[i] & 0xFF);
+        }
+    }
 
-        double X = red * 0.4124564 + green * 0.3575761 + blue * 0.1804375;
-        double Y = red * 0.2126729 + green * 0.7151522 + blue * 0.0721750;
-        double Z = red * 0.0193339 + green * 0.1191920 + blue * 0.9503041;
+    /**
+     * Convert RGB values to X and Y values
+     * @param red The red value (between 0 and 255)
+     * @param green The green value (between 0 and 255)
+     * @param blue The blue value (between 0 and 255)
+     * @return The X value in the high 16 bits and the Y value in the low 16 bits
+     * @since 1.4.0
+     */
+    private static int toXY(int red, int green, int blue){
+        double linearRed = LINEAR[red];
+        double linearGreen = LINEAR[green];
+        double linearBlue = LINEAR[blue];
+
+        double X = linearRed * 0.4124564 + linearGreen * 0.3575761 + linearBlue * 0.1804375;
+        double Y = linearRed * 0.2126729 + linearGreen * 0.7151522 + linearBlue * 0.0721750;
+        double Z = linearRed * 0.0193339 + linearGreen * 0.1191920 + linearBlue * 0.9503041;
         double total = X + Y + Z;
 
         double x = 0;
@@ -147,7 +178,7 @@ public class ColourRGB {
         int xNormalised = (int) (x * 65535 + 0.5);
         int yNormalised = (int) (y * 65535 + 0.5);
 
-        return new ColourXY(xNormalised, yNormalised);
+        return (xNormalised << 16) | yNormalised;
     }
 
     /**
@@ -0,0 +1,356 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * The class that queues the notifications of the IKEA TRÅDFRI gateway until they are dispatched to the event handlers<br>
+ * The queue is bounded and drained by a single dispatcher thread, so a slow event handler fills the queue instead of piling up threads.
+ * What happens when the queue is full is decided by the {@link OverflowPolicy} of the queue, which coalesces the tasks per key by default.
+ * A task that is submitted by the dispatcher thread itself never waits for room in the queue, because only the dispatcher thread makes room:
+ * with the BLOCK policy, the oldest task is discarded instead.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class DispatchQueue {
+
+    /**
+     * The tasks in the queue, in the order in which they were submitted
+     */
+    private final ArrayDeque<Task> tasks;
+
+    /**
+     * The tasks in the queue by their key, used to coalesce tasks
+     */
+    private final HashMap<Object, Task> pendingTasks;
+
+    /**
+     * The maximum number of tasks in the queue
+     * @value 1024
+     */
+    private int capacity = 1024;
+
+    /**
+     * The policy that is applied when the queue is full
+     */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.COALESCE;
+
+    /**
+     * The time between submitting a task and dispatching it (in milliseconds)
+     * @value 1000
+     */
+    private long delay = 1000L;
+
+    /**
+     * The thread that dispatches the tasks (null if it is not started yet)
+     */
+    private Thread dispatcher;
+
+    /**
+     * The largest number of tasks that were in the queue at the same time
+     */
+    private int maxDepth;
+
+    /**
+     * The number of tasks that were submitted to the queue
+     */
+    private long submittedCount;
+
+    /**
+     * The number of tasks that were dispatched
+     */
+    private long dispatchedCount;
+
+    /**
+     * The number of times a task was submitted to a full queue
+     */
+    private long overflowCount;
+
+    /**
+     * The number of tasks that were discarded
+     */
+    private long droppedCount;
+
+    /**
+     * The number of tasks that were replaced by a newer task with the same key
+     */
+    private long coalescedCount;
+
+    /**
+     * Construct the DispatchQueue class
+     * @since 1.4.0
+     */
+    public DispatchQueue() {
+        this.tasks = new ArrayDeque<>();
+        this.pendingTasks = new HashMap<>();
+    }
+
+    /**
+     * Submit a task to the queue
+     * @param key The key of the task (for example the observer of a device), used to coalesce tasks
+     * @param runnable The task to run when it is dispatched
+     * @return True if the task is queued, false if it is discarded
+     * @since 1.4.0
+     */
+    public boolean submit(Object key, Runnable runnable) {
+        synchronized (this) {
+            submittedCount++;
+            if(overflowPolicy == OverflowPolicy.COALESCE){
+                Task pending = pendingTasks.get(key);
+                if(pending != null){
+                    pending.runnable = runnable;
+                    coalescedCount++;
+                    return true;
+                }
+            }
+            if(tasks.size() >= capacity){
+                overflowCount++;
+                // The dispatcher thread would wait for itself, so it discards the oldest task instead
+                OverflowPolicy policy = overflowPolicy == OverflowPolicy.BLOCK && Thread.currentThread() == dispatcher ? OverflowPolicy.DROP_OLDEST : overflowPolicy;
+                switch (policy){
+                    case BLOCK:
+                        try {
+                            while (tasks.size() >= capacity) wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            droppedCount++;
+                            return false;
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        droppedCount++;
+                        return false;
+                    default:
+                        Task oldest = tasks.poll();
+                        if(oldest != null && pendingTasks.get(oldest.key) == oldest) pendingTasks.remove(oldest.key);
+                        droppedCount++;
+                        break;
+                }
+            }
+            Task task = new Task(key, runnable, System.currentTimeMillis() + delay);
+            tasks.add(task);
+            if(overflowPolicy == OverflowPolicy.COALESCE) pendingTasks.put(key, task);
+            maxDepth = Math.max(maxDepth, tasks.size());
+            startDispatcher();
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Start the dispatcher thread if it is not started yet
+     * @since 1.4.0
+     */
+    private void startDispatcher() {
+        if(dispatcher != null) return;
+        dispatcher = new Thread(this::dispatch, "tradfri-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Dispatch the tasks in the queue, waiting until every task is due
+     * @since 1.4.0
+     */
+    private void dispatch() {
+        while (true) {
+            Runnable runnable;
+            synchronized (this) {
+                try {
+                    Task task = tasks.peek();
+                    while (task == null || task.dueTime > System.currentTimeMillis()) {
+                        if(task == null) wait();
+                        else wait(Math.max(1L, task.dueTime - System.currentTimeMillis()));
+                        task = tasks.peek();
+                    }
+                    tasks.poll();
+                    if(pendingTasks.get(task.key) == task) pendingTasks.remove(task.key);
+                    runnable = task.runnable;
+                    dispatchedCount++;
+                    notifyAll();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            }
+        }
+    }
+
+    /**
+     * Get the maximum number of tasks in the queue
+     * @return The maximum number of tasks in the queue
+     * @since 1.4.0
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Change the maximum number of tasks in the queue
+     * @param capacity The new maximum number of tasks in the queue
+     * @since 1.4.0
+     */
+    public synchronized void setCapacity(int capacity) {
+        if(capacity < 1) throw new IllegalArgumentException("The capacity of the queue must be at least 1");
+        this.capacity = capacity;
+        notifyAll();
+    }
+
+    /**
+     * Get the policy that is applied when the queue is full
+     * @return The policy that is applied when the queue is full
+     * @since 1.4.0
+     */
+    public synchronized OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Change the policy that is applied when the queue is full<br>
+     * The BLOCK policy makes the threads that submit the tasks, which are the receive threads of the CoAP client, wait until the dispatcher thread has made room
+     * @param overflowPolicy The new policy that is applied when the queue is full
+     * @since 1.4.0
+     */
+    public synchronized void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        if(overflowPolicy != OverflowPolicy.COALESCE) pendingTasks.clear();
+        notifyAll();
+    }
+
+    /**
+     * Get the time between submitting a task and dispatching it (in milliseconds)
+     * @return The time between submitting a task and dispatching it (in milliseconds)
+     * @since 1.4.0
+     */
+    public synchronized long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Change the time between submitting a task and dispatching it (in milliseconds)
+     * @param delay The new time between submitting a task and dispatching it (in milliseconds)
+     * @since 1.4.0
+     */
+    public synchronized void setDelay(long delay) {
+        this.delay = Math.max(0L, delay);
+    }
+
+    /**
+     * Get the number of tasks in the queue
+     * @return The number of tasks in the queue
+     * @since 1.4.0
+     */
+    public synchronized int getDepth() {
+        return tasks.size();
+    }
+
+    /**
+     * Get the largest number of tasks that were in the queue at the same time
+     * @return The largest number of tasks that were in the queue at the same time
+     * @since 1.4.0
+     */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Get the number of tasks that were submitted to the queue
+     * @return The number of tasks that were submitted to the queue
+     * @since 1.4.0
+     */
+    public synchronized long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    /**
+     * Get the number of tasks that were dispatched
+     * @return The number of tasks that were dispatched
+     * @since 1.4.0
+     */
+    public synchronized long getDispatchedCount() {
+        return dispatchedCount;
+    }
+
+    /**
+     * Get the number of times a task was submitted to a full queue
+     * @return The number of times a task was submitted to a full queue
+     * @since 1.4.0
+     */
+    public synchronized long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Get the number of tasks that were discarded
+     * @return The number of tasks that were discarded
+     * @since 1.4.0
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Get the number of tasks that were replaced by a newer task with the same key
+     * @return The number of tasks that were replaced by a newer task with the same key
+     * @since 1.4.0
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * The class that contains a task in the queue
+     * @since 1.4.0
+     */
+    private static class Task {
+
+        /**
+         * The key of the task
+         */
+        private final Object key;
+
+        /**
+         * The task to run when it is dispatched
+         */
+        private Runnable runnable;
+
+        /**
+         * The time at which the task is dispatched (in milliseconds since the epoch)
+         */
+        private final long dueTime;
+
+        /**
+         * Construct the Task class
+         * @param key The key of the task
+         * @param runnable The task to run when it is dispatched
+         * @param dueTime The time at which the task is dispatched (in milliseconds since the epoch)
+         * @since 1.4.0
+         */
+        Task(Object key, Runnable runnable, long dueTime) {
+            this.key = key;
+            this.runnable = runnable;
+            this.dueTime = dueTime;
+        }
+    }
+
+}
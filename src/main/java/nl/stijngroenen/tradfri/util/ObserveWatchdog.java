@@ -0,0 +1,506 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.util;
+
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class that keeps the observe relations with the IKEA TRÅDFRI gateway alive<br>
+ * The watchdog registers a relation again when it reported an error or was cancelled. The IKEA TRÅDFRI gateway only notifies on changes,
+ * so a relation that is quiet is not considered stale. Instead, the watchdog probes the gateway once per probe interval, and treats every relation as failed
+ * when the gateway does not respond, because the gateway drops its observe relations when it restarts.
+ * Failed attempts are retried with an exponential backoff until the relation responds, and at most a few relations are registered again per check
+ * (with a random delay), so hundreds of relations do not hit the gateway at the same time.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class ObserveWatchdog {
+
+    /**
+     * The CoAP client that is used to register the observe relations
+     */
+    private final CoapClient coapClient;
+
+    /**
+     * The observe relations that are watched, by their handler
+     */
+    private final ConcurrentHashMap<CoapHandler, Relation> relations;
+
+    /**
+     * The time between probes of the IKEA TRÅDFRI gateway (in milliseconds, 0 to never probe the gateway)
+     * @value 60000
+     */
+    private volatile long probeInterval = 60000L;
+
+    /**
+     * The time of the last probe of the IKEA TRÅDFRI gateway (in milliseconds since the epoch)
+     */
+    private long lastProbe;
+
+    /**
+     * Whether the last probe of the IKEA TRÅDFRI gateway failed
+     */
+    private boolean probeFailed;
+
+    /**
+     * The time between checks of the relations (in milliseconds)
+     * @value 1000
+     */
+    private volatile long checkInterval = 1000L;
+
+    /**
+     * The maximum number of relations that are registered again per check
+     * @value 2
+     */
+    private volatile int maxReregistrationsPerCheck = 2;
+
+    /**
+     * The time before the first retry of a relation that is registered again (in milliseconds)
+     * @value 5000
+     */
+    private volatile long initialBackoff = 5000L;
+
+    /**
+     * The maximum time between retries of a relation that is registered again (in milliseconds)
+     * @value 300000
+     */
+    private volatile long maxBackoff = 300000L;
+
+    /**
+     * The executor that runs the checks (null if it is not started yet)
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Whether the watchdog is closed
+     */
+    private boolean closed;
+
+    /**
+     * The number of times a relation was registered again
+     */
+    private volatile long reregistrationCount;
+
+    /**
+     * Construct the ObserveWatchdog class
+     * @param coapClient The CoAP client that is used to register the observe relations
+     * @since 1.4.0
+     */
+    public ObserveWatchdog(CoapClient coapClient) {
+        this.coapClient = coapClient;
+        this.relations = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Start observing an endpoint and watching the observe relation
+     * @param endpoint The endpoint to observe
+     * @param handler The handler to handle the notifications
+     * @return True if an observe relation is registered, false if the handler is already observing
+     * @throws IllegalStateException Thrown if the watchdog is closed
+     * @since 1.4.0
+     */
+    public synchronized boolean observe(String endpoint, CoapHandler handler) {
+        if(closed) throw new IllegalStateException("The observe watchdog is closed");
+        Relation relation = relations.get(handler);
+        if(relation != null && relation.coapObserveRelation != null && !relation.coapObserveRelation.isCanceled()) return false;
+        if(relation == null){
+            relation = new Relation(endpoint);
+            relations.put(handler, relation);
+        }
+        relation.lastNotification = System.currentTimeMillis();
+        relation.coapObserveRelation = coapClient.requestObserve(endpoint, handler);
+        startScheduler();
+        return true;
+    }
+
+    /**
+     * Stop observing an endpoint and stop watching the observe relation
+     * @param handler The handler that handles the notifications
+     * @return True if the observe relation is cancelled, false if the handler was not observing
+     * @since 1.4.0
+     */
+    public synchronized boolean cancel(CoapHandler handler) {
+        Relation relation = relations.remove(handler);
+        if(relation == null || relation.coapObserveRelation == null || relation.coapObserveRelation.isCanceled()) return false;
+        relation.coapObserveRelation.proactiveCancel();
+        return true;
+    }
+
+    /**
+     * Stop observing an endpoint for every handler that observes it, for example because the device behind the endpoint is removed
+     * @param endpoint The observed endpoint
+     * @return The number of observe relations that are cancelled
+     * @since 1.4.0
+     */
+    public synchronized int cancelAll(String endpoint) {
+        int count = 0;
+        for(CoapHandler handler: new ArrayList<>(relations.keySet())){
+            Relation relation = relations.get(handler);
+            if(relation != null && relation.endpoint.equals(endpoint) && cancel(handler)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Record that a notification was received for an observe relation
+     * @param handler The handler that received the notification
+     * @return True if this is the first notification since the watchdog registered the relation again, which is the initial response of the new relation
+     * rather than a change, false if not
+     * @since 1.4.0
+     */
+    public boolean notified(CoapHandler handler) {
+        Relation relation = relations.get(handler);
+        if(relation == null) return false;
+        relation.lastNotification = System.currentTimeMillis();
+        relation.failed = false;
+        relation.backoff = 0L;
+        relation.nextAttempt = 0L;
+        boolean reregistered = relation.reregistered;
+        relation.reregistered = false;
+        return reregistered;
+    }
+
+    /**
+     * Record that an error occurred for an observe relation, so it is registered again on the next check
+     * @param handler The handler that received the error
+     * @since 1.4.0
+     */
+    public void failed(CoapHandler handler) {
+        Relation relation = relations.get(handler);
+        if(relation != null) relation.failed = true;
+    }
+
+    /**
+     * Check if a handler is observing an endpoint
+     * @param handler The handler
+     * @return True if the handler is observing an endpoint, false if not
+     * @since 1.4.0
+     */
+    public boolean isObserving(CoapHandler handler) {
+        return relations.containsKey(handler);
+    }
+
+    /**
+     * Get the time of the last notification for an observe relation
+     * @param handler The handler of the observe relation
+     * @return The time of the last notification (in milliseconds since the epoch), or 0 if the handler is not observing
+     * @since 1.4.0
+     */
+    public long getLastNotification(CoapHandler handler) {
+        Relation relation = relations.get(handler);
+        return relation == null ? 0L : relation.lastNotification;
+    }
+
+    /**
+     * Check if an observe relation is stale (it reported an error, it was cancelled, or it did not respond yet since it was registered again)<br>
+     * A relation that did not receive a notification for a long time is not stale, because the IKEA TRÅDFRI gateway only notifies on changes
+     * @param handler The handler of the observe relation
+     * @return True if the observe relation is stale or the handler is not observing, false if not
+     * @since 1.4.0
+     */
+    public boolean isStale(CoapHandler handler) {
+        Relation relation = relations.get(handler);
+        return relation == null || isStale(relation);
+    }
+
+    /**
+     * Check if an observe relation is stale
+     * @param relation The observe relation
+     * @return True if the observe relation is stale, false if not
+     * @since 1.4.0
+     */
+    private boolean isStale(Relation relation) {
+        if(relation.failed || relation.reregistered) return true;
+        return relation.coapObserveRelation == null || relation.coapObserveRelation.isCanceled();
+    }
+
+    /**
+     * Start the executor that runs the checks if it is not started yet
+     * @since 1.4.0
+     */
+    private void startScheduler() {
+        if(scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tradfri-observe-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.schedule(this::check, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Check the observe relations and register the most stale relations again, after probing the IKEA TRÅDFRI gateway if the probe interval passed
+     * @since 1.4.0
+     */
+    private void check() {
+        try {
+            long now = System.currentTimeMillis();
+            long probeInterval = this.probeInterval;
+            if(probeInterval > 0 && now - lastProbe >= probeInterval && !relations.isEmpty()){
+                lastProbe = now;
+                probe();
+            }
+            List<CoapHandler> stale = new ArrayList<>();
+            relations.forEach((handler, relation) -> {
+                if(now >= relation.nextAttempt && isStale(relation)) stale.add(handler);
+            });
+            stale.sort(Comparator.comparingLong(handler -> {
+                Relation relation = relations.get(handler);
+                return relation == null ? Long.MAX_VALUE : relation.lastNotification;
+            }));
+            int limit = Math.min(stale.size(), maxReregistrationsPerCheck);
+            for(int i = 0; i < limit; i++){
+                reregister(stale.get(i), now);
+            }
+        } finally {
+            scheduleCheck();
+        }
+    }
+
+    /**
+     * Schedule the next check, unless the watchdog is closed
+     * @since 1.4.0
+     */
+    private synchronized void scheduleCheck() {
+        if(scheduler != null) scheduler.schedule(this::check, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel every observe relation and stop the executor that runs the checks<br>
+     * Endpoints can not be observed after the watchdog is closed
+     * @since 1.4.0
+     */
+    public synchronized void close() {
+        if(closed) return;
+        closed = true;
+        for(CoapHandler handler: new ArrayList<>(relations.keySet())){
+            cancel(handler);
+        }
+        if(scheduler != null) scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    /**
+     * Probe the IKEA TRÅDFRI gateway with a single request for its details<br>
+     * If the gateway does not respond, every relation is marked as failed, so it is registered again until it responds.
+     * When the gateway responds again after a failed probe, the backoff of the relations is reset, so they are registered again right away (a few per check)
+     * @since 1.4.0
+     */
+    private void probe() {
+        boolean alive = coapClient.get(ApiEndpoint.getUri(ApiEndpoint.GATEWAY_DETAILS), String.class) != null;
+        if(!alive){
+            for(Relation relation: relations.values()){
+                relation.failed = true;
+            }
+        }else if(probeFailed){
+            for(Relation relation: relations.values()){
+                if(isStale(relation)) relation.nextAttempt = 0L;
+            }
+        }
+        probeFailed = !alive;
+    }
+
+    /**
+     * Register an observe relation again, and schedule the next attempt in case no notification is received
+     * @param handler The handler of the observe relation
+     * @param now The current time (in milliseconds since the epoch)
+     * @since 1.4.0
+     */
+    private synchronized void reregister(CoapHandler handler, long now) {
+        Relation relation = relations.get(handler);
+        if(relation == null) return;
+        relation.backoff = relation.backoff == 0L ? initialBackoff : Math.min(relation.backoff * 2, maxBackoff);
+        relation.nextAttempt = now + relation.backoff + ThreadLocalRandom.current().nextLong(relation.backoff / 2 + 1);
+        relation.failed = false;
+        relation.reregistered = true;
+        reregistrationCount++;
+        CoapObserveRelation coapObserveRelation = relation.coapObserveRelation;
+        if(coapObserveRelation != null && !coapObserveRelation.isCanceled() && coapObserveRelation.reregister()) return;
+        if(coapObserveRelation != null && !coapObserveRelation.isCanceled()) coapObserveRelation.proactiveCancel();
+        relation.coapObserveRelation = coapClient.requestObserve(relation.endpoint, handler);
+    }
+
+    /**
+     * Get the time between probes of the IKEA TRÅDFRI gateway (in milliseconds)
+     * @return The probe interval (in milliseconds, 0 if the gateway is never probed)
+     * @since 1.4.0
+     */
+    public long getProbeInterval() {
+        return probeInterval;
+    }
+
+    /**
+     * Change the time between probes of the IKEA TRÅDFRI gateway (in milliseconds)
+     * @param probeInterval The new probe interval (in milliseconds, 0 to never probe the gateway)
+     * @since 1.4.0
+     */
+    public void setProbeInterval(long probeInterval) {
+        this.probeInterval = Math.max(0L, probeInterval);
+    }
+
+    /**
+     * Get the time between checks of the relations (in milliseconds)
+     * @return The time between checks of the relations (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Change the time between checks of the relations (in milliseconds)
+     * @param checkInterval The new time between checks of the relations (in milliseconds)
+     * @since 1.4.0
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = Math.max(1L, checkInterval);
+    }
+
+    /**
+     * Get the maximum number of relations that are registered again per check
+     * @return The maximum number of relations that are registered again per check
+     * @since 1.4.0
+     */
+    public int getMaxReregistrationsPerCheck() {
+        return maxReregistrationsPerCheck;
+    }
+
+    /**
+     * Change the maximum number of relations that are registered again per check
+     * @param maxReregistrationsPerCheck The new maximum number of relations that are registered again per check
+     * @since 1.4.0
+     */
+    public void setMaxReregistrationsPerCheck(int maxReregistrationsPerCheck) {
+        this.maxReregistrationsPerCheck = Math.max(1, maxReregistrationsPerCheck);
+    }
+
+    /**
+     * Get the time before the first retry of a relation that is registered again (in milliseconds)
+     * @return The time before the first retry (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Change the time before the first retry of a relation that is registered again (in milliseconds)
+     * @param initialBackoff The new time before the first retry (in milliseconds)
+     * @since 1.4.0
+     */
+    public void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = Math.max(1L, initialBackoff);
+    }
+
+    /**
+     * Get the maximum time between retries of a relation that is registered again (in milliseconds)
+     * @return The maximum time between retries (in milliseconds)
+     * @since 1.4.0
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Change the maximum time between retries of a relation that is registered again (in milliseconds)
+     * @param maxBackoff The new maximum time between retries (in milliseconds)
+     * @since 1.4.0
+     */
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = Math.max(1L, maxBackoff);
+    }
+
+    /**
+     * Get the number of observe relations that are watched
+     * @return The number of observe relations that are watched
+     * @since 1.4.0
+     */
+    public int getRelationCount() {
+        return relations.size();
+    }
+
+    /**
+     * Get the number of times a relation was registered again
+     * @return The number of times a relation was registered again
+     * @since 1.4.0
+     */
+    public long getReregistrationCount() {
+        return reregistrationCount;
+    }
+
+    /**
+     * The class that contains the state of a watched observe relation
+     * @since 1.4.0
+     */
+    private static class Relation {
+
+        /**
+         * The observed endpoint
+         */
+        private final String endpoint;
+
+        /**
+         * The current observe relation
+         */
+        private volatile CoapObserveRelation coapObserveRelation;
+
+        /**
+         * The time of the last notification (in milliseconds since the epoch)
+         */
+        private volatile long lastNotification;
+
+        /**
+         * Whether the relation reported an error since the last notification
+         */
+        private volatile boolean failed;
+
+        /**
+         * The current time between retries (in milliseconds, 0 if the relation is healthy)
+         */
+        private volatile long backoff;
+
+        /**
+         * The earliest time of the next attempt to register the relation again (in milliseconds since the epoch)
+         */
+        private volatile long nextAttempt;
+
+        /**
+         * Whether the relation was registered again by the watchdog since the last notification, so it did not respond yet
+         */
+        private volatile boolean reregistered;
+
+        /**
+         * Construct the Relation class
+         * @param endpoint The observed endpoint
+         * @since 1.4.0
+         */
+        Relation(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.util;
+
+/**
+ * The enumerator that contains the policies for a full {@link DispatchQueue}
+ * <ul>
+ *     <li>BLOCK: Wait until there is room in the queue (the observe callbacks are slowed down, and the dispatcher thread itself discards the oldest task instead)</li>
+ *     <li>DROP_OLDEST: Discard the oldest task in the queue to make room for the new task</li>
+ *     <li>DROP_NEWEST: Discard the new task</li>
+ *     <li>COALESCE: Keep at most one task per key (for example per device) by replacing the pending task, and discard the oldest task if the queue is still full (the default)</li>
+ * </ul>
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public enum OverflowPolicy {
+    BLOCK,
+    DROP_OLDEST,
+    DROP_NEWEST,
+    COALESCE,
+}
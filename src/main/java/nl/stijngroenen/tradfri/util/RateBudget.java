@@ -0,0 +1,192 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.util;
+
+/**
+ * The class that shares the request rate of the IKEA TRÅDFRI gateway between interactive traffic and background traffic<br>
+ * The budget is a token bucket that refills at a fixed rate. Interactive requests never wait: they take a token if there is one.
+ * Background requests (like polling) only take a token if enough tokens are left for interactive requests afterwards, so background traffic yields to interactive traffic.
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class RateBudget {
+
+    /**
+     * The number of tokens that are added per second
+     * @value 10
+     */
+    private double rate = 10.0;
+
+    /**
+     * The maximum number of tokens
+     * @value 10
+     */
+    private double burst = 10.0;
+
+    /**
+     * The fraction of the maximum number of tokens that background requests leave for interactive requests
+     * @value 0.5
+     */
+    private double reserve = 0.5;
+
+    /**
+     * The number of tokens
+     */
+    private double tokens = 10.0;
+
+    /**
+     * The time at which the tokens were last refilled (in nanoseconds, see {@link System#nanoTime()})
+     */
+    private long refilled = System.nanoTime();
+
+    /**
+     * The number of background requests that were denied
+     */
+    private long deniedCount;
+
+    /**
+     * Construct the RateBudget class
+     * @since 1.4.0
+     */
+    public RateBudget() {
+    }
+
+    /**
+     * Record an interactive request, which takes a token if there is one
+     * @since 1.4.0
+     */
+    public synchronized void acquire() {
+        refill();
+        tokens = Math.max(0.0, tokens - 1.0);
+    }
+
+    /**
+     * Try to take a token for a background request
+     * @return True if a token was taken, false if too few tokens are left for interactive requests
+     * @since 1.4.0
+     */
+    public synchronized boolean tryAcquireBackground() {
+        refill();
+        if(tokens - 1.0 < reserve * burst){
+            deniedCount++;
+            return false;
+        }
+        tokens -= 1.0;
+        return true;
+    }
+
+    /**
+     * Get the number of tokens that background requests can take before they reach the reserve for interactive requests<br>
+     * Unlike {@link #tryAcquireBackground()}, no token is taken, so a caller that sends requests through {@link #acquire()} can pace them to this number
+     * @return The number of tokens above the reserve for interactive requests (0 if there are none)
+     * @since 1.4.0
+     */
+    public synchronized double getBackgroundAvailable() {
+        refill();
+        return Math.max(0.0, tokens - reserve * burst);
+    }
+
+    /**
+     * Add the tokens for the time since the last refill
+     * @since 1.4.0
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) / 1000000000.0 * rate);
+        refilled = now;
+    }
+
+    /**
+     * Get the number of tokens that are added per second
+     * @return The number of requests per second that the gateway is expected to handle
+     * @since 1.4.0
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Change the number of tokens that are added per second
+     * @param rate The new number of requests per second that the gateway is expected to handle
+     * @since 1.4.0
+     */
+    public synchronized void setRate(double rate) {
+        if(!(rate > 0)) throw new IllegalArgumentException("The rate must be positive");
+        refill();
+        this.rate = rate;
+    }
+
+    /**
+     * Get the maximum number of tokens
+     * @return The maximum number of requests in a burst
+     * @since 1.4.0
+     */
+    public synchronized double getBurst() {
+        return burst;
+    }
+
+    /**
+     * Change the maximum number of tokens
+     * @param burst The new maximum number of requests in a burst
+     * @since 1.4.0
+     */
+    public synchronized void setBurst(double burst) {
+        if(burst < 1) throw new IllegalArgumentException("The burst must be at least 1");
+        refill();
+        this.burst = burst;
+        this.tokens = Math.min(tokens, burst);
+    }
+
+    /**
+     * Get the fraction of the maximum number of tokens that background requests leave for interactive requests
+     * @return The reserve for interactive requests (between 0 and 1)
+     * @since 1.4.0
+     */
+    public synchronized double getReserve() {
+        return reserve;
+    }
+
+    /**
+     * Change the fraction of the maximum number of tokens that background requests leave for interactive requests
+     * @param reserve The new reserve for interactive requests (between 0 and 1)
+     * @since 1.4.0
+     */
+    public synchronized void setReserve(double reserve) {
+        if(reserve < 0 || reserve > 1) throw new IllegalArgumentException("The reserve must be between 0 and 1");
+        this.reserve = reserve;
+    }
+
+    /**
+     * Get the number of tokens that are available
+     * @return The number of tokens that are available
+     * @since 1.4.0
+     */
+    public synchronized double getAvailable() {
+        refill();
+        return tokens;
+    }
+
+    /**
+     * Get the number of background requests that were denied
+     * @return The number of background requests that were denied
+     * @since 1.4.0
+     */
+    public synchronized long getDeniedCount() {
+        return deniedCount;
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link AdaptivePoller} learns from the changes that arrive in notifications
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class AdaptivePollerTest {
+
+    /**
+     * The poller under test
+     */
+    private AdaptivePoller poller;
+
+    /**
+     * The polled light
+     */
+    private Light light;
+
+    /**
+     * Create a poller that polls a light
+     * @since 1.4.0
+     */
+    @Before
+    public void setUp() {
+        CoapClient coapClient = new CoapClient();
+        poller = new AdaptivePoller(coapClient);
+        LightProperties properties = new LightProperties();
+        properties.setOn(true);
+        properties.setBrightness(0);
+        light = new Light("light", 0L, 65537, new DeviceInfo(), properties, coapClient);
+        poller.add(light);
+    }
+
+    /**
+     * Close the poller
+     * @since 1.4.0
+     */
+    @After
+    public void tearDown() {
+        poller.close();
+    }
+
+    @Test
+    public void notifiedChangeShortensInterval() {
+        long interval = poller.getInterval(light);
+        light.getObserver().callEventHandlers("{\"3311\":[{\"5850\":1,\"5851\":100}]}", false);
+        assertTrue(poller.getInterval(light) < interval);
+        assertEquals(1, poller.getChangeCount());
+    }
+
+    @Test
+    public void unchangedNotificationKeepsInterval() {
+        long interval = poller.getInterval(light);
+        light.getObserver().callEventHandlers("{\"3311\":[{\"5850\":1,\"5851\":0}]}", false);
+        assertEquals(interval, poller.getInterval(light));
+        assertEquals(0, poller.getChangeCount());
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that waiting for a {@link BulkOperation} with a deadline is bounded by the deadline
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class BulkOperationTest {
+
+    /**
+     * The executor on which the devices are updated
+     */
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    /**
+     * The latch that releases the updates of the slow lights
+     */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * Release the slow lights and stop the executor
+     * @since 1.4.0
+     */
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void updatesInFlightAtTheDeadlineAreTimedOut() {
+        Device[] devices = {new TestLight(false), new TestLight(true)};
+        GroupProperties change = new GroupProperties();
+        change.setOn(true);
+        BulkOperation operation = new BulkOperation(devices, change, 200L);
+        operation.start(executor, 4);
+        long start = System.nanoTime();
+        BulkResult result = operation.await();
+        assertTrue("The wait was not bounded by the deadline", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(BulkStatus.SUCCEEDED, result.getStatus(0));
+        assertEquals(BulkStatus.TIMED_OUT, result.getStatus(1));
+        release.countDown();
+        assertEquals(BulkStatus.TIMED_OUT, operation.getFuture().join().getStatus(1));
+    }
+
+    @Test
+    public void operationWithoutDeadlineWaitsForEveryUpdate() {
+        Device[] devices = {new TestLight(false), new TestLight(false)};
+        GroupProperties change = new GroupProperties();
+        change.setOn(true);
+        BulkOperation operation = new BulkOperation(devices, change, null);
+        operation.start(executor, 4);
+        BulkResult result = operation.await();
+        assertEquals(2, result.count(BulkStatus.SUCCEEDED));
+    }
+
+    /**
+     * A light that succeeds without sending its updates, optionally only once the test releases it
+     */
+    private class TestLight extends Light {
+
+        /**
+         * Whether the update waits until the test releases it
+         */
+        private final boolean slow;
+
+        /**
+         * Construct the test light
+         * @param slow Whether the update waits until the test releases it
+         * @since 1.4.0
+         */
+        TestLight(boolean slow) {
+            super("light", 0L, 65537, new DeviceInfo(), new LightProperties(), new CoapClient());
+            this.slow = slow;
+        }
+
+        @Override
+        boolean applyUpdate(LightProperties newProperties) {
+            if(slow){
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a conditional write to a light is refused once a notification has changed the state it was decided on
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class CompareAndSetTest {
+
+    /**
+     * The CoAP client of the light, which counts the writes instead of sending them
+     */
+    private CountingCoapClient coapClient;
+
+    /**
+     * The light that is written
+     */
+    private Light light;
+
+    /**
+     * Create a light at brightness 100
+     * @since 1.4.0
+     */
+    @Before
+    public void setUp() {
+        coapClient = new CountingCoapClient();
+        LightProperties properties = new LightProperties();
+        properties.setOn(true);
+        properties.setBrightness(100);
+        light = new Light("light", 0L, 65537, new DeviceInfo(), properties, coapClient);
+    }
+
+    @Test
+    public void writeAtTheCurrentVersionSucceeds() {
+        assertTrue(light.setBrightnessIfVersion(light.getVersion(), 100));
+        assertEquals(1, coapClient.writeCount);
+    }
+
+    @Test
+    public void changeBetweenDecisionAndWriteIsAConflict() {
+        long version = light.getVersion();
+        light.getObserver().process("{\"3311\":[{\"5850\":1,\"5851\":50}]}");
+        assertNotEquals(version, light.getVersion());
+        assertFalse(light.setBrightnessIfVersion(version, 50));
+        assertEquals(0, coapClient.writeCount);
+        assertTrue(light.setBrightnessIfVersion(light.getVersion(), 50));
+    }
+
+    @Test
+    public void unchangedNotificationKeepsTheVersion() {
+        long version = light.getVersion();
+        light.getObserver().process("{\"3311\":[{\"5850\":1,\"5851\":100}]}");
+        assertEquals(version, light.getVersion());
+        assertTrue(light.setBrightnessIfVersion(version, 100));
+    }
+
+    @Test
+    public void ownWriteAdvancesTheVersion() {
+        long version = light.getVersion();
+        assertTrue(light.setBrightnessIfVersion(version, 50));
+        assertFalse(light.setBrightnessIfVersion(version, 60));
+        assertEquals(1, coapClient.writeCount);
+    }
+
+    @Test
+    public void staleVersionIsRefusedEvenIfTheStateChangedBack() {
+        long version = light.getVersion();
+        light.getObserver().process("{\"3311\":[{\"5850\":1,\"5851\":50}]}");
+        light.getObserver().process("{\"3311\":[{\"5850\":1,\"5851\":100}]}");
+        assertFalse(light.setBrightnessIfVersion(version, 100));
+    }
+
+    /**
+     * A CoAP client that counts the writes instead of sending them
+     */
+    private static class CountingCoapClient extends CoapClient {
+
+        /**
+         * The number of writes
+         */
+        private int writeCount;
+
+        @Override
+        public <T> T put(String endpoint, Object payload, Class<T> responseType) {
+            writeCount++;
+            return responseType.cast("");
+        }
+    }
+
+}
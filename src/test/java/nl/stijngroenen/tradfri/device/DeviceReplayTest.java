@@ -0,0 +1,166 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.device.event.EventHandler;
+import nl.stijngroenen.tradfri.device.event.LightChangeEvent;
+import nl.stijngroenen.tradfri.util.CoapClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests that the replay of a device reaches a late event handler once and in order with the live notifications of the device
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class DeviceReplayTest {
+
+    /**
+     * The light of which the notifications are replayed
+     */
+    private Light light;
+
+    /**
+     * The observer that handles the notifications of the light
+     */
+    private DeviceObserver observer;
+
+    /**
+     * Create a light that keeps its recent changes
+     * @since 1.4.0
+     */
+    @Before
+    public void setUp() {
+        LightProperties properties = new LightProperties();
+        properties.setOn(true);
+        properties.setBrightness(0);
+        light = new Light("light", 0L, 65537, new DeviceInfo(), properties, new CoapClient());
+        light.setReplayCapacity(8);
+        observer = light.getObserver();
+    }
+
+    /**
+     * Get the payload of a notification of the light
+     * @param brightness The brightness of the light
+     * @return The payload of the notification
+     * @since 1.4.0
+     */
+    static String payload(int brightness) {
+        return "{\"3311\":[{\"5850\":1,\"5851\":" + brightness + "}]}";
+    }
+
+    /**
+     * Get the brightness values of the changes that an event handler received
+     * @param events The changes that the event handler received
+     * @return The new brightness of every change
+     * @since 1.4.0
+     */
+    private static int[] brightness(List<LightChangeEvent> events) {
+        int[] brightness = new int[events.size()];
+        for(int i = 0; i < brightness.length; i++){
+            brightness[i] = events.get(i).getNewProperties().getBrightness();
+        }
+        return brightness;
+    }
+
+    /**
+     * Test that a notification that occurs while the replay is delivered is deferred until after the replay
+     * @throws InterruptedException If the test is interrupted
+     * @since 1.4.0
+     */
+    @Test
+    public void liveNotificationDuringReplayIsDeliveredAfterTheReplay() throws InterruptedException {
+        observer.process(payload(10));
+        observer.process(payload(20));
+        List<LightChangeEvent> events = Collections.synchronizedList(new ArrayList<>());
+        EventHandler<LightChangeEvent> eventHandler = new EventHandler<LightChangeEvent>() {
+            @Override
+            public void handle(LightChangeEvent event) {
+                boolean first = events.isEmpty();
+                events.add(event);
+                if(!first) return;
+                // A notification arrives on another thread while the first replayed change is handled
+                Thread dispatcher = new Thread(() -> observer.process(payload(30)));
+                dispatcher.start();
+                try {
+                    dispatcher.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        light.addEventHandler(eventHandler, true);
+        assertArrayEquals(new int[]{10, 20, 30}, brightness(events));
+        observer.process(payload(40));
+        assertArrayEquals(new int[]{10, 20, 30, 40}, brightness(events));
+        synchronized (light) {
+            assertNull(light.getReplayHandoffs());
+        }
+    }
+
+    /**
+     * Test that a notification that occurs after the event handler is registered but before the replay is taken is only delivered as part of the replay
+     * @since 1.4.0
+     */
+    @Test
+    public void notificationBeforeTheSnapshotIsOnlyReplayed() {
+        observer.process(payload(10));
+        List<LightChangeEvent> events = new ArrayList<>();
+        EventHandler<LightChangeEvent> eventHandler = new EventHandler<LightChangeEvent>() {
+            @Override
+            public void handle(LightChangeEvent event) {
+                events.add(event);
+            }
+        };
+        ReplayHandoff handoff = new ReplayHandoff(eventHandler);
+        light.addReplayHandoff(handoff);
+        light.addEventHandler(eventHandler);
+        observer.process(payload(20));
+        assertEquals(0, events.size());
+        light.replay(null, handoff);
+        assertArrayEquals(new int[]{10, 20}, brightness(events));
+        observer.process(payload(30));
+        assertArrayEquals(new int[]{10, 20, 30}, brightness(events));
+    }
+
+    /**
+     * Test that an event handler without replay only receives the notifications that occur after it is added
+     * @since 1.4.0
+     */
+    @Test
+    public void eventHandlerWithoutReplayOnlyReceivesNewNotifications() {
+        observer.process(payload(10));
+        List<LightChangeEvent> events = new ArrayList<>();
+        light.addEventHandler(new EventHandler<LightChangeEvent>() {
+            @Override
+            public void handle(LightChangeEvent event) {
+                events.add(event);
+            }
+        }, false);
+        observer.process(payload(20));
+        assertArrayEquals(new int[]{20}, brightness(events));
+    }
+
+}
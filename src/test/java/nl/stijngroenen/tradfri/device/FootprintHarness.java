@@ -0,0 +1,203 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.device.event.EventHandler;
+import nl.stijngroenen.tradfri.util.CoapClient;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * A standalone harness that measures the memory footprint of the packed state of IKEA TRÅDFRI lights<br>
+ * It reports the retained heap per light, compared to a light with the fields of version 1.3.0, and the bytes that are allocated
+ * to take in a notification, by diffing the packed words or by diffing two copies of the confirmed properties.
+ * Run it with the test classpath, for example: {@code java -cp target/test-classes:target/classes:<dependencies> nl.stijngroenen.tradfri.device.FootprintHarness 100000}
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public final class FootprintHarness {
+
+    /**
+     * The number of notifications that are taken in to measure the allocated bytes
+     */
+    private static final int NOTIFICATIONS = 1000000;
+
+    /**
+     * Construct the FootprintHarness class
+     * @since 1.4.0
+     */
+    private FootprintHarness() {
+    }
+
+    /**
+     * Run the measurements
+     * @param args The number of lights to allocate (100000 by default)
+     * @since 1.4.0
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        double light = retained(count, i -> new Light("light", 0L, i, new DeviceInfo(), properties(i), null));
+        double baseline = retained(count, i -> new BaselineLight("light", 0L, i, new DeviceInfo(), properties(i), null));
+        System.out.printf("Retained per light (packed state):          %8.1f bytes%n", light);
+        System.out.printf("Retained per light (version 1.3.0):         %8.1f bytes%n", baseline);
+
+        Light target = new Light("light", 0L, 1, new DeviceInfo(), properties(0), null);
+        LightProperties[] notifications = {properties(1), properties(2)};
+        ConfirmedState previous = new ConfirmedState();
+        int changes = 0;
+        long before = allocatedBytes();
+        for(int i = 0; i < NOTIFICATIONS; i++){
+            changes |= target.updateProperties(notifications[i & 1], previous);
+        }
+        double packed = (double) (allocatedBytes() - before) / NOTIFICATIONS;
+        before = allocatedBytes();
+        for(int i = 0; i < NOTIFICATIONS; i++){
+            LightProperties oldProperties = target.getConfirmedProperties();
+            target.setProperties(notifications[i & 1]);
+            changes |= DeviceField.diff(oldProperties, target.getConfirmedProperties());
+        }
+        double unpacked = (double) (allocatedBytes() - before) / NOTIFICATIONS;
+        System.out.printf("Allocated per notification (packed diff):   %8.1f bytes%n", packed);
+        System.out.printf("Allocated per notification (unpacked diff): %8.1f bytes%n", unpacked);
+        if(changes == 0) System.out.println("No changes were detected");
+    }
+
+    /**
+     * Get the properties of a light with a colour that fits the packed state
+     * @param index The index of the light
+     * @return The properties of the light
+     * @since 1.4.0
+     */
+    private static LightProperties properties(int index) {
+        LightProperties properties = new LightProperties();
+        properties.setOn(index % 2 == 0);
+        properties.setBrightness(index % 255);
+        properties.setColourHex("f1e0b5");
+        properties.setColourX(30138 + index % 100);
+        properties.setColourY(26909);
+        properties.setColourTemperature(370);
+        return properties;
+    }
+
+    /**
+     * Measure the heap that is retained by objects
+     * @param count The number of objects to allocate
+     * @param factory The factory that allocates an object
+     * @return The number of bytes retained per object
+     * @since 1.4.0
+     */
+    private static double retained(int count, IntFunction<Object> factory) {
+        Object[] objects = new Object[count];
+        long before = usedHeap();
+        for(int i = 0; i < count; i++){
+            objects[i] = factory.apply(i);
+        }
+        long after = usedHeap();
+        if(objects[count - 1] == null) throw new IllegalStateException("The objects must be retained");
+        return (double) (after - before) / count;
+    }
+
+    /**
+     * Get the used heap after collecting garbage
+     * @return The used heap (in bytes)
+     * @since 1.4.0
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for(int i = 0; i < 5; i++){
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread
+     * @return The number of bytes allocated by the current thread, or 0 if the JVM does not measure it
+     * @since 1.4.0
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)) return 0L;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A device with the fields and the constructor of {@link Device} in version 1.3.0
+     * @since 1.4.0
+     */
+    private static class BaselineDevice {
+
+        private String name;
+        private Long creationDate;
+        private Integer instanceId;
+        private DeviceInfo deviceInfo;
+        private DeviceProperties properties;
+        protected CoapClient coapClient;
+        private DeviceObserver observer;
+        private List<EventHandler<?>> eventHandlers;
+
+        /**
+         * Construct the BaselineDevice class like version 1.3.0 constructs a device
+         * @param name The name of the device
+         * @param creationDate The creation date of the device
+         * @param instanceId The instance id of the device
+         * @param deviceInfo The information of the device
+         * @param coapClient A CoAP client
+         * @since 1.4.0
+         */
+        BaselineDevice(String name, Long creationDate, Integer instanceId, DeviceInfo deviceInfo, CoapClient coapClient) {
+            this.name = name;
+            this.creationDate = creationDate;
+            this.instanceId = instanceId;
+            this.deviceInfo = deviceInfo;
+            this.coapClient = coapClient;
+            this.eventHandlers = new ArrayList<>();
+        }
+    }
+
+    /**
+     * A light with the fields and the constructor of {@link Light} in version 1.3.0
+     * @since 1.4.0
+     */
+    private static class BaselineLight extends BaselineDevice {
+
+        private LightProperties properties;
+        private LightProperties newProperties;
+
+        /**
+         * Construct the BaselineLight class like version 1.3.0 constructs a light
+         * @param name The name of the light
+         * @param creationDate The creation date of the light
+         * @param instanceId The instance id of the light
+         * @param deviceInfo The information of the device
+         * @param properties The properties of the light
+         * @param coapClient A CoAP client
+         * @since 1.4.0
+         */
+        BaselineLight(String name, Long creationDate, Integer instanceId, DeviceInfo deviceInfo, LightProperties properties, CoapClient coapClient) {
+            super(name, creationDate, instanceId, deviceInfo, coapClient);
+            this.properties = properties;
+            this.newProperties = new LightProperties();
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests that the states recorded by a {@link StateJournal} survive a restart, a torn record and compactions that run while records are written
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class StateJournalTest {
+
+    /**
+     * The size of a record in the log (flags, sequence number, time, instance id, values word, colour word, hexadecimal colour and checksum)
+     */
+    private static final int RECORD_SIZE = 45;
+
+    /**
+     * The directory that contains the journal
+     */
+    private Path directory;
+
+    /**
+     * The light of which the states are recorded
+     */
+    private Light light;
+
+    /**
+     * Create an empty directory for the journal
+     * @throws IOException If the directory could not be created
+     * @since 1.4.0
+     */
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("tradfri-journal");
+        light = new Light("light", 0L, 65537, new DeviceInfo(), new LightProperties(), new CoapClient());
+    }
+
+    /**
+     * Delete the directory of the journal
+     * @throws IOException If the directory could not be deleted
+     * @since 1.4.0
+     */
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Get the properties of a light that is on
+     * @param brightness The brightness of the light
+     * @return The properties of the light
+     * @since 1.4.0
+     */
+    private static LightProperties state(int brightness) {
+        LightProperties properties = new LightProperties();
+        properties.setOn(true);
+        properties.setBrightness(brightness);
+        return properties;
+    }
+
+    /**
+     * Get the brightness of the light in a replayed state
+     * @param states The replayed states, by instance id
+     * @return The brightness of the light
+     * @since 1.4.0
+     */
+    private Integer brightness(Map<Integer, DeviceProperties> states) {
+        return ((LightProperties) states.get(light.getInstanceId())).getBrightness();
+    }
+
+    /**
+     * Test that the states are recovered after the journal is closed and opened again
+     * @throws IOException If the journal could not be written or read
+     * @since 1.4.0
+     */
+    @Test
+    public void statesAreRecoveredAfterRestart() throws IOException {
+        try (StateJournal journal = new StateJournal(directory)) {
+            journal.recordObserved(light, state(10));
+            journal.recordObserved(light, state(20));
+        }
+        try (StateJournal journal = new StateJournal(directory)) {
+            assertEquals(2L, journal.getSequence());
+            assertEquals(Integer.valueOf(20), brightness(journal.replay(Long.MAX_VALUE)));
+        }
+    }
+
+    /**
+     * Test that a record that was torn by a crash is discarded, and that the records after it are appended in its place
+     * @throws IOException If the journal could not be written or read
+     * @since 1.4.0
+     */
+    @Test
+    public void tornRecordIsDiscardedOnRecovery() throws IOException {
+        try (StateJournal journal = new StateJournal(directory)) {
+            journal.recordObserved(light, state(10));
+        }
+        // Half a record, as left behind by a crash during a write
+        try (FileChannel channel = FileChannel.open(directory.resolve("journal.log"), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 0, 0, 0, 0, 2, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}));
+        }
+        try (StateJournal journal = new StateJournal(directory)) {
+            assertEquals(1L, journal.getSequence());
+            assertEquals(Integer.valueOf(10), brightness(journal.replay(Long.MAX_VALUE)));
+            journal.recordObserved(light, state(30));
+        }
+        try (StateJournal journal = new StateJournal(directory)) {
+            assertEquals(2L, journal.getSequence());
+            assertEquals(Integer.valueOf(30), brightness(journal.replay(Long.MAX_VALUE)));
+        }
+    }
+
+    /**
+     * Test that the archived segments and the log contain every record once and in order, while compactions run concurrently with the writer
+     * @throws Exception If the journal could not be written or read, or the test is interrupted
+     * @since 1.4.0
+     */
+    @Test
+    public void logRecordsStayInOrderWhileCompacting() throws Exception {
+        int threads = 4;
+        int records = 100000;
+        try (StateJournal journal = new StateJournal(directory)) {
+            journal.setCommitInterval(1L);
+            journal.setRetainedSegments(Integer.MAX_VALUE);
+            AtomicBoolean recording = new AtomicBoolean(true);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread compactor = new Thread(() -> {
+                try {
+                    while (recording.get()) journal.compact();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            compactor.start();
+            List<Thread> recorders = new ArrayList<>();
+            for(int t = 0; t < threads; t++){
+                Light light = new Light("light", 0L, 65537 + t, new DeviceInfo(), new LightProperties(), new CoapClient());
+                Thread recorder = new Thread(() -> {
+                    for(int i = 0; i < records; i++){
+                        journal.recordObserved(light, state(i % 254 + 1));
+                    }
+                });
+                recorders.add(recorder);
+                recorder.start();
+            }
+            for(Thread recorder: recorders){
+                recorder.join();
+            }
+            recording.set(false);
+            compactor.join();
+            assertNull(error.get());
+        }
+        List<Path> logs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().matches("journal-\\d+\\.log")).sorted().forEach(logs::add);
+        }
+        logs.add(directory.resolve("journal.log"));
+        long expected = 1L;
+        for(Path log: logs){
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(log));
+            for(int position = 0; position + RECORD_SIZE <= buffer.limit(); position += RECORD_SIZE){
+                assertEquals("Sequence number in " + log.getFileName(), expected++, buffer.getLong(position + 1));
+            }
+        }
+        assertEquals((long) threads * records + 1, expected);
+    }
+
+    /**
+     * Test that every state can still be replayed at its point in time while compactions run concurrently with the writer
+     * @throws Exception If the journal could not be written or read, or the test is interrupted
+     * @since 1.4.0
+     */
+    @Test
+    public void replayFindsEveryStateWhileCompacting() throws Exception {
+        List<Long> times = new ArrayList<>();
+        try (StateJournal journal = new StateJournal(directory)) {
+            journal.setCommitInterval(1L);
+            journal.setRetainedSegments(Integer.MAX_VALUE);
+            AtomicBoolean recording = new AtomicBoolean(true);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread compactor = new Thread(() -> {
+                try {
+                    while (recording.get()) {
+                        journal.compact();
+                        Thread.sleep(1L);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            compactor.start();
+            for(int brightness = 1; brightness <= 100; brightness++){
+                journal.recordObserved(light, state(brightness));
+                times.add(System.currentTimeMillis());
+                Thread.sleep(2L);
+            }
+            recording.set(false);
+            compactor.join();
+            assertNull(error.get());
+            for(int i = 0; i < times.size(); i++){
+                assertEquals("State at record " + (i + 1), Integer.valueOf(i + 1), brightness(journal.replay(times.get(i))));
+            }
+        }
+        try (StateJournal journal = new StateJournal(directory)) {
+            assertEquals(100L, journal.getSequence());
+            assertEquals(Integer.valueOf(100), brightness(journal.replay(Long.MAX_VALUE)));
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the steps of a scheduled transition reach every light in the order of the plan
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class TransitionPlannerTest {
+
+    /**
+     * The number of steps in the plan
+     */
+    private static final int STEPS = 200;
+
+    /**
+     * The planner that schedules the steps
+     */
+    private TransitionPlanner planner;
+
+    /**
+     * Create the planner
+     * @since 1.4.0
+     */
+    @Before
+    public void setUp() {
+        planner = new TransitionPlanner(new CoapClient());
+    }
+
+    /**
+     * Close the planner
+     * @since 1.4.0
+     */
+    @After
+    public void tearDown() {
+        planner.close();
+    }
+
+    /**
+     * Create a plan of which several steps are due at the same time, with a rising brightness
+     * @return The plan
+     * @since 1.4.0
+     */
+    private static TransitionPlan risingPlan() {
+        List<TransitionPlan.Step> steps = new ArrayList<>();
+        for(int i = 0; i < STEPS; i++){
+            LightProperties properties = new LightProperties();
+            properties.setBrightness(i);
+            steps.add(new TransitionPlan.Step(i / 4, properties));
+        }
+        return new TransitionPlan(steps, STEPS / 4);
+    }
+
+    /**
+     * Wait until the lights have received a number of steps
+     * @param lights The lights
+     * @param count The number of steps
+     * @throws InterruptedException Thrown if the thread is interrupted
+     * @since 1.4.0
+     */
+    private static void awaitSteps(List<RecordingLight> lights, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        for(RecordingLight light: lights){
+            while(light.brightnesses().size() < count && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void stepsOfEveryLightAreAppliedInPlanOrder() throws InterruptedException {
+        List<RecordingLight> lights = Arrays.asList(new RecordingLight(), new RecordingLight(), new RecordingLight());
+        planner.schedule(risingPlan(), new ArrayList<>(lights));
+        awaitSteps(lights, STEPS);
+        for(RecordingLight light: lights){
+            List<Integer> brightnesses = light.brightnesses();
+            assertEquals(STEPS, brightnesses.size());
+            for(int i = 0; i < STEPS; i++){
+                assertEquals("step " + i, Integer.valueOf(i), brightnesses.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void cancelledTransitionStopsSendingSteps() throws InterruptedException {
+        List<RecordingLight> lights = Collections.singletonList(new RecordingLight());
+        ScheduledTransition transition = planner.schedule(risingPlan(), new ArrayList<>(lights));
+        transition.cancel();
+        Thread.sleep(STEPS / 4 + 100);
+        List<Integer> brightnesses = lights.get(0).brightnesses();
+        assertTrue(brightnesses.size() < STEPS);
+        for(int i = 0; i < brightnesses.size(); i++){
+            assertEquals(Integer.valueOf(i), brightnesses.get(i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedPlannerRejectsTransitions() {
+        planner.close();
+        planner.schedule(risingPlan(), Collections.singletonList(new RecordingLight()));
+    }
+
+    /**
+     * A light that records the brightness of the steps it receives instead of sending them, and takes a random time for every step
+     */
+    private static class RecordingLight extends Light {
+
+        /**
+         * The brightness of the received steps, in the order in which they are received
+         */
+        private final List<Integer> brightnesses = new ArrayList<>();
+
+        /**
+         * Construct the recording light
+         * @since 1.4.0
+         */
+        RecordingLight() {
+            super("light", 0L, 65537, new DeviceInfo(), new LightProperties(), new CoapClient());
+        }
+
+        @Override
+        boolean applyUpdate(LightProperties newProperties) {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (brightnesses) {
+                brightnesses.add(newProperties.getBrightness());
+            }
+            return true;
+        }
+
+        /**
+         * Get a copy of the brightness of the received steps
+         * @return A copy of the brightness of the received steps
+         * @since 1.4.0
+         */
+        List<Integer> brightnesses() {
+            synchronized (brightnesses) {
+                return new ArrayList<>(brightnesses);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device;
+
+import nl.stijngroenen.tradfri.util.CoapClient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the order in which {@link WriteCoalescer} sends the writes that arrive while a write is in flight
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class WriteCoalescerTest {
+
+    /**
+     * The CoAP client of which the executor sends the pending writes
+     */
+    private final CoapClient coapClient = new CoapClient();
+
+    /**
+     * The writes that are sent, in the order in which they are sent
+     */
+    private final List<String> sent = new ArrayList<>();
+
+    /**
+     * The latch that holds the first write in flight
+     */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * The latch that is counted down once the first write is in flight
+     */
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    /**
+     * The coalescer under test, of which the first write waits until the test releases it
+     */
+    private final WriteCoalescer<String> coalescer = new WriteCoalescer<>(properties -> {
+        if(properties.equals("first")){
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (sent) {
+            sent.add(properties);
+        }
+        return true;
+    }, coapClient);
+
+    /**
+     * Release the first write and shut down the executor
+     * @since 1.4.0
+     */
+    @After
+    public void tearDown() {
+        release.countDown();
+        coapClient.close();
+    }
+
+    /**
+     * Wait until a number of writes is sent
+     * @param count The number of writes
+     * @return A copy of the writes that are sent
+     * @throws InterruptedException Thrown if the thread is interrupted
+     * @since 1.4.0
+     */
+    private List<String> awaitSent(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (sent) {
+                if(sent.size() >= count) return new ArrayList<>(sent);
+            }
+            Thread.sleep(5);
+        }
+        synchronized (sent) {
+            return new ArrayList<>(sent);
+        }
+    }
+
+    /**
+     * Send the first write on another thread and wait until it is in flight
+     * @throws InterruptedException Thrown if the thread is interrupted
+     * @since 1.4.0
+     */
+    private void startFirstWrite() throws InterruptedException {
+        Thread thread = new Thread(() -> coalescer.submit(1, "first"));
+        thread.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void pendingWritesAreSentInOrderAfterTheWriteInFlight() throws InterruptedException {
+        startFirstWrite();
+        assertTrue(coalescer.submit(1, "brightness"));
+        assertTrue(coalescer.submit(2, "colour"));
+        assertTrue(coalescer.submit(4, "on"));
+        release.countDown();
+        assertEquals(Arrays.asList("first", "brightness", "colour", "on"), awaitSent(4));
+        assertEquals(0, coapClient.getCoalescedWriteCount());
+    }
+
+    @Test
+    public void newerWriteOfTheSameFieldsReplacesThePendingWriteAndMovesLast() throws InterruptedException {
+        startFirstWrite();
+        coalescer.submit(1, "brightness 10");
+        coalescer.submit(2, "colour");
+        coalescer.submit(1, "brightness 20");
+        release.countDown();
+        assertEquals(Arrays.asList("first", "colour", "brightness 20"), awaitSent(3));
+        assertEquals(1, coapClient.getCoalescedWriteCount());
+    }
+
+}
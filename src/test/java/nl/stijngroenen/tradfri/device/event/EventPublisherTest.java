@@ -0,0 +1,73 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.device.event;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests that {@link EventPublisher} discards the oldest events of a full buffer and counts them
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class EventPublisherTest {
+
+    @Test
+    public void fullBufferDropsOldestEventsAndCountsThem() {
+        List<EventHandler<GatewayEvent>> handlers = new ArrayList<>();
+        EventPublisher<GatewayEvent> publisher = new EventPublisher<>(GatewayEvent.class, handlers::add, handlers::remove, 2);
+        List<GatewayEvent> received = new ArrayList<>();
+        Subscription[] subscription = new Subscription[1];
+        publisher.subscribe(new Subscriber<GatewayEvent>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(GatewayEvent event) {
+                received.add(event);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        GatewayEvent[] events = new GatewayEvent[5];
+        for(int i = 0; i < events.length; i++){
+            events[i] = new GatewayEvent(null);
+            handlers.get(0).dispatch(events[i]);
+        }
+        assertEquals(3, publisher.getDroppedCount());
+        subscription[0].request(10);
+        assertEquals(2, received.size());
+        assertSame(events[3], received.get(0));
+        assertSame(events[4], received.get(1));
+    }
+
+}
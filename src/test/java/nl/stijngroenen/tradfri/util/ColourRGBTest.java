@@ -0,0 +1,138 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that the conversion from RGB to X and Y values with the lookup table of {@link ColourRGB} gives exactly the same result as computing the gamma correction with {@link Math#pow(double, double)}
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class ColourRGBTest {
+
+    /**
+     * Convert RGB values to X and Y values like version 1.3.0 did, computing the gamma correction for every conversion
+     * @param red The red value (between 0 and 255)
+     * @param green The green value (between 0 and 255)
+     * @param blue The blue value (between 0 and 255)
+     * @return The X value in the high 16 bits and the Y value in the low 16 bits
+     * @since 1.4.0
+     */
+    static int toXYWithPow(int red, int green, int blue) {
+        double linearRed = linear(red / 255.0);
+        double linearGreen = linear(green / 255.0);
+        double linearBlue = linear(blue / 255.0);
+
+        double X = linearRed * 0.4124564 + linearGreen * 0.3575761 + linearBlue * 0.1804375;
+        double Y = linearRed * 0.2126729 + linearGreen * 0.7151522 + linearBlue * 0.0721750;
+        double Z = linearRed * 0.0193339 + linearGreen * 0.1191920 + linearBlue * 0.9503041;
+        double total = X + Y + Z;
+
+        double x = 0;
+        double y = 0;
+        if(total != 0){
+            x = X / total;
+            y = Y / total;
+        }
+
+        return ((int) (x * 65535 + 0.5) << 16) | (int) (y * 65535 + 0.5);
+    }
+
+    /**
+     * Remove the gamma correction of a normalised sRGB value
+     * @param value The normalised sRGB value (between 0 and 1)
+     * @return The linear value
+     * @since 1.4.0
+     */
+    private static double linear(double value) {
+        return (value > 0.04045) ? Math.pow((value + 0.055) / (1.0 + 0.055), 2.4) : (value / 12.92);
+    }
+
+    /**
+     * Test every 24-bit colour with the batch conversion
+     * @since 1.4.0
+     */
+    @Test
+    public void batchConversionMatchesPowForEveryColour() {
+        int[] rgb = new int[1 << 16];
+        int[] xy = new int[rgb.length];
+        for(int red = 0; red < 256; red++){
+            for(int i = 0; i < rgb.length; i++){
+                rgb[i] = (red << 16) | i;
+            }
+            ColourRGB.toXY(rgb, xy);
+            for(int i = 0; i < rgb.length; i++){
+                int expected = toXYWithPow(red, i >> 8, i & 0xFF);
+                if(xy[i] != expected) assertEquals("Colour " + Integer.toHexString(rgb[i]), expected, xy[i]);
+            }
+        }
+    }
+
+    /**
+     * Test a dense sample of colours with the conversion of a single colour
+     * @since 1.4.0
+     */
+    @Test
+    public void singleConversionMatchesPow() {
+        for(int red = 0; red < 256; red += 3){
+            for(int green = 0; green < 256; green += 5){
+                for(int blue = 0; blue < 256; blue += 7){
+                    ColourXY colour = new ColourRGB(red, green, blue).toXY();
+                    int expected = toXYWithPow(red, green, blue);
+                    assertEquals("X of " + red + ", " + green + ", " + blue, expected >>> 16, (int) colour.getX());
+                    assertEquals("Y of " + red + ", " + green + ", " + blue, expected & 0xFFFF, (int) colour.getY());
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that out of range values are clamped like before
+     * @since 1.4.0
+     */
+    @Test
+    public void singleConversionClampsValues() {
+        ColourXY colour = new ColourRGB(-10, 300, 128).toXY();
+        int expected = toXYWithPow(0, 255, 128);
+        assertEquals(expected >>> 16, (int) colour.getX());
+        assertEquals(expected & 0xFFFF, (int) colour.getY());
+    }
+
+    /**
+     * Test that the batch conversion ignores the alpha bits
+     * @since 1.4.0
+     */
+    @Test
+    public void batchConversionIgnoresAlpha() {
+        int[] xy = new int[1];
+        ColourRGB.toXY(new int[]{0xFF123456}, xy);
+        assertEquals(toXYWithPow(0x12, 0x34, 0x56), xy[0]);
+    }
+
+    /**
+     * Test that the batch conversion rejects an output array that is shorter than the colours
+     * @since 1.4.0
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void batchConversionRejectsShortOutput() {
+        ColourRGB.toXY(new int[2], new int[1]);
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+   Copyright 2020 Stijn Groenen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package nl.stijngroenen.tradfri.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the overflow behaviour of {@link DispatchQueue}
+ * @author Stijn Groenen
+ * @version 1.4.0
+ */
+public class DispatchQueueTest {
+
+    @Test
+    public void defaultPolicyCoalescesPerKey() {
+        DispatchQueue queue = new DispatchQueue();
+        assertEquals(OverflowPolicy.COALESCE, queue.getOverflowPolicy());
+        queue.setDelay(60000);
+        Object key = new Object();
+        queue.submit(key, () -> {});
+        queue.submit(key, () -> {});
+        assertEquals(1, queue.getDepth());
+        assertEquals(1, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void dispatcherDoesNotBlockOnFullQueue() throws InterruptedException {
+        DispatchQueue queue = new DispatchQueue();
+        queue.setOverflowPolicy(OverflowPolicy.BLOCK);
+        queue.setCapacity(1);
+        queue.setDelay(0);
+        CountDownLatch submitted = new CountDownLatch(1);
+        queue.submit("first", () -> {
+            queue.submit("second", () -> {});
+            queue.submit("third", () -> {});
+            submitted.countDown();
+        });
+        assertTrue("The dispatcher thread blocked on its own queue", submitted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+}